@@ -31,6 +31,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 /** @hide */
+@CMSystemService.Lazy(binderName = CMContextConstants.CM_APP_SUGGEST_SERVICE,
+        feature = CMContextConstants.Features.APP_SUGGEST)
 public class AppSuggestManagerService extends CMSystemService {
     private static final String TAG = "AppSgstMgrService";
     public static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
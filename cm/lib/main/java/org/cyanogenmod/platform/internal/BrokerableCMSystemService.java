@@ -26,7 +26,9 @@ import android.content.pm.PackageManager;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.IInterface;
+import android.os.Looper;
 import android.os.Message;
+import android.os.RemoteException;
 import android.os.SystemClock;
 import android.util.Slog;
 
@@ -36,16 +38,55 @@ import com.android.internal.util.Preconditions;
 
 import org.cyanogenmod.platform.internal.common.BrokeredServiceConnection;
 
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
 public abstract class BrokerableCMSystemService<T extends IInterface> extends CMSystemService {
     private static final String TAG = BrokerableCMSystemService.class.getSimpleName();
 
     private static final int MSG_TRY_CONNECTING = 1;
+    private static final int MSG_CONNECTION_STALLED = 2;
     private static final long SERVICE_CONNECTION_WAIT_TIME_MS = 4 * 1000L; // 4 seconds
+    // Oneway calls held while the implementation is not connected
+    private static final int MAX_PENDING_CALLS = 64;
+
+    private static final int STATE_DISCONNECTED = 0;
+    private static final int STATE_CONNECTING = 1;
+    private static final int STATE_CONNECTED = 2;
+
     private Context mContext;
 
     private BrokeredServiceConnection mBrokeredServiceConnection;
     private T mImplementingBinderInterface;
 
+    // All guarded by this
+    private int mState = STATE_DISCONNECTED;
+    private final ArrayDeque<BrokeredCall<T>> mPendingCalls = new ArrayDeque<BrokeredCall<T>>();
+    private boolean mReplaying;
+    private long mConnectStartTime;
+
+    // Metrics, guarded by this
+    private int mConnectAttempts;
+    private int mConnects;
+    private int mDisconnects;
+    private int mStalls;
+    private long mLastConnectLatencyMs;
+    private long mMaxConnectLatencyMs;
+    private long mSyncFallbacks;
+    private long mQueuedCalls;
+    private long mReplayedCalls;
+    private long mDroppedCalls;
+    private int mMaxPendingCalls;
+
+    /**
+     * A oneway call into the implementing service, which can be held until the
+     * implementation connects.
+     */
+    public interface BrokeredCall<T> {
+        void call(T service) throws RemoteException;
+    }
+
     public BrokerableCMSystemService(Context context) {
         super(context);
         mContext = context;
@@ -109,16 +150,62 @@ public abstract class BrokerableCMSystemService<T extends IInterface> extends CM
     /**
      * Get the implementing service for the given binder invocation. Usually called from a binder
      * thread in a subclassed service.
+     *
+     * This never waits for the implementation: if it isn't connected, a connection attempt is
+     * started and the default implementation is returned.
      * @return {@link T} that represents the implementing service
      */
     public final T getBrokeredService() {
-        final T service = getOrConnectService();
-        if (service != null) {
-            return service;
+        synchronized (this) {
+            if (mImplementingBinderInterface != null) {
+                return mImplementingBinderInterface;
+            }
+            mSyncFallbacks++;
+            requestConnectionLocked();
         }
         return getDefaultImplementation();
     }
 
+    /**
+     * Run a oneway call against the implementing service. If the implementation isn't
+     * connected yet, the call is held and replayed in order once it connects, or run against
+     * the default implementation if connecting fails or too many calls are held.
+     * @param call
+     */
+    public final void executeBrokeredCall(@NonNull BrokeredCall<T> call) throws RemoteException {
+        final T service;
+        BrokeredCall<T> dropped = null;
+        boolean queued = false;
+        synchronized (this) {
+            service = mImplementingBinderInterface;
+            if (service == null || mReplaying || !mPendingCalls.isEmpty()) {
+                // Keep ordering with calls that are already waiting
+                if (mPendingCalls.size() >= MAX_PENDING_CALLS) {
+                    dropped = mPendingCalls.poll();
+                    mDroppedCalls++;
+                    Slog.w(TAG, "Too many calls pending on implementation, failing oldest");
+                }
+                mPendingCalls.add(call);
+                mQueuedCalls++;
+                mMaxPendingCalls = Math.max(mMaxPendingCalls, mPendingCalls.size());
+                if (service == null) {
+                    requestConnectionLocked();
+                }
+                queued = true;
+            }
+        }
+        if (dropped != null) {
+            try {
+                dropped.call(getDefaultImplementation());
+            } catch (RemoteException | RuntimeException e) {
+                Slog.w(TAG, "Default implementation failed dropped call", e);
+            }
+        }
+        if (!queued) {
+            call.call(service);
+        }
+    }
+
     @Override
     public void onBootPhase(int phase) {
         super.onBootPhase(phase);
@@ -128,48 +215,117 @@ public abstract class BrokerableCMSystemService<T extends IInterface> extends CM
         }
     }
 
-    private T getOrConnectService() {
-        synchronized (this) {
-            if (mImplementingBinderInterface != null) {
-                return mImplementingBinderInterface;
-            }
-            // Service is not connected. Try blocking connecting.
-            mConnectionHandler.sendMessage(
-                    mConnectionHandler.obtainMessage(MSG_TRY_CONNECTING));
-            final long shouldEnd =
-                    SystemClock.elapsedRealtime() + SERVICE_CONNECTION_WAIT_TIME_MS;
-            long waitTime = SERVICE_CONNECTION_WAIT_TIME_MS;
-            while (waitTime > 0) {
-                try {
-                    // TODO: consider using Java concurrent construct instead of raw object wait
-                    this.wait(waitTime);
-                } catch (InterruptedException e) {
-                    Slog.w(TAG, "Connection wait interrupted", e);
-                }
-                if (mImplementingBinderInterface != null) {
-                    // Success
-                    return mImplementingBinderInterface;
-                }
-                // Calculate remaining waiting time to make sure we wait the full timeout period
-                waitTime = shouldEnd - SystemClock.elapsedRealtime();
-            }
-            return null;
+    private void requestConnectionLocked() {
+        if (mState == STATE_DISCONNECTED
+                && !mConnectionHandler.hasMessages(MSG_TRY_CONNECTING)) {
+            mConnectionHandler.sendEmptyMessage(MSG_TRY_CONNECTING);
         }
     }
 
-    private final Handler mConnectionHandler = new Handler() {
+    // Brokers may be constructed off the main thread by the CMSystemServer, so bind
+    // the handler to the system server's main looper explicitly
+    private final Handler mConnectionHandler = new Handler(Looper.getMainLooper()) {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_TRY_CONNECTING:
                     tryConnecting();
                     break;
+                case MSG_CONNECTION_STALLED:
+                    onConnectionStalled();
+                    break;
                 default:
                     Slog.e(TAG, "Unknown message");
             }
         }
     };
 
+    private void onConnectionStalled() {
+        synchronized (this) {
+            if (mState != STATE_CONNECTING) {
+                return;
+            }
+            mStalls++;
+            Slog.w(TAG, "Implementation did not connect within "
+                    + SERVICE_CONNECTION_WAIT_TIME_MS + "ms, falling back to default");
+            // Give up on this binding, the next call will try again
+            mState = STATE_DISCONNECTED;
+            try {
+                mContext.unbindService(mConnection);
+            } catch (IllegalArgumentException e) {
+                // Not bound
+            }
+        }
+        failPendingCalls();
+    }
+
+    /**
+     * Run any held calls against the default implementation.
+     */
+    private void failPendingCalls() {
+        final ArrayList<BrokeredCall<T>> calls;
+        synchronized (this) {
+            if (mPendingCalls.isEmpty()) {
+                return;
+            }
+            calls = new ArrayList<BrokeredCall<T>>(mPendingCalls);
+            mPendingCalls.clear();
+        }
+        final T defaultImpl = getDefaultImplementation();
+        for (BrokeredCall<T> call : calls) {
+            try {
+                call.call(defaultImpl);
+            } catch (RemoteException | RuntimeException e) {
+                Slog.w(TAG, "Default implementation failed pending call", e);
+            }
+        }
+    }
+
+    private void replayPendingCalls() {
+        while (true) {
+            final T service;
+            final BrokeredCall<T> call;
+            synchronized (this) {
+                service = mImplementingBinderInterface;
+                call = service != null ? mPendingCalls.poll() : null;
+                mReplaying = call != null;
+                if (call == null) {
+                    return;
+                }
+                mReplayedCalls++;
+            }
+            try {
+                call.call(service);
+            } catch (RemoteException | RuntimeException e) {
+                Slog.w(TAG, "Failed to replay call on implementation", e);
+            }
+        }
+    }
+
+    /**
+     * Dump connection state and metrics. Meant to be called from a subclass' binder dump.
+     */
+    protected final void dumpBrokerState(PrintWriter pw) {
+        synchronized (this) {
+            final String state = mState == STATE_CONNECTED ? "connected"
+                    : mState == STATE_CONNECTING ? "connecting" : "disconnected";
+            pw.println("  Broker:");
+            pw.println("    state=" + state
+                    + (mState == STATE_CONNECTING
+                            ? " for " + (SystemClock.elapsedRealtime() - mConnectStartTime) + "ms"
+                            : ""));
+            pw.println("    connectAttempts=" + mConnectAttempts + " connects=" + mConnects
+                    + " disconnects=" + mDisconnects + " stalls=" + mStalls);
+            pw.println("    lastConnectLatency=" + mLastConnectLatencyMs + "ms"
+                    + " maxConnectLatency=" + mMaxConnectLatencyMs + "ms");
+            pw.println("    syncFallbacks=" + mSyncFallbacks);
+            pw.println("    pendingCalls=" + mPendingCalls.size()
+                    + " maxPendingCalls=" + mMaxPendingCalls
+                    + " queued=" + mQueuedCalls + " replayed=" + mReplayedCalls
+                    + " dropped=" + mDroppedCalls);
+        }
+    }
+
     /**
      * Attempt to connect to the component which is going to serve {@link T}
      * interface contract implementation.
@@ -181,27 +337,47 @@ public abstract class BrokerableCMSystemService<T extends IInterface> extends CM
                 Slog.d(TAG, "Already connected");
                 return;
             }
-            final Intent intent = new Intent();
-            final ComponentName cn = getServiceComponent();
-            if (cn == null) {
-                Slog.e(TAG, "No implementation service found");
+            if (mState == STATE_CONNECTING) {
+                Slog.d(TAG, "Already connecting");
                 return;
             }
-            intent.setComponent(cn);
-            try {
-                if (mContext.getPackageManager().checkPermission(
-                        getComponentFilteringPermission(),
-                        cn.getPackageName()) != PackageManager.PERMISSION_GRANTED) {
-                    Slog.e(TAG, "Target component lacks " + getComponentFilteringPermission()
-                            + " service permission, failing " + cn);
-                    return;
-                }
-                if (!mContext.bindService(intent, mConnection, Context.BIND_AUTO_CREATE)) {
-                    Slog.e(TAG, "Failed to bind to implementation " + cn);
-                }
-            } catch (SecurityException e) {
-                Slog.e(TAG, "Forbidden to bind to implementation " + cn, e);
+            if (bindImplementationLocked()) {
+                mState = STATE_CONNECTING;
+                mConnectAttempts++;
+                mConnectStartTime = SystemClock.elapsedRealtime();
+                mConnectionHandler.sendEmptyMessageDelayed(MSG_CONNECTION_STALLED,
+                        SERVICE_CONNECTION_WAIT_TIME_MS);
+                return;
+            }
+        }
+        // Nothing to wait for
+        failPendingCalls();
+    }
+
+    private boolean bindImplementationLocked() {
+        final Intent intent = new Intent();
+        final ComponentName cn = getServiceComponent();
+        if (cn == null) {
+            Slog.e(TAG, "No implementation service found");
+            return false;
+        }
+        intent.setComponent(cn);
+        try {
+            if (mContext.getPackageManager().checkPermission(
+                    getComponentFilteringPermission(),
+                    cn.getPackageName()) != PackageManager.PERMISSION_GRANTED) {
+                Slog.e(TAG, "Target component lacks " + getComponentFilteringPermission()
+                        + " service permission, failing " + cn);
+                return false;
             }
+            if (!mContext.bindService(intent, mConnection, Context.BIND_AUTO_CREATE)) {
+                Slog.e(TAG, "Failed to bind to implementation " + cn);
+                return false;
+            }
+            return true;
+        } catch (SecurityException e) {
+            Slog.e(TAG, "Forbidden to bind to implementation " + cn, e);
+            return false;
         }
     }
 
@@ -211,12 +387,19 @@ public abstract class BrokerableCMSystemService<T extends IInterface> extends CM
             Slog.i(TAG, "Implementation service connected");
             synchronized (BrokerableCMSystemService.this) {
                 mImplementingBinderInterface = getIBinderAsIInterface(service);
-                BrokerableCMSystemService.this.notifyAll();
+                mConnectionHandler.removeMessages(MSG_CONNECTION_STALLED);
+                if (mState == STATE_CONNECTING) {
+                    mLastConnectLatencyMs = SystemClock.elapsedRealtime() - mConnectStartTime;
+                    mMaxConnectLatencyMs = Math.max(mMaxConnectLatencyMs, mLastConnectLatencyMs);
+                }
+                mState = STATE_CONNECTED;
+                mConnects++;
                 if (mBrokeredServiceConnection != null) {
                     Slog.i(TAG, "Notifying service connected");
                     mBrokeredServiceConnection.onBrokeredServiceConnected();
                 }
             }
+            replayPendingCalls();
         }
 
         @Override
@@ -224,7 +407,13 @@ public abstract class BrokerableCMSystemService<T extends IInterface> extends CM
             Slog.i(TAG, "Implementation service unexpectedly disconnected");
             synchronized (BrokerableCMSystemService.this) {
                 mImplementingBinderInterface = null;
-                BrokerableCMSystemService.this.notifyAll();
+                mDisconnects++;
+                // The binding stays in place and will reconnect once the implementation
+                // is restarted
+                mState = STATE_CONNECTING;
+                mConnectStartTime = SystemClock.elapsedRealtime();
+                mConnectionHandler.sendEmptyMessageDelayed(MSG_CONNECTION_STALLED,
+                        SERVICE_CONNECTION_WAIT_TIME_MS);
                 if (mBrokeredServiceConnection != null) {
                     mBrokeredServiceConnection.onBrokeredServiceDisconnected();
                 }
@@ -125,6 +125,7 @@ public class CMAudioServiceBroker extends BrokerableCMSystemService<ICMAudioServ
             } catch (RemoteException e) {
                 // nothing
             }
+            dumpBrokerState(pw);
         }
     }
 }
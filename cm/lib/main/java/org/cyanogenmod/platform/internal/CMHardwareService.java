@@ -17,28 +17,38 @@ package org.cyanogenmod.platform.internal;
 
 import android.content.Context;
 import android.content.Intent;
+import android.hardware.display.DisplayManager;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Process;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.ArrayMap;
 import android.util.Log;
 import android.util.Range;
+import android.view.Display;
 
+import com.android.server.ServiceThread;
 import com.android.server.SystemService;
 
 import cyanogenmod.app.CMContextConstants;
 import cyanogenmod.hardware.ICMHardwareService;
 import cyanogenmod.hardware.CMHardwareManager;
+import cyanogenmod.hardware.CMHardwareManagerInternal;
 import cyanogenmod.hardware.DisplayMode;
 import cyanogenmod.hardware.IThermalListenerCallback;
 import cyanogenmod.hardware.ThermalListenerCallback;
 import cyanogenmod.hardware.HSIC;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 
 import org.cyanogenmod.hardware.AdaptiveBacklight;
 import org.cyanogenmod.hardware.AutoContrast;
@@ -67,11 +77,29 @@ public class CMHardwareService extends CMSystemService implements ThermalUpdateC
     private static final boolean DEBUG = true;
     private static final String TAG = CMHardwareService.class.getSimpleName();
 
+    private static final long[] WRITE_LATENCY_BUCKETS_MS = { 1, 4, 16, 64 };
+
     private final Context mContext;
-    private final CMHardwareInterface mCmHwImpl;
+    private final ShadowCMHardware mCmHwImpl;
+    // Last known power state of the default display
+    private int mDisplayState = Display.STATE_UNKNOWN;
     private int mCurrentThermalState = ThermalListenerCallback.State.STATE_UNKNOWN;
     private RemoteCallbackList<IThermalListenerCallback> mRemoteCallbackList;
 
+    // Thermal state is fanned out to listeners on its own thread so that
+    // the hardware callback never waits on binder calls
+    private ServiceThread mThermalThread;
+    private Handler mThermalHandler;
+    private final Object mThermalLock = new Object();
+    private boolean mThermalDispatchPending;
+    private long mThermalStateSince = SystemClock.elapsedRealtime();
+    private final long[] mThermalTimeInState =
+            new long[ThermalListenerCallback.State.STATE_CRITICAL + 2];
+    private int mThermalUpdates;
+    private int mThermalDispatches;
+    private int mThermalDeliveryFailures;
+    private long mThermalMaxDispatchMs;
+
     private final ArrayMap<String, String> mDisplayModeMappings =
             new ArrayMap<String, String>();
     private final boolean mFilterDisplayModes;
@@ -393,6 +421,306 @@ public class CMHardwareService extends CMSystemService implements ThermalUpdateC
         }
     }
 
+    private static final class WriteStats {
+        int issued;
+        int skipped;
+        int failed;
+        final int[] latency = new int[WRITE_LATENCY_BUCKETS_MS.length + 1];
+
+        void record(long elapsedNs, boolean success) {
+            issued++;
+            if (!success) {
+                failed++;
+            }
+            final long ms = elapsedNs / 1000000;
+            int i = 0;
+            while (i < WRITE_LATENCY_BUCKETS_MS.length && ms >= WRITE_LATENCY_BUCKETS_MS[i]) {
+                i++;
+            }
+            latency[i]++;
+        }
+
+        void dump(String name, PrintWriter pw) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("  ").append(name).append(": issued=").append(issued)
+                    .append(" skipped=").append(skipped)
+                    .append(" failed=").append(failed)
+                    .append(" latency=[");
+            for (int i = 0; i < latency.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                if (i < WRITE_LATENCY_BUCKETS_MS.length) {
+                    sb.append("<").append(WRITE_LATENCY_BUCKETS_MS[i]);
+                } else {
+                    sb.append(">=").append(WRITE_LATENCY_BUCKETS_MS[i - 1]);
+                }
+                sb.append("ms:").append(latency[i]);
+            }
+            sb.append("]");
+            pw.println(sb.toString());
+        }
+    }
+
+    private abstract static class HardwareWrite {
+        final String key;
+        final Object value;
+
+        HardwareWrite(String key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        abstract boolean write();
+    }
+
+    /**
+     * Write-through shadow of the values last written to the hardware.
+     *
+     * Profiles, LiveDisplay and Settings frequently set values which are
+     * already applied, and every write usually ends up in sysfs. Writes go
+     * straight to the hardware, but those matching the shadow are skipped.
+     * The shadow is dropped whenever the display changes power state, since
+     * panel and touch controllers may lose their settings when powered down.
+     */
+    private final class ShadowCMHardware implements CMHardwareInterface {
+
+        private static final String KEY_COLOR_CALIBRATION = "color_calibration";
+        private static final String KEY_GAMMA_CALIBRATION = "gamma_calibration:";
+        private static final String KEY_COLOR_BALANCE = "color_balance";
+        private static final String KEY_PICTURE_ADJUSTMENT = "picture_adjustment";
+        private static final String KEY_FEATURE = "feature:";
+
+        private final CMHardwareInterface mImpl;
+
+        private final Object mLock = new Object();
+        private final ArrayMap<String, Object> mShadow = new ArrayMap<String, Object>();
+        private final ArrayMap<String, WriteStats> mStats = new ArrayMap<String, WriteStats>();
+
+        ShadowCMHardware(CMHardwareInterface impl) {
+            mImpl = impl;
+        }
+
+        void invalidate() {
+            synchronized (mLock) {
+                mShadow.clear();
+            }
+        }
+
+        void dump(PrintWriter pw) {
+            synchronized (mLock) {
+                for (int i = 0; i < mStats.size(); i++) {
+                    mStats.valueAt(i).dump(mStats.keyAt(i), pw);
+                }
+            }
+        }
+
+        private WriteStats getStatsLocked(String key) {
+            WriteStats stats = mStats.get(key);
+            if (stats == null) {
+                stats = new WriteStats();
+                mStats.put(key, stats);
+            }
+            return stats;
+        }
+
+        private boolean valueEquals(Object a, Object b) {
+            if (a instanceof int[] && b instanceof int[]) {
+                return Arrays.equals((int[]) a, (int[]) b);
+            }
+            if (a instanceof float[] && b instanceof float[]) {
+                return Arrays.equals((float[]) a, (float[]) b);
+            }
+            return Objects.equals(a, b);
+        }
+
+        private boolean writeLocked(HardwareWrite w) {
+            final WriteStats stats = getStatsLocked(w.key);
+            if (mShadow.containsKey(w.key) && valueEquals(mShadow.get(w.key), w.value)) {
+                stats.skipped++;
+                return true;
+            }
+            final long start = SystemClock.elapsedRealtimeNanos();
+            final boolean success = w.write();
+            stats.record(SystemClock.elapsedRealtimeNanos() - start, success);
+            if (success) {
+                mShadow.put(w.key, w.value);
+            } else {
+                mShadow.remove(w.key);
+            }
+            return success;
+        }
+
+        private boolean write(HardwareWrite w) {
+            synchronized (mLock) {
+                return writeLocked(w);
+            }
+        }
+
+        public int getSupportedFeatures() {
+            return mImpl.getSupportedFeatures();
+        }
+
+        public boolean get(int feature) {
+            return mImpl.get(feature);
+        }
+
+        public boolean set(final int feature, final boolean enable) {
+            return write(new HardwareWrite(KEY_FEATURE + feature, enable) {
+                @Override
+                boolean write() {
+                    return mImpl.set(feature, enable);
+                }
+            });
+        }
+
+        public int[] getDisplayColorCalibration() {
+            return mImpl.getDisplayColorCalibration();
+        }
+
+        public boolean setDisplayColorCalibration(final int[] rgb) {
+            final int[] value = new int[] {
+                    rgb[CMHardwareManager.COLOR_CALIBRATION_RED_INDEX],
+                    rgb[CMHardwareManager.COLOR_CALIBRATION_GREEN_INDEX],
+                    rgb[CMHardwareManager.COLOR_CALIBRATION_BLUE_INDEX] };
+            return write(new HardwareWrite(KEY_COLOR_CALIBRATION, value) {
+                @Override
+                boolean write() {
+                    return mImpl.setDisplayColorCalibration(value);
+                }
+            });
+        }
+
+        public int getNumGammaControls() {
+            return mImpl.getNumGammaControls();
+        }
+
+        public int[] getDisplayGammaCalibration(int idx) {
+            return mImpl.getDisplayGammaCalibration(idx);
+        }
+
+        public boolean setDisplayGammaCalibration(final int idx, final int[] rgb) {
+            final int[] value = new int[] {
+                    rgb[CMHardwareManager.GAMMA_CALIBRATION_RED_INDEX],
+                    rgb[CMHardwareManager.GAMMA_CALIBRATION_GREEN_INDEX],
+                    rgb[CMHardwareManager.GAMMA_CALIBRATION_BLUE_INDEX] };
+            return write(new HardwareWrite(KEY_GAMMA_CALIBRATION + idx, value) {
+                @Override
+                boolean write() {
+                    return mImpl.setDisplayGammaCalibration(idx, value);
+                }
+            });
+        }
+
+        public int[] getVibratorIntensity() {
+            return mImpl.getVibratorIntensity();
+        }
+
+        public boolean setVibratorIntensity(int intensity) {
+            return mImpl.setVibratorIntensity(intensity);
+        }
+
+        public String getLtoSource() {
+            return mImpl.getLtoSource();
+        }
+
+        public String getLtoDestination() {
+            return mImpl.getLtoDestination();
+        }
+
+        public long getLtoDownloadInterval() {
+            return mImpl.getLtoDownloadInterval();
+        }
+
+        public String getSerialNumber() {
+            return mImpl.getSerialNumber();
+        }
+
+        public String getUniqueDeviceId() {
+            return mImpl.getUniqueDeviceId();
+        }
+
+        public boolean requireAdaptiveBacklightForSunlightEnhancement() {
+            return mImpl.requireAdaptiveBacklightForSunlightEnhancement();
+        }
+
+        public boolean isSunlightEnhancementSelfManaged() {
+            return mImpl.isSunlightEnhancementSelfManaged();
+        }
+
+        public DisplayMode[] getDisplayModes() {
+            return mImpl.getDisplayModes();
+        }
+
+        public DisplayMode getCurrentDisplayMode() {
+            return mImpl.getCurrentDisplayMode();
+        }
+
+        public DisplayMode getDefaultDisplayMode() {
+            return mImpl.getDefaultDisplayMode();
+        }
+
+        public boolean setDisplayMode(DisplayMode mode, boolean makeDefault) {
+            // Display modes may reset calibration and picture adjustment
+            final boolean success = mImpl.setDisplayMode(mode, makeDefault);
+            invalidate();
+            return success;
+        }
+
+        public boolean writePersistentBytes(String key, byte[] value) {
+            return mImpl.writePersistentBytes(key, value);
+        }
+
+        public byte[] readPersistentBytes(String key) {
+            return mImpl.readPersistentBytes(key);
+        }
+
+        public int getColorBalanceMin() {
+            return mImpl.getColorBalanceMin();
+        }
+
+        public int getColorBalanceMax() {
+            return mImpl.getColorBalanceMax();
+        }
+
+        public int getColorBalance() {
+            return mImpl.getColorBalance();
+        }
+
+        public boolean setColorBalance(final int value) {
+            return write(new HardwareWrite(KEY_COLOR_BALANCE, value) {
+                @Override
+                boolean write() {
+                    return mImpl.setColorBalance(value);
+                }
+            });
+        }
+
+        public HSIC getPictureAdjustment() {
+            return mImpl.getPictureAdjustment();
+        }
+
+        public HSIC getDefaultPictureAdjustment() {
+            return mImpl.getDefaultPictureAdjustment();
+        }
+
+        public boolean setPictureAdjustment(final HSIC hsic) {
+            if (hsic == null) {
+                return false;
+            }
+            return write(new HardwareWrite(KEY_PICTURE_ADJUSTMENT, hsic.toFloatArray()) {
+                @Override
+                boolean write() {
+                    return mImpl.setPictureAdjustment(hsic);
+                }
+            });
+        }
+
+        public List<Range<Float>> getPictureAdjustmentRanges() {
+            return mImpl.getPictureAdjustmentRanges();
+        }
+    }
+
     private CMHardwareInterface getImpl(Context context) {
         return new LegacyCMHardware();
     }
@@ -400,7 +728,7 @@ public class CMHardwareService extends CMSystemService implements ThermalUpdateC
     public CMHardwareService(Context context) {
         super(context);
         mContext = context;
-        mCmHwImpl = getImpl(context);
+        mCmHwImpl = new ShadowCMHardware(getImpl(context));
         publishBinderService(CMContextConstants.CM_HARDWARE_SERVICE, mService);
 
         final String[] mappings = mContext.getResources().getStringArray(
@@ -424,7 +752,12 @@ public class CMHardwareService extends CMSystemService implements ThermalUpdateC
 
     @Override
     public void onBootPhase(int phase) {
-        if (phase == PHASE_BOOT_COMPLETED) {
+        if (phase == PHASE_SYSTEM_SERVICES_READY) {
+            final DisplayManager dm = (DisplayManager) mContext.getSystemService(
+                    Context.DISPLAY_SERVICE);
+            mDisplayState = dm.getDisplay(Display.DEFAULT_DISPLAY).getState();
+            dm.registerDisplayListener(mDisplayListener, new Handler());
+        } else if (phase == PHASE_BOOT_COMPLETED) {
             Intent intent = new Intent(cyanogenmod.content.Intent.ACTION_INITIALIZE_CM_HARDWARE);
             intent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
             mContext.sendBroadcastAsUser(intent, UserHandle.ALL,
@@ -435,27 +768,159 @@ public class CMHardwareService extends CMSystemService implements ThermalUpdateC
     @Override
     public void onStart() {
         if (ThermalMonitor.isSupported()) {
-            ThermalMonitor.initialize(this);
             mRemoteCallbackList = new RemoteCallbackList<IThermalListenerCallback>();
+            mThermalThread = new ServiceThread(TAG + "Thermal",
+                    Process.THREAD_PRIORITY_BACKGROUND, false /*allowIo*/);
+            mThermalThread.start();
+            mThermalHandler = new Handler(mThermalThread.getLooper());
+            ThermalMonitor.initialize(this);
         }
+        publishLocalService(CMHardwareManagerInternal.class, new LocalService());
     }
 
     @Override
     public void setThermalState(int state) {
-        mCurrentThermalState = state;
-        int i = mRemoteCallbackList.beginBroadcast();
-        while (i > 0) {
-            i--;
-            try {
-                mRemoteCallbackList.getBroadcastItem(i).onThermalChanged(state);
-            } catch (RemoteException e) {
-                // The RemoteCallbackList will take care of removing
-                // the dead object for us.
+        synchronized (mThermalLock) {
+            if (state == mCurrentThermalState) {
+                return;
+            }
+            updateThermalTimeInStateLocked();
+            mCurrentThermalState = state;
+            mThermalUpdates++;
+
+            // Rapid flaps are coalesced, listeners only get the latest state
+            if (mThermalDispatchPending) {
+                return;
+            }
+            mThermalDispatchPending = true;
+        }
+        mThermalHandler.post(mThermalDispatchRunnable);
+    }
+
+    private void updateThermalTimeInStateLocked() {
+        final long now = SystemClock.elapsedRealtime();
+        final int index = mCurrentThermalState + 1;
+        if (index >= 0 && index < mThermalTimeInState.length) {
+            mThermalTimeInState[index] += now - mThermalStateSince;
+        }
+        mThermalStateSince = now;
+    }
+
+    private final Runnable mThermalDispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final int state;
+            synchronized (mThermalLock) {
+                mThermalDispatchPending = false;
+                state = mCurrentThermalState;
             }
+
+            // IThermalListenerCallback is oneway, so a slow listener can't stall
+            // the others, and dead ones are dropped by the RemoteCallbackList
+            final long start = SystemClock.elapsedRealtime();
+            int failures = 0;
+            int i = mRemoteCallbackList.beginBroadcast();
+            while (i > 0) {
+                i--;
+                try {
+                    mRemoteCallbackList.getBroadcastItem(i).onThermalChanged(state);
+                } catch (RemoteException e) {
+                    failures++;
+                } catch (RuntimeException e) {
+                    // Don't let an in-process listener take down the dispatcher
+                    Log.e(TAG, "Thermal listener failed", e);
+                    failures++;
+                }
+            }
+            mRemoteCallbackList.finishBroadcast();
+            final long elapsed = SystemClock.elapsedRealtime() - start;
+
+            synchronized (mThermalLock) {
+                mThermalDispatches++;
+                mThermalDeliveryFailures += failures;
+                mThermalMaxDispatchMs = Math.max(mThermalMaxDispatchMs, elapsed);
+            }
+        }
+    };
+
+    private long[] getThermalTimeInState() {
+        synchronized (mThermalLock) {
+            updateThermalTimeInStateLocked();
+            return mThermalTimeInState.clone();
+        }
+    }
+
+    private void dumpThermal(PrintWriter pw) {
+        final long[] timeInState = getThermalTimeInState();
+        synchronized (mThermalLock) {
+            pw.println("  thermalState="
+                    + ThermalListenerCallback.State.toString(mCurrentThermalState));
+            pw.println("  thermalUpdates=" + mThermalUpdates
+                    + " dispatches=" + mThermalDispatches
+                    + " deliveryFailures=" + mThermalDeliveryFailures
+                    + " maxDispatchMs=" + mThermalMaxDispatchMs);
+        }
+        if (mRemoteCallbackList != null) {
+            pw.println("  thermalListeners=" + mRemoteCallbackList.getRegisteredCallbackCount());
+        }
+        pw.println("  thermalTimeInState:");
+        for (int i = 0; i < timeInState.length; i++) {
+            pw.println("    " + ThermalListenerCallback.State.toString(i - 1)
+                    + "=" + timeInState[i] + "ms");
         }
-        mRemoteCallbackList.finishBroadcast();
     }
 
+    private final class LocalService implements CMHardwareManagerInternal {
+
+        @Override
+        public int getThermalState() {
+            synchronized (mThermalLock) {
+                return mCurrentThermalState;
+            }
+        }
+
+        @Override
+        public long[] getThermalTimeInState() {
+            return CMHardwareService.this.getThermalTimeInState();
+        }
+
+        @Override
+        public boolean registerThermalListener(IThermalListenerCallback callback) {
+            return mRemoteCallbackList != null && mRemoteCallbackList.register(callback);
+        }
+
+        @Override
+        public boolean unregisterThermalListener(IThermalListenerCallback callback) {
+            return mRemoteCallbackList != null && mRemoteCallbackList.unregister(callback);
+        }
+    }
+
+    // Hardware may lose its state across display power changes
+    private final DisplayManager.DisplayListener mDisplayListener =
+            new DisplayManager.DisplayListener() {
+        @Override
+        public void onDisplayAdded(int displayId) {
+        }
+
+        @Override
+        public void onDisplayRemoved(int displayId) {
+        }
+
+        @Override
+        public void onDisplayChanged(int displayId) {
+            if (displayId != Display.DEFAULT_DISPLAY) {
+                return;
+            }
+            final DisplayManager dm = (DisplayManager) mContext.getSystemService(
+                    Context.DISPLAY_SERVICE);
+            final int state = dm.getDisplay(Display.DEFAULT_DISPLAY).getState();
+            if (state != mDisplayState) {
+                mDisplayState = state;
+                mCmHwImpl.invalidate();
+            }
+        }
+    };
+
     private DisplayMode remapDisplayMode(DisplayMode in) {
         if (in == null) {
             return null;
@@ -757,7 +1222,9 @@ public class CMHardwareService extends CMSystemService implements ThermalUpdateC
             mContext.enforceCallingOrSelfPermission(
                     cyanogenmod.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
             if (isSupported(CMHardwareManager.FEATURE_THERMAL_MONITOR)) {
-                return mCurrentThermalState;
+                synchronized (mThermalLock) {
+                    return mCurrentThermalState;
+                }
             }
             return ThermalListenerCallback.State.STATE_UNKNOWN;
         }
@@ -867,5 +1334,21 @@ public class CMHardwareService extends CMSystemService implements ThermalUpdateC
             }
             return new float[10];
         }
+
+        @Override
+        public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+            pw.println();
+            pw.println("CMHardwareService State:");
+            pw.println("  supportedFeatures=0x"
+                    + Integer.toHexString(mCmHwImpl.getSupportedFeatures()));
+            if (ThermalMonitor.isSupported()) {
+                dumpThermal(pw);
+            }
+            pw.println();
+            pw.println("Hardware write statistics:");
+            mCmHwImpl.dump(pw);
+        }
     };
 }
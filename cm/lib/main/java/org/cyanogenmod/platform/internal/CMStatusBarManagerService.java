@@ -27,31 +27,43 @@ import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.IPackageManager;
 import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.IInterface;
+import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.Slog;
 
+import com.android.server.ServiceThread;
 import com.android.server.SystemService;
 
 import cyanogenmod.app.CMContextConstants;
 import cyanogenmod.app.CustomTile;
+import cyanogenmod.app.CustomTileDelta;
 import cyanogenmod.app.CustomTileListenerService;
 import cyanogenmod.app.StatusBarPanelCustomTile;
 import cyanogenmod.app.ICustomTileListener;
 import cyanogenmod.app.ICMStatusBarManager;
 import cyanogenmod.app.IStatusBarCustomTileHolder;
+import cyanogenmod.app.IStatusBarCustomTileListHolder;
 
 import org.cyanogenmod.internal.statusbar.ExternalQuickSettingsRecord;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 import org.cyanogenmod.platform.internal.R;
 
@@ -63,23 +75,47 @@ public class CMStatusBarManagerService extends CMSystemService {
     private static final String TAG = "CMStatusBarManagerService";
 
     private Context mContext;
-    private Handler mHandler = new Handler();
+    private final ServiceThread mHandlerThread;
+    private final Handler mHandler;
     private CustomTileListeners mCustomTileListeners;
 
     static final int MAX_PACKAGE_TILES = 4;
 
+    // Upper bound on the number of tiles sent in one onCustomTilesPosted call
+    private static final int MAX_POSTED_BATCH_SIZE = 16;
+    // Upper bound on the number of tiles with a pending delivery, per listener
+    private static final int MAX_LISTENER_QUEUE_SIZE = 64;
+    // Deliveries whose holders the listener hasn't fetched yet before it gets throttled
+    private static final int MAX_IN_FLIGHT_HOLDERS = 32;
+    // Events delivered to one listener before yielding the handler to the others
+    private static final int MAX_EVENTS_PER_DRAIN = 32;
+
     private static final int REASON_PACKAGE_CHANGED = 1;
 
     private final ManagedServices.UserProfiles mUserProfiles = new ManagedServices.UserProfiles();
 
-    final ArrayList<ExternalQuickSettingsRecord> mQSTileList =
-            new ArrayList<ExternalQuickSettingsRecord>();
-    final ArrayMap<String, ExternalQuickSettingsRecord> mCustomTileByKey =
-            new ArrayMap<String, ExternalQuickSettingsRecord>();
+    // All tile lookups are served from these indexes, which are guarded by mCustomTileByKey.
+    // mCustomTileByKey keeps posting order, which is the order tiles are replayed in.
+    final LinkedHashMap<String, ExternalQuickSettingsRecord> mCustomTileByKey =
+            new LinkedHashMap<String, ExternalQuickSettingsRecord>();
+    // pkg|id|tag -> records, one per user or uid that posted it
+    private final ArrayMap<String, ArrayList<ExternalQuickSettingsRecord>> mCustomTilesByTag =
+            new ArrayMap<String, ArrayList<ExternalQuickSettingsRecord>>();
+    private final ArrayMap<String, ArrayList<ExternalQuickSettingsRecord>> mCustomTilesByPackage =
+            new ArrayMap<String, ArrayList<ExternalQuickSettingsRecord>>();
+    // userId|pkg -> number of tiles, for DOS protection
+    private final ArrayMap<String, Integer> mCustomTileCounts = new ArrayMap<String, Integer>();
 
     public CMStatusBarManagerService(Context context) {
         super(context);
         mContext = context;
+
+        // Tile bookkeeping and listener fan-out happen here instead of on the
+        // system_server main looper
+        mHandlerThread = new ServiceThread(TAG,
+                Process.THREAD_PRIORITY_DEFAULT, false /*allowIo*/);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
     }
 
     @Override
@@ -101,11 +137,11 @@ public class CMStatusBarManagerService extends CMSystemService {
         pkgFilter.addAction(Intent.ACTION_QUERY_PACKAGE_RESTART);
         pkgFilter.addDataScheme("package");
         getContext().registerReceiverAsUser(mPackageIntentReceiver, UserHandle.ALL, pkgFilter, null,
-                null);
+                mHandler);
 
         IntentFilter sdFilter = new IntentFilter(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
         getContext().registerReceiverAsUser(mPackageIntentReceiver, UserHandle.ALL, sdFilter, null,
-                null);
+                mHandler);
     }
 
     private final BroadcastReceiver mPackageIntentReceiver = new BroadcastReceiver() {
@@ -175,7 +211,7 @@ public class CMStatusBarManagerService extends CMSystemService {
                         }
                     }
                 }
-                mCustomTileListeners.onPackagesChanged(queryReplace, pkgList);
+                mCustomTileListeners.onPackagesChanged(queryReplace, pkgList, changeUserId);
             }
         }
     };
@@ -217,15 +253,15 @@ public class CMStatusBarManagerService extends CMSystemService {
             enforceBindCustomTileListener();
             mCustomTileListeners.registerService(listener, component, userid);
 
-            // Notify registered tiles
-            try {
-                for (ExternalQuickSettingsRecord qsTile : mQSTileList) {
+            // Notify registered tiles, batched for listeners which handle batches
+            synchronized (mCustomTileByKey) {
+                final ManagedServices.ManagedServiceInfo info
+                        = mCustomTileListeners.checkServiceTokenLocked(listener);
+                for (ExternalQuickSettingsRecord qsTile : mCustomTileByKey.values()) {
                     if (userid == UserHandle.USER_ALL || qsTile.getUserId() == userid) {
-                        listener.onCustomTilePosted(new StatusBarCustomTileHolder(qsTile.sbTile));
+                        mCustomTileListeners.replayPostedLocked(info, qsTile.sbTile);
                     }
                 }
-            } catch (RemoteException re) {
-                // Ignore
             }
         }
 
@@ -251,7 +287,7 @@ public class CMStatusBarManagerService extends CMSystemService {
             final int callingPid = Binder.getCallingPid();
             long identity = Binder.clearCallingIdentity();
             try {
-                synchronized (mQSTileList) {
+                synchronized (mCustomTileByKey) {
                     final ManagedServices.ManagedServiceInfo info
                             = mCustomTileListeners.checkServiceTokenLocked(token);
                     removeCustomTileFromListenerLocked(info, callingUid, callingPid,
@@ -261,6 +297,32 @@ public class CMStatusBarManagerService extends CMSystemService {
                 Binder.restoreCallingIdentity(identity);
             }
         }
+
+        /**
+         * Declare which of the newer callbacks a listener handles.
+         * @hide
+         */
+        @Override
+        public void setListenerCapabilities(ICustomTileListener token, int capabilities) {
+            synchronized (mCustomTileByKey) {
+                mCustomTileListeners.setCapabilitiesLocked(token, capabilities);
+            }
+        }
+
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+            synchronized (mCustomTileByKey) {
+                pw.println();
+                pw.println("CMStatusBarManagerService State:");
+                pw.println("  Custom tiles (" + mCustomTileByKey.size() + "):");
+                for (ExternalQuickSettingsRecord r : mCustomTileByKey.values()) {
+                    pw.println("    " + r.getKey() + (r.isUpdate ? " (updated)" : ""));
+                }
+                mCustomTileListeners.dumpQueuesLocked(pw);
+            }
+        }
     };
 
     void createCustomTileWithTagInternal(final String pkg, final String opPkg, final int callingUid,
@@ -289,28 +351,26 @@ public class CMStatusBarManagerService extends CMSystemService {
                 final StatusBarPanelCustomTile sbc = new StatusBarPanelCustomTile(
                         pkg, resPkg, opPkg, id, tag, callingUid, callingPid, customTile, user);
                 ExternalQuickSettingsRecord r = new ExternalQuickSettingsRecord(sbc);
-                ExternalQuickSettingsRecord old = mCustomTileByKey.get(sbc.getKey());
-
-                int index = indexOfQsTileLocked(sbc.getKey());
-                if (index < 0) {
-                    // If this tile unknown to us, check DOS protection
-                    if (checkDosProtection(pkg, callingUid, userId)) return;
-                    mQSTileList.add(r);
-                } else {
-                    old = mQSTileList.get(index);
-                    mQSTileList.set(index, r);
-                    r.isUpdate = true;
-                }
-
-                mCustomTileByKey.put(sbc.getKey(), r);
 
-                if (customTile.icon != 0 || customTile.remoteIcon != null) {
-                    StatusBarPanelCustomTile oldSbn = (old != null) ? old.sbTile : null;
-                    mCustomTileListeners.notifyPostedLocked(sbc, oldSbn);
-                } else {
-                    Slog.e(TAG, "Not posting custom tile with no icon set: " + customTile);
-                    if (old != null && !old.isCanceled) {
-                        mCustomTileListeners.notifyRemovedLocked(sbc);
+                synchronized (mCustomTileByKey) {
+                    ExternalQuickSettingsRecord old = mCustomTileByKey.get(sbc.getKey());
+                    if (old == null) {
+                        // If this tile unknown to us, check DOS protection
+                        if (checkDosProtectionLocked(pkg, callingUid, userId)) return;
+                    } else {
+                        r.isUpdate = true;
+                    }
+                    dedupeRemoteIcon(r, old);
+                    putTileLocked(r, old);
+
+                    if (customTile.icon != 0 || customTile.remoteIcon != null) {
+                        StatusBarPanelCustomTile oldSbn = (old != null) ? old.sbTile : null;
+                        mCustomTileListeners.notifyPostedLocked(sbc, oldSbn);
+                    } else {
+                        Slog.e(TAG, "Not posting custom tile with no icon set: " + customTile);
+                        if (old != null && !old.isCanceled) {
+                            mCustomTileListeners.notifyRemovedLocked(sbc);
+                        }
                     }
                 }
             }
@@ -318,65 +378,130 @@ public class CMStatusBarManagerService extends CMSystemService {
         idOut[0] = id;
     }
 
-    private boolean checkDosProtection(String pkg, int callingUid, int userId) {
+    /**
+     * Compute the content hash of the record's remote icon, and share the previous bitmap
+     * instance when the app re-posted an identical one so that it doesn't count as a change.
+     */
+    private void dedupeRemoteIcon(ExternalQuickSettingsRecord r, ExternalQuickSettingsRecord old) {
+        final CustomTile tile = r.getCustomTile();
+        if (tile.remoteIcon == null) {
+            return;
+        }
+        r.iconHash = CustomTileDelta.computeIconHash(tile.remoteIcon);
+        if (old == null || old.iconHash != r.iconHash) {
+            return;
+        }
+        final Bitmap oldIcon = old.getCustomTile().remoteIcon;
+        if (oldIcon != tile.remoteIcon && CustomTileDelta.sameIcon(oldIcon, tile.remoteIcon)) {
+            tile.remoteIcon = oldIcon;
+        }
+    }
+
+    // lock on mCustomTileByKey
+    private boolean checkDosProtectionLocked(String pkg, int callingUid, int userId) {
         final boolean isSystemTile = isUidSystem(callingUid) || ("android".equals(pkg));
         // Limit the number of Custom tiles that any given package except the android
         // package or a registered listener can enqueue.  Prevents DOS attacks and deals with leaks.
         if (!isSystemTile) {
-            synchronized (mQSTileList) {
-                int count = 0;
-                final int N = mQSTileList.size();
-
-                for (int i = 0; i < N; i++) {
-                    final ExternalQuickSettingsRecord r = mQSTileList.get(i);
-                    if (r.sbTile.getPackage().equals(pkg) && r.sbTile.getUserId() == userId) {
-                        count++;
-                        if (count >= MAX_PACKAGE_TILES) {
-                            Slog.e(TAG, "Package has already posted " + count
-                                    + " custom tiles.  Not showing more.  package=" + pkg);
-                            return true;
-                        }
-                    }
-                }
+            final int count = getTileCountLocked(pkg, userId);
+            if (count >= MAX_PACKAGE_TILES) {
+                Slog.e(TAG, "Package has already posted " + count
+                        + " custom tiles.  Not showing more.  package=" + pkg);
+                return true;
             }
         }
         return false;
     }
 
-    // lock on mQSTileList
-    int indexOfQsTileLocked(String key) {
-        final int N = mQSTileList.size();
-        for (int i = 0; i < N; i++) {
-            if (key.equals(mQSTileList.get(i).getKey())) {
-                return i;
-            }
+    private static String tagKey(String pkg, String tag, int id) {
+        return pkg + "|" + id + "|" + tag;
+    }
+
+    private static String countKey(String pkg, int userId) {
+        return userId + "|" + pkg;
+    }
+
+    // lock on mCustomTileByKey
+    private int getTileCountLocked(String pkg, int userId) {
+        final Integer count = mCustomTileCounts.get(countKey(pkg, userId));
+        return count != null ? count : 0;
+    }
+
+    private static void addToIndex(ArrayMap<String, ArrayList<ExternalQuickSettingsRecord>> index,
+            String key, ExternalQuickSettingsRecord r) {
+        ArrayList<ExternalQuickSettingsRecord> records = index.get(key);
+        if (records == null) {
+            records = new ArrayList<ExternalQuickSettingsRecord>(1);
+            index.put(key, records);
+        }
+        records.add(r);
+    }
+
+    private static void removeFromIndex(
+            ArrayMap<String, ArrayList<ExternalQuickSettingsRecord>> index,
+            String key, ExternalQuickSettingsRecord r) {
+        final ArrayList<ExternalQuickSettingsRecord> records = index.get(key);
+        if (records != null && records.remove(r) && records.isEmpty()) {
+            index.remove(key);
         }
-        return -1;
     }
 
-    // lock on mQSTileList
-    int indexOfQsTileLocked(String pkg, String tag, int id, int userId) {
-        ArrayList<ExternalQuickSettingsRecord> list = mQSTileList;
-        final int len = list.size();
+    /**
+     * Store a record, replacing {@code old} (which has the same key) in place if non-null.
+     */
+    // lock on mCustomTileByKey
+    private void putTileLocked(ExternalQuickSettingsRecord r, ExternalQuickSettingsRecord old) {
+        final StatusBarPanelCustomTile sbc = r.sbTile;
+        if (old != null) {
+            removeFromIndex(mCustomTilesByTag,
+                    tagKey(old.sbTile.getPackage(), old.sbTile.getTag(), old.sbTile.getId()), old);
+            removeFromIndex(mCustomTilesByPackage, old.sbTile.getPackage(), old);
+        } else {
+            final String countKey = countKey(sbc.getPackage(), sbc.getUserId());
+            mCustomTileCounts.put(countKey, getTileCountLocked(sbc.getPackage(),
+                    sbc.getUserId()) + 1);
+        }
+        // Replacing an existing key keeps its position in the posting order
+        mCustomTileByKey.put(sbc.getKey(), r);
+        addToIndex(mCustomTilesByTag, tagKey(sbc.getPackage(), sbc.getTag(), sbc.getId()), r);
+        addToIndex(mCustomTilesByPackage, sbc.getPackage(), r);
+    }
+
+    // lock on mCustomTileByKey
+    private void removeTileLocked(ExternalQuickSettingsRecord r) {
+        final StatusBarPanelCustomTile sbc = r.sbTile;
+        if (mCustomTileByKey.get(sbc.getKey()) != r) {
+            return;
+        }
+        mCustomTileByKey.remove(sbc.getKey());
+        removeFromIndex(mCustomTilesByTag, tagKey(sbc.getPackage(), sbc.getTag(), sbc.getId()), r);
+        removeFromIndex(mCustomTilesByPackage, sbc.getPackage(), r);
+
+        final String countKey = countKey(sbc.getPackage(), sbc.getUserId());
+        final int count = getTileCountLocked(sbc.getPackage(), sbc.getUserId()) - 1;
+        if (count > 0) {
+            mCustomTileCounts.put(countKey, count);
+        } else {
+            mCustomTileCounts.remove(countKey);
+        }
+    }
+
+    // lock on mCustomTileByKey
+    ExternalQuickSettingsRecord findTileLocked(String pkg, String tag, int id, int userId) {
+        final ArrayList<ExternalQuickSettingsRecord> records =
+                mCustomTilesByTag.get(tagKey(pkg, tag, id));
+        if (records == null) {
+            return null;
+        }
+        final int len = records.size();
         for (int i = 0; i < len; i++) {
-            ExternalQuickSettingsRecord r = list.get(i);
-            if (!customTileMatchesUserId(r, userId) || r.sbTile.getId() != id) {
-                continue;
-            }
-            if (tag == null) {
-                if (r.sbTile.getTag() != null) {
-                    continue;
-                }
-            } else {
-                if (!tag.equals(r.sbTile.getTag())) {
-                    continue;
-                }
-            }
-            if (r.sbTile.getPackage().equals(pkg)) {
-                return i;
+            ExternalQuickSettingsRecord r = records.get(i);
+            if (customTileMatchesUserId(r, userId)
+                    && TextUtils.equals(tag, r.sbTile.getTag())) {
+                return r;
             }
         }
-        return -1;
+        return null;
     }
 
     private static void checkCallerIsSystemOrSameApp(String pkg) {
@@ -434,15 +559,13 @@ public class CMStatusBarManagerService extends CMSystemService {
         mHandler.post(new Runnable() {
             @Override
             public void run() {
-                synchronized (mQSTileList) {
-                    int index = indexOfQsTileLocked(pkg, tag, id, userId);
-                    if (index >= 0) {
-                        ExternalQuickSettingsRecord r = mQSTileList.get(index);
-                        mQSTileList.remove(index);
+                synchronized (mCustomTileByKey) {
+                    ExternalQuickSettingsRecord r = findTileLocked(pkg, tag, id, userId);
+                    if (r != null) {
+                        removeTileLocked(r);
                         // status bar
                         r.isCanceled = true;
                         mCustomTileListeners.notifyRemovedLocked(r.sbTile);
-                        mCustomTileByKey.remove(r.sbTile.getKey());
                         if (r.getCustomTile().deleteIntent != null) {
                             try {
                                 r.getCustomTile().deleteIntent.send();
@@ -465,11 +588,23 @@ public class CMStatusBarManagerService extends CMSystemService {
      */
     boolean removeAllCustomTilesInt(String pkg, boolean doit, int userId, int reason,
             ManagedServices.ManagedServiceInfo listener) {
-        synchronized (mQSTileList) {
-            final int N = mQSTileList.size();
+        synchronized (mCustomTileByKey) {
+            // Snapshot, removal below updates the indexes
+            final ArrayList<ExternalQuickSettingsRecord> candidates;
+            if (pkg != null) {
+                final ArrayList<ExternalQuickSettingsRecord> pkgTiles =
+                        mCustomTilesByPackage.get(pkg);
+                if (pkgTiles == null) {
+                    return false;
+                }
+                candidates = new ArrayList<ExternalQuickSettingsRecord>(pkgTiles);
+            } else {
+                candidates = new ArrayList<ExternalQuickSettingsRecord>(mCustomTileByKey.values());
+            }
+            final int N = candidates.size();
             ArrayList<ExternalQuickSettingsRecord> removedTiles = null;
             for (int i = N-1; i >= 0; --i) {
-                ExternalQuickSettingsRecord r = mQSTileList.get(i);
+                ExternalQuickSettingsRecord r = candidates.get(i);
                 if (!customTileMatchesUserId(r, userId)) {
                     continue;
                 }
@@ -487,7 +622,6 @@ public class CMStatusBarManagerService extends CMSystemService {
                 if (!doit) {
                     return true;
                 }
-                mQSTileList.remove(i);
                 removeCustomTileLocked(r, false, reason);
             }
             return removedTiles != null;
@@ -496,6 +630,8 @@ public class CMStatusBarManagerService extends CMSystemService {
 
     private void removeCustomTileLocked(ExternalQuickSettingsRecord r,
             boolean sendDelete, int reason) {
+        removeTileLocked(r);
+
         // tell the app
         if (sendDelete) {
             if (r.getCustomTile().deleteIntent != null) {
@@ -514,8 +650,6 @@ public class CMStatusBarManagerService extends CMSystemService {
             r.isCanceled = true;
             mCustomTileListeners.notifyRemovedLocked(r.sbTile);
         }
-
-        mCustomTileByKey.remove(r.sbTile.getKey());
     }
 
     private void enforceSystemOrSystemUI(String message) {
@@ -542,9 +676,19 @@ public class CMStatusBarManagerService extends CMSystemService {
     }
 
     public class CustomTileListeners extends ManagedServices {
+        // Keys of the tiles each listener has received in full, guarded by mMutex
+        private final ArrayMap<IBinder, ArraySet<String>> mDeliveredKeys =
+                new ArrayMap<IBinder, ArraySet<String>>();
+        // Pending deliveries per listener, guarded by mMutex
+        private final ArrayMap<IBinder, ListenerQueue> mListenerQueues =
+                new ArrayMap<IBinder, ListenerQueue>();
+        // CustomTileListenerService.CAPABILITY_* flags declared by each listener, guarded by
+        // mMutex. Listeners built against an older SDK never declare any.
+        private final ArrayMap<IBinder, Integer> mCapabilities = new ArrayMap<IBinder, Integer>();
 
         public CustomTileListeners() {
-            super(CMStatusBarManagerService.this.mContext, mHandler, mQSTileList, mUserProfiles);
+            super(CMStatusBarManagerService.this.mContext, mHandler, mCustomTileByKey,
+                    mUserProfiles);
         }
 
         @Override
@@ -579,8 +723,157 @@ public class CMStatusBarManagerService extends CMSystemService {
 
         @Override
         protected void onServiceRemovedLocked(ManagedServiceInfo removed) {
+            final IBinder binder = removed.service.asBinder();
+            mDeliveredKeys.remove(binder);
+            mCapabilities.remove(binder);
+            final ListenerQueue queue = mListenerQueues.remove(binder);
+            if (queue != null) {
+                queue.disconnecting = true;
+                queue.dropped += queue.pending.size();
+                queue.pending.clear();
+            }
+        }
+
+        void setCapabilitiesLocked(ICustomTileListener token, int capabilities) {
+            final ManagedServiceInfo info = checkServiceTokenLocked(token);
+            mCapabilities.put(info.service.asBinder(), capabilities);
         }
 
+        private boolean hasCapabilityLocked(IBinder listener, int capability) {
+            final Integer capabilities = mCapabilities.get(listener);
+            return capabilities != null && (capabilities & capability) != 0;
+        }
+
+        /**
+         * Track which tiles a listener has received in full. Deltas are only ever sent
+         * for tiles the listener already holds.
+         */
+        private void setDeliveredLocked(IBinder listener, String key, boolean delivered) {
+            ArraySet<String> keys = mDeliveredKeys.get(listener);
+            if (delivered) {
+                if (keys == null) {
+                    keys = new ArraySet<String>();
+                    mDeliveredKeys.put(listener, keys);
+                }
+                keys.add(key);
+            } else if (keys != null) {
+                keys.remove(key);
+            }
+        }
+
+        private boolean isDeliveredLocked(IBinder listener, String key) {
+            final ArraySet<String> keys = mDeliveredKeys.get(listener);
+            return keys != null && keys.contains(key);
+        }
+
+        /**
+         * Queue an event for a listener. Each listener has its own bounded queue holding at
+         * most one event per tile; a newer event for a tile that is still pending replaces
+         * the older one. Listeners whose queue overflows are disconnected.
+         */
+        private void enqueueLocked(ManagedServiceInfo info, TileEvent event) {
+            final IBinder binder = info.service.asBinder();
+            ListenerQueue queue = mListenerQueues.get(binder);
+            if (queue == null) {
+                queue = new ListenerQueue(info);
+                mListenerQueues.put(binder, queue);
+            }
+            if (queue.disconnecting) {
+                queue.dropped++;
+                return;
+            }
+
+            final String key = event.getKey();
+            final TileEvent prev = queue.pending.remove(key);
+            if (prev != null) {
+                queue.coalesced++;
+                event = coalesce(prev, event);
+                if (event == null) {
+                    return;
+                }
+            } else if (queue.pending.size() >= MAX_LISTENER_QUEUE_SIZE) {
+                queue.overflows++;
+                if (!info.isSystem) {
+                    Slog.w(TAG, "Listener " + info.component + " is not keeping up with "
+                            + queue.pending.size() + " pending tiles, disconnecting");
+                    disconnectLocked(queue);
+                    queue.dropped++;
+                    return;
+                }
+            }
+            queue.pending.put(key, event);
+            queue.scheduleLocked();
+        }
+
+        /**
+         * Merge a pending event with a newer one for the same tile.
+         *
+         * @return the event to queue, or null if the two cancel out
+         */
+        private TileEvent coalesce(TileEvent prev, TileEvent next) {
+            TileEvent merged = next;
+            if (next.type == TileEvent.UPDATED) {
+                if (prev.type == TileEvent.UPDATED) {
+                    // Diff against what the listener holds before either update
+                    final CustomTileDelta delta = CustomTileDelta.compute(prev.base, next.sbc);
+                    if (delta != null && delta.isEmpty()) {
+                        return null;
+                    }
+                    merged = delta != null && delta.isCompact()
+                            ? TileEvent.updated(delta, prev.base, next.sbc)
+                            : TileEvent.posted(next.sbc.clone());
+                } else {
+                    // The listener hasn't got the full tile yet, send the latest one instead
+                    merged = TileEvent.posted(next.sbc.clone());
+                }
+            }
+            merged.enqueueTime = prev.enqueueTime;
+            return merged;
+        }
+
+        private void disconnectLocked(final ListenerQueue queue) {
+            queue.disconnecting = true;
+            queue.dropped += queue.pending.size();
+            queue.pending.clear();
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    unregisterService(queue.info.service, queue.info.userid);
+                }
+            });
+        }
+
+        void dumpQueuesLocked(PrintWriter pw) {
+            final long now = SystemClock.uptimeMillis();
+            pw.println("  Listener queues (" + mListenerQueues.size() + "):");
+            for (int i = 0; i < mListenerQueues.size(); i++) {
+                final ListenerQueue queue = mListenerQueues.valueAt(i);
+                final TileEvent oldest = queue.pending.isEmpty()
+                        ? null : queue.pending.values().iterator().next();
+                pw.println("    " + queue.info.component
+                        + (queue.info.isSystem ? " (system)" : "") + ":");
+                pw.println("      pending=" + queue.pending.size()
+                        + " inFlight=" + queue.inFlight
+                        + " throttled=" + queue.throttled
+                        + " lag=" + (oldest != null ? now - oldest.enqueueTime : 0) + "ms");
+                pw.println("      delivered=" + queue.delivered
+                        + " coalesced=" + queue.coalesced
+                        + " dropped=" + queue.dropped
+                        + " failed=" + queue.failed
+                        + " overflows=" + queue.overflows
+                        + " throttles=" + queue.throttles);
+                pw.println("      lastLag=" + queue.lastLagMs + "ms"
+                        + " maxLag=" + queue.maxLagMs + "ms");
+            }
+        }
+
+        /**
+         * Send a tile to a freshly registered listener.
+         */
+        void replayPostedLocked(ManagedServiceInfo info, StatusBarPanelCustomTile sbc) {
+            setDeliveredLocked(info.service.asBinder(), sbc.getKey(), true);
+            enqueueLocked(info, TileEvent.posted(sbc.clone()));
+        }
 
         /**
          * asynchronously notify all listeners about a new custom tile
@@ -593,6 +886,7 @@ public class CMStatusBarManagerService extends CMSystemService {
                StatusBarPanelCustomTile oldSbc) {
             // Lazily initialized snapshots of the custom tile.
             StatusBarPanelCustomTile sbcClone = null;
+            final CustomTileDelta delta = CustomTileDelta.compute(oldSbc, sbc);
 
             for (final ManagedServiceInfo info : mServices) {
                 boolean sbnVisible = isVisibleToListener(sbc, info);
@@ -602,26 +896,31 @@ public class CMStatusBarManagerService extends CMSystemService {
                     continue;
                 }
 
+                final IBinder binder = info.service.asBinder();
+
                 // This custom tile became invisible -> remove the old one.
                 if (oldSbnVisible && !sbnVisible) {
-                    final StatusBarPanelCustomTile oldSbcClone = oldSbc.clone();
-                    mHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            notifyRemoved(info, oldSbcClone);
-                        }
-                    });
+                    setDeliveredLocked(binder, oldSbc.getKey(), false);
+                    enqueueLocked(info, TileEvent.removed(oldSbc.clone()));
                     continue;
                 }
-                sbcClone = sbc.clone();
 
-                final StatusBarPanelCustomTile sbcToPost = sbcClone;
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        notifyPosted(info, sbcToPost);
+                // The listener already holds this tile -> only send what changed, if anything
+                if (oldSbnVisible && delta != null && delta.isCompact()
+                        && hasCapabilityLocked(binder,
+                                CustomTileListenerService.CAPABILITY_TILE_DELTAS)
+                        && isDeliveredLocked(binder, sbc.getKey())) {
+                    if (!delta.isEmpty()) {
+                        enqueueLocked(info, TileEvent.updated(delta, oldSbc, sbc));
                     }
-                });
+                    continue;
+                }
+
+                if (sbcClone == null) {
+                    sbcClone = sbc.clone();
+                }
+                setDeliveredLocked(binder, sbc.getKey(), true);
+                enqueueLocked(info, TileEvent.posted(sbcClone));
             }
         }
 
@@ -635,38 +934,237 @@ public class CMStatusBarManagerService extends CMSystemService {
                 if (!isVisibleToListener(sbcClone, info)) {
                     continue;
                 }
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        notifyRemoved(info, sbcClone);
+                setDeliveredLocked(info.service.asBinder(), sbcClone.getKey(), false);
+                enqueueLocked(info, TileEvent.removed(sbcClone));
+            }
+        }
+
+        private void deliver(ListenerQueue queue, ArrayList<TileEvent> events,
+                boolean batchPosts) {
+            final int N = events.size();
+            int i = 0;
+            while (i < N) {
+                final TileEvent event = events.get(i);
+                if (event.type == TileEvent.POSTED) {
+                    final ArrayList<StatusBarPanelCustomTile> batch =
+                            new ArrayList<StatusBarPanelCustomTile>();
+                    final int maxBatchSize = batchPosts ? MAX_POSTED_BATCH_SIZE : 1;
+                    while (i < N && events.get(i).type == TileEvent.POSTED
+                            && batch.size() < maxBatchSize) {
+                        batch.add(events.get(i++).sbc);
                     }
-                });
+                    if (batch.size() == 1) {
+                        notifyPosted(queue, batch.get(0));
+                    } else {
+                        notifyPosted(queue, batch);
+                    }
+                    continue;
+                }
+                if (event.type == TileEvent.UPDATED) {
+                    notifyUpdated(queue, event.delta);
+                } else {
+                    notifyRemoved(queue, event.sbc);
+                }
+                i++;
             }
         }
 
-        private void notifyPosted(final ManagedServiceInfo info,
+        private void notifyPosted(final ListenerQueue queue,
                                   final StatusBarPanelCustomTile sbc) {
-            final ICustomTileListener listener = (ICustomTileListener)info.service;
-            StatusBarCustomTileHolder sbcHolder = new StatusBarCustomTileHolder(sbc);
+            final ICustomTileListener listener = (ICustomTileListener) queue.info.service;
+            StatusBarCustomTileHolder sbcHolder =
+                    new StatusBarCustomTileHolder(sbc, queue.mFetchedCallback);
+            queue.onHolderSent();
             try {
                 listener.onCustomTilePosted(sbcHolder);
             } catch (RemoteException ex) {
+                queue.onDeliveryFailed(true);
                 Log.e(TAG, "unable to notify listener (posted): " + listener, ex);
             }
         }
 
-        private void notifyRemoved(ManagedServiceInfo info, StatusBarPanelCustomTile sbc) {
-            if (!info.enabledAndUserMatches(sbc.getUserId())) {
+        private void notifyPosted(final ListenerQueue queue,
+                                  final List<StatusBarPanelCustomTile> sbcs) {
+            final ICustomTileListener listener = (ICustomTileListener) queue.info.service;
+            StatusBarCustomTileListHolder sbcListHolder =
+                    new StatusBarCustomTileListHolder(sbcs, queue.mFetchedCallback);
+            queue.onHolderSent();
+            try {
+                listener.onCustomTilesPosted(sbcListHolder);
+            } catch (RemoteException ex) {
+                queue.onDeliveryFailed(true);
+                Log.e(TAG, "unable to notify listener (posted batch): " + listener, ex);
+            }
+        }
+
+        private void notifyUpdated(final ListenerQueue queue, final CustomTileDelta delta) {
+            final ICustomTileListener listener = (ICustomTileListener) queue.info.service;
+            try {
+                listener.onCustomTileUpdated(delta);
+            } catch (RemoteException ex) {
+                queue.onDeliveryFailed(false);
+                Log.e(TAG, "unable to notify listener (updated): " + listener, ex);
+            }
+        }
+
+        private void notifyRemoved(ListenerQueue queue, StatusBarPanelCustomTile sbc) {
+            if (!queue.info.enabledAndUserMatches(sbc.getUserId())) {
                 return;
             }
-            final ICustomTileListener listener = (ICustomTileListener) info.service;
-            StatusBarCustomTileHolder sbcHolder = new StatusBarCustomTileHolder(sbc);
+            final ICustomTileListener listener = (ICustomTileListener) queue.info.service;
+            StatusBarCustomTileHolder sbcHolder =
+                    new StatusBarCustomTileHolder(sbc, queue.mFetchedCallback);
+            queue.onHolderSent();
             try {
                 listener.onCustomTileRemoved(sbcHolder);
             } catch (RemoteException ex) {
+                queue.onDeliveryFailed(true);
                 Log.e(TAG, "unable to notify listener (removed): " + listener, ex);
             }
         }
+
+        /**
+         * Events waiting to be delivered to one listener, at most one per tile key in
+         * the order the tiles were last touched.
+         */
+        private final class ListenerQueue implements Runnable {
+            final ManagedServiceInfo info;
+            final LinkedHashMap<String, TileEvent> pending =
+                    new LinkedHashMap<String, TileEvent>();
+            boolean scheduled;
+            boolean throttled;
+            boolean disconnecting;
+            // Holders sent to the listener that it hasn't fetched yet
+            int inFlight;
+
+            long delivered;
+            long coalesced;
+            long dropped;
+            long failed;
+            long overflows;
+            long throttles;
+            long lastLagMs;
+            long maxLagMs;
+
+            final Runnable mFetchedCallback = new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mMutex) {
+                        onHolderFetchedLocked();
+                    }
+                }
+            };
+
+            ListenerQueue(ManagedServiceInfo info) {
+                this.info = info;
+            }
+
+            void scheduleLocked() {
+                if (!scheduled && !throttled && !pending.isEmpty()) {
+                    scheduled = true;
+                    mHandler.post(this);
+                }
+            }
+
+            void onHolderSent() {
+                synchronized (mMutex) {
+                    inFlight++;
+                }
+            }
+
+            void onDeliveryFailed(boolean holder) {
+                synchronized (mMutex) {
+                    failed++;
+                    if (holder) {
+                        onHolderFetchedLocked();
+                    }
+                }
+            }
+
+            private void onHolderFetchedLocked() {
+                if (inFlight > 0) {
+                    inFlight--;
+                }
+                if (throttled && inFlight <= MAX_IN_FLIGHT_HOLDERS / 2) {
+                    throttled = false;
+                    scheduleLocked();
+                }
+            }
+
+            @Override
+            public void run() {
+                final ArrayList<TileEvent> events = new ArrayList<TileEvent>();
+                final boolean batchPosts;
+                synchronized (mMutex) {
+                    scheduled = false;
+                    if (disconnecting) {
+                        return;
+                    }
+                    if (inFlight >= MAX_IN_FLIGHT_HOLDERS) {
+                        // The listener isn't fetching what it's been sent, hold off until it does
+                        if (!throttled) {
+                            throttled = true;
+                            throttles++;
+                        }
+                        return;
+                    }
+                    final long now = SystemClock.uptimeMillis();
+                    final Iterator<TileEvent> it = pending.values().iterator();
+                    while (it.hasNext() && events.size() < MAX_EVENTS_PER_DRAIN) {
+                        final TileEvent event = it.next();
+                        it.remove();
+                        events.add(event);
+                        lastLagMs = now - event.enqueueTime;
+                        maxLagMs = Math.max(maxLagMs, lastLagMs);
+                    }
+                    delivered += events.size();
+                    batchPosts = hasCapabilityLocked(info.service.asBinder(),
+                            CustomTileListenerService.CAPABILITY_POSTED_BATCHES);
+                    // Yield to other listeners, pick up the rest on the next pass
+                    scheduleLocked();
+                }
+                deliver(this, events, batchPosts);
+            }
+        }
+    }
+
+    private static final class TileEvent {
+        static final int POSTED = 0;
+        static final int UPDATED = 1;
+        static final int REMOVED = 2;
+
+        final int type;
+        // The tile to post or remove, or the latest state of an updated tile
+        final StatusBarPanelCustomTile sbc;
+        // The tile the listener holds before an update is applied
+        final StatusBarPanelCustomTile base;
+        final CustomTileDelta delta;
+        long enqueueTime = SystemClock.uptimeMillis();
+
+        private TileEvent(int type, StatusBarPanelCustomTile sbc, StatusBarPanelCustomTile base,
+                CustomTileDelta delta) {
+            this.type = type;
+            this.sbc = sbc;
+            this.base = base;
+            this.delta = delta;
+        }
+
+        String getKey() {
+            return sbc.getKey();
+        }
+
+        static TileEvent posted(StatusBarPanelCustomTile sbc) {
+            return new TileEvent(POSTED, sbc, null, null);
+        }
+
+        static TileEvent updated(CustomTileDelta delta, StatusBarPanelCustomTile base,
+                StatusBarPanelCustomTile sbc) {
+            return new TileEvent(UPDATED, sbc, base, delta);
+        }
+
+        static TileEvent removed(StatusBarPanelCustomTile sbc) {
+            return new TileEvent(REMOVED, sbc, null, null);
+        }
     }
 
     /**
@@ -676,9 +1174,12 @@ public class CMStatusBarManagerService extends CMSystemService {
     private static final class StatusBarCustomTileHolder
             extends IStatusBarCustomTileHolder.Stub {
         private StatusBarPanelCustomTile mValue;
+        private Runnable mFetchedCallback;
 
-        public StatusBarCustomTileHolder(StatusBarPanelCustomTile value) {
+        public StatusBarCustomTileHolder(StatusBarPanelCustomTile value,
+                Runnable fetchedCallback) {
             mValue = value;
+            mFetchedCallback = fetchedCallback;
         }
 
         /** Get the held value and clear it. This function should only be called once per holder */
@@ -686,7 +1187,47 @@ public class CMStatusBarManagerService extends CMSystemService {
         public StatusBarPanelCustomTile get() {
             StatusBarPanelCustomTile value = mValue;
             mValue = null;
+            runFetchedCallback();
+            return value;
+        }
+
+        private synchronized void runFetchedCallback() {
+            if (mFetchedCallback != null) {
+                mFetchedCallback.run();
+                mFetchedCallback = null;
+            }
+        }
+    }
+
+    /**
+     * Wrapper for a list of StatusBarPanelCustomTile objects, see
+     * {@link StatusBarCustomTileHolder}.
+     */
+    private static final class StatusBarCustomTileListHolder
+            extends IStatusBarCustomTileListHolder.Stub {
+        private List<StatusBarPanelCustomTile> mValue;
+        private Runnable mFetchedCallback;
+
+        public StatusBarCustomTileListHolder(List<StatusBarPanelCustomTile> value,
+                Runnable fetchedCallback) {
+            mValue = value;
+            mFetchedCallback = fetchedCallback;
+        }
+
+        /** Get the held value and clear it. This function should only be called once per holder */
+        @Override
+        public List<StatusBarPanelCustomTile> get() {
+            List<StatusBarPanelCustomTile> value = mValue;
+            mValue = null;
+            runFetchedCallback();
             return value;
         }
+
+        private synchronized void runFetchedCallback() {
+            if (mFetchedCallback != null) {
+                mFetchedCallback.run();
+                mFetchedCallback = null;
+            }
+        }
     }
 }
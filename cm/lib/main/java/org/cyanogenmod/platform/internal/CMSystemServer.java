@@ -16,7 +16,10 @@
 
 package org.cyanogenmod.platform.internal;
 
+import android.app.ActivityManager;
 import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.util.Slog;
 import com.android.server.LocalServices;
@@ -24,6 +27,15 @@ import com.android.server.SystemServiceManager;
 
 import org.cyanogenmod.platform.internal.common.CMSystemServiceHelper;
 
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Base CM System Server which handles the starting and states of various CM
  * specific system services. Since its part of the main looper provided by the system
@@ -37,6 +49,31 @@ public class CMSystemServer {
     private static final String ENCRYPTING_STATE = "trigger_restart_min_framework";
     private static final String ENCRYPTED_STATE = "1";
 
+    // Upper bound on the threads used to construct services concurrently
+    private static final int MAX_STARTUP_THREADS = 4;
+
+    // Overrides config_lazyCMServices, so startup can be compared with and without
+    private static final String PROP_LAZY_SERVICES = "persist.sys.cm.lazy_services";
+
+    private static final String REASON_FEATURE = "feature not declared";
+    private static final String REASON_CORE_ONLY = "core apps only";
+    private static final String REASON_FAILED = "failed";
+
+    /**
+     * Tracks a single entry of config_externalCMServices through startup.
+     */
+    private static final class ServiceEntry {
+        final String className;
+        Class<? extends CMSystemService> serviceClass;
+        CMSystemService.Lazy lazy;
+        Future<CMSystemService> construction;
+        volatile long constructMs = -1;
+
+        ServiceEntry(String className) {
+            this.className = className;
+        }
+    }
+
     public CMSystemServer(Context systemContext) {
         mSystemContext = systemContext;
         mSystemServiceHelper = new CMSystemServiceHelper(mSystemContext);
@@ -69,29 +106,170 @@ public class CMSystemServer {
         String[] externalServices = context.getResources().getStringArray(
                 org.cyanogenmod.platform.internal.R.array.config_externalCMServices);
 
+        final long startTime = SystemClock.elapsedRealtime();
+        final CMSystemServiceHost host = ssm.startService(CMSystemServiceHost.class);
+        final boolean lazyEnabled = isLazyStartEnabled(context);
+
+        final ArrayList<ServiceEntry> entries = new ArrayList<ServiceEntry>();
         for (String service : externalServices) {
+            ServiceEntry entry = new ServiceEntry(service);
             try {
-                Slog.i(TAG, "Attempting to start service " + service);
-                CMSystemService cmSystemService =  mSystemServiceHelper.getServiceFor(service);
-                if (context.getPackageManager().hasSystemFeature(
-                        cmSystemService.getFeatureDeclaration())) {
-                    if (coreAppsOnly() && !cmSystemService.isCoreService()) {
-                        Slog.d(TAG, "Not starting " + service +
-                                " - only parsing core apps");
-                    } else {
-                        Slog.i(TAG, "Starting service " + service);
-                        ssm.startService(cmSystemService.getClass());
-                    }
+                entry.serviceClass = mSystemServiceHelper.getServiceClassFor(service);
+                if (lazyEnabled) {
+                    entry.lazy = mSystemServiceHelper.getLazyDeclarationFor(entry.serviceClass);
+                }
+                entries.add(entry);
+            } catch (Throwable e) {
+                reportWtf("starting " + service, e);
+            }
+        }
+
+        // Build the services on a small pool, then start them in config order on this
+        // thread. onStart stays on this thread: services publish binders and local
+        // services from it and the boot phases are dispatched in the order the services
+        // were started. No service starts before every constructor has returned, so a
+        // constructor relying on another CM service fails on every boot rather than
+        // depending on timing (see CMSystemService).
+        final int threads = Math.max(1, Math.min(MAX_STARTUP_THREADS,
+                Math.min(entries.size(), Runtime.getRuntime().availableProcessors())));
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new StartupThreadFactory());
+        try {
+            submitConstructions(executor, entries);
+            awaitConstructions(entries);
+            for (ServiceEntry entry : entries) {
+                startService(context, host, entry);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        final long wallTime = SystemClock.elapsedRealtime() - startTime;
+        host.noteStartupComplete(wallTime, threads, lazyEnabled);
+        Slog.i(TAG, "Started " + entries.size() + " services in " + wallTime + "ms using "
+                + threads + " threads" + (lazyEnabled ? ", lazy services enabled" : ""));
+    }
+
+    private static boolean isLazyStartEnabled(Context context) {
+        // Placeholders rely on the service being able to start on demand later,
+        // which can't be guaranteed while only core apps are running
+        if (coreAppsOnly()) {
+            return false;
+        }
+        final boolean enabled = context.getResources().getBoolean(
+                org.cyanogenmod.platform.internal.R.bool.config_lazyCMServices)
+                || ActivityManager.isLowRamDeviceStatic();
+        return SystemProperties.getBoolean(PROP_LAZY_SERVICES, enabled);
+    }
+
+    private void startService(Context context, CMSystemServiceHost host, ServiceEntry entry) {
+        final String service = entry.className;
+        boolean handedOff = false;
+        try {
+            Slog.i(TAG, "Attempting to start service " + service);
+            if (entry.lazy != null) {
+                if (context.getPackageManager().hasSystemFeature(entry.lazy.feature())) {
+                    Slog.i(TAG, "Deferring start of lazy service " + service);
+                    handedOff = true;
+                    host.addLazyService(entry.serviceClass, entry.lazy);
                 } else {
                     Slog.i(TAG, "Not starting service " + service +
                             " due to feature not declared on device");
+                    host.noteNotStarted(service, entry.constructMs, REASON_FEATURE);
                 }
+                return;
+            }
+            final CMSystemService cmSystemService = getConstructedService(entry);
+            if (context.getPackageManager().hasSystemFeature(
+                    cmSystemService.getFeatureDeclaration())) {
+                if (coreAppsOnly() && !cmSystemService.isCoreService()) {
+                    Slog.d(TAG, "Not starting " + service +
+                            " - only parsing core apps");
+                    host.noteNotStarted(service, entry.constructMs, REASON_CORE_ONLY);
+                } else {
+                    Slog.i(TAG, "Starting service " + service);
+                    handedOff = true;
+                    host.startService(cmSystemService, entry.constructMs);
+                }
+            } else {
+                Slog.i(TAG, "Not starting service " + service +
+                        " due to feature not declared on device");
+                host.noteNotStarted(service, entry.constructMs, REASON_FEATURE);
+            }
+        } catch (Throwable e) {
+            if (!handedOff) {
+                host.noteNotStarted(service, entry.constructMs, REASON_FAILED);
+            }
+            reportWtf("starting " + service , e);
+        }
+    }
+
+    private CMSystemService getConstructedService(ServiceEntry entry) throws Throwable {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return entry.construction.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw e.getCause();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void submitConstructions(ExecutorService executor, ArrayList<ServiceEntry> entries) {
+        for (final ServiceEntry entry : entries) {
+            if (entry.lazy != null) {
+                continue;
+            }
+            entry.construction = executor.submit(new Callable<CMSystemService>() {
+                @Override
+                public CMSystemService call() {
+                    final long start = SystemClock.elapsedRealtime();
+                    try {
+                        return mSystemServiceHelper.getServiceFromClass(entry.serviceClass);
+                    } finally {
+                        entry.constructMs = SystemClock.elapsedRealtime() - start;
+                    }
+                }
+            });
+        }
+    }
+
+    private void awaitConstructions(ArrayList<ServiceEntry> entries) {
+        for (ServiceEntry entry : entries) {
+            if (entry.construction == null) {
+                continue;
+            }
+            try {
+                getConstructedService(entry);
             } catch (Throwable e) {
-                reportWtf("starting " + service , e);
+                // Reported when the service is started
             }
         }
     }
 
+    private static final class StartupThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                    r.run();
+                }
+            }, TAG + "-init-" + mCount.incrementAndGet());
+        }
+    }
+
     private void reportWtf(String msg, Throwable e) {
         Slog.w(TAG, "***********************************************");
         Slog.wtf(TAG, "BOOT FAILURE " + msg, e);
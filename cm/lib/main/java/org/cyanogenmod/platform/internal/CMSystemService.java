@@ -19,7 +19,19 @@ package org.cyanogenmod.platform.internal;
 import android.content.Context;
 import com.android.server.SystemService;
 
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
 public abstract class CMSystemService extends SystemService {
+    /**
+     * The CMSystemServer runs the constructors of the services it starts at boot
+     * concurrently, off the main thread, and every one of them returns before the
+     * first service's {@link #onStart()}. A constructor therefore never finds another
+     * CM service, binder or local service published; look those up from
+     * {@link #onStart()} or {@link #onBootPhase(int)} instead.
+     */
     public CMSystemService(Context context) {
         super(context);
     }
@@ -34,4 +46,24 @@ public abstract class CMSystemService extends SystemService {
     public boolean isCoreService() {
         return true;
     }
+
+    /**
+     * Marks a rarely used service which may be started on demand. When lazy services
+     * are enabled the CMSystemServer only publishes a placeholder binder under
+     * {@link #binderName()} at boot, and constructs the service on the first incoming
+     * call or once {@link #startPhase()} is reached. Any boot phases and user events
+     * which already happened are replayed to the service when it starts.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.TYPE)
+    public @interface Lazy {
+        /** The name the service publishes its binder under in onStart */
+        String binderName();
+
+        /** Must match {@link CMSystemService#getFeatureDeclaration()} */
+        String feature();
+
+        /** Boot phase at which to start the service regardless of demand, or -1 */
+        int startPhase() default -1;
+    }
 }
@@ -0,0 +1,555 @@
+/**
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.platform.internal;
+
+import android.content.Context;
+import android.os.Binder;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.util.Slog;
+import android.util.SparseBooleanArray;
+import android.util.SparseLongArray;
+import com.android.server.SystemService;
+
+import org.cyanogenmod.platform.internal.common.CMSystemServiceHelper;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Registered with the SystemServiceManager on behalf of every CM system service
+ * started by the {@link CMSystemServer}. It forwards the boot phase and user
+ * lifecycle callbacks to the hosted services in the order they were started, and
+ * records how long each service spent in its constructor, onStart and every boot
+ * phase. The report is available via "dumpsys cmsystemserver".
+ *
+ * Services declared {@link CMSystemService.Lazy} may instead be registered with a
+ * placeholder binder, in which case they are constructed on first use.
+ *
+ * @hide
+ */
+public final class CMSystemServiceHost extends SystemService {
+    private static final String TAG = "CMSystemServiceHost";
+
+    /** Name of the binder used to expose the boot report through dumpsys */
+    private static final String SERVICE_NAME = "cmsystemserver";
+
+    // Anything slower than this is called out in the log
+    private static final long SLOW_THRESHOLD_MS = 50;
+
+    private static final String STATUS_STARTED = "started";
+    private static final String STATUS_FAILED = "failed";
+    private static final String STATUS_LAZY = "lazy, not started";
+
+    private final CMSystemServiceHelper mServiceHelper;
+
+    // Lazy services are started here, like every other service is at boot
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Held while a lazy service is started so it observes a consistent set of boot
+    // phases and users. Always acquired before mLock.
+    private final Object mLazyLock = new Object();
+
+    private final Object mLock = new Object();
+
+    // Guarded by mLock
+    private final ArrayList<CMSystemService> mServices = new ArrayList<CMSystemService>();
+    private final ArrayList<ServiceRecord> mRecords = new ArrayList<ServiceRecord>();
+    private final ArrayList<LazyService> mLazyServices = new ArrayList<LazyService>();
+    private final ArrayList<Integer> mReachedPhases = new ArrayList<Integer>();
+    private final SparseBooleanArray mStartedUsers = new SparseBooleanArray();
+    private final SparseBooleanArray mUnlockedUsers = new SparseBooleanArray();
+    private int mCurrentPhase = -1;
+    private long mStartupWallTimeMs;
+    private int mStartupThreads;
+    private boolean mLazyEnabled;
+    private long mBootCompletedPssKb = -1;
+
+    private static final class ServiceRecord {
+        final String name;
+        String status;
+        long constructMs = -1;
+        long onStartMs = -1;
+        final SparseLongArray bootPhaseMs = new SparseLongArray();
+
+        ServiceRecord(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final class LazyService {
+        final Class<? extends CMSystemService> serviceClass;
+        final CMSystemService.Lazy declaration;
+        final ServiceRecord record;
+        // Written under both locks, read without them on the transaction fast path
+        volatile boolean started;
+        boolean failed;
+        String trigger;
+        long startedAt = -1;
+
+        LazyService(Class<? extends CMSystemService> serviceClass,
+                CMSystemService.Lazy declaration) {
+            this.serviceClass = serviceClass;
+            this.declaration = declaration;
+            this.record = new ServiceRecord(serviceClass.getName());
+            this.record.status = STATUS_LAZY;
+        }
+    }
+
+    public CMSystemServiceHost(Context context) {
+        super(context);
+        mServiceHelper = new CMSystemServiceHelper(context);
+    }
+
+    @Override
+    public void onStart() {
+        publishBinderService(SERVICE_NAME, new BinderService());
+    }
+
+    /**
+     * Starts a service which has already been constructed, timing its onStart.
+     */
+    void startService(CMSystemService service, long constructMs) {
+        final ServiceRecord record = new ServiceRecord(service.getClass().getName());
+        synchronized (mLock) {
+            mRecords.add(record);
+        }
+        startServiceInternal(service, record, constructMs);
+        synchronized (mLock) {
+            mServices.add(service);
+        }
+    }
+
+    private void startServiceInternal(CMSystemService service, ServiceRecord record,
+            long constructMs) {
+        record.constructMs = constructMs;
+
+        final long start = SystemClock.elapsedRealtime();
+        try {
+            service.onStart();
+        } catch (RuntimeException ex) {
+            record.status = STATUS_FAILED;
+            throw new RuntimeException("Failed to start service " + record.name
+                    + ": onStart threw an exception", ex);
+        }
+        record.onStartMs = SystemClock.elapsedRealtime() - start;
+        record.status = STATUS_STARTED;
+        warnIfSlow(record.name, "onStart", record.onStartMs);
+    }
+
+    /**
+     * Publishes a placeholder binder for a lazy service. The service itself is
+     * constructed on the first transaction or at its declared start phase.
+     */
+    void addLazyService(Class<? extends CMSystemService> serviceClass,
+            CMSystemService.Lazy declaration) {
+        final LazyService lazy = new LazyService(serviceClass, declaration);
+        synchronized (mLock) {
+            mLazyServices.add(lazy);
+            mRecords.add(lazy.record);
+        }
+        publishBinderService(declaration.binderName(), new LazyServiceBinder(lazy));
+    }
+
+    /**
+     * Starts a lazy service on the system server main thread with the system identity,
+     * as it would have been at boot, and waits for it. Callers are usually on a binder
+     * thread handling a call from an app, which can neither create handlers nor make
+     * the calls services do while starting.
+     */
+    private void startLazyServiceOnMainThread(final LazyService lazy, final String trigger) {
+        final RuntimeException[] failure = new RuntimeException[1];
+        final long token = Binder.clearCallingIdentity();
+        try {
+            mMainHandler.runWithScissors(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ensureLazyServiceStarted(lazy, trigger);
+                    } catch (RuntimeException ex) {
+                        failure[0] = ex;
+                    }
+                }
+            }, 0);
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    private void ensureLazyServiceStarted(LazyService lazy, String trigger) {
+        synchronized (mLazyLock) {
+            if (lazy.started) {
+                return;
+            }
+            if (lazy.failed) {
+                throw new IllegalStateException(lazy.record.name + " failed to start");
+            }
+
+            Slog.i(TAG, "Starting lazy service " + lazy.record.name + " (" + trigger + ")");
+            final CMSystemService service;
+            final long constructStart = SystemClock.elapsedRealtime();
+            try {
+                service = mServiceHelper.getServiceFromClass(lazy.serviceClass);
+                if (!lazy.declaration.feature().equals(service.getFeatureDeclaration())) {
+                    Slog.wtf(TAG, lazy.record.name + " declares feature "
+                            + lazy.declaration.feature() + " for lazy start but "
+                            + service.getFeatureDeclaration() + " at runtime");
+                }
+                startServiceInternal(service, lazy.record,
+                        SystemClock.elapsedRealtime() - constructStart);
+            } catch (RuntimeException ex) {
+                lazy.failed = true;
+                lazy.record.status = STATUS_FAILED;
+                Slog.wtf(TAG, "Failed to start lazy service " + lazy.record.name, ex);
+                throw ex;
+            }
+
+            // onStart published the service, so it must never be constructed again, even if
+            // catching it up fails. Services added from here on get every later callback.
+            final ArrayList<Integer> phases;
+            final SparseBooleanArray startedUsers;
+            final SparseBooleanArray unlockedUsers;
+            synchronized (mLock) {
+                lazy.started = true;
+                lazy.trigger = trigger;
+                lazy.startedAt = SystemClock.elapsedRealtime();
+                mServices.add(service);
+                phases = new ArrayList<Integer>(mReachedPhases);
+                startedUsers = mStartedUsers.clone();
+                unlockedUsers = mUnlockedUsers.clone();
+            }
+
+            // Catch the service up with everything it missed while it was dormant
+            try {
+                for (int phase : phases) {
+                    dispatchBootPhase(service, phase);
+                }
+                for (int i = 0; i < startedUsers.size(); i++) {
+                    final int userHandle = startedUsers.keyAt(i);
+                    service.onStartUser(userHandle);
+                    if (unlockedUsers.get(userHandle)) {
+                        service.onUnlockUser(userHandle);
+                    }
+                }
+            } catch (RuntimeException ex) {
+                lazy.record.status = STATUS_FAILED;
+                Slog.wtf(TAG, "Failed to catch up lazy service " + lazy.record.name, ex);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Forwards calls made to a dormant lazy service to the real binder, starting
+     * the service first if needed.
+     */
+    private final class LazyServiceBinder extends Binder {
+        private final LazyService mLazy;
+        private volatile IBinder mTarget;
+
+        LazyServiceBinder(LazyService lazy) {
+            mLazy = lazy;
+        }
+
+        private IBinder getTarget() {
+            IBinder target = mTarget;
+            if (target != null) {
+                return target;
+            }
+            startLazyServiceOnMainThread(mLazy, "call from uid " + Binder.getCallingUid());
+            target = ServiceManager.getService(mLazy.declaration.binderName());
+            if (target == null || target == this) {
+                throw new IllegalStateException(mLazy.record.name
+                        + " did not publish " + mLazy.declaration.binderName());
+            }
+            mTarget = target;
+            return target;
+        }
+
+        @Override
+        protected boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            if (code == DUMP_TRANSACTION && !mLazy.started) {
+                return super.onTransact(code, data, reply, flags);
+            }
+            return getTarget().transact(code, data, reply, flags);
+        }
+
+        @Override
+        public String getInterfaceDescriptor() {
+            try {
+                return getTarget().getInterfaceDescriptor();
+            } catch (RemoteException e) {
+                return null;
+            }
+        }
+
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            getContext().enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+            pw.println(mLazy.record.name + " has not been started yet");
+        }
+    }
+
+    /**
+     * Records a service which was not started, along with the reason why.
+     */
+    void noteNotStarted(String name, long constructMs, String reason) {
+        final ServiceRecord record = new ServiceRecord(name);
+        record.constructMs = constructMs;
+        record.status = reason;
+        synchronized (mLock) {
+            mRecords.add(record);
+        }
+    }
+
+    void noteStartupComplete(long wallTimeMs, int threads, boolean lazyEnabled) {
+        synchronized (mLock) {
+            mStartupWallTimeMs = wallTimeMs;
+            mStartupThreads = threads;
+            mLazyEnabled = lazyEnabled;
+        }
+    }
+
+    @Override
+    public void onBootPhase(int phase) {
+        final ArrayList<CMSystemService> services;
+        final ArrayList<LazyService> triggered = new ArrayList<LazyService>();
+        synchronized (mLazyLock) {
+            synchronized (mLock) {
+                mCurrentPhase = phase;
+                mReachedPhases.add(phase);
+                services = new ArrayList<CMSystemService>(mServices);
+                for (LazyService lazy : mLazyServices) {
+                    final int startPhase = lazy.declaration.startPhase();
+                    if (!lazy.started && startPhase >= 0 && startPhase <= phase) {
+                        triggered.add(lazy);
+                    }
+                }
+            }
+        }
+        for (CMSystemService service : services) {
+            dispatchBootPhase(service, phase);
+        }
+        // These replay every phase reached so far, including this one
+        for (LazyService lazy : triggered) {
+            try {
+                ensureLazyServiceStarted(lazy, "boot phase " + phase);
+            } catch (RuntimeException ex) {
+                // Already reported, the placeholder keeps failing calls
+            }
+        }
+
+        if (phase == PHASE_BOOT_COMPLETED) {
+            final long pss = Debug.getPss();
+            synchronized (mLock) {
+                mBootCompletedPssKb = pss;
+            }
+        }
+    }
+
+    private void dispatchBootPhase(CMSystemService service, int phase) {
+        final long start = SystemClock.elapsedRealtime();
+        try {
+            service.onBootPhase(phase);
+        } catch (Exception ex) {
+            throw new RuntimeException("Failed to boot service "
+                    + service.getClass().getName()
+                    + ": onBootPhase threw an exception during phase " + phase, ex);
+        }
+        final long duration = SystemClock.elapsedRealtime() - start;
+        warnIfSlow(service.getClass().getName(), "onBootPhase(" + phase + ")", duration);
+        synchronized (mLock) {
+            ServiceRecord record = findRecordLocked(service.getClass().getName());
+            if (record != null) {
+                record.bootPhaseMs.put(phase, duration);
+            }
+        }
+    }
+
+    @Override
+    public void onStartUser(int userHandle) {
+        for (CMSystemService service : getServicesUpdatingUsers(userHandle, USER_STARTED)) {
+            try {
+                service.onStartUser(userHandle);
+            } catch (Exception ex) {
+                Slog.wtf(TAG, "Failure reporting start of user " + userHandle
+                        + " to service " + service.getClass().getName(), ex);
+            }
+        }
+    }
+
+    @Override
+    public void onUnlockUser(int userHandle) {
+        for (CMSystemService service : getServicesUpdatingUsers(userHandle, USER_UNLOCKED)) {
+            try {
+                service.onUnlockUser(userHandle);
+            } catch (Exception ex) {
+                Slog.wtf(TAG, "Failure reporting unlock of user " + userHandle
+                        + " to service " + service.getClass().getName(), ex);
+            }
+        }
+    }
+
+    @Override
+    public void onSwitchUser(int userHandle) {
+        for (CMSystemService service : getServices()) {
+            try {
+                service.onSwitchUser(userHandle);
+            } catch (Exception ex) {
+                Slog.wtf(TAG, "Failure reporting switch to user " + userHandle
+                        + " to service " + service.getClass().getName(), ex);
+            }
+        }
+    }
+
+    @Override
+    public void onStopUser(int userHandle) {
+        for (CMSystemService service : getServicesUpdatingUsers(userHandle, USER_STOPPED)) {
+            try {
+                service.onStopUser(userHandle);
+            } catch (Exception ex) {
+                Slog.wtf(TAG, "Failure reporting stop of user " + userHandle
+                        + " to service " + service.getClass().getName(), ex);
+            }
+        }
+    }
+
+    @Override
+    public void onCleanupUser(int userHandle) {
+        for (CMSystemService service : getServices()) {
+            try {
+                service.onCleanupUser(userHandle);
+            } catch (Exception ex) {
+                Slog.wtf(TAG, "Failure reporting cleanup of user " + userHandle
+                        + " to service " + service.getClass().getName(), ex);
+            }
+        }
+    }
+
+    private static final int USER_STARTED = 0;
+    private static final int USER_UNLOCKED = 1;
+    private static final int USER_STOPPED = 2;
+
+    private ArrayList<CMSystemService> getServices() {
+        synchronized (mLock) {
+            return new ArrayList<CMSystemService>(mServices);
+        }
+    }
+
+    /**
+     * Records the user state change, so lazy services started later can be told
+     * about it, and returns the services to notify now.
+     */
+    private ArrayList<CMSystemService> getServicesUpdatingUsers(int userHandle, int event) {
+        synchronized (mLazyLock) {
+            synchronized (mLock) {
+                switch (event) {
+                    case USER_STARTED:
+                        mStartedUsers.put(userHandle, true);
+                        break;
+                    case USER_UNLOCKED:
+                        mUnlockedUsers.put(userHandle, true);
+                        break;
+                    case USER_STOPPED:
+                        mStartedUsers.delete(userHandle);
+                        mUnlockedUsers.delete(userHandle);
+                        break;
+                }
+                return new ArrayList<CMSystemService>(mServices);
+            }
+        }
+    }
+
+    private ServiceRecord findRecordLocked(String name) {
+        for (int i = 0; i < mRecords.size(); i++) {
+            ServiceRecord record = mRecords.get(i);
+            if (record.name.equals(name)) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    private static void warnIfSlow(String name, String what, long durationMs) {
+        if (durationMs > SLOW_THRESHOLD_MS) {
+            Slog.w(TAG, "Slow " + what + " in " + name + ": " + durationMs + "ms");
+        }
+    }
+
+    private void dumpInternal(PrintWriter pw) {
+        synchronized (mLock) {
+            long totalConstruct = 0;
+            long totalStart = 0;
+            long totalBoot = 0;
+
+            pw.println("CM system services boot report:");
+            pw.println("  startupWallTime=" + mStartupWallTimeMs + "ms"
+                    + " threads=" + mStartupThreads
+                    + " currentPhase=" + mCurrentPhase);
+            pw.println("  lazyServices=" + (mLazyEnabled ? "enabled" : "disabled")
+                    + " bootCompletedPss=" + mBootCompletedPssKb + "kB");
+            for (ServiceRecord record : mRecords) {
+                long boot = 0;
+                StringBuilder phases = new StringBuilder();
+                for (int i = 0; i < record.bootPhaseMs.size(); i++) {
+                    boot += record.bootPhaseMs.valueAt(i);
+                    phases.append(' ').append(record.bootPhaseMs.keyAt(i))
+                            .append('=').append(record.bootPhaseMs.valueAt(i)).append("ms");
+                }
+                totalConstruct += Math.max(record.constructMs, 0);
+                totalStart += Math.max(record.onStartMs, 0);
+                totalBoot += boot;
+
+                pw.println("  " + record.name + " (" + record.status + ")");
+                pw.println("    constructor=" + record.constructMs + "ms"
+                        + " onStart=" + record.onStartMs + "ms"
+                        + " bootPhases=" + boot + "ms");
+                if (phases.length() > 0) {
+                    pw.println("     " + phases);
+                }
+            }
+            for (LazyService lazy : mLazyServices) {
+                if (lazy.started) {
+                    pw.println("  lazy " + lazy.record.name + " started by " + lazy.trigger
+                            + " at uptime " + lazy.startedAt + "ms");
+                }
+            }
+            pw.println("  total: constructor=" + totalConstruct + "ms"
+                    + " onStart=" + totalStart + "ms"
+                    + " bootPhases=" + totalBoot + "ms");
+        }
+    }
+
+    private final class BinderService extends Binder {
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            getContext().enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+            dumpInternal(pw);
+        }
+    }
+}
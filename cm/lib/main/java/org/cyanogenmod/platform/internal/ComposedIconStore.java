@@ -0,0 +1,674 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.platform.internal;
+
+import android.content.ComponentName;
+import android.os.FileUtils;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import com.android.internal.util.HexDump;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disk cache of composed icons keyed by (icon pack, component, density, theme hash).
+ *
+ * Icon data is appended to a single pack file and stored once per distinct content, so
+ * components sharing an icon share the bytes. An index of keys and their offsets is kept in
+ * memory and written out in the background. Keys are evicted least recently used first once
+ * the live data exceeds the size budget, and the pack file is compacted once it is mostly
+ * made of evicted data.
+ *
+ * Only bookkeeping happens under the lock. Pack file reads and writes use positional I/O on
+ * a snapshot of the current file, and syncing, index writes and compaction run on the
+ * store's looper without the lock held.
+ */
+final class ComposedIconStore {
+    private static final String TAG = ComposedIconStore.class.getSimpleName();
+
+    private static final String PACK_FILE_NAME = "icons.pack";
+    private static final String INDEX_FILE_NAME = "icons.idx";
+
+    private static final int INDEX_MAGIC = 0x49434f4e; // ICON
+    private static final int INDEX_VERSION = 1;
+
+    /** Largest single icon accepted */
+    static final int MAX_ICON_SIZE = 1024 * 1024;
+
+    // Evicted data is only reclaimed once there is at least this much of it
+    private static final long MIN_COMPACT_SIZE = 1024 * 1024;
+    private static final long WRITE_INDEX_DELAY_MS = 10 * 1000;
+
+    private static final int MSG_WRITE_INDEX = 1;
+    private static final int MSG_COMPACT = 2;
+
+    /**
+     * Identifies a composed icon. The theme hash is chosen by the client and should change
+     * whenever anything the icon is composed from changes.
+     */
+    static final class Key {
+        final String iconPkg;
+        final ComponentName component;
+        final int density;
+        final long themeHash;
+
+        Key(String iconPkg, ComponentName component, int density, long themeHash) {
+            this.iconPkg = iconPkg;
+            this.component = component;
+            this.density = density;
+            this.themeHash = themeHash;
+        }
+
+        boolean belongsTo(String pkgName) {
+            return iconPkg.equals(pkgName) || component.getPackageName().equals(pkgName);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return density == other.density && themeHash == other.themeHash
+                    && iconPkg.equals(other.iconPkg) && component.equals(other.component);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = iconPkg.hashCode();
+            result = 31 * result + component.hashCode();
+            result = 31 * result + density;
+            result = 31 * result + (int) (themeHash ^ (themeHash >>> 32));
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return iconPkg + "/" + component.flattenToShortString() + "/" + density + "/"
+                    + Long.toHexString(themeHash);
+        }
+    }
+
+    private static final class Blob {
+        final String digest;
+        long offset;
+        final int length;
+        int refs;
+
+        Blob(String digest, long offset, int length) {
+            this.digest = digest;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File mDir;
+    private final File mPackFile;
+    private final AtomicFile mIndexFile;
+    private final long mMaxSize;
+    private final Handler mHandler;
+
+    // Guarded by this. Iterates from least to most recently used.
+    private final LinkedHashMap<Key, Blob> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ArrayMap<String, Blob> mBlobs = new ArrayMap<>();
+    private RandomAccessFile mPack;
+    private long mPackLength;
+    private long mLiveBytes;
+    // Bumped whenever the pack file is replaced, so that I/O done without holding the lock
+    // can tell whether the file it used is still current
+    private int mGeneration;
+    // Bumped whenever a new blob is added
+    private int mBlobsAdded;
+
+    private int mHits;
+    private int mMisses;
+    private int mPuts;
+    private int mSharedPuts;
+    private int mEvictions;
+    private int mCompactions;
+
+    ComposedIconStore(File dir, long maxSize, Looper looper) {
+        mDir = dir;
+        mPackFile = new File(dir, PACK_FILE_NAME);
+        mIndexFile = new AtomicFile(new File(dir, INDEX_FILE_NAME));
+        mMaxSize = maxSize;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_WRITE_INDEX:
+                        writeIndex();
+                        break;
+                    case MSG_COMPACT:
+                        compact();
+                        break;
+                }
+            }
+        };
+    }
+
+    /**
+     * Reads the index back from disk, starting over with an empty store if it doesn't match
+     * the pack file. Until this is done the store is empty and rejects new icons.
+     */
+    void load() {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Slog.w(TAG, "Unable to create " + mDir);
+            return;
+        }
+        FileUtils.setPermissions(mDir, FileUtils.S_IRWXU | FileUtils.S_IRWXG, -1, -1);
+
+        RandomAccessFile pack = null;
+        try {
+            pack = new RandomAccessFile(mPackFile, "rw");
+            final LinkedHashMap<Key, Blob> entries = new LinkedHashMap<>();
+            final ArrayMap<String, Blob> blobs = new ArrayMap<>();
+            final long packLength = readIndex(pack, entries, blobs);
+            synchronized (this) {
+                mPack = pack;
+                mPackLength = packLength;
+                mEntries.putAll(entries);
+                mBlobs.putAll(blobs);
+                for (int i = 0; i < mBlobs.size(); i++) {
+                    mLiveBytes += mBlobs.valueAt(i).length;
+                }
+            }
+        } catch (IOException e) {
+            Slog.w(TAG, "Discarding composed icon store", e);
+            synchronized (this) {
+                mPack = pack;
+                resetLocked();
+            }
+        }
+    }
+
+    byte[] get(Key key) {
+        final RandomAccessFile pack;
+        final long offset;
+        final int generation;
+        final byte[] data;
+        synchronized (this) {
+            final Blob blob = mEntries.get(key);
+            if (blob == null || mPack == null) {
+                mMisses++;
+                return null;
+            }
+            pack = mPack;
+            offset = blob.offset;
+            generation = mGeneration;
+            data = new byte[blob.length];
+        }
+
+        try {
+            readFully(pack.getChannel(), ByteBuffer.wrap(data), offset);
+        } catch (IOException e) {
+            synchronized (this) {
+                mMisses++;
+                // Reads of a pack file which got replaced meanwhile are expected to fail
+                if (generation == mGeneration) {
+                    Slog.w(TAG, "Unable to read " + key, e);
+                    resetLocked();
+                }
+            }
+            return null;
+        }
+        synchronized (this) {
+            mHits++;
+        }
+        return data;
+    }
+
+    boolean put(Key key, byte[] data) {
+        final String digest = digest(data);
+        if (digest == null) {
+            return false;
+        }
+
+        final RandomAccessFile pack;
+        final long offset;
+        final int generation;
+        synchronized (this) {
+            if (mPack == null) {
+                return false;
+            }
+            mPuts++;
+            final Blob blob = mBlobs.get(digest);
+            if (blob != null) {
+                mSharedPuts++;
+                addEntryLocked(key, blob);
+                return true;
+            }
+            // Reserve room at the end of the pack, the data is written without the lock held
+            pack = mPack;
+            offset = mPackLength;
+            generation = mGeneration;
+            mPackLength += data.length;
+        }
+
+        try {
+            writeFully(pack.getChannel(), ByteBuffer.wrap(data), offset);
+        } catch (IOException e) {
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    Slog.w(TAG, "Unable to write " + key, e);
+                    resetLocked();
+                }
+            }
+            return false;
+        }
+
+        synchronized (this) {
+            if (generation != mGeneration) {
+                // The pack was compacted or reset meanwhile, the reserved room is gone
+                return false;
+            }
+            Blob blob = mBlobs.get(digest);
+            if (blob != null) {
+                // Lost a race against the same icon, what was just written is dead data
+                mSharedPuts++;
+            } else {
+                blob = new Blob(digest, offset, data.length);
+                mLiveBytes += data.length;
+                mBlobs.put(digest, blob);
+                mBlobsAdded++;
+            }
+            addEntryLocked(key, blob);
+        }
+        return true;
+    }
+
+    /**
+     * Drops every icon composed from or for the given package.
+     *
+     * @return The number of icons dropped
+     */
+    synchronized int invalidate(String pkgName) {
+        int count = 0;
+        Iterator<Map.Entry<Key, Blob>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Blob> entry = it.next();
+            if (entry.getKey().belongsTo(pkgName)) {
+                it.remove();
+                releaseLocked(entry.getValue());
+                count++;
+            }
+        }
+        if (count > 0) {
+            scheduleMaintenanceLocked();
+        }
+        return count;
+    }
+
+    private void addEntryLocked(Key key, Blob blob) {
+        blob.refs++;
+        final Blob previous = mEntries.put(key, blob);
+        if (previous != null) {
+            releaseLocked(previous);
+        }
+        trimToSizeLocked();
+        scheduleMaintenanceLocked();
+    }
+
+    private void trimToSizeLocked() {
+        Iterator<Map.Entry<Key, Blob>> it = mEntries.entrySet().iterator();
+        while (mLiveBytes > mMaxSize && it.hasNext()) {
+            Map.Entry<Key, Blob> entry = it.next();
+            it.remove();
+            releaseLocked(entry.getValue());
+            mEvictions++;
+        }
+    }
+
+    private void releaseLocked(Blob blob) {
+        if (--blob.refs == 0) {
+            mBlobs.remove(blob.digest);
+            mLiveBytes -= blob.length;
+        }
+    }
+
+    private void scheduleMaintenanceLocked() {
+        final long deadBytes = mPackLength - mLiveBytes;
+        if (deadBytes > MIN_COMPACT_SIZE && deadBytes > mLiveBytes) {
+            if (!mHandler.hasMessages(MSG_COMPACT)) {
+                mHandler.sendEmptyMessage(MSG_COMPACT);
+            }
+        } else if (!mHandler.hasMessages(MSG_WRITE_INDEX)) {
+            mHandler.sendEmptyMessageDelayed(MSG_WRITE_INDEX, WRITE_INDEX_DELAY_MS);
+        }
+    }
+
+    /**
+     * Copies the icons still referenced into a new pack file and swaps it in. The copy is
+     * made without the lock held and thrown away if new icons were added in the meantime.
+     */
+    private void compact() {
+        final RandomAccessFile pack;
+        final List<Blob> blobs;
+        final long[] sourceOffsets;
+        final int generation;
+        final int blobsAdded;
+        synchronized (this) {
+            if (mPack == null) {
+                return;
+            }
+            pack = mPack;
+            generation = mGeneration;
+            blobsAdded = mBlobsAdded;
+            blobs = new ArrayList<>(mBlobs.values());
+            sourceOffsets = new long[blobs.size()];
+            for (int i = 0; i < blobs.size(); i++) {
+                sourceOffsets[i] = blobs.get(i).offset;
+            }
+        }
+
+        final File tmp = new File(mDir, PACK_FILE_NAME + ".tmp");
+        final long[] offsets = new long[blobs.size()];
+        long length = 0;
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(tmp, "rw");
+            out.setLength(0);
+            ByteBuffer buffer = ByteBuffer.allocate(0);
+            for (int i = 0; i < blobs.size(); i++) {
+                final int blobLength = blobs.get(i).length;
+                if (buffer.capacity() < blobLength) {
+                    buffer = ByteBuffer.allocate(blobLength);
+                }
+                buffer.clear();
+                buffer.limit(blobLength);
+                readFully(pack.getChannel(), buffer, sourceOffsets[i]);
+                buffer.flip();
+                writeFully(out.getChannel(), buffer, length);
+                offsets[i] = length;
+                length += blobLength;
+            }
+            out.getFD().sync();
+        } catch (IOException e) {
+            IoUtils.closeQuietly(out);
+            tmp.delete();
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    Slog.w(TAG, "Unable to compact composed icon store", e);
+                    resetLocked();
+                }
+            }
+            return;
+        }
+
+        synchronized (this) {
+            if (generation != mGeneration || blobsAdded != mBlobsAdded) {
+                IoUtils.closeQuietly(out);
+                tmp.delete();
+                if (generation == mGeneration && !mHandler.hasMessages(MSG_COMPACT)) {
+                    mHandler.sendEmptyMessage(MSG_COMPACT);
+                }
+                return;
+            }
+            // Only the directory changes, cheap enough to do under the lock
+            if (!tmp.renameTo(mPackFile)) {
+                Slog.w(TAG, "Unable to replace " + mPackFile);
+                IoUtils.closeQuietly(out);
+                tmp.delete();
+                resetLocked();
+                return;
+            }
+            IoUtils.closeQuietly(mPack);
+            mPack = out;
+            // Blobs evicted since the snapshot was taken are left behind as dead data
+            for (int i = 0; i < blobs.size(); i++) {
+                blobs.get(i).offset = offsets[i];
+            }
+            mPackLength = length;
+            mGeneration++;
+            mCompactions++;
+            mHandler.removeMessages(MSG_WRITE_INDEX);
+        }
+
+        // The old index points into the old pack, replace it right away
+        writeIndex();
+    }
+
+    /**
+     * Snapshots the index under the lock and writes it out, after syncing the pack file,
+     * without the lock held.
+     */
+    private void writeIndex() {
+        final RandomAccessFile pack;
+        final int generation;
+        final ByteArrayOutputStream index = new ByteArrayOutputStream();
+        synchronized (this) {
+            if (mPack == null) {
+                return;
+            }
+            pack = mPack;
+            generation = mGeneration;
+            try {
+                writeIndexLocked(new DataOutputStream(index));
+            } catch (IOException e) {
+                // Can't happen when writing to memory
+                throw new IllegalStateException(e);
+            }
+        }
+
+        FileOutputStream fos = null;
+        try {
+            // The index must never reference data which isn't on disk yet
+            pack.getFD().sync();
+
+            fos = mIndexFile.startWrite();
+            index.writeTo(fos);
+            mIndexFile.finishWrite(fos);
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to write composed icon index", e);
+            if (fos != null) {
+                mIndexFile.failWrite(fos);
+            }
+            return;
+        }
+
+        synchronized (this) {
+            if (generation != mGeneration) {
+                // The store was reset while writing, the index describes a pack which is gone
+                mIndexFile.delete();
+            }
+        }
+    }
+
+    private void writeIndexLocked(DataOutputStream out) throws IOException {
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(INDEX_VERSION);
+
+        // Room reserved by puts still in flight isn't written yet, only count what is
+        long packLength = 0;
+        for (int i = 0; i < mBlobs.size(); i++) {
+            Blob blob = mBlobs.valueAt(i);
+            packLength = Math.max(packLength, blob.offset + blob.length);
+        }
+        out.writeLong(packLength);
+
+        final ArrayMap<Blob, Integer> ids = new ArrayMap<>(mBlobs.size());
+        out.writeInt(mBlobs.size());
+        for (int i = 0; i < mBlobs.size(); i++) {
+            Blob blob = mBlobs.valueAt(i);
+            ids.put(blob, i);
+            out.writeUTF(blob.digest);
+            out.writeLong(blob.offset);
+            out.writeInt(blob.length);
+        }
+
+        out.writeInt(mEntries.size());
+        for (Map.Entry<Key, Blob> entry : mEntries.entrySet()) {
+            Key key = entry.getKey();
+            out.writeUTF(key.iconPkg);
+            out.writeUTF(key.component.flattenToString());
+            out.writeInt(key.density);
+            out.writeLong(key.themeHash);
+            out.writeInt(ids.get(entry.getValue()));
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads the index into the given maps.
+     *
+     * @return The length of the pack file
+     */
+    private long readIndex(RandomAccessFile pack, Map<Key, Blob> entries,
+            Map<String, Blob> blobsByDigest) throws IOException {
+        FileInputStream fis;
+        try {
+            fis = mIndexFile.openRead();
+        } catch (FileNotFoundException e) {
+            // First run, or the index never made it to disk. Nothing in the pack is reachable.
+            pack.setLength(0);
+            return 0;
+        }
+
+        final long packLength = pack.length();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(fis));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                throw new IOException("Unknown index format");
+            }
+            // Anything appended after the index was written is unreachable and gets
+            // reclaimed by the next compaction
+            if (in.readLong() > packLength) {
+                throw new IOException("Pack file is shorter than the index expects");
+            }
+
+            final int numBlobs = in.readInt();
+            final Blob[] blobs = new Blob[numBlobs];
+            for (int i = 0; i < numBlobs; i++) {
+                final String digest = in.readUTF();
+                final long offset = in.readLong();
+                final int length = in.readInt();
+                if (offset < 0 || length < 0 || offset + length > packLength) {
+                    throw new IOException("Icon data out of range");
+                }
+                blobs[i] = new Blob(digest, offset, length);
+                blobsByDigest.put(digest, blobs[i]);
+            }
+
+            final int numEntries = in.readInt();
+            for (int i = 0; i < numEntries; i++) {
+                final String iconPkg = in.readUTF();
+                final ComponentName component = ComponentName.unflattenFromString(in.readUTF());
+                final int density = in.readInt();
+                final long themeHash = in.readLong();
+                final int id = in.readInt();
+                if (component == null || id < 0 || id >= numBlobs) {
+                    throw new IOException("Malformed index entry");
+                }
+                blobs[id].refs++;
+                entries.put(new Key(iconPkg, component, density, themeHash), blobs[id]);
+            }
+        } finally {
+            IoUtils.closeQuietly(fis);
+        }
+        return packLength;
+    }
+
+    /**
+     * Starts over with an empty pack file. The old file is closed rather than truncated, so
+     * I/O still in flight on it fails instead of landing in the new one.
+     */
+    private void resetLocked() {
+        mEntries.clear();
+        mBlobs.clear();
+        mLiveBytes = 0;
+        mPackLength = 0;
+        mGeneration++;
+        mHandler.removeMessages(MSG_WRITE_INDEX);
+        mHandler.removeMessages(MSG_COMPACT);
+        mIndexFile.delete();
+        IoUtils.closeQuietly(mPack);
+        mPack = null;
+        mPackFile.delete();
+        try {
+            mPack = new RandomAccessFile(mPackFile, "rw");
+        } catch (IOException e) {
+            Slog.e(TAG, "Unable to reset composed icon store, disabling it", e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        final long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of pack file");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        final long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, start + buffer.position());
+        }
+    }
+
+    private static String digest(byte[] data) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            return HexDump.toHexString(md.digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            Slog.e(TAG, "SHA-1 not available", e);
+            return null;
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("  composed icons: " + mEntries.size() + " (" + mBlobs.size() + " distinct)");
+        pw.println("  live bytes: " + mLiveBytes + " of " + mMaxSize);
+        pw.println("  pack bytes: " + mPackLength);
+        pw.println("  hits: " + mHits + " misses: " + mMisses);
+        pw.println("  puts: " + mPuts + " shared: " + mSharedPuts);
+        pw.println("  evictions: " + mEvictions + " compactions: " + mCompactions);
+    }
+}
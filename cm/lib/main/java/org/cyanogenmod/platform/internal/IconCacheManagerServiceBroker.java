@@ -17,33 +17,92 @@
 package org.cyanogenmod.platform.internal;
 
 import android.annotation.NonNull;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.ThemeConfig;
 import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.text.TextUtils;
+import android.util.Slog;
 
 import cyanogenmod.app.CMContextConstants;
 
 import org.cyanogenmod.internal.themes.IIconCacheManager;
+import org.cyanogenmod.internal.util.ThemeUtils;
 import org.cyanogenmod.platform.internal.common.BrokeredServiceConnection;
 
+import com.android.server.ServiceThread;
+
+import libcore.io.IoUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+
 /**
  * Icon cache service broker for connecting clients to a backing icon cache manager service.
  *
  * @hide
  */
 public class IconCacheManagerServiceBroker extends BrokerableCMSystemService<IIconCacheManager> {
+    private static final String TAG = IconCacheManagerServiceBroker.class.getSimpleName();
 
     private static final ComponentName SERVICE_COMPONENT =
             new ComponentName("org.cyanogenmod.themeservice",
                     "org.cyanogenmod.themeservice.IconCacheManagerService");
 
+    // Size budget of the composed icon store
+    private static final long MAX_COMPOSED_ICON_STORE_SIZE = 16 * 1024 * 1024;
+    // How long a client may take to hand over a composed icon
+    private static final long READ_ICON_TIMEOUT_MS = 2000;
+
+    private final ServiceThread mStoreThread;
+    private final Handler mStoreHandler;
+    private final ComposedIconStore mComposedIconStore;
+
+    // Only touched on the store thread
+    private String mAppliedIconPack;
+
     private final IIconCacheManager mServiceStubForFailure = new IIconCacheManager.Stub() {
         @Override
         public boolean cacheComposedIcon(Bitmap icon, String path) throws RemoteException {
             return false;
         }
+
+        @Override
+        public boolean putComposedIcon(String iconPkg, ComponentName component, int density,
+                long themeHash, ParcelFileDescriptor icon) throws RemoteException {
+            return false;
+        }
+
+        @Override
+        public ParcelFileDescriptor getComposedIcon(String iconPkg, ComponentName component,
+                int density, long themeHash) throws RemoteException {
+            return null;
+        }
+
+        @Override
+        public void invalidateComposedIcons(String pkgName) throws RemoteException {
+        }
     };
 
     private BrokeredServiceConnection mServiceConnection = new BrokeredServiceConnection() {
@@ -61,11 +120,79 @@ public class IconCacheManagerServiceBroker extends BrokerableCMSystemService<IIc
         public boolean cacheComposedIcon(Bitmap icon, String path) throws RemoteException {
             return getBrokeredService().cacheComposedIcon(icon, path);
         }
+
+        /*
+         * Composed icons are kept by the broker itself so they don't depend on the backing
+         * service being connected and are never sent as bitmaps.
+         */
+
+        @Override
+        public boolean putComposedIcon(String iconPkg, ComponentName component, int density,
+                long themeHash, ParcelFileDescriptor icon) throws RemoteException {
+            try {
+                getContext().enforceCallingOrSelfPermission(
+                        cyanogenmod.platform.Manifest.permission.ACCESS_THEME_MANAGER, TAG);
+            } catch (SecurityException e) {
+                IoUtils.closeQuietly(icon);
+                throw e;
+            }
+            if (TextUtils.isEmpty(iconPkg) || component == null || icon == null) {
+                IoUtils.closeQuietly(icon);
+                return false;
+            }
+            final byte[] data = readIcon(icon);
+            if (data == null) {
+                return false;
+            }
+            return mComposedIconStore.put(
+                    new ComposedIconStore.Key(iconPkg, component, density, themeHash), data);
+        }
+
+        @Override
+        public ParcelFileDescriptor getComposedIcon(String iconPkg, ComponentName component,
+                int density, long themeHash) throws RemoteException {
+            if (TextUtils.isEmpty(iconPkg) || component == null) {
+                return null;
+            }
+            final byte[] data = mComposedIconStore.get(
+                    new ComposedIconStore.Key(iconPkg, component, density, themeHash));
+            return data != null ? writeIcon(data) : null;
+        }
+
+        @Override
+        public void invalidateComposedIcons(String pkgName) throws RemoteException {
+            getContext().enforceCallingOrSelfPermission(
+                    cyanogenmod.platform.Manifest.permission.ACCESS_THEME_MANAGER, TAG);
+            if (pkgName != null) {
+                mComposedIconStore.invalidate(pkgName);
+            }
+        }
+
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            getContext().enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+            pw.println();
+            pw.println("IconCacheManager Broker State:");
+            dumpBrokerState(pw);
+
+            pw.println();
+            pw.println("Composed icon store:");
+            mComposedIconStore.dump(pw);
+        }
     }
 
     public IconCacheManagerServiceBroker(Context context) {
         super(context);
         setBrokeredServiceConnection(mServiceConnection);
+
+        mStoreThread = new ServiceThread(TAG,
+                Process.THREAD_PRIORITY_BACKGROUND, true /*allowIo*/);
+        mStoreThread.start();
+        mStoreHandler = new Handler(mStoreThread.getLooper());
+        mComposedIconStore = new ComposedIconStore(
+                new File(ThemeUtils.SYSTEM_THEME_COMPOSED_ICON_DIR),
+                MAX_COMPOSED_ICON_STORE_SIZE, mStoreThread.getLooper());
     }
 
     @Override
@@ -90,7 +217,144 @@ public class IconCacheManagerServiceBroker extends BrokerableCMSystemService<IIc
 
     @Override
     public void onStart() {
+        mStoreHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mComposedIconStore.load();
+            }
+        });
         publishBinderService(CMContextConstants.CM_ICON_CACHE_SERVICE, new BinderService());
+
+        IntentFilter pkgFilter = new IntentFilter(Intent.ACTION_PACKAGE_REMOVED);
+        pkgFilter.addDataScheme("package");
+        getContext().registerReceiverAsUser(mPackageReceiver, UserHandle.ALL, pkgFilter, null,
+                mStoreHandler);
+    }
+
+    @Override
+    public void onBootPhase(int phase) {
+        super.onBootPhase(phase);
+        if (phase == PHASE_ACTIVITY_MANAGER_READY) {
+            getContext().registerReceiver(mThemeChangeReceiver,
+                    new IntentFilter(ThemeUtils.ACTION_THEME_CHANGED), null, mStoreHandler);
+            mStoreHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mAppliedIconPack = getAppliedIconPack();
+                }
+            });
+        }
+    }
+
+    /**
+     * Icons of removed or updated packages, including icon packs, can't be trusted anymore.
+     */
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri uri = intent.getData();
+            String pkgName = uri != null ? uri.getSchemeSpecificPart() : null;
+            if (pkgName != null) {
+                mComposedIconStore.invalidate(pkgName);
+            }
+        }
+    };
+
+    /**
+     * Only the namespace of the icon pack being replaced is dropped on a theme change, icons
+     * composed from other packs stay valid and are aged out by the size budget.
+     */
+    private final BroadcastReceiver mThemeChangeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String iconPack = getAppliedIconPack();
+            if (mAppliedIconPack != null && !mAppliedIconPack.equals(iconPack)) {
+                mComposedIconStore.invalidate(mAppliedIconPack);
+            }
+            mAppliedIconPack = iconPack;
+        }
+    };
+
+    private String getAppliedIconPack() {
+        final long token = Binder.clearCallingIdentity();
+        try {
+            ThemeConfig config = ThemeConfig.getBootTheme(getContext().getContentResolver());
+            return config != null ? config.getIconPackPkgName() : null;
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+    }
+
+    /**
+     * Reads the whole icon from the client's descriptor, closing it. Gives up once the icon
+     * exceeds {@link ComposedIconStore#MAX_ICON_SIZE} or the client takes longer than
+     * {@link #READ_ICON_TIMEOUT_MS} to provide it, so a stalled pipe can't hold on to the
+     * binder thread.
+     */
+    private static byte[] readIcon(ParcelFileDescriptor icon) {
+        final FileDescriptor fd = icon.getFileDescriptor();
+        final StructPollfd[] pollFds = { new StructPollfd() };
+        pollFds[0].fd = fd;
+        pollFds[0].events = (short) OsConstants.POLLIN;
+        final long deadline = SystemClock.uptimeMillis() + READ_ICON_TIMEOUT_MS;
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            while (true) {
+                final long timeout = deadline - SystemClock.uptimeMillis();
+                if (timeout <= 0 || Os.poll(pollFds, (int) timeout) == 0) {
+                    Slog.w(TAG, "Timed out reading composed icon, not caching it");
+                    return null;
+                }
+                final int count = Os.read(fd, buffer, 0, buffer.length);
+                if (count == 0) {
+                    break;
+                }
+                if (out.size() + count > ComposedIconStore.MAX_ICON_SIZE) {
+                    Slog.w(TAG, "Composed icon exceeds " + ComposedIconStore.MAX_ICON_SIZE
+                            + " bytes, not caching it");
+                    return null;
+                }
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } catch (ErrnoException e) {
+            Slog.w(TAG, "Unable to read composed icon", e);
+            return null;
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to read composed icon", e);
+            return null;
+        } finally {
+            IoUtils.closeQuietly(icon);
+        }
+    }
+
+    /**
+     * Returns the read end of a pipe the icon is written into off the binder thread.
+     */
+    private static ParcelFileDescriptor writeIcon(final byte[] data) {
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to create pipe for composed icon", e);
+            return null;
+        }
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+                try {
+                    out.write(data);
+                } catch (IOException e) {
+                    // The client stopped reading
+                } finally {
+                    IoUtils.closeQuietly(out);
+                }
+            }
+        });
+        return pipe[0];
     }
 
     @Override
@@ -47,6 +47,8 @@ import cyanogenmod.providers.CMSettings;
 
 import org.cyanogenmod.platform.internal.common.BrokeredServiceConnection;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.List;
 
 /**
@@ -55,6 +57,8 @@ import java.util.List;
  *
  * @hide
  */
+@CMSystemService.Lazy(binderName = CMContextConstants.CM_LIVE_LOCK_SCREEN_SERVICE,
+        feature = CMContextConstants.Features.LIVE_LOCK_SCREEN)
 public class LiveLockScreenServiceBroker extends
         BrokerableCMSystemService<ILiveLockScreenManagerProvider> {
     private static final String TAG = LiveLockScreenServiceBroker.class.getSimpleName();
@@ -178,6 +182,15 @@ public class LiveLockScreenServiceBroker extends
             }
             return unregistered;
         }
+
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+            pw.println();
+            pw.println("LiveLockScreen Broker State:");
+            dumpBrokerState(pw);
+        }
     }
 
     public LiveLockScreenServiceBroker(Context context) {
@@ -287,7 +300,7 @@ public class LiveLockScreenServiceBroker extends
         return mDefaultLlsInfo;
     }
 
-    private void setDefaultLiveLockScreenInternal(LiveLockScreenInfo llsInfo) {
+    private void setDefaultLiveLockScreenInternal(final LiveLockScreenInfo llsInfo) {
         if (llsInfo != null && llsInfo.component != null) {
             // Check that the package this component belongs to has the third party keyguard perm
             final PackageManager pm = mContext.getPackageManager();
@@ -316,7 +329,13 @@ public class LiveLockScreenServiceBroker extends
 
         mDefaultLlsInfo = llsInfo;
         try {
-            getBrokeredService().updateDefaultLiveLockScreen(llsInfo);
+            executeBrokeredCall(new BrokeredCall<ILiveLockScreenManagerProvider>() {
+                @Override
+                public void call(ILiveLockScreenManagerProvider service)
+                        throws RemoteException {
+                    service.updateDefaultLiveLockScreen(llsInfo);
+                }
+            });
         } catch (RemoteException e) {
             /* ignore */
         }
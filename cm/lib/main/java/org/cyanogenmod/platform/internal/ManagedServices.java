@@ -39,6 +39,7 @@ import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
 import android.util.Slog;
@@ -85,6 +86,11 @@ abstract public class ManagedServices {
     // Just the packages from mEnabledServicesForCurrentProfiles
     private ArraySet<String> mEnabledServicesPackageNames = new ArraySet<String>();
 
+    // Services resolved for the service interface, per user. Invalidated by package events
+    // for that user, so settings changes and user switches don't hit the package manager.
+    private final SparseArray<ArrayMap<ComponentName, ServiceInfo>> mInstalledServices
+            = new SparseArray<ArrayMap<ComponentName, ServiceInfo>>();
+
     // Kept to de-dupe user change events (experienced after boot, when we receive a settings and a
     // user change).
     private int[] mLastSeenProfileIds;
@@ -122,25 +128,35 @@ abstract public class ManagedServices {
     }
 
     public void onPackagesChanged(boolean queryReplace, String[] pkgList) {
+        onPackagesChanged(queryReplace, pkgList, UserHandle.USER_ALL);
+    }
+
+    public void onPackagesChanged(boolean queryReplace, String[] pkgList, int userId) {
         if (DEBUG) Slog.d(TAG, "onPackagesChanged queryReplace=" + queryReplace
                 + " pkgList=" + (pkgList == null ? null : Arrays.asList(pkgList))
+                + " userId=" + userId
                 + " mEnabledServicesPackageNames=" + mEnabledServicesPackageNames);
-        boolean anyServicesInvolved = false;
+        invalidateInstalledServices(userId);
+
+        ArraySet<String> involvedPackages = null;
         if (pkgList != null && (pkgList.length > 0)) {
             for (String pkgName : pkgList) {
                 if (mEnabledServicesPackageNames.contains(pkgName)) {
-                    anyServicesInvolved = true;
+                    if (involvedPackages == null) {
+                        involvedPackages = new ArraySet<String>();
+                    }
+                    involvedPackages.add(pkgName);
                 }
             }
         }
 
-        if (anyServicesInvolved) {
+        if (involvedPackages != null) {
             // if we're not replacing a package, clean up orphaned bits
             if (!queryReplace) {
                 disableNonexistentServices();
             }
             // make sure we're still bound to any of our services who may have just upgraded
-            rebindServices();
+            rebindServices(involvedPackages);
         }
     }
 
@@ -150,7 +166,7 @@ abstract public class ManagedServices {
             if (DEBUG) Slog.d(TAG, "Current profile IDs didn't change, skipping rebindServices().");
             return;
         }
-        rebindServices();
+        rebindServices(null);
     }
 
     public ManagedServiceInfo checkServiceTokenLocked(IInterface service) {
@@ -198,26 +214,7 @@ abstract public class ManagedServices {
                 userId);
         if (!TextUtils.isEmpty(flatIn)) {
             if (DEBUG) Slog.v(TAG, "flat before: " + flatIn);
-            PackageManager pm = mContext.getPackageManager();
-            List<ResolveInfo> installedServices = pm.queryIntentServicesAsUser(
-                    new Intent(mConfig.serviceInterface),
-                    PackageManager.GET_SERVICES | PackageManager.GET_META_DATA,
-                    userId);
-            if (DEBUG) Slog.v(TAG, mConfig.serviceInterface + " services: " + installedServices);
-            Set<ComponentName> installed = new ArraySet<ComponentName>();
-            for (int i = 0, count = installedServices.size(); i < count; i++) {
-                ResolveInfo resolveInfo = installedServices.get(i);
-                ServiceInfo info = resolveInfo.serviceInfo;
-
-                if (!mConfig.bindPermission.equals(info.permission)) {
-                    Slog.w(TAG, "Skipping " + getCaption() + " service "
-                            + info.packageName + "/" + info.name
-                            + ": it does not require the permission "
-                            + mConfig.bindPermission);
-                    continue;
-                }
-                installed.add(new ComponentName(info.packageName, info.name));
-            }
+            Set<ComponentName> installed = getInstalledServices(userId).keySet();
 
             String flatOut = "";
             if (!installed.isEmpty()) {
@@ -240,12 +237,65 @@ abstract public class ManagedServices {
         }
     }
 
+    /**
+     * Services exposing the configured interface and requiring the bind permission,
+     * installed for the given user.
+     */
+    private ArrayMap<ComponentName, ServiceInfo> getInstalledServices(int userId) {
+        synchronized (mMutex) {
+            final ArrayMap<ComponentName, ServiceInfo> cached = mInstalledServices.get(userId);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        PackageManager pm = mContext.getPackageManager();
+        List<ResolveInfo> installedServices = pm.queryIntentServicesAsUser(
+                new Intent(mConfig.serviceInterface),
+                PackageManager.GET_SERVICES | PackageManager.GET_META_DATA,
+                userId);
+        if (DEBUG) Slog.v(TAG, mConfig.serviceInterface + " services: " + installedServices);
+        final ArrayMap<ComponentName, ServiceInfo> installed
+                = new ArrayMap<ComponentName, ServiceInfo>();
+        for (int i = 0, count = installedServices.size(); i < count; i++) {
+            ResolveInfo resolveInfo = installedServices.get(i);
+            ServiceInfo info = resolveInfo.serviceInfo;
+
+            if (!mConfig.bindPermission.equals(info.permission)) {
+                Slog.w(TAG, "Skipping " + getCaption() + " service "
+                        + info.packageName + "/" + info.name
+                        + ": it does not require the permission "
+                        + mConfig.bindPermission);
+                continue;
+            }
+            installed.put(new ComponentName(info.packageName, info.name), info);
+        }
+
+        synchronized (mMutex) {
+            mInstalledServices.put(userId, installed);
+        }
+        return installed;
+    }
+
+    private void invalidateInstalledServices(int userId) {
+        synchronized (mMutex) {
+            if (userId == UserHandle.USER_ALL) {
+                mInstalledServices.clear();
+            } else {
+                mInstalledServices.remove(userId);
+            }
+        }
+    }
+
     /**
      * Called whenever packages change, the user switches, or the secure setting
      * is altered. (For example in response to USER_SWITCHED in our broadcast receiver)
+     *
+     * Only services whose enabled state changed are unbound or bound; services that stay
+     * enabled keep their connection unless their package is in {@code changedPackages}.
      */
-    private void rebindServices() {
-        if (DEBUG) Slog.d(TAG, "rebindServices");
+    private void rebindServices(ArraySet<String> changedPackages) {
+        if (DEBUG) Slog.d(TAG, "rebindServices changedPackages=" + changedPackages);
         final int[] userIds = mUserProfiles.getCurrentProfileIds();
         final int nUserIds = userIds.length;
 
@@ -263,13 +313,6 @@ abstract public class ManagedServices {
                 = new SparseArray<ArrayList<ComponentName>>();
 
         synchronized (mMutex) {
-            // Unbind automatically bound services, retain system services.
-            for (ManagedServiceInfo service : mServices) {
-                if (!service.isSystem) {
-                    toRemove.add(service);
-                }
-            }
-
             final ArraySet<ComponentName> newEnabled = new ArraySet<ComponentName>();
             final ArraySet<String> newPackages = new ArraySet<String>();
 
@@ -295,6 +338,24 @@ abstract public class ManagedServices {
             }
             mEnabledServicesForCurrentProfiles = newEnabled;
             mEnabledServicesPackageNames = newPackages;
+
+            // Unbind automatically bound services that are no longer enabled for their user, or
+            // whose package changed, retain system services. Whatever stays bound needn't be
+            // bound again.
+            for (ManagedServiceInfo service : mServices) {
+                if (service.isSystem) {
+                    continue;
+                }
+                final ArrayList<ComponentName> add = toAdd.get(service.userid);
+                final boolean stillEnabled = add != null && add.contains(service.component);
+                final boolean changed = changedPackages != null
+                        && changedPackages.contains(service.component.getPackageName());
+                if (!stillEnabled || changed) {
+                    toRemove.add(service);
+                } else {
+                    add.remove(service.component);
+                }
+            }
         }
 
         for (ManagedServiceInfo info : toRemove) {
@@ -358,11 +419,17 @@ abstract public class ManagedServices {
             intent.putExtra(Intent.EXTRA_CLIENT_INTENT, pendingIntent);
 
             ApplicationInfo appInfo = null;
-            try {
-                appInfo = mContext.getPackageManager().getApplicationInfo(
-                        name.getPackageName(), 0);
-            } catch (PackageManager.NameNotFoundException e) {
-                // Ignore if the package doesn't exist we won't be able to bind to the service.
+            final ArrayMap<ComponentName, ServiceInfo> installed = mInstalledServices.get(userid);
+            final ServiceInfo serviceInfo = installed != null ? installed.get(name) : null;
+            if (serviceInfo != null) {
+                appInfo = serviceInfo.applicationInfo;
+            } else {
+                try {
+                    appInfo = mContext.getPackageManager().getApplicationInfo(
+                            name.getPackageName(), 0);
+                } catch (PackageManager.NameNotFoundException e) {
+                    // Ignore if the package doesn't exist we won't be able to bind to the service.
+                }
             }
             final int targetSdkVersion =
                     appInfo != null ? appInfo.targetSdkVersion : Build.VERSION_CODES.BASE;
@@ -521,7 +588,7 @@ abstract public class ManagedServices {
             if (uri == null || mSecureSettingsUri.equals(uri)) {
                 if (DEBUG) Slog.d(TAG, "Setting changed: mSecureSettingsUri=" + mSecureSettingsUri +
                         " / uri=" + uri);
-                rebindServices();
+                rebindServices(null);
             }
         }
     }
@@ -47,7 +47,8 @@ import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPublicKey;
 
 /** @hide */
-
+@CMSystemService.Lazy(binderName = CMContextConstants.CM_PARTNER_INTERFACE,
+        feature = CMContextConstants.Features.PARTNER)
 public class PartnerInterfaceService extends CMSystemService {
 
     private static final String TAG = "CMSettingsService";
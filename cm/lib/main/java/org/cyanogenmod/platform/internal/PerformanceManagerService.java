@@ -49,6 +49,8 @@ import java.util.Objects;
 import java.util.regex.Pattern;
 
 import cyanogenmod.app.CMContextConstants;
+import cyanogenmod.hardware.CMHardwareManagerInternal;
+import cyanogenmod.hardware.ThermalListenerCallback;
 import cyanogenmod.power.IPerformanceManager;
 import cyanogenmod.power.PerformanceManagerInternal;
 import cyanogenmod.power.PerformanceProfile;
@@ -111,6 +113,9 @@ public class PerformanceManagerService extends CMSystemService {
     private int     mUserProfile         = -1;
     private int     mActiveProfile       = -1;
     private String  mCurrentActivityName = null;
+    private boolean mThermalThrottled    = false;
+
+    private CMHardwareManagerInternal mHardware;
 
     // Dumpable circular buffer for boost logging
     private final BoostLog mBoostLog = new BoostLog();
@@ -250,6 +255,12 @@ public class PerformanceManagerService extends CMSystemService {
                     mPm.registerLowPowerModeObserver(mLowPowerModeListener);
                     mContext.registerReceiver(mLocaleChangedReceiver,
                             new IntentFilter(Intent.ACTION_LOCALE_CHANGED));
+
+                    mHardware = getLocalService(CMHardwareManagerInternal.class);
+                    if (mHardware != null) {
+                        mHardware.registerThermalListener(mThermalListener);
+                        mThermalListener.onThermalChanged(mHardware.getThermalState());
+                    }
                 }
             }
         }
@@ -287,6 +298,10 @@ public class PerformanceManagerService extends CMSystemService {
             return false;
         }
 
+        // Persist what was asked for, but apply a cooler profile while the device is hot
+        final int requestedProfile = profile;
+        profile = getThermalCappedProfileLocked(profile);
+
         boolean isProfileSame = profile == mActiveProfile;
 
         if (!isProfileSame) {
@@ -313,8 +328,8 @@ public class PerformanceManagerService extends CMSystemService {
          * early if there is no work to be done.
          */
         if (fromUser) {
-            putInt(mContext.getContentResolver(), PERFORMANCE_PROFILE, profile);
-            mUserProfile = profile;
+            putInt(mContext.getContentResolver(), PERFORMANCE_PROFILE, requestedProfile);
+            mUserProfile = requestedProfile;
         }
 
         if (isProfileSame) {
@@ -337,6 +352,26 @@ public class PerformanceManagerService extends CMSystemService {
         return true;
     }
 
+    /**
+     * While the device is hot, profiles heavier than balanced are downgraded
+     * to balanced. Must call with lock held.
+     */
+    private int getThermalCappedProfileLocked(int profile) {
+        if (!mThermalThrottled || !mProfiles.containsKey(PROFILE_BALANCED)) {
+            return profile;
+        }
+        final PerformanceProfile p = mProfiles.get(profile);
+        if (p != null && p.getWeight() > WEIGHT_BALANCED) {
+            return PROFILE_BALANCED;
+        }
+        return profile;
+    }
+
+    private static boolean isThermalThrottleState(int state) {
+        return state == ThermalListenerCallback.State.STATE_WARM_RISING ||
+               state == ThermalListenerCallback.State.STATE_CRITICAL;
+    }
+
     private int getProfileForActivity(String componentName) {
         int profile = -1;
         if (componentName != null) {
@@ -479,6 +514,16 @@ public class PerformanceManagerService extends CMSystemService {
                         pw.println(" App trigger count: " + mAppProfiles.size());
                     }
                     pw.println();
+                    pw.println(" Thermal throttled: " + mThermalThrottled);
+                    if (mHardware != null) {
+                        final long[] timeInState = mHardware.getThermalTimeInState();
+                        pw.println(" Thermal time in state:");
+                        for (int i = 0; i < timeInState.length; i++) {
+                            pw.println("  " + ThermalListenerCallback.State.toString(i - 1)
+                                    + ": " + timeInState[i] + "ms");
+                        }
+                    }
+                    pw.println();
                     mBoostLog.dump(pw);
                 }
             }
@@ -526,9 +571,10 @@ public class PerformanceManagerService extends CMSystemService {
         static final int CPU_BOOST    = 1;
         static final int LAUNCH_BOOST = 2;
         static final int USER_PROFILE = 3;
+        static final int THERMAL      = 4;
 
         static final String[] EVENTS = new String[] {
-                "APP_PROFILE", "CPU_BOOST", "LAUNCH_BOOST", "USER_PROFILE" };
+                "APP_PROFILE", "CPU_BOOST", "LAUNCH_BOOST", "USER_PROFILE", "THERMAL" };
 
         private static final int LOG_BUF_SIZE = 25;
 
@@ -618,6 +664,22 @@ public class PerformanceManagerService extends CMSystemService {
                 }
             };
 
+    private final ThermalListenerCallback mThermalListener = new ThermalListenerCallback() {
+        @Override
+        public void onThermalChanged(int state) {
+            synchronized (mLock) {
+                final boolean throttled = isThermalThrottleState(state);
+                if (throttled == mThermalThrottled) {
+                    return;
+                }
+                mThermalThrottled = throttled;
+                mBoostLog.log(BoostLog.THERMAL, "state="
+                        + ThermalListenerCallback.State.toString(state));
+                applyAppProfileLocked(false);
+            }
+        }
+    };
+
     private final BroadcastReceiver mLocaleChangedReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
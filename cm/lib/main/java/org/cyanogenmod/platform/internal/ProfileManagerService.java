@@ -43,6 +43,7 @@ import android.content.IntentFilter;
 import android.content.res.XmlResourceParser;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.UserHandle;
 import android.os.IBinder;
 import android.text.TextUtils;
@@ -232,7 +233,7 @@ public class ProfileManagerService extends CMSystemService {
     public ProfileManagerService(Context context) {
         super(context);
         mContext = context;
-        mHandler = new Handler(mHandlerCallback);
+        mHandler = new Handler(Looper.getMainLooper(), mHandlerCallback);
         if (context.getPackageManager().hasSystemFeature(
                 CMContextConstants.Features.PROFILES)) {
             publishBinderService(CMContextConstants.CM_PROFILE_SERVICE, mService);
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.platform.internal;
+
+import android.content.Context;
+import android.content.res.ThemeConfig;
+import android.database.Cursor;
+import android.os.Binder;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.Slog;
+
+import cyanogenmod.providers.ThemesContract.MixnMatchColumns;
+import cyanogenmod.providers.ThemesContract.ThemesColumns;
+import cyanogenmod.themes.ThemeChangePlan;
+import cyanogenmod.themes.ThemeChangeRequest;
+import cyanogenmod.themes.ThemeChangeRequest.RequestType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares {@link ThemeChangeRequest}s against the currently applied theme so that only the
+ * components which actually change get applied.
+ */
+final class ThemeChangePlanner {
+    private static final String TAG = ThemeChangePlanner.class.getSimpleName();
+
+    // Key of the app theme ThemeConfig keeps for the global overlay
+    private static final String DEFAULT_PKG = "default";
+
+    // Components which can be changed without going through the theme engine, e.g. by setting
+    // a wallpaper or ringtone directly, so the applied theme may not reflect what is in use
+    private static final String[] ALWAYS_APPLIED_COMPONENTS = {
+        ThemesColumns.MODIFIES_LAUNCHER,
+        ThemesColumns.MODIFIES_LOCKSCREEN,
+        ThemesColumns.MODIFIES_LIVE_LOCK_SCREEN,
+        ThemesColumns.MODIFIES_RINGTONES,
+        ThemesColumns.MODIFIES_NOTIFICATIONS,
+        ThemesColumns.MODIFIES_ALARMS
+    };
+
+    private static final String[] MIXNMATCH_PROJECTION = {
+        MixnMatchColumns.COL_KEY,
+        MixnMatchColumns.COL_VALUE
+    };
+
+    private final Context mContext;
+
+    ThemeChangePlanner(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @param themeApplying Whether a theme change is still being applied, in which case the
+     * current state can't be trusted and the plan covers the whole request
+     */
+    ThemeChangePlan computePlan(ThemeChangeRequest request, boolean removePerAppThemes,
+            boolean themeApplying) {
+        final Map<String, String> components = request.getThemeComponentsMap();
+        final Map<String, String> perAppOverlays = request.getPerAppOverlays();
+
+        ThemeConfig config = null;
+        Map<String, String> mixnmatch = null;
+        if (!themeApplying && isDiffable(request.getReqeustType())) {
+            final long token = Binder.clearCallingIdentity();
+            try {
+                config = ThemeConfig.getBootTheme(mContext.getContentResolver());
+                mixnmatch = new ArrayMap<>();
+                queryMixnMatch(mixnmatch);
+            } catch (RuntimeException e) {
+                Slog.w(TAG, "Unable to read the applied theme", e);
+                config = null;
+                mixnmatch = null;
+            } finally {
+                Binder.restoreCallingIdentity(token);
+            }
+        }
+        final boolean incremental = config != null && mixnmatch != null;
+
+        List<String> changedComponents = new ArrayList<>();
+        for (Map.Entry<String, String> entry : components.entrySet()) {
+            final String component = entry.getKey();
+            if (!incremental || isAlwaysApplied(component)
+                    || !TextUtils.equals(entry.getValue(),
+                            getAppliedPackage(component, config, mixnmatch))) {
+                changedComponents.add(component);
+            }
+        }
+
+        Map<String, String> changedPerAppOverlays = new ArrayMap<>();
+        for (Map.Entry<String, String> entry : perAppOverlays.entrySet()) {
+            ThemeConfig.AppTheme appTheme = incremental
+                    ? config.getAppThemes().get(entry.getKey()) : null;
+            if (appTheme == null
+                    || !TextUtils.equals(entry.getValue(), appTheme.getOverlayPkgName())) {
+                changedPerAppOverlays.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        List<String> overlayTargets = new ArrayList<>(changedPerAppOverlays.keySet());
+        boolean removesPerAppThemes = false;
+        if (removePerAppThemes) {
+            if (incremental) {
+                for (String appPkgName : config.getAppThemes().keySet()) {
+                    if (isPerAppTheme(appPkgName) && !perAppOverlays.containsKey(appPkgName)) {
+                        removesPerAppThemes = true;
+                        overlayTargets.add(appPkgName);
+                    }
+                }
+            } else {
+                removesPerAppThemes = true;
+            }
+        }
+        if (changedComponents.contains(ThemesColumns.MODIFIES_STATUS_BAR)) {
+            overlayTargets.add(ThemeConfig.SYSTEMUI_STATUS_BAR_PKG);
+        }
+        if (changedComponents.contains(ThemesColumns.MODIFIES_NAVIGATION_BAR)) {
+            overlayTargets.add(ThemeConfig.SYSTEMUI_NAVBAR_PKG);
+        }
+
+        return new ThemeChangePlan(incremental, changedComponents, changedPerAppOverlays,
+                removesPerAppThemes,
+                changedComponents.contains(ThemesColumns.MODIFIES_OVERLAYS),
+                overlayTargets,
+                changedComponents.contains(ThemesColumns.MODIFIES_ICONS));
+    }
+
+    /**
+     * Builds the request that applies only what the plan says changes.
+     */
+    static ThemeChangeRequest buildDeltaRequest(ThemeChangeRequest request,
+            ThemeChangePlan plan) {
+        if (!plan.isIncremental()) {
+            return request;
+        }
+        ThemeChangeRequest.Builder builder = new ThemeChangeRequest.Builder();
+        final Map<String, String> components = request.getThemeComponentsMap();
+        for (String component : plan.getChangedComponents()) {
+            builder.setComponent(component, components.get(component));
+        }
+        for (Map.Entry<String, String> entry : plan.getChangedPerAppOverlays().entrySet()) {
+            builder.setAppOverlay(entry.getKey(), entry.getValue());
+        }
+        return builder.setRequestType(request.getReqeustType())
+                .setWallpaperId(request.getWallpaperId())
+                .build();
+    }
+
+    /**
+     * Updates and removals of a theme change its contents, so everything it provides needs to
+     * be applied again even if the package names match.
+     */
+    private static boolean isDiffable(RequestType type) {
+        return type == RequestType.USER_REQUEST || type == RequestType.USER_REQUEST_MIXNMATCH;
+    }
+
+    private static boolean isAlwaysApplied(String component) {
+        for (String alwaysApplied : ALWAYS_APPLIED_COMPONENTS) {
+            if (alwaysApplied.equals(component)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isPerAppTheme(String appPkgName) {
+        return !DEFAULT_PKG.equals(appPkgName)
+                && !ThemeConfig.SYSTEMUI_STATUS_BAR_PKG.equals(appPkgName)
+                && !ThemeConfig.SYSTEMUI_NAVBAR_PKG.equals(appPkgName);
+    }
+
+    /**
+     * Returns the package currently applied for the component. Components kept in the
+     * configuration are read from there, everything else from the mixnmatch table.
+     */
+    private static String getAppliedPackage(String component, ThemeConfig config,
+            Map<String, String> mixnmatch) {
+        if (ThemesColumns.MODIFIES_OVERLAYS.equals(component)) {
+            return config.getOverlayPkgName();
+        } else if (ThemesColumns.MODIFIES_STATUS_BAR.equals(component)) {
+            return config.getOverlayForStatusBar();
+        } else if (ThemesColumns.MODIFIES_NAVIGATION_BAR.equals(component)) {
+            return config.getOverlayForNavBar();
+        } else if (ThemesColumns.MODIFIES_ICONS.equals(component)) {
+            return config.getIconPackPkgName();
+        } else if (ThemesColumns.MODIFIES_FONTS.equals(component)) {
+            return config.getFontPkgName();
+        }
+        final String key = MixnMatchColumns.componentToMixNMatchKey(component);
+        return key != null ? mixnmatch.get(key) : null;
+    }
+
+    /**
+     * Fills in the applied package of each mixnmatch key.
+     */
+    private void queryMixnMatch(Map<String, String> mixnmatch) {
+        Cursor c = mContext.getContentResolver().query(MixnMatchColumns.CONTENT_URI,
+                MIXNMATCH_PROJECTION, null, null, null);
+        if (c == null) {
+            throw new IllegalStateException("Themes provider unavailable");
+        }
+        try {
+            while (c.moveToNext()) {
+                mixnmatch.put(c.getString(0), c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -19,8 +19,10 @@ package org.cyanogenmod.platform.internal;
 import android.annotation.NonNull;
 import android.content.ComponentName;
 import android.content.Context;
+import android.os.Binder;
 import android.os.FileUtils;
 import android.os.IBinder;
+import android.os.Process;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.os.SELinux;
@@ -35,12 +37,20 @@ import cyanogenmod.platform.Manifest;
 import cyanogenmod.themes.IThemeChangeListener;
 import cyanogenmod.themes.IThemeProcessingListener;
 import cyanogenmod.themes.IThemeService;
+import cyanogenmod.themes.IThemeTargetProcessingListener;
+import cyanogenmod.themes.ThemeChangePlan;
 import cyanogenmod.themes.ThemeChangeRequest;
 
 import org.cyanogenmod.internal.util.ThemeUtils;
 import org.cyanogenmod.platform.internal.common.BrokeredServiceConnection;
 
+import com.android.server.ServiceThread;
+
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static cyanogenmod.platform.Manifest.permission.ACCESS_THEME_MANAGER;
 
@@ -65,6 +75,34 @@ public class ThemeManagerServiceBroker extends BrokerableCMSystemService<IThemeS
 
     private Context mContext;
 
+    private final ServiceThread mProgressThread;
+    private final ThemeProgressBroadcaster mProgressBroadcaster;
+
+    private final ThemeChangePlanner mPlanner;
+    // Theme changes forwarded to the implementation which haven't finished yet. Requests are
+    // only compared against the applied theme while there are none.
+    private final AtomicInteger mUnfinishedChanges = new AtomicInteger();
+    private int mChangeRequests;
+    private int mNoOpChangeRequests;
+    private int mSkippedComponents;
+
+    private final ThemeTargetProcessor mTargetProcessor;
+
+    // Registered with the implementation on behalf of all change listeners, so that progress
+    // is rate limited here rather than sent to every client as it comes
+    private final IThemeChangeListener mChangeForwarder = new IThemeChangeListener.Stub() {
+        @Override
+        public void onProgress(int progress) throws RemoteException {
+            mProgressBroadcaster.onProgress(progress);
+        }
+
+        @Override
+        public void onFinish(boolean isSuccess) throws RemoteException {
+            decrementUnfinishedChanges();
+            mProgressBroadcaster.onFinish(isSuccess);
+        }
+    };
+
     private final IThemeService mServiceStubForFailure = new IThemeService.Stub() {
         @Override
         public void requestThemeChangeUpdates(IThemeChangeListener listener) throws RemoteException {
@@ -126,6 +164,29 @@ public class ThemeManagerServiceBroker extends BrokerableCMSystemService<IThemeS
         public int getLastThemeChangeRequestType() throws RemoteException {
             return 0;
         }
+
+        @Override
+        public ThemeChangePlan getThemeChangePlan(ThemeChangeRequest request,
+                boolean removePerAppThemes) throws RemoteException {
+            return null;
+        }
+
+        @Override
+        public boolean processThemeResourcesForTarget(String themePkgName,
+                String targetPkgName) throws RemoteException {
+            return false;
+        }
+
+        @Override
+        public int processThemeTargets(String themePkgName, List<String> targetPkgNames,
+                IThemeTargetProcessingListener listener) throws RemoteException {
+            return -1;
+        }
+
+        @Override
+        public boolean cancelThemeProcessing(int jobId) throws RemoteException {
+            return false;
+        }
     };
 
     private final class BinderService extends IThemeService.Stub {
@@ -134,28 +195,54 @@ public class ThemeManagerServiceBroker extends BrokerableCMSystemService<IThemeS
         public void requestThemeChangeUpdates(IThemeChangeListener listener)
                 throws RemoteException {
             enforcePermission();
-            getBrokeredService().requestThemeChangeUpdates(listener);
-            mChangeListeners.register(listener);
+            mChangeListeners.register(listener, Binder.getCallingPid());
         }
 
         @Override
         public void removeUpdates(IThemeChangeListener listener) throws RemoteException {
             enforcePermission();
-            getBrokeredService().removeUpdates(listener);
             mChangeListeners.unregister(listener);
         }
 
         @Override
-        public void requestThemeChange(ThemeChangeRequest request,
-                boolean removePerAppThemes) throws RemoteException {
+        public void requestThemeChange(final ThemeChangeRequest request,
+                final boolean removePerAppThemes) throws RemoteException {
             enforcePermission();
-            getBrokeredService().requestThemeChange(request, removePerAppThemes);
+            final ThemeChangePlan plan = computeThemeChangePlan(request, removePerAppThemes);
+            synchronized (ThemeManagerServiceBroker.this) {
+                mChangeRequests++;
+                if (plan.isNoOp()) {
+                    mNoOpChangeRequests++;
+                }
+                mSkippedComponents += request.getThemeComponentsMap().size()
+                        - plan.getChangedComponents().size();
+            }
+            if (plan.isNoOp()) {
+                // Everything requested is already applied, let the requester know right away
+                if (DEBUG) Slog.d(TAG, "Theme change request is a no-op");
+                mProgressBroadcaster.onFinishForPid(Binder.getCallingPid(), true);
+                return;
+            }
+
+            final ThemeChangeRequest delta = ThemeChangePlanner.buildDeltaRequest(request, plan);
+            if (DEBUG) Slog.d(TAG, "Applying " + plan);
+            executeThemeChange(new BrokeredCall<IThemeService>() {
+                @Override
+                public void call(IThemeService service) throws RemoteException {
+                    service.requestThemeChange(delta, removePerAppThemes);
+                }
+            });
         }
 
         @Override
         public void applyDefaultTheme() throws RemoteException {
             enforcePermission();
-            getBrokeredService().applyDefaultTheme();
+            executeThemeChange(new BrokeredCall<IThemeService>() {
+                @Override
+                public void call(IThemeService service) throws RemoteException {
+                    service.applyDefaultTheme();
+                }
+            });
         }
 
         @Override
@@ -184,24 +271,41 @@ public class ThemeManagerServiceBroker extends BrokerableCMSystemService<IThemeS
 
         @Override
         public void registerThemeProcessingListener(
-                IThemeProcessingListener listener) throws RemoteException {
+                final IThemeProcessingListener listener) throws RemoteException {
             enforcePermission();
-            getBrokeredService().registerThemeProcessingListener(listener);
+            // Recorded first, so that it is registered again with any implementation that
+            // connects later on
             mProcessingListeners.register(listener);
+            executeBrokeredCall(new BrokeredCall<IThemeService>() {
+                @Override
+                public void call(IThemeService service) throws RemoteException {
+                    service.registerThemeProcessingListener(listener);
+                }
+            });
         }
 
         @Override
         public void unregisterThemeProcessingListener(
-                IThemeProcessingListener listener) throws RemoteException {
+                final IThemeProcessingListener listener) throws RemoteException {
             enforcePermission();
-            getBrokeredService().unregisterThemeProcessingListener(listener);
             mProcessingListeners.unregister(listener);
+            executeBrokeredCall(new BrokeredCall<IThemeService>() {
+                @Override
+                public void call(IThemeService service) throws RemoteException {
+                    service.unregisterThemeProcessingListener(listener);
+                }
+            });
         }
 
         @Override
         public void rebuildResourceCache() throws RemoteException {
             enforcePermission();
-            getBrokeredService().rebuildResourceCache();
+            executeBrokeredCall(new BrokeredCall<IThemeService>() {
+                @Override
+                public void call(IThemeService service) throws RemoteException {
+                    service.rebuildResourceCache();
+                }
+            });
         }
 
         @Override
@@ -215,12 +319,77 @@ public class ThemeManagerServiceBroker extends BrokerableCMSystemService<IThemeS
             enforcePermission();
             return getBrokeredService().getLastThemeChangeRequestType();
         }
+
+        @Override
+        public ThemeChangePlan getThemeChangePlan(ThemeChangeRequest request,
+                boolean removePerAppThemes) throws RemoteException {
+            enforcePermission();
+            return computeThemeChangePlan(request, removePerAppThemes);
+        }
+
+        @Override
+        public boolean processThemeResourcesForTarget(String themePkgName,
+                String targetPkgName) throws RemoteException {
+            enforcePermission();
+            return getBrokeredService().processThemeResourcesForTarget(themePkgName,
+                    targetPkgName);
+        }
+
+        @Override
+        public int processThemeTargets(String themePkgName, List<String> targetPkgNames,
+                IThemeTargetProcessingListener listener) throws RemoteException {
+            enforcePermission();
+            return mTargetProcessor.process(themePkgName, targetPkgNames, listener);
+        }
+
+        @Override
+        public boolean cancelThemeProcessing(int jobId) throws RemoteException {
+            enforcePermission();
+            return mTargetProcessor.cancel(jobId);
+        }
+
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+            pw.println();
+            pw.println("ThemeManager Broker State:");
+            dumpBrokerState(pw);
+            pw.println();
+            pw.println("Theme change progress:");
+            mProgressBroadcaster.dump(pw);
+            pw.println();
+            pw.println("Theme change requests:");
+            synchronized (ThemeManagerServiceBroker.this) {
+                pw.println("  requests: " + mChangeRequests);
+                pw.println("  no-op requests: " + mNoOpChangeRequests);
+                pw.println("  skipped components: " + mSkippedComponents);
+            }
+            pw.println("  unfinished changes: " + mUnfinishedChanges.get());
+            pw.println();
+            pw.println("Theme target processing:");
+            mTargetProcessor.dump(pw);
+        }
     }
 
     public ThemeManagerServiceBroker(Context context) {
         super(context);
         mContext = context;
         setBrokeredServiceConnection(mServiceConnection);
+
+        mProgressThread = new ServiceThread(TAG,
+                Process.THREAD_PRIORITY_BACKGROUND, false /*allowIo*/);
+        mProgressThread.start();
+        mProgressBroadcaster = new ThemeProgressBroadcaster(mProgressThread.getLooper(),
+                mChangeListeners);
+        mPlanner = new ThemeChangePlanner(context);
+        mTargetProcessor = new ThemeTargetProcessor(context,
+                new ThemeTargetProcessor.ServiceProvider() {
+                    @Override
+                    public IThemeService getService() {
+                        return getBrokeredService();
+                    }
+                });
     }
 
     @Override
@@ -275,22 +444,16 @@ public class ThemeManagerServiceBroker extends BrokerableCMSystemService<IThemeS
     private BrokeredServiceConnection mServiceConnection = new BrokeredServiceConnection() {
         @Override
         public void onBrokeredServiceConnected() {
-            // If any change listeners are cached, register them with the newly connected
-            // service.
+            // Have the newly connected service report changes to us, we track when changes
+            // finish and pass them on to any cached change listeners.
             IThemeService themeService =
                     getBrokeredService();
             try {
-                int N = mChangeListeners.beginBroadcast();
-                if (themeService != null && N > 0) {
-                    for (int i = 0; i < N; i++) {
-                        themeService.requestThemeChangeUpdates(
-                                mChangeListeners.getBroadcastItem(i));
-                    }
+                if (themeService != null) {
+                    themeService.requestThemeChangeUpdates(mChangeForwarder);
                 }
             } catch (RemoteException e) {
                     /* ignore */
-            } finally {
-                mChangeListeners.finishBroadcast();
             }
 
             try {
@@ -310,9 +473,52 @@ public class ThemeManagerServiceBroker extends BrokerableCMSystemService<IThemeS
 
         @Override
         public void onBrokeredServiceDisconnected() {
+            // Whatever the implementation was applying is gone with it
+            mUnfinishedChanges.set(0);
         }
     };
 
+    private ThemeChangePlan computeThemeChangePlan(ThemeChangeRequest request,
+            boolean removePerAppThemes) throws RemoteException {
+        final boolean themeApplying = mUnfinishedChanges.get() > 0
+                || getBrokeredService().isThemeApplying();
+        return mPlanner.computePlan(request, removePerAppThemes, themeApplying);
+    }
+
+    /**
+     * Forward a theme change, counting it as unfinished until the implementation reports
+     * that it finished or the change never reaches it.
+     */
+    private void executeThemeChange(final BrokeredCall<IThemeService> change)
+            throws RemoteException {
+        mUnfinishedChanges.incrementAndGet();
+        executeBrokeredCall(new BrokeredCall<IThemeService>() {
+            @Override
+            public void call(IThemeService service) throws RemoteException {
+                if (service == mServiceStubForFailure) {
+                    // Nothing is going to report this change as finished
+                    decrementUnfinishedChanges();
+                    return;
+                }
+                try {
+                    change.call(service);
+                } catch (RemoteException | RuntimeException e) {
+                    decrementUnfinishedChanges();
+                    throw e;
+                }
+            }
+        });
+    }
+
+    private void decrementUnfinishedChanges() {
+        while (true) {
+            final int count = mUnfinishedChanges.get();
+            if (count == 0 || mUnfinishedChanges.compareAndSet(count, count - 1)) {
+                return;
+            }
+        }
+    }
+
     private void enforcePermission() {
         mContext.enforceCallingOrSelfPermission(ACCESS_THEME_MANAGER, null);
     }
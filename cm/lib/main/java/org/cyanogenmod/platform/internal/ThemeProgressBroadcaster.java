@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.platform.internal;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import cyanogenmod.themes.IThemeChangeListener;
+
+import java.io.PrintWriter;
+
+/**
+ * Fans theme change events out to client listeners. Progress is sent at most once every
+ * {@link #MIN_PROGRESS_INTERVAL_MS} and only with the latest value, finish events are never
+ * dropped and flush any progress still waiting to go out.
+ *
+ * Listeners are expected to be registered with the pid of their process as cookie, so that
+ * finish events which only concern one client can be sent to that client alone.
+ */
+final class ThemeProgressBroadcaster {
+    private static final long MIN_PROGRESS_INTERVAL_MS = 100;
+
+    private static final int MSG_PROGRESS = 1;
+    private static final int MSG_FINISH = 2;
+    private static final int MSG_FINISH_FOR_PID = 3;
+
+    private static final int NO_PROGRESS = -1;
+    private static final int ALL_PIDS = -1;
+
+    private final RemoteCallbackList<IThemeChangeListener> mListeners;
+    private final Handler mHandler;
+
+    // Guarded by this
+    private int mPendingProgress = NO_PROGRESS;
+    private long mLastProgressTime;
+    private int mProgressReceived;
+
+    // Only touched on the handler thread
+    private int mLastProgress = NO_PROGRESS;
+    private int mProgressBroadcasts;
+    private int mFinishBroadcasts;
+
+    ThemeProgressBroadcaster(Looper looper, RemoteCallbackList<IThemeChangeListener> listeners) {
+        mListeners = listeners;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_PROGRESS:
+                        deliverPendingProgress();
+                        break;
+                    case MSG_FINISH:
+                        removeMessages(MSG_PROGRESS);
+                        deliverPendingProgress();
+                        mLastProgress = NO_PROGRESS;
+                        deliverFinish(msg.arg1 != 0, ALL_PIDS);
+                        break;
+                    case MSG_FINISH_FOR_PID:
+                        deliverFinish(msg.arg1 != 0, msg.arg2);
+                        break;
+                }
+            }
+        };
+    }
+
+    void onProgress(int progress) {
+        synchronized (this) {
+            mProgressReceived++;
+            mPendingProgress = progress;
+            if (mHandler.hasMessages(MSG_PROGRESS)) {
+                return;
+            }
+            final long delay = mLastProgressTime + MIN_PROGRESS_INTERVAL_MS
+                    - SystemClock.uptimeMillis();
+            mHandler.sendEmptyMessageDelayed(MSG_PROGRESS, Math.max(0, delay));
+        }
+    }
+
+    void onFinish(boolean isSuccess) {
+        mHandler.obtainMessage(MSG_FINISH, isSuccess ? 1 : 0, 0).sendToTarget();
+    }
+
+    /**
+     * Sends a finish event only to the listeners registered by the given process, without
+     * affecting the progress other listeners see.
+     */
+    void onFinishForPid(int pid, boolean isSuccess) {
+        mHandler.obtainMessage(MSG_FINISH_FOR_PID, isSuccess ? 1 : 0, pid).sendToTarget();
+    }
+
+    private void deliverPendingProgress() {
+        final int progress;
+        synchronized (this) {
+            progress = mPendingProgress;
+            mPendingProgress = NO_PROGRESS;
+            mLastProgressTime = SystemClock.uptimeMillis();
+        }
+        if (progress == NO_PROGRESS || progress == mLastProgress) {
+            return;
+        }
+        mLastProgress = progress;
+        mProgressBroadcasts++;
+
+        int N = mListeners.beginBroadcast();
+        try {
+            for (int i = 0; i < N; i++) {
+                try {
+                    mListeners.getBroadcastItem(i).onProgress(progress);
+                } catch (RemoteException e) {
+                    // The RemoteCallbackList will take care of removing dead listeners
+                }
+            }
+        } finally {
+            mListeners.finishBroadcast();
+        }
+    }
+
+    private void deliverFinish(boolean isSuccess, int pid) {
+        mFinishBroadcasts++;
+
+        int N = mListeners.beginBroadcast();
+        try {
+            for (int i = 0; i < N; i++) {
+                if (pid != ALL_PIDS
+                        && !Integer.valueOf(pid).equals(mListeners.getBroadcastCookie(i))) {
+                    continue;
+                }
+                try {
+                    mListeners.getBroadcastItem(i).onFinish(isSuccess);
+                } catch (RemoteException e) {
+                    // The RemoteCallbackList will take care of removing dead listeners
+                }
+            }
+        } finally {
+            mListeners.finishBroadcast();
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (this) {
+            pw.println("  progress received: " + mProgressReceived);
+        }
+        pw.println("  progress broadcasts: " + mProgressBroadcasts);
+        pw.println("  finish broadcasts: " + mFinishBroadcasts);
+        pw.println("  listeners: " + mListeners.getRegisteredCallbackCount());
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.platform.internal;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Slog;
+import android.util.SparseArray;
+
+import cyanogenmod.themes.IThemeProcessingListener;
+import cyanogenmod.themes.IThemeService;
+import cyanogenmod.themes.IThemeTargetProcessingListener;
+import cyanogenmod.themes.ThemeManager;
+
+import org.cyanogenmod.internal.util.ThemeUtils;
+
+import libcore.io.IoUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Prepares the overlay cache of a theme for many targets at once. Targets are spread over a
+ * pool with one worker per core, each one handed to the theme service on its own, and targets
+ * whose cache was built from the same theme and target versions are skipped.
+ *
+ * Theme services which predate {@link IThemeService#processThemeResourcesForTarget} answer it
+ * with false. Until the connected service has processed a target on its own, the targets of a
+ * job are tried one at a time, and the first failure makes the job fall back to processing the
+ * whole theme through {@link IThemeService#processThemeResources}.
+ */
+final class ThemeTargetProcessor {
+    private static final String TAG = ThemeTargetProcessor.class.getSimpleName();
+
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+    private static final long THEME_PROCESSING_TIMEOUT_MS = 2 * 60 * 1000;
+    private static final long THEME_PROCESSING_POLL_MS = 500;
+
+    /**
+     * Gives access to whichever theme service implementation is connected at the time a
+     * target is processed.
+     */
+    interface ServiceProvider {
+        IThemeService getService();
+    }
+
+    private final class Job implements IBinder.DeathRecipient {
+        final int id;
+        final String themePkgName;
+        final IThemeTargetProcessingListener listener;
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final AtomicInteger remaining;
+        final AtomicInteger processed = new AtomicInteger();
+        final AtomicInteger skipped = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        boolean linkedToDeath;
+
+        Job(int id, String themePkgName, int numTargets, IThemeTargetProcessingListener listener) {
+            this.id = id;
+            this.themePkgName = themePkgName;
+            this.listener = listener;
+            this.remaining = new AtomicInteger(numTargets);
+        }
+
+        @Override
+        public void binderDied() {
+            // Nobody is left to use the results
+            cancel(id);
+        }
+    }
+
+    private final Context mContext;
+    private final ServiceProvider mServiceProvider;
+    private final ThreadPoolExecutor mExecutor;
+
+    // Guarded by this
+    private final SparseArray<Job> mJobs = new SparseArray<>();
+    private int mNextJobId = 1;
+    private int mJobsStarted;
+    private int mJobsCancelled;
+
+    private final AtomicInteger mTargetsProcessed = new AtomicInteger();
+    private final AtomicInteger mTargetsSkipped = new AtomicInteger();
+    private final AtomicInteger mTargetsFailed = new AtomicInteger();
+    private final AtomicInteger mThemeFallbacks = new AtomicInteger();
+
+    // Binder of the last service seen processing a single target
+    private volatile IBinder mPerTargetService;
+
+    ThemeTargetProcessor(Context context, ServiceProvider serviceProvider) {
+        mContext = context;
+        mServiceProvider = serviceProvider;
+
+        final int workers = Runtime.getRuntime().availableProcessors();
+        mExecutor = new ThreadPoolExecutor(workers, workers,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, TAG + "-" + mCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param targetPkgNames Targets to process, or null for every installed package
+     * @return The id of the new job, or -1 if there was nothing to process
+     */
+    int process(String themePkgName, List<String> targetPkgNames,
+            IThemeTargetProcessingListener listener) {
+        if (targetPkgNames == null) {
+            targetPkgNames = getInstalledPackages();
+        }
+        if (themePkgName == null || targetPkgNames.isEmpty()) {
+            return -1;
+        }
+
+        final Job job;
+        synchronized (this) {
+            job = new Job(mNextJobId++, themePkgName, targetPkgNames.size(), listener);
+            mJobs.put(job.id, job);
+            mJobsStarted++;
+        }
+        if (listener != null) {
+            try {
+                listener.asBinder().linkToDeath(job, 0);
+                job.linkedToDeath = true;
+            } catch (RemoteException e) {
+                // Already dead, the job is cancelled before it starts
+                job.cancelled.set(true);
+            }
+        }
+
+        final List<String> targets = new ArrayList<>(targetPkgNames);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                startJob(job, targets);
+            }
+        });
+        return job.id;
+    }
+
+    /**
+     * Stops a job from processing any target it hasn't started yet. Targets already being
+     * processed run to completion.
+     */
+    boolean cancel(int jobId) {
+        final Job job;
+        synchronized (this) {
+            job = mJobs.get(jobId);
+            if (job == null || !job.cancelled.compareAndSet(false, true)) {
+                return false;
+            }
+            mJobsCancelled++;
+        }
+        return true;
+    }
+
+    /**
+     * Fans the targets of the job out to the pool once the service is known to handle single
+     * targets, finding out on the way if need be.
+     */
+    private void startJob(final Job job, List<String> targetPkgNames) {
+        int i = 0;
+        for (; i < targetPkgNames.size() && !job.cancelled.get(); i++) {
+            final IThemeService service = mServiceProvider.getService();
+            if (service.asBinder() == mPerTargetService) {
+                break;
+            }
+            final String targetPkgName = targetPkgNames.get(i);
+            final int result = processTarget(service, job.themePkgName, targetPkgName);
+            if (result == ThemeManager.TARGET_RESULT_FAILED) {
+                processTheme(job, targetPkgNames.subList(i, targetPkgNames.size()));
+                return;
+            }
+            if (result == ThemeManager.TARGET_RESULT_PROCESSED) {
+                mPerTargetService = service.asBinder();
+            }
+            reportTarget(job, targetPkgName, result);
+        }
+
+        for (; i < targetPkgNames.size(); i++) {
+            final String targetPkgName = targetPkgNames.get(i);
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    processTarget(job, targetPkgName);
+                }
+            });
+        }
+    }
+
+    private void processTarget(Job job, String targetPkgName) {
+        if (job.cancelled.get()) {
+            finishTarget(job);
+            return;
+        }
+        final IThemeService service = mServiceProvider.getService();
+        final int result = processTarget(service, job.themePkgName, targetPkgName);
+        if (result == ThemeManager.TARGET_RESULT_PROCESSED) {
+            mPerTargetService = service.asBinder();
+        }
+        reportTarget(job, targetPkgName, result);
+    }
+
+    /**
+     * Processes the whole theme at once and reports the outcome for each of the given targets.
+     */
+    private void processTheme(Job job, List<String> targetPkgNames) {
+        mThemeFallbacks.incrementAndGet();
+        Slog.i(TAG, "Processing all of " + job.themePkgName
+                + ", the theme service didn't process a single target");
+        final boolean success = processThemeResources(job.themePkgName);
+        for (String targetPkgName : targetPkgNames) {
+            int result = ThemeManager.TARGET_RESULT_FAILED;
+            if (success) {
+                final String hash = getTargetHash(job.themePkgName, targetPkgName);
+                if (hash != null) {
+                    writeHash(job.themePkgName, targetPkgName, hash);
+                }
+                result = ThemeManager.TARGET_RESULT_PROCESSED;
+            }
+            reportTarget(job, targetPkgName, result);
+        }
+    }
+
+    private void reportTarget(Job job, String targetPkgName, int result) {
+        switch (result) {
+            case ThemeManager.TARGET_RESULT_PROCESSED:
+                job.processed.incrementAndGet();
+                mTargetsProcessed.incrementAndGet();
+                break;
+            case ThemeManager.TARGET_RESULT_SKIPPED:
+                job.skipped.incrementAndGet();
+                mTargetsSkipped.incrementAndGet();
+                break;
+            default:
+                job.failed.incrementAndGet();
+                mTargetsFailed.incrementAndGet();
+                break;
+        }
+        if (job.listener != null) {
+            try {
+                job.listener.onTargetProcessed(targetPkgName, result);
+            } catch (RemoteException e) {
+                // Handled by binderDied
+            }
+        }
+        finishTarget(job);
+    }
+
+    private void finishTarget(Job job) {
+        if (job.remaining.decrementAndGet() == 0) {
+            finishJob(job);
+        }
+    }
+
+    private int processTarget(IThemeService service, String themePkgName,
+            String targetPkgName) {
+        final String hash = getTargetHash(themePkgName, targetPkgName);
+        if (hash != null && isCacheCurrent(themePkgName, targetPkgName, hash)) {
+            return ThemeManager.TARGET_RESULT_SKIPPED;
+        }
+
+        try {
+            if (!service.processThemeResourcesForTarget(themePkgName, targetPkgName)) {
+                return ThemeManager.TARGET_RESULT_FAILED;
+            }
+        } catch (RemoteException e) {
+            Slog.w(TAG, "Unable to process " + themePkgName + " for " + targetPkgName, e);
+            return ThemeManager.TARGET_RESULT_FAILED;
+        }
+
+        if (hash != null) {
+            writeHash(themePkgName, targetPkgName, hash);
+        }
+        return ThemeManager.TARGET_RESULT_PROCESSED;
+    }
+
+    /**
+     * Has the service process the whole theme and waits for it to finish.
+     */
+    private boolean processThemeResources(final String themePkgName) {
+        final IThemeService service = mServiceProvider.getService();
+        final CountDownLatch finished = new CountDownLatch(1);
+        final IThemeProcessingListener listener = new IThemeProcessingListener.Stub() {
+            @Override
+            public void onFinishedProcessing(String pkgName) {
+                if (themePkgName.equals(pkgName)) {
+                    finished.countDown();
+                }
+            }
+        };
+
+        final long deadline = SystemClock.uptimeMillis() + THEME_PROCESSING_TIMEOUT_MS;
+        try {
+            service.registerThemeProcessingListener(listener);
+            try {
+                if (!service.processThemeResources(themePkgName)) {
+                    return false;
+                }
+                // The listener is registered by a oneway call and may not be in place before
+                // processing finishes, so the service is asked as well
+                while (service.isThemeBeingProcessed(themePkgName)) {
+                    final long timeout = deadline - SystemClock.uptimeMillis();
+                    if (timeout <= 0) {
+                        Slog.w(TAG, "Timed out processing " + themePkgName);
+                        return false;
+                    }
+                    if (finished.await(Math.min(timeout, THEME_PROCESSING_POLL_MS),
+                            TimeUnit.MILLISECONDS)) {
+                        break;
+                    }
+                }
+                return true;
+            } finally {
+                service.unregisterThemeProcessingListener(listener);
+            }
+        } catch (RemoteException e) {
+            Slog.w(TAG, "Unable to process " + themePkgName, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private void finishJob(Job job) {
+        synchronized (this) {
+            mJobs.remove(job.id);
+        }
+        if (job.listener == null) {
+            return;
+        }
+        if (job.linkedToDeath) {
+            job.listener.asBinder().unlinkToDeath(job, 0);
+        }
+        try {
+            job.listener.onJobFinished(job.processed.get(), job.skipped.get(), job.failed.get(),
+                    job.cancelled.get());
+        } catch (RemoteException e) {
+            // Client is gone, nothing to report
+        }
+    }
+
+    /**
+     * The cache of a target only has to be rebuilt when either package was updated since, so
+     * the versions and update times of both identify what it was built from.
+     */
+    private String getTargetHash(String themePkgName, String targetPkgName) {
+        final PackageManager pm = mContext.getPackageManager();
+        final long token = Binder.clearCallingIdentity();
+        try {
+            PackageInfo theme = pm.getPackageInfo(themePkgName, 0);
+            PackageInfo target = pm.getPackageInfo(targetPkgName, 0);
+            return theme.versionCode + ":" + theme.lastUpdateTime + ":"
+                    + target.versionCode + ":" + target.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            // Let the theme service decide what to do about it
+            return null;
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+    }
+
+    private static boolean isCacheCurrent(String themePkgName, String targetPkgName,
+            String hash) {
+        if (!new File(ThemeUtils.getIdmapPath(targetPkgName, themePkgName)).exists()) {
+            return false;
+        }
+        try {
+            return hash.equals(IoUtils.readFileAsString(
+                    ThemeUtils.getTargetHashPath(targetPkgName, themePkgName)));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void writeHash(String themePkgName, String targetPkgName, String hash) {
+        final File file = new File(ThemeUtils.getTargetHashPath(targetPkgName, themePkgName));
+        if (!file.getParentFile().exists()) {
+            // Nothing was cached for this target, so there is nothing to skip next time
+            return;
+        }
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(hash.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to write " + file, e);
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+    }
+
+    private List<String> getInstalledPackages() {
+        final long token = Binder.clearCallingIdentity();
+        try {
+            List<PackageInfo> packages = mContext.getPackageManager().getInstalledPackages(0);
+            List<String> pkgNames = new ArrayList<>(packages.size());
+            for (PackageInfo pi : packages) {
+                pkgNames.add(pi.packageName);
+            }
+            return pkgNames;
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (this) {
+            pw.println("  workers: " + mExecutor.getMaximumPoolSize());
+            pw.println("  jobs started: " + mJobsStarted + " cancelled: " + mJobsCancelled
+                    + " running: " + mJobs.size());
+        }
+        pw.println("  queued targets: " + mExecutor.getQueue().size());
+        pw.println("  targets processed: " + mTargetsProcessed.get()
+                + " skipped: " + mTargetsSkipped.get() + " failed: " + mTargetsFailed.get());
+        pw.println("  whole theme fallbacks: " + mThemeFallbacks.get());
+    }
+}
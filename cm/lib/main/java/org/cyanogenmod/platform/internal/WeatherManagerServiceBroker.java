@@ -19,18 +19,133 @@ package org.cyanogenmod.platform.internal;
 import android.annotation.NonNull;
 import android.content.ComponentName;
 import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.Slog;
 import cyanogenmod.app.CMContextConstants;
 import cyanogenmod.platform.Manifest;
+import cyanogenmod.providers.CMSettings;
+import cyanogenmod.weather.CMWeatherManager;
 import cyanogenmod.weather.ICMWeatherManager;
+import cyanogenmod.weather.IRequestInfoListener;
 import cyanogenmod.weather.IWeatherServiceProviderChangeListener;
 import cyanogenmod.weather.RequestInfo;
+import cyanogenmod.weather.WeatherInfo;
+import cyanogenmod.weather.WeatherLocation;
 
+import org.cyanogenmod.platform.internal.common.BrokeredServiceConnection;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@CMSystemService.Lazy(binderName = CMContextConstants.CM_WEATHER_SERVICE,
+        feature = CMContextConstants.Features.WEATHER_SERVICES)
 public class WeatherManagerServiceBroker extends BrokerableCMSystemService<ICMWeatherManager> {
 
+    private static final String TAG = WeatherManagerServiceBroker.class.getSimpleName();
+
+    // Results are served from the cache for this long before the provider is asked again
+    private static final long WEATHER_CACHE_TTL_MS = 5 * 60 * 1000;
+    private static final int MAX_CACHED_LOCATIONS = 16;
+    // A request the provider never answered stops absorbing new ones after this long
+    private static final long PENDING_REQUEST_TIMEOUT_MS = 60 * 1000;
+
     private Context mContext;
 
+    // Registered again with every implementation that connects
+    private final RemoteCallbackList<IWeatherServiceProviderChangeListener>
+            mProviderChangeListeners = new RemoteCallbackList<>();
+
+    private final Object mRequestLock = new Object();
+
+    // Weather requests forwarded to the provider, by deduplication key. Guarded by mRequestLock
+    private final ArrayMap<String, PendingRequest> mPendingRequests = new ArrayMap<>();
+
+    // Last result per deduplication key, least recently used first. Guarded by mRequestLock
+    private final LinkedHashMap<String, CachedWeather> mWeatherCache =
+            new LinkedHashMap<String, CachedWeather>(MAX_CACHED_LOCATIONS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedWeather> eldest) {
+            return size() > MAX_CACHED_LOCATIONS;
+        }
+    };
+
+    // Guarded by mRequestLock
+    private long mForwardedRequests;
+    private long mJoinedRequests;
+    private long mCacheHits;
+
+    /**
+     * A request forwarded to the provider on behalf of every client request that joined it
+     */
+    private static final class PendingRequest {
+        final String key;
+        final RequestInfo forwarded;
+        final long submitTime;
+        final ArrayList<ClientRequest> requests = new ArrayList<>();
+
+        PendingRequest(String key, RequestInfo forwarded) {
+            this.key = key;
+            this.forwarded = forwarded;
+            this.submitTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * A client request waiting on a forwarded request. It is dropped if the client dies.
+     */
+    private final class ClientRequest implements IBinder.DeathRecipient {
+        final RequestInfo info;
+        private IBinder mListener;
+
+        ClientRequest(RequestInfo info) {
+            this.info = info;
+            final IRequestInfoListener listener = info.getRequestListener();
+            if (listener != null) {
+                try {
+                    listener.asBinder().linkToDeath(this, 0);
+                    mListener = listener.asBinder();
+                } catch (RemoteException e) {
+                    // Already dead, there will be nobody to notify
+                }
+            }
+        }
+
+        void unlink() {
+            if (mListener != null) {
+                mListener.unlinkToDeath(this, 0);
+                mListener = null;
+            }
+        }
+
+        @Override
+        public void binderDied() {
+            onClientDied(this);
+        }
+    }
+
+    private static final class CachedWeather {
+        final WeatherInfo weatherInfo;
+        final long cacheTime;
+
+        CachedWeather(WeatherInfo weatherInfo) {
+            this.weatherInfo = weatherInfo;
+            this.cacheTime = SystemClock.elapsedRealtime();
+        }
+    }
+
     private static final ComponentName TARGET_IMPLEMENTATION_COMPONENT =
             new ComponentName("org.cyanogenmod.weatherservice",
                     "org.cyanogenmod.weatherservice.WeatherManagerService");
@@ -43,29 +158,56 @@ public class WeatherManagerServiceBroker extends BrokerableCMSystemService<ICMWe
     private final IBinder mService = new ICMWeatherManager.Stub() {
 
         @Override
-        public void updateWeather(RequestInfo info) throws RemoteException {
+        public void updateWeather(final RequestInfo info) throws RemoteException {
             enforcePermission();
-            getBrokeredService().updateWeather(info);
+            final RequestInfo forwarded = submitWeatherRequest(info);
+            if (forwarded == null) {
+                // Served from the cache or joined a request already in flight
+                return;
+            }
+            executeBrokeredCall(new BrokeredCall<ICMWeatherManager>() {
+                @Override
+                public void call(ICMWeatherManager service) throws RemoteException {
+                    service.updateWeather(forwarded);
+                }
+            });
         }
 
         @Override
-        public void lookupCity(RequestInfo info) throws RemoteException {
+        public void lookupCity(final RequestInfo info) throws RemoteException {
             enforcePermission();
-            getBrokeredService().lookupCity(info);
+            executeBrokeredCall(new BrokeredCall<ICMWeatherManager>() {
+                @Override
+                public void call(ICMWeatherManager service) throws RemoteException {
+                    service.lookupCity(info);
+                }
+            });
         }
 
         @Override
         public void registerWeatherServiceProviderChangeListener(
-                IWeatherServiceProviderChangeListener listener) throws RemoteException {
+                final IWeatherServiceProviderChangeListener listener) throws RemoteException {
             enforcePermission();
-            getBrokeredService().registerWeatherServiceProviderChangeListener(listener);
+            mProviderChangeListeners.register(listener);
+            executeBrokeredCall(new BrokeredCall<ICMWeatherManager>() {
+                @Override
+                public void call(ICMWeatherManager service) throws RemoteException {
+                    service.registerWeatherServiceProviderChangeListener(listener);
+                }
+            });
         }
 
         @Override
         public void unregisterWeatherServiceProviderChangeListener(
-                IWeatherServiceProviderChangeListener listener) throws RemoteException {
+                final IWeatherServiceProviderChangeListener listener) throws RemoteException {
             enforcePermission();
-            getBrokeredService().unregisterWeatherServiceProviderChangeListener(listener);
+            mProviderChangeListeners.unregister(listener);
+            executeBrokeredCall(new BrokeredCall<ICMWeatherManager>() {
+                @Override
+                public void call(ICMWeatherManager service) throws RemoteException {
+                    service.unregisterWeatherServiceProviderChangeListener(listener);
+                }
+            });
         }
 
         @Override
@@ -77,13 +219,264 @@ public class WeatherManagerServiceBroker extends BrokerableCMSystemService<ICMWe
         @Override
         public void cancelRequest(int requestId) throws RemoteException {
             enforcePermission();
-            getBrokeredService().cancelRequest(requestId);
+            final Integer forwardedId = cancelWeatherRequest(requestId);
+            if (forwardedId == null) {
+                // Other clients are still waiting on the forwarded request
+                return;
+            }
+            cancelForwardedRequest(forwardedId);
+        }
+
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+            pw.println();
+            pw.println("CMWeatherManager Broker State:");
+            dumpBrokerState(pw);
+            synchronized (mRequestLock) {
+                pw.println("  forwardedRequests=" + mForwardedRequests
+                        + " joinedRequests=" + mJoinedRequests
+                        + " cacheHits=" + mCacheHits);
+                pw.println("  pendingRequests=" + mPendingRequests.size()
+                        + " cachedLocations=" + mWeatherCache.size());
+            }
+        }
+    };
+
+    /**
+     * Receives the results of the requests forwarded to the provider and fans them out
+     */
+    private final IRequestInfoListener mForwardedRequestListener =
+            new IRequestInfoListener.Stub() {
+        @Override
+        public void onWeatherRequestCompleted(RequestInfo requestInfo, int status,
+                WeatherInfo weatherInfo) {
+            onForwardedRequestCompleted(requestInfo, status, weatherInfo);
+        }
+
+        @Override
+        public void onLookupCityRequestCompleted(RequestInfo requestInfo, int status,
+                List<WeatherLocation> weatherLocations) {
+            // Lookups are not forwarded through the broker's listener
+        }
+    };
+
+    /**
+     * Tries to serve the request from the cache or an equivalent request in flight.
+     * Returns the request to forward to the provider, or null if nothing needs to be sent.
+     */
+    private RequestInfo submitWeatherRequest(RequestInfo info) {
+        final String key = info.getDeduplicationKey();
+        if (key == null) {
+            return info;
+        }
+
+        final CachedWeather cached;
+        final RequestInfo forwarded;
+        RequestInfo superseded = null;
+        synchronized (mRequestLock) {
+            CachedWeather entry = mWeatherCache.get(key);
+            if (entry != null
+                    && SystemClock.elapsedRealtime() - entry.cacheTime > WEATHER_CACHE_TTL_MS) {
+                mWeatherCache.remove(key);
+                entry = null;
+            }
+            cached = entry;
+            if (cached == null) {
+                PendingRequest pending = mPendingRequests.get(key);
+                if (pending != null && SystemClock.elapsedRealtime() - pending.submitTime
+                        < PENDING_REQUEST_TIMEOUT_MS) {
+                    pending.requests.add(new ClientRequest(info));
+                    mJoinedRequests++;
+                    return null;
+                }
+
+                final PendingRequest retry = new PendingRequest(key,
+                        info.copyWithRequestListener(mForwardedRequestListener));
+                if (pending != null) {
+                    // The provider never answered, carry the waiting clients over
+                    Slog.w(TAG, "Request " + pending.forwarded + " timed out, retrying");
+                    retry.requests.addAll(pending.requests);
+                    superseded = pending.forwarded;
+                }
+                retry.requests.add(new ClientRequest(info));
+                mPendingRequests.put(key, retry);
+                mForwardedRequests++;
+                forwarded = retry.forwarded;
+            } else {
+                mCacheHits++;
+                forwarded = null;
+            }
+        }
+
+        if (forwarded != null) {
+            if (superseded != null) {
+                // Don't leave the provider working on a request nobody waits for anymore
+                cancelForwardedRequest(superseded.hashCode());
+            }
+            return forwarded;
+        }
+
+        // The cached info carries its own timestamp, so clients can tell how fresh it is
+        notifyRequestCompleted(info, CMWeatherManager.RequestStatus.COMPLETED,
+                cached.weatherInfo);
+        return null;
+    }
+
+    /**
+     * Removes the client request from the forwarded request it joined. Returns the id
+     * to cancel with the provider, or null if others are still waiting on the result.
+     */
+    private Integer cancelWeatherRequest(int requestId) {
+        synchronized (mRequestLock) {
+            for (int i = 0; i < mPendingRequests.size(); i++) {
+                final PendingRequest pending = mPendingRequests.valueAt(i);
+                for (int j = 0; j < pending.requests.size(); j++) {
+                    if (pending.requests.get(j).info.hashCode() != requestId) {
+                        continue;
+                    }
+                    pending.requests.remove(j).unlink();
+                    if (!pending.requests.isEmpty()) {
+                        return null;
+                    }
+                    mPendingRequests.removeAt(i);
+                    return pending.forwarded.hashCode();
+                }
+            }
+        }
+        return requestId;
+    }
+
+    private void onForwardedRequestCompleted(RequestInfo requestInfo, int status,
+            WeatherInfo weatherInfo) {
+        final PendingRequest pending;
+        synchronized (mRequestLock) {
+            final String key = requestInfo.getDeduplicationKey();
+            pending = key != null ? mPendingRequests.get(key) : null;
+            if (pending == null || !pending.forwarded.equals(requestInfo)) {
+                // Cancelled, or superseded after timing out
+                return;
+            }
+            mPendingRequests.remove(key);
+            if (status == CMWeatherManager.RequestStatus.COMPLETED && weatherInfo != null) {
+                mWeatherCache.put(key, new CachedWeather(weatherInfo));
+            }
+        }
+
+        for (ClientRequest request : pending.requests) {
+            request.unlink();
+            notifyRequestCompleted(request.info, status, weatherInfo);
+        }
+    }
+
+    private void onClientDied(ClientRequest request) {
+        Integer forwardedId = null;
+        synchronized (mRequestLock) {
+            for (int i = 0; i < mPendingRequests.size(); i++) {
+                final PendingRequest pending = mPendingRequests.valueAt(i);
+                if (!pending.requests.remove(request)) {
+                    continue;
+                }
+                if (pending.requests.isEmpty()) {
+                    mPendingRequests.removeAt(i);
+                    forwardedId = pending.forwarded.hashCode();
+                }
+                break;
+            }
+        }
+        if (forwardedId != null) {
+            // Nobody is left waiting for the result
+            cancelForwardedRequest(forwardedId);
+        }
+    }
+
+    /**
+     * Drops every cached result and fails the requests in flight, so nothing obtained from
+     * the previous provider or for the previous user is handed out.
+     */
+    private void clearRequests(String reason) {
+        final ArrayList<PendingRequest> pendingRequests;
+        synchronized (mRequestLock) {
+            if (mPendingRequests.isEmpty() && mWeatherCache.isEmpty()) {
+                return;
+            }
+            Slog.i(TAG, "Clearing weather requests, " + reason);
+            pendingRequests = new ArrayList<>(mPendingRequests.values());
+            mPendingRequests.clear();
+            mWeatherCache.clear();
+        }
+        for (PendingRequest pending : pendingRequests) {
+            cancelForwardedRequest(pending.forwarded.hashCode());
+            for (ClientRequest request : pending.requests) {
+                request.unlink();
+                notifyRequestCompleted(request.info, CMWeatherManager.RequestStatus.FAILED,
+                        null);
+            }
+        }
+    }
+
+    private void cancelForwardedRequest(final int forwardedId) {
+        try {
+            executeBrokeredCall(new BrokeredCall<ICMWeatherManager>() {
+                @Override
+                public void call(ICMWeatherManager service) throws RemoteException {
+                    service.cancelRequest(forwardedId);
+                }
+            });
+        } catch (RemoteException e) {
+            Slog.w(TAG, "Unable to cancel request " + forwardedId, e);
+        }
+    }
+
+    private final ContentObserver mProviderObserver =
+            new ContentObserver(new Handler(Looper.getMainLooper())) {
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            clearRequests("weather provider changed");
+        }
+    };
+
+    private void notifyRequestCompleted(RequestInfo info, int status, WeatherInfo weatherInfo) {
+        if (weatherInfo != null) {
+            // Clients built against an older SDK can't read the forecast columns
+            weatherInfo = weatherInfo.forParcelVersion(info.getParcelVersion());
+        }
+        try {
+            info.getRequestListener().onWeatherRequestCompleted(info, status, weatherInfo);
+        } catch (RemoteException e) {
+            // The client went away
+        }
+    }
+
+    private final BrokeredServiceConnection mServiceConnection =
+            new BrokeredServiceConnection() {
+        @Override
+        public void onBrokeredServiceConnected() {
+            // Registrations made while disconnected only reached the default implementation
+            final ICMWeatherManager service = getBrokeredService();
+            final int N = mProviderChangeListeners.beginBroadcast();
+            try {
+                for (int i = 0; i < N; i++) {
+                    service.registerWeatherServiceProviderChangeListener(
+                            mProviderChangeListeners.getBroadcastItem(i));
+                }
+            } catch (RemoteException e) {
+                /* ignore */
+            } finally {
+                mProviderChangeListeners.finishBroadcast();
+            }
+        }
+
+        @Override
+        public void onBrokeredServiceDisconnected() {
         }
     };
 
     public WeatherManagerServiceBroker(Context context) {
         super(context);
         mContext = context;
+        setBrokeredServiceConnection(mServiceConnection);
     }
 
     @Override
@@ -97,6 +490,11 @@ public class WeatherManagerServiceBroker extends BrokerableCMSystemService<ICMWe
         tryConnecting();
     }
 
+    @Override
+    public void onSwitchUser(int userHandle) {
+        clearRequests("switched to user " + userHandle);
+    }
+
     @Override
     public String getFeatureDeclaration() {
         return CMContextConstants.Features.WEATHER_SERVICES;
@@ -105,6 +503,9 @@ public class WeatherManagerServiceBroker extends BrokerableCMSystemService<ICMWe
     @Override
     public void onStart() {
         publishBinderService(CMContextConstants.CM_WEATHER_SERVICE, mService);
+        mContext.getContentResolver().registerContentObserver(
+                CMSettings.Secure.getUriFor(CMSettings.Secure.WEATHER_PROVIDER_SERVICE),
+                false, mProviderObserver, UserHandle.USER_ALL);
     }
 
     @Override
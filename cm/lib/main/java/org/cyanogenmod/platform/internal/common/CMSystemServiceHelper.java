@@ -33,15 +33,30 @@ public class CMSystemServiceHelper {
     }
 
     public CMSystemService getServiceFor(String className) {
-        final Class<CMSystemService> serviceClass;
+        return getServiceFromClass(getServiceClassFor(className));
+    }
+
+    public Class<? extends CMSystemService> getServiceClassFor(String className) {
+        final Class<?> serviceClass;
         try {
-            serviceClass = (Class<CMSystemService>)Class.forName(className);
+            serviceClass = Class.forName(className);
         } catch (ClassNotFoundException ex) {
             throw new RuntimeException("Failed to create service " + className
                     + ": service class not found", ex);
         }
+        if (!CMSystemService.class.isAssignableFrom(serviceClass)) {
+            throw new RuntimeException("Failed to create service " + className
+                    + ": service must extend " + CMSystemService.class.getName());
+        }
+        return serviceClass.asSubclass(CMSystemService.class);
+    }
 
-        return getServiceFromClass(serviceClass);
+    /**
+     * Returns the {@link CMSystemService.Lazy} declaration of the service, if any.
+     */
+    public CMSystemService.Lazy getLazyDeclarationFor(
+            Class<? extends CMSystemService> serviceClass) {
+        return serviceClass.getAnnotation(CMSystemService.Lazy.class);
     }
 
     public <T extends CMSystemService> T getServiceFromClass(Class<T> serviceClass) {
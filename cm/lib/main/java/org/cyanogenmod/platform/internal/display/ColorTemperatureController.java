@@ -41,6 +41,11 @@ import static cyanogenmod.hardware.LiveDisplayManager.MODE_DAY;
 import static cyanogenmod.hardware.LiveDisplayManager.MODE_NIGHT;
 import static cyanogenmod.hardware.LiveDisplayManager.MODE_OFF;
 
+import static org.cyanogenmod.platform.internal.display.LiveDisplayService.DISPLAY_CHANGED;
+import static org.cyanogenmod.platform.internal.display.LiveDisplayService.LOW_POWER_CHANGED;
+import static org.cyanogenmod.platform.internal.display.LiveDisplayService.MODE_CHANGED;
+import static org.cyanogenmod.platform.internal.display.LiveDisplayService.TWILIGHT_CHANGED;
+
 public class ColorTemperatureController extends LiveDisplayFeature {
 
     private final DisplayHardwareController mDisplayHardware;
@@ -111,6 +116,11 @@ public class ColorTemperatureController extends LiveDisplayFeature {
         registerSettings(DISPLAY_TEMPERATURE_DAY, DISPLAY_TEMPERATURE_NIGHT);
     }
 
+    @Override
+    public int getUpdateFlags() {
+        return MODE_CHANGED | DISPLAY_CHANGED | TWILIGHT_CHANGED | LOW_POWER_CHANGED;
+    }
+
     @Override
     public boolean getCapabilities(final BitSet caps) {
         if (mUseTemperatureAdjustment) {
@@ -265,7 +275,10 @@ public class ColorTemperatureController extends LiveDisplayFeature {
             return;
         }
 
-        mColorTemperature = temperature;
+        if (mColorTemperature != temperature) {
+            mColorTemperature = temperature;
+            notifyStateChanged();
+        }
 
         if (mUseColorBalance) {
             int balance = mapColorTemperatureToBalance(temperature);
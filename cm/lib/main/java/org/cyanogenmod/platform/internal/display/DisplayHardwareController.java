@@ -38,6 +38,10 @@ import cyanogenmod.hardware.CMHardwareManager;
 import cyanogenmod.hardware.LiveDisplayManager;
 import cyanogenmod.providers.CMSettings;
 
+import static org.cyanogenmod.platform.internal.display.LiveDisplayService.DISPLAY_CHANGED;
+import static org.cyanogenmod.platform.internal.display.LiveDisplayService.LOW_POWER_CHANGED;
+import static org.cyanogenmod.platform.internal.display.LiveDisplayService.MODE_CHANGED;
+
 public class DisplayHardwareController extends LiveDisplayFeature {
 
     private final CMHardwareManager mHardware;
@@ -129,6 +133,11 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         registerSettings(settings.toArray(new Uri[settings.size()]));
     }
 
+    @Override
+    public int getUpdateFlags() {
+        return MODE_CHANGED | DISPLAY_CHANGED | LOW_POWER_CHANGED;
+    }
+
     @Override
     public boolean getCapabilities(final BitSet caps) {
         if (mUseAutoContrast) {
@@ -19,6 +19,7 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.Log;
 
@@ -28,11 +29,13 @@ import org.cyanogenmod.platform.internal.display.TwilightTracker.TwilightState;
 
 import java.io.PrintWriter;
 import java.util.BitSet;
+import java.util.Locale;
 
 import cyanogenmod.providers.CMSettings;
 
 import static org.cyanogenmod.platform.internal.display.LiveDisplayService.ALL_CHANGED;
 import static org.cyanogenmod.platform.internal.display.LiveDisplayService.DISPLAY_CHANGED;
+import static org.cyanogenmod.platform.internal.display.LiveDisplayService.LOW_POWER_CHANGED;
 import static org.cyanogenmod.platform.internal.display.LiveDisplayService.MODE_CHANGED;
 import static org.cyanogenmod.platform.internal.display.LiveDisplayService.TWILIGHT_CHANGED;
 
@@ -46,6 +49,12 @@ public abstract class LiveDisplayFeature {
 
     private SettingsObserver mSettingsObserver;
     private State mState;
+    private Runnable mStateChangedCallback;
+
+    // update statistics, only touched from the handler thread
+    private int mUpdateCount;
+    private long mUpdateTimeTotalNs;
+    private long mUpdateTimeMaxNs;
 
     public LiveDisplayFeature(Context context, Handler handler) {
         mContext = context;
@@ -60,9 +69,26 @@ public abstract class LiveDisplayFeature {
 
     public abstract boolean getCapabilities(final BitSet caps);
 
+    /**
+     * Returns the state change flags (MODE_CHANGED, DISPLAY_CHANGED,
+     * TWILIGHT_CHANGED, LOW_POWER_CHANGED) this feature needs to see.
+     * The service will not call into the feature for any other changes.
+     */
+    public abstract int getUpdateFlags();
+
     protected abstract void onUpdate();
 
+    /**
+     * Returns the part of the given change flags this feature needs to see, or
+     * ALL_CHANGED unchanged so the feature still does its initial full update.
+     */
+    int getUpdateFlags(final int flags) {
+        return flags == ALL_CHANGED ? ALL_CHANGED : flags & getUpdateFlags();
+    }
+
     void update(final int flags, final State state) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+
         mState = state;
         if ((flags & DISPLAY_CHANGED) != 0) {
             onScreenStateChanged();
@@ -70,12 +96,39 @@ public abstract class LiveDisplayFeature {
         if (((flags & TWILIGHT_CHANGED) != 0) && mState.mTwilight != null) {
             onTwilightUpdated();
         }
-        if ((flags & MODE_CHANGED) != 0) {
+        if ((flags & (MODE_CHANGED | LOW_POWER_CHANGED)) != 0) {
             onUpdate();
         }
         if (flags == ALL_CHANGED) {
             onSettingsChanged(null);
         }
+
+        final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        mUpdateCount++;
+        mUpdateTimeTotalNs += elapsed;
+        if (elapsed > mUpdateTimeMaxNs) {
+            mUpdateTimeMaxNs = elapsed;
+        }
+    }
+
+    void dumpUpdateStats(PrintWriter pw) {
+        pw.println(String.format(Locale.US, "  %s: flags=0x%x updates=%d avg=%dus max=%dus",
+                getClass().getSimpleName(), getUpdateFlags(), mUpdateCount,
+                mUpdateCount == 0 ? 0 : mUpdateTimeTotalNs / mUpdateCount / 1000,
+                mUpdateTimeMaxNs / 1000));
+    }
+
+    void setStateChangedCallback(Runnable callback) {
+        mStateChangedCallback = callback;
+    }
+
+    /**
+     * Lets the service know that values reported to clients may have changed
+     */
+    protected final void notifyStateChanged() {
+        if (mStateChangedCallback != null) {
+            mStateChangedCallback.run();
+        }
     }
 
     void start() {
@@ -170,11 +223,13 @@ public abstract class LiveDisplayFeature {
         @Override
         protected void update() {
             onSettingsChanged(null);
+            notifyStateChanged();
         }
 
         @Override
         public void onChange(boolean selfChange, Uri uri) {
             onSettingsChanged(uri);
+            notifyStateChanged();
         }
     }
 
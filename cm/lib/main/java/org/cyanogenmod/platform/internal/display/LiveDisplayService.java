@@ -32,6 +32,8 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManagerInternal;
 import android.os.Process;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
 import android.os.UserHandle;
 import android.view.Display;
 
@@ -60,7 +62,9 @@ import cyanogenmod.app.CMStatusBarManager;
 import cyanogenmod.app.CustomTile;
 import cyanogenmod.hardware.HSIC;
 import cyanogenmod.hardware.ILiveDisplayService;
+import cyanogenmod.hardware.ILiveDisplayStateListener;
 import cyanogenmod.hardware.LiveDisplayConfig;
+import cyanogenmod.hardware.LiveDisplayState;
 import cyanogenmod.providers.CMSettings;
 
 import static cyanogenmod.hardware.LiveDisplayManager.FEATURE_MANAGED_OUTDOOR_MODE;
@@ -115,8 +119,15 @@ public class LiveDisplayService extends CMSystemService {
     static int MODE_CHANGED = 1;
     static int DISPLAY_CHANGED = 2;
     static int TWILIGHT_CHANGED = 4;
+    static int LOW_POWER_CHANGED = 8;
     static int ALL_CHANGED = 255;
 
+    // Pending change flags, coalesced until the handler runs the update pass
+    private final Object mUpdateLock = new Object();
+    private int mPendingFlags = 0;
+    private int mUpdateRequests = 0;
+    private int mUpdatePasses = 0;
+
     static class State {
         public boolean mLowPowerMode = false;
         public boolean mScreenOn = false;
@@ -134,6 +145,13 @@ public class LiveDisplayService extends CMSystemService {
 
     private final State mState = new State();
 
+    // Versioned state snapshots pushed to LiveDisplayManager clients
+    private final RemoteCallbackList<ILiveDisplayStateListener> mStateListeners =
+            new RemoteCallbackList<ILiveDisplayStateListener>();
+    private final Object mStateLock = new Object();
+    private int mStateVersion = 0;
+    private boolean mStateNotifyPending = false;
+
     public LiveDisplayService(Context context) {
         super(context);
 
@@ -228,6 +246,7 @@ public class LiveDisplayService extends CMSystemService {
 
             // start and update all features
             for (int i = 0; i < mFeatures.size(); i++) {
+                mFeatures.get(i).setStateChangedCallback(mStateChangedCallback);
                 mFeatures.get(i).start();
             }
 
@@ -236,14 +255,87 @@ public class LiveDisplayService extends CMSystemService {
     }
 
     private void updateFeatures(final int flags) {
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                for (int i = 0; i < mFeatures.size(); i++) {
-                    mFeatures.get(i).update(flags, mState);
+        synchronized (mUpdateLock) {
+            mUpdateRequests++;
+            final boolean pending = mPendingFlags != 0;
+            mPendingFlags |= flags;
+            if (pending) {
+                return;
+            }
+        }
+        mHandler.post(mUpdateRunnable);
+    }
+
+    private final Runnable mUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final int flags;
+            synchronized (mUpdateLock) {
+                flags = mPendingFlags;
+                mPendingFlags = 0;
+                mUpdatePasses++;
+            }
+            for (int i = 0; i < mFeatures.size(); i++) {
+                final LiveDisplayFeature feature = mFeatures.get(i);
+                final int featureFlags = feature.getUpdateFlags(flags);
+                if (featureFlags != 0) {
+                    feature.update(featureFlags, mState);
                 }
             }
-        });
+        }
+    };
+
+    private final Runnable mStateChangedCallback = new Runnable() {
+        @Override
+        public void run() {
+            notifyStateChanged();
+        }
+    };
+
+    private void notifyStateChanged() {
+        synchronized (mStateLock) {
+            mStateVersion++;
+            if (mStateNotifyPending) {
+                return;
+            }
+            mStateNotifyPending = true;
+        }
+        mHandler.post(mStateNotifyRunnable);
+    }
+
+    private final Runnable mStateNotifyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mStateLock) {
+                mStateNotifyPending = false;
+            }
+            final LiveDisplayState state = buildState();
+            int i = mStateListeners.beginBroadcast();
+            while (i > 0) {
+                i--;
+                try {
+                    mStateListeners.getBroadcastItem(i).onStateChanged(state);
+                } catch (RemoteException e) {
+                    // The RemoteCallbackList will take care of removing
+                    // the dead object for us.
+                }
+            }
+            mStateListeners.finishBroadcast();
+        }
+    };
+
+    private LiveDisplayState buildState() {
+        final int version;
+        synchronized (mStateLock) {
+            version = mStateVersion;
+        }
+        return new LiveDisplayState(version,
+                mConfig.hasModeSupport() ? mModeObserver.getMode() : MODE_OFF,
+                mCTC.getColorTemperature(), mCTC.getDayColorTemperature(),
+                mCTC.getNightColorTemperature(), mDHC.isAutoContrastEnabled(),
+                mOMC.isAutomaticOutdoorModeEnabled(), mDHC.isCABCEnabled(),
+                mDHC.isColorEnhancementEnabled(), mDHC.getColorAdjustment(),
+                mPAC.getPictureAdjustment());
     }
 
     private void updateCustomTileEntries() {
@@ -486,6 +578,21 @@ public class LiveDisplayService extends CMSystemService {
         @Override
         public HSIC getDefaultPictureAdjustment() { return mPAC.getDefaultPictureAdjustment(); }
 
+        @Override
+        public LiveDisplayState getState() {
+            return buildState();
+        }
+
+        @Override
+        public boolean registerStateListener(ILiveDisplayStateListener listener) {
+            return listener != null && mStateListeners.register(listener);
+        }
+
+        @Override
+        public boolean unregisterStateListener(ILiveDisplayStateListener listener) {
+            return listener != null && mStateListeners.unregister(listener);
+        }
+
         @Override
         public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
             mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
@@ -496,6 +603,19 @@ public class LiveDisplayService extends CMSystemService {
             pw.println("  mConfig=" + mConfig.toString());
             pw.println("  mAwaitingNudge=" + mAwaitingNudge);
 
+            pw.println();
+            pw.println("LiveDisplay Update Statistics:");
+            synchronized (mUpdateLock) {
+                pw.println("  requests=" + mUpdateRequests + " passes=" + mUpdatePasses);
+            }
+            synchronized (mStateLock) {
+                pw.println("  stateVersion=" + mStateVersion + " stateListeners="
+                        + mStateListeners.getRegisteredCallbackCount());
+            }
+            for (int i = 0; i < mFeatures.size(); i++) {
+                mFeatures.get(i).dumpUpdateStats(pw);
+            }
+
             for (int i = 0; i < mFeatures.size(); i++) {
                 mFeatures.get(i).dump(pw);
             }
@@ -533,7 +653,7 @@ public class LiveDisplayService extends CMSystemService {
         public void onLowPowerModeChanged(boolean lowPowerMode) {
             if (lowPowerMode != mState.mLowPowerMode) {
                 mState.mLowPowerMode = lowPowerMode;
-                updateFeatures(MODE_CHANGED);
+                updateFeatures(LOW_POWER_CHANGED);
             }
          }
     };
@@ -560,6 +680,7 @@ public class LiveDisplayService extends CMSystemService {
                 mState.mMode = mode;
 
                 updateFeatures(MODE_CHANGED);
+                notifyStateChanged();
                 publishCustomTile();
             }
         }
@@ -18,6 +18,10 @@ package org.cyanogenmod.platform.internal.display;
 import static cyanogenmod.hardware.LiveDisplayManager.MODE_AUTO;
 import static cyanogenmod.hardware.LiveDisplayManager.MODE_DAY;
 import static cyanogenmod.hardware.LiveDisplayManager.MODE_OUTDOOR;
+import static org.cyanogenmod.platform.internal.display.LiveDisplayService.DISPLAY_CHANGED;
+import static org.cyanogenmod.platform.internal.display.LiveDisplayService.LOW_POWER_CHANGED;
+import static org.cyanogenmod.platform.internal.display.LiveDisplayService.MODE_CHANGED;
+import static org.cyanogenmod.platform.internal.display.LiveDisplayService.TWILIGHT_CHANGED;
 
 import android.content.Context;
 import android.net.Uri;
@@ -81,6 +85,11 @@ public class OutdoorModeController extends LiveDisplayFeature {
                 CMSettings.System.getUriFor(CMSettings.System.DISPLAY_AUTO_OUTDOOR_MODE));
     }
 
+    @Override
+    public int getUpdateFlags() {
+        return MODE_CHANGED | DISPLAY_CHANGED | TWILIGHT_CHANGED | LOW_POWER_CHANGED;
+    }
+
     @Override
     public boolean getCapabilities(final BitSet caps) {
         if (mUseOutdoorMode) {
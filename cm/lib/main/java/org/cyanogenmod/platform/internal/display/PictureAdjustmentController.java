@@ -35,6 +35,8 @@ import cyanogenmod.hardware.HSIC;
 import cyanogenmod.hardware.LiveDisplayManager;
 import cyanogenmod.providers.CMSettings;
 
+import static org.cyanogenmod.platform.internal.display.LiveDisplayService.MODE_CHANGED;
+
 public class PictureAdjustmentController extends LiveDisplayFeature {
 
     private static final String TAG = "LiveDisplay-PAC";
@@ -117,6 +119,11 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
     }
 
 
+    @Override
+    public int getUpdateFlags() {
+        return MODE_CHANGED;
+    }
+
     @Override
     public boolean getCapabilities(BitSet caps) {
         if (mUsePictureAdjustment) {
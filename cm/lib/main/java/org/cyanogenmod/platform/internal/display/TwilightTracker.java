@@ -28,6 +28,7 @@ import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
 import android.os.SystemClock;
 import android.text.format.DateUtils;
@@ -69,7 +70,7 @@ public final class TwilightTracker {
         mAlarmManager = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
         mLocationManager = (LocationManager) mContext.getSystemService(
                 Context.LOCATION_SERVICE);
-        mLocationHandler = new LocationHandler();
+        mLocationHandler = new LocationHandler(Looper.getMainLooper());
 
         IntentFilter filter = new IntentFilter(Intent.ACTION_AIRPLANE_MODE_CHANGED);
         filter.addAction(Intent.ACTION_TIME_CHANGED);
@@ -171,6 +172,10 @@ public final class TwilightTracker {
         private Location mLocation;
         private final TwilightCalculator mTwilightCalculator = new TwilightCalculator();
 
+        LocationHandler(Looper looper) {
+            super(looper);
+        }
+
         public void processNewLocation(Location location) {
             Message msg = obtainMessage(MSG_PROCESS_NEW_LOCATION, location);
             sendMessage(msg);
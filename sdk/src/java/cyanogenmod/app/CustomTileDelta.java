@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cyanogenmod.app;
+
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import cyanogenmod.os.Build;
+import cyanogenmod.os.Concierge;
+import cyanogenmod.os.Concierge.ParcelInfo;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The set of {@link CustomTile} fields that changed between two posts of the same tile,
+ * sent to {@link CustomTileListenerService} clients in place of a full
+ * {@link StatusBarPanelCustomTile} when only lightweight fields were touched.
+ * @hide
+ */
+public class CustomTileDelta implements Parcelable {
+
+    public static final int FIELD_ON_CLICK = 1 << 0;
+    public static final int FIELD_ON_LONG_CLICK = 1 << 1;
+    public static final int FIELD_ON_SETTINGS_CLICK = 1 << 2;
+    public static final int FIELD_ON_CLICK_URI = 1 << 3;
+    public static final int FIELD_LABEL = 1 << 4;
+    public static final int FIELD_CONTENT_DESCRIPTION = 1 << 5;
+    public static final int FIELD_ICON = 1 << 6;
+    public static final int FIELD_COLLAPSE_PANEL = 1 << 7;
+    public static final int FIELD_DELETE_INTENT = 1 << 8;
+    public static final int FIELD_SENSITIVE_DATA = 1 << 9;
+    public static final int FIELD_REMOTE_ICON = 1 << 10;
+    public static final int FIELD_EXPANDED_STYLE = 1 << 11;
+
+    /**
+     * Fields whose payload is too large to be worth carrying in a delta; a change to any
+     * of these is always delivered as a full {@link StatusBarPanelCustomTile}.
+     */
+    public static final int HEAVY_FIELDS = FIELD_REMOTE_ICON | FIELD_EXPANDED_STYLE;
+
+    private final String mKey;
+    private final int mChangedFields;
+    private final long mPostTime;
+    private final int mInitialPid;
+
+    private PendingIntent mOnClick;
+    private PendingIntent mOnLongClick;
+    private Intent mOnSettingsClick;
+    private Uri mOnClickUri;
+    private String mLabel;
+    private String mContentDescription;
+    private int mIcon;
+    private boolean mCollapsePanel;
+    private PendingIntent mDeleteIntent;
+    private boolean mSensitiveData;
+
+    private CustomTileDelta(StatusBarPanelCustomTile sbc, int changedFields) {
+        final CustomTile tile = sbc.getCustomTile();
+        mKey = sbc.getKey();
+        mChangedFields = changedFields;
+        mPostTime = sbc.getPostTime();
+        mInitialPid = sbc.getInitialPid();
+        mOnClick = tile.onClick;
+        mOnLongClick = tile.onLongClick;
+        mOnSettingsClick = tile.onSettingsClick;
+        mOnClickUri = tile.onClickUri;
+        mLabel = tile.label;
+        mContentDescription = tile.contentDescription;
+        mIcon = tile.icon;
+        mCollapsePanel = tile.collapsePanel;
+        mDeleteIntent = tile.deleteIntent;
+        mSensitiveData = tile.sensitiveData;
+    }
+
+    private CustomTileDelta(Parcel in) {
+        // Read parcelable version via the Concierge
+        ParcelInfo parcelInfo = Concierge.receiveParcel(in);
+        int parcelableVersion = parcelInfo.getParcelVersion();
+
+        String tmpKey = null;
+        int tmpChangedFields = 0;
+        long tmpPostTime = -1;
+        int tmpInitialPid = -1;
+
+        if (parcelableVersion >= Build.CM_VERSION_CODES.GUAVA) {
+            tmpKey = in.readString();
+            tmpChangedFields = in.readInt();
+            tmpPostTime = in.readLong();
+            tmpInitialPid = in.readInt();
+            if ((tmpChangedFields & FIELD_ON_CLICK) != 0 && in.readInt() != 0) {
+                mOnClick = PendingIntent.CREATOR.createFromParcel(in);
+            }
+            if ((tmpChangedFields & FIELD_ON_LONG_CLICK) != 0 && in.readInt() != 0) {
+                mOnLongClick = PendingIntent.CREATOR.createFromParcel(in);
+            }
+            if ((tmpChangedFields & FIELD_ON_SETTINGS_CLICK) != 0 && in.readInt() != 0) {
+                mOnSettingsClick = Intent.CREATOR.createFromParcel(in);
+            }
+            if ((tmpChangedFields & FIELD_ON_CLICK_URI) != 0 && in.readInt() != 0) {
+                mOnClickUri = Uri.CREATOR.createFromParcel(in);
+            }
+            if ((tmpChangedFields & FIELD_LABEL) != 0) {
+                mLabel = in.readString();
+            }
+            if ((tmpChangedFields & FIELD_CONTENT_DESCRIPTION) != 0) {
+                mContentDescription = in.readString();
+            }
+            if ((tmpChangedFields & FIELD_ICON) != 0) {
+                mIcon = in.readInt();
+            }
+            if ((tmpChangedFields & FIELD_COLLAPSE_PANEL) != 0) {
+                mCollapsePanel = in.readInt() == 1;
+            }
+            if ((tmpChangedFields & FIELD_DELETE_INTENT) != 0 && in.readInt() != 0) {
+                mDeleteIntent = PendingIntent.CREATOR.createFromParcel(in);
+            }
+            if ((tmpChangedFields & FIELD_SENSITIVE_DATA) != 0) {
+                mSensitiveData = in.readInt() == 1;
+            }
+        }
+
+        mKey = tmpKey;
+        mChangedFields = tmpChangedFields;
+        mPostTime = tmpPostTime;
+        mInitialPid = tmpInitialPid;
+
+        // Complete parcel info for the concierge
+        parcelInfo.complete();
+    }
+
+    /**
+     * Compute the delta between two posts of the same tile.
+     *
+     * @return the delta, or null if the two records don't describe the same tile or
+     *         differ in ways that can't be expressed as a delta
+     */
+    public static CustomTileDelta compute(StatusBarPanelCustomTile oldSbc,
+            StatusBarPanelCustomTile newSbc) {
+        if (oldSbc == null || newSbc == null
+                || !oldSbc.getKey().equals(newSbc.getKey())
+                || !Objects.equals(oldSbc.getResPkg(), newSbc.getResPkg())
+                || !Objects.equals(oldSbc.getOpPkg(), newSbc.getOpPkg())) {
+            return null;
+        }
+        final CustomTile a = oldSbc.getCustomTile();
+        final CustomTile b = newSbc.getCustomTile();
+        if (!Objects.equals(a.getResourcesPackageName(), b.getResourcesPackageName())) {
+            return null;
+        }
+
+        int changed = 0;
+        if (!Objects.equals(a.onClick, b.onClick)) changed |= FIELD_ON_CLICK;
+        if (!Objects.equals(a.onLongClick, b.onLongClick)) changed |= FIELD_ON_LONG_CLICK;
+        if (!sameIntent(a.onSettingsClick, b.onSettingsClick)) changed |= FIELD_ON_SETTINGS_CLICK;
+        if (!Objects.equals(a.onClickUri, b.onClickUri)) changed |= FIELD_ON_CLICK_URI;
+        if (!Objects.equals(a.label, b.label)) changed |= FIELD_LABEL;
+        if (!Objects.equals(a.contentDescription, b.contentDescription)) {
+            changed |= FIELD_CONTENT_DESCRIPTION;
+        }
+        if (a.icon != b.icon) changed |= FIELD_ICON;
+        if (a.collapsePanel != b.collapsePanel) changed |= FIELD_COLLAPSE_PANEL;
+        if (!Objects.equals(a.deleteIntent, b.deleteIntent)) changed |= FIELD_DELETE_INTENT;
+        if (a.sensitiveData != b.sensitiveData) changed |= FIELD_SENSITIVE_DATA;
+        if (!sameIcon(a.remoteIcon, b.remoteIcon)) changed |= FIELD_REMOTE_ICON;
+        if (!sameExpandedStyle(a.expandedStyle, b.expandedStyle)) {
+            changed |= FIELD_EXPANDED_STYLE;
+        }
+        return new CustomTileDelta(newSbc, changed);
+    }
+
+    /**
+     * Hash of the pixel content of an icon, used to recognize a re-posted bitmap that
+     * didn't actually change.
+     */
+    public static int computeIconHash(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return 0;
+        }
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int[] row = new int[width];
+        int hash = 31 * width + height;
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            hash = 31 * hash + Arrays.hashCode(row);
+        }
+        return hash;
+    }
+
+    /**
+     * Whether two icons have the same content.
+     */
+    public static boolean sameIcon(Bitmap a, Bitmap b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null || a.isRecycled() || b.isRecycled()) {
+            return false;
+        }
+        return a.sameAs(b);
+    }
+
+    private static boolean sameIntent(Intent a, Intent b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return false;
+        }
+        // Extras can't be compared cheaply, so only extra-less intents are considered equal
+        return a.filterEquals(b) && a.getFlags() == b.getFlags()
+                && a.getExtras() == null && b.getExtras() == null;
+    }
+
+    private static boolean sameExpandedStyle(CustomTile.ExpandedStyle a,
+            CustomTile.ExpandedStyle b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null || a.getStyle() != b.getStyle()) {
+            return false;
+        }
+        // RemoteViews don't have value semantics, any new instance counts as a change
+        if (a.getContentViews() != b.getContentViews()) {
+            return false;
+        }
+        final CustomTile.ExpandedItem[] itemsA = a.getExpandedItems();
+        final CustomTile.ExpandedItem[] itemsB = b.getExpandedItems();
+        if (itemsA == itemsB) {
+            return true;
+        }
+        if (itemsA == null || itemsB == null || itemsA.length != itemsB.length) {
+            return false;
+        }
+        for (int i = 0; i < itemsA.length; i++) {
+            final CustomTile.ExpandedItem x = itemsA[i];
+            final CustomTile.ExpandedItem y = itemsB[i];
+            if (x == y) {
+                continue;
+            }
+            if (x == null || y == null
+                    || x.itemDrawableResourceId != y.itemDrawableResourceId
+                    || !Objects.equals(x.itemTitle, y.itemTitle)
+                    || !Objects.equals(x.itemSummary, y.itemSummary)
+                    || !Objects.equals(x.onClickPendingIntent, y.onClickPendingIntent)
+                    || !sameIcon(x.itemBitmapResource, y.itemBitmapResource)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The key of the tile this delta applies to */
+    public String getKey() {
+        return mKey;
+    }
+
+    /** Bitmask of FIELD_* constants describing what changed */
+    public int getChangedFields() {
+        return mChangedFields;
+    }
+
+    /** Whether nothing visible to listeners changed */
+    public boolean isEmpty() {
+        return mChangedFields == 0;
+    }
+
+    /** Whether this delta can be delivered without the full tile */
+    public boolean isCompact() {
+        return (mChangedFields & HEAVY_FIELDS) == 0;
+    }
+
+    /**
+     * Apply this delta on top of the last full tile received for the same key.
+     */
+    public StatusBarPanelCustomTile applyTo(StatusBarPanelCustomTile base) {
+        if (!isCompact()) {
+            throw new IllegalStateException("Delta for " + mKey + " carries heavy fields");
+        }
+        if (base == null || !mKey.equals(base.getKey())) {
+            throw new IllegalArgumentException("Delta for " + mKey + " applied to "
+                    + (base == null ? null : base.getKey()));
+        }
+        final CustomTile tile = base.getCustomTile().clone();
+        if ((mChangedFields & FIELD_ON_CLICK) != 0) tile.onClick = mOnClick;
+        if ((mChangedFields & FIELD_ON_LONG_CLICK) != 0) tile.onLongClick = mOnLongClick;
+        if ((mChangedFields & FIELD_ON_SETTINGS_CLICK) != 0) {
+            tile.onSettingsClick = mOnSettingsClick;
+        }
+        if ((mChangedFields & FIELD_ON_CLICK_URI) != 0) tile.onClickUri = mOnClickUri;
+        if ((mChangedFields & FIELD_LABEL) != 0) tile.label = mLabel;
+        if ((mChangedFields & FIELD_CONTENT_DESCRIPTION) != 0) {
+            tile.contentDescription = mContentDescription;
+        }
+        if ((mChangedFields & FIELD_ICON) != 0) tile.icon = mIcon;
+        if ((mChangedFields & FIELD_COLLAPSE_PANEL) != 0) tile.collapsePanel = mCollapsePanel;
+        if ((mChangedFields & FIELD_DELETE_INTENT) != 0) tile.deleteIntent = mDeleteIntent;
+        if ((mChangedFields & FIELD_SENSITIVE_DATA) != 0) tile.sensitiveData = mSensitiveData;
+
+        return new StatusBarPanelCustomTile(base.getPackage(), base.getResPkg(),
+                base.getOpPkg(), base.getId(), base.getTag(), base.getUid(), mInitialPid,
+                tile, base.getUser(), mPostTime);
+    }
+
+    @Override
+    public String toString() {
+        return "CustomTileDelta{key=" + mKey
+                + ", changedFields=0x" + Integer.toHexString(mChangedFields)
+                + ", postTime=" + mPostTime + "}";
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        // Tell the concierge to prepare the parcel
+        ParcelInfo parcelInfo = Concierge.prepareParcel(out);
+
+        // ==== GUAVA =====
+        out.writeString(mKey);
+        out.writeInt(mChangedFields);
+        out.writeLong(mPostTime);
+        out.writeInt(mInitialPid);
+        if ((mChangedFields & FIELD_ON_CLICK) != 0) {
+            writeNullable(out, mOnClick);
+        }
+        if ((mChangedFields & FIELD_ON_LONG_CLICK) != 0) {
+            writeNullable(out, mOnLongClick);
+        }
+        if ((mChangedFields & FIELD_ON_SETTINGS_CLICK) != 0) {
+            writeNullable(out, mOnSettingsClick);
+        }
+        if ((mChangedFields & FIELD_ON_CLICK_URI) != 0) {
+            writeNullable(out, mOnClickUri);
+        }
+        if ((mChangedFields & FIELD_LABEL) != 0) {
+            out.writeString(mLabel);
+        }
+        if ((mChangedFields & FIELD_CONTENT_DESCRIPTION) != 0) {
+            out.writeString(mContentDescription);
+        }
+        if ((mChangedFields & FIELD_ICON) != 0) {
+            out.writeInt(mIcon);
+        }
+        if ((mChangedFields & FIELD_COLLAPSE_PANEL) != 0) {
+            out.writeInt(mCollapsePanel ? 1 : 0);
+        }
+        if ((mChangedFields & FIELD_DELETE_INTENT) != 0) {
+            writeNullable(out, mDeleteIntent);
+        }
+        if ((mChangedFields & FIELD_SENSITIVE_DATA) != 0) {
+            out.writeInt(mSensitiveData ? 1 : 0);
+        }
+
+        // Complete the parcel info for the concierge
+        parcelInfo.complete();
+    }
+
+    private static void writeNullable(Parcel out, Parcelable p) {
+        if (p != null) {
+            out.writeInt(1);
+            p.writeToParcel(out, 0);
+        } else {
+            out.writeInt(0);
+        }
+    }
+
+    public static final Creator<CustomTileDelta> CREATOR = new Creator<CustomTileDelta>() {
+        @Override
+        public CustomTileDelta createFromParcel(Parcel in) {
+            return new CustomTileDelta(in);
+        }
+
+        @Override
+        public CustomTileDelta[] newArray(int size) {
+            return new CustomTileDelta[size];
+        }
+    };
+}
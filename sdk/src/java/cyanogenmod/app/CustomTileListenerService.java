@@ -24,10 +24,14 @@ import android.content.Intent;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.util.ArrayMap;
 import android.util.Log;
 
+import java.util.List;
+
 import cyanogenmod.app.ICustomTileListener;
 import cyanogenmod.app.IStatusBarCustomTileHolder;
+import cyanogenmod.app.IStatusBarCustomTileListHolder;
 import cyanogenmod.app.ICMStatusBarManager;
 
 /**
@@ -55,7 +59,26 @@ public class CustomTileListenerService extends Service {
     public static final String SERVICE_INTERFACE
             = "cyanogenmod.app.CustomTileListenerService";
 
+    /**
+     * The listener handles {@link ICustomTileListener#onCustomTileUpdated(CustomTileDelta)}.
+     * Listeners which don't declare it receive every update as a full tile.
+     * @hide
+     */
+    public static final int CAPABILITY_TILE_DELTAS = 1 << 0;
+
+    /**
+     * The listener handles {@link ICustomTileListener#onCustomTilesPosted}.
+     * Listeners which don't declare it receive one post per tile.
+     * @hide
+     */
+    public static final int CAPABILITY_POSTED_BATCHES = 1 << 1;
+
+    private static final int CAPABILITIES = CAPABILITY_TILE_DELTAS | CAPABILITY_POSTED_BATCHES;
+
     private ICustomTileListenerWrapper mWrapper = null;
+    // Last full tile seen per key, the base that incoming deltas are applied to
+    private final ArrayMap<String, StatusBarPanelCustomTile> mActiveTiles =
+            new ArrayMap<String, StatusBarPanelCustomTile>();
     private ICMStatusBarManager mStatusBarService;
     /** Only valid after a successful call to (@link registerAsService}. */
     private int mCurrentUser;
@@ -112,6 +135,9 @@ public class CustomTileListenerService extends Service {
         if (isBound()) {
             ICMStatusBarManager statusBarInterface = mStatusBarService;
             statusBarInterface.unregisterListener(mWrapper, mCurrentUser);
+            synchronized (mWrapper) {
+                mActiveTiles.clear();
+            }
             mWrapper = null;
             mStatusBarService = null;
         }
@@ -121,6 +147,7 @@ public class CustomTileListenerService extends Service {
     private class ICustomTileListenerWrapper extends ICustomTileListener.Stub {
         @Override
         public void onListenerConnected() {
+            declareCapabilities();
             synchronized (mWrapper) {
                 try {
                     CustomTileListenerService.this.onListenerConnected();
@@ -139,6 +166,9 @@ public class CustomTileListenerService extends Service {
                 return;
             }
             synchronized (mWrapper) {
+                if (sbc != null) {
+                    mActiveTiles.put(sbc.getKey(), sbc);
+                }
                 try {
                     CustomTileListenerService.this.onCustomTilePosted(sbc);
                 } catch (Throwable t) {
@@ -147,6 +177,29 @@ public class CustomTileListenerService extends Service {
             }
         }
         @Override
+        public void onCustomTilesPosted(IStatusBarCustomTileListHolder sbcListHolder) {
+            List<StatusBarPanelCustomTile> sbcs;
+            try {
+                sbcs = sbcListHolder.get();
+            } catch (RemoteException e) {
+                Log.w(TAG, "onCustomTilesPosted: Error receiving StatusBarPanelCustomTiles", e);
+                return;
+            }
+            if (sbcs == null) {
+                return;
+            }
+            synchronized (mWrapper) {
+                for (StatusBarPanelCustomTile sbc : sbcs) {
+                    mActiveTiles.put(sbc.getKey(), sbc);
+                    try {
+                        CustomTileListenerService.this.onCustomTilePosted(sbc);
+                    } catch (Throwable t) {
+                        Log.w(TAG, "Error running onCustomTilePosted", t);
+                    }
+                }
+            }
+        }
+        @Override
         public void onCustomTileRemoved(IStatusBarCustomTileHolder sbcHolder) {
             StatusBarPanelCustomTile sbc;
             try {
@@ -156,6 +209,9 @@ public class CustomTileListenerService extends Service {
                 return;
             }
             synchronized (mWrapper) {
+                if (sbc != null) {
+                    mActiveTiles.remove(sbc.getKey());
+                }
                 try {
                     CustomTileListenerService.this.onCustomTileRemoved(sbc);
                 } catch (Throwable t) {
@@ -163,6 +219,24 @@ public class CustomTileListenerService extends Service {
                 }
             }
         }
+        @Override
+        public void onCustomTileUpdated(CustomTileDelta delta) {
+            synchronized (mWrapper) {
+                final StatusBarPanelCustomTile base = mActiveTiles.get(delta.getKey());
+                if (base == null) {
+                    Log.w(TAG, "onCustomTileUpdated: No tile to apply " + delta + " to");
+                    return;
+                }
+                final StatusBarPanelCustomTile sbc = delta.applyTo(base);
+                mActiveTiles.put(sbc.getKey(), sbc);
+                try {
+                    CustomTileListenerService.this.onCustomTileUpdated(sbc,
+                            delta.getChangedFields());
+                } catch (Throwable t) {
+                    Log.w(TAG, "Error running onCustomTileUpdated", t);
+                }
+            }
+        }
     }
 
     /**
@@ -176,6 +250,19 @@ public class CustomTileListenerService extends Service {
         // optional
     }
 
+    /**
+     * Implement this method to learn about custom tiles that were re-posted with only
+     * some of their fields changed. By default this forwards to
+     * {@link #onCustomTilePosted(StatusBarPanelCustomTile)}.
+     *
+     * @param sbc The updated tile, with the changes already applied
+     * @param changedFields Bitmask of {@link CustomTileDelta} FIELD_* constants
+     * @hide
+     */
+    public void onCustomTileUpdated(StatusBarPanelCustomTile sbc, int changedFields) {
+        onCustomTilePosted(sbc);
+    }
+
     /**
      * Implement this method to learn when custom tiles are removed.
      *
@@ -221,6 +308,18 @@ public class CustomTileListenerService extends Service {
         }
     }
 
+    private void declareCapabilities() {
+        final ICMStatusBarManager statusBarInterface = getStatusBarInterface();
+        if (statusBarInterface == null || mWrapper == null) {
+            return;
+        }
+        try {
+            statusBarInterface.setListenerCapabilities(mWrapper, CAPABILITIES);
+        } catch (RemoteException ex) {
+            Log.v(TAG, "Unable to contact cmstautusbar manager", ex);
+        }
+    }
+
     private boolean isBound() {
         if (getStatusBarInterface() == null || mWrapper == null) {
             Log.w(TAG, "CustomTile listener service not yet bound.");
@@ -23,6 +23,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.graphics.Rect;
+import android.os.Binder;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
@@ -45,6 +46,12 @@ public class ExternalView extends View implements Application.ActivityLifecycleC
     protected final ExternalViewProperties mExternalViewProperties;
     protected volatile IExternalViewProvider mExternalViewProvider;
 
+    // Lets the provider service release what it created for us once we are gone
+    private final IBinder mHostToken = new Binder();
+
+    // Geometry changes are sent from a background thread so frames never wait on the provider
+    private final WindowGeometrySender mWindowSender = new WindowGeometrySender();
+
     public ExternalView(Context context, AttributeSet attrs) {
         this(context, attrs, null);
     }
@@ -74,9 +81,18 @@ public class ExternalView extends View implements Application.ActivityLifecycleC
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             try {
-                mExternalViewProvider = IExternalViewProvider.Stub.asInterface(
-                        IExternalViewProviderFactory.Stub.asInterface(service).createExternalView(null));
+                final IExternalViewProvider provider = IExternalViewProvider.Stub.asInterface(
+                        IExternalViewProviderFactory.Stub.asInterface(service).createExternalView(
+                                ExternalViewProviderService.createHostOptions(mHostToken)));
+                mExternalViewProvider = provider;
                 executeQueue();
+                mWindowSender.setTarget(new WindowGeometrySender.Target() {
+                    @Override
+                    public void alterWindow(int x, int y, int width, int height,
+                            boolean visible, Rect clipRect) throws RemoteException {
+                        provider.alterWindow(x, y, width, height, visible, clipRect);
+                    }
+                });
             } catch (RemoteException e) {
                 e.printStackTrace();
             }
@@ -84,6 +100,7 @@ public class ExternalView extends View implements Application.ActivityLifecycleC
 
         @Override
         public void onServiceDisconnected(ComponentName name) {
+            mWindowSender.setTarget(null);
             mExternalViewProvider = null;
         }
     };
@@ -107,7 +124,6 @@ public class ExternalView extends View implements Application.ActivityLifecycleC
 
     @Override
     public boolean onPreDraw() {
-        long cur = System.currentTimeMillis();
         if (!mExternalViewProperties.hasChanged()) {
             return true;
         }
@@ -117,16 +133,7 @@ public class ExternalView extends View implements Application.ActivityLifecycleC
         final int height = mExternalViewProperties.getHeight();
         final boolean visible = mExternalViewProperties.isVisible();
         final Rect clipRect = mExternalViewProperties.getHitRect();
-        performAction(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    mExternalViewProvider.alterWindow(x, y, width, height, visible,
-                            clipRect);
-                } catch (RemoteException e) {
-                }
-            }
-        });
+        mWindowSender.update(x, y, width, height, visible, clipRect);
         return true;
     }
 
@@ -196,6 +203,7 @@ public class ExternalView extends View implements Application.ActivityLifecycleC
 
     @Override
     public void onActivityDestroyed(Activity activity) {
+        mWindowSender.setTarget(null);
         mExternalViewProvider = null;
         mContext.unbindService(mServiceConnection);
     }
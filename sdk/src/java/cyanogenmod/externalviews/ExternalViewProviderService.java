@@ -25,6 +25,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.util.ArraySet;
 import android.util.Log;
 import android.view.Gravity;
 import android.view.View;
@@ -47,8 +48,15 @@ public abstract class ExternalViewProviderService extends Service {
     private static final String TAG = "ExternalViewProvider";
     private static final boolean DEBUG = false;
 
+    private static final long DEFAULT_WINDOW_IDLE_TIMEOUT = 30 * 1000;
+
+    // Binder owned by the host, used to find out when the host is gone
+    private static final String EXTRA_HOST_TOKEN = "cyanogenmod.externalviews.extra.HOST_TOKEN";
+
     private WindowManager mWindowManager;
     private final Handler mHandler = new Handler();
+    // Only accessed from mHandler
+    private final ArraySet<Provider> mProviders = new ArraySet<Provider>();
 
     @Override
     public void onCreate() {
@@ -57,6 +65,15 @@ public abstract class ExternalViewProviderService extends Service {
         mWindowManager = (WindowManager) getSystemService(Context.WINDOW_SERVICE);
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        for (Provider provider : new ArraySet<Provider>(mProviders)) {
+            provider.mImpl.release();
+        }
+    }
+
     @Override
     public final IBinder onBind(Intent intent) {
         return new IExternalViewProviderFactory.Stub() {
@@ -64,7 +81,11 @@ public abstract class ExternalViewProviderService extends Service {
                 FutureTask<IBinder> c = new FutureTask<IBinder>(new Callable<IBinder>() {
                     @Override
                     public IBinder call() throws Exception {
-                        return ExternalViewProviderService.this.createExternalView(options).mImpl;
+                        final IBinder hostToken = getHostToken(options);
+                        Provider provider = ExternalViewProviderService.this
+                                .createExternalView(stripHostToken(options));
+                        provider.mImpl.track(hostToken);
+                        return provider.mImpl;
                     }
                 });
                 mHandler.post(c);
@@ -78,6 +99,36 @@ public abstract class ExternalViewProviderService extends Service {
         };
     }
 
+    /**
+     * Returns the token a host may put into the options so that providers it created can be
+     * released once it dies.
+     */
+    /*package*/ static IBinder getHostToken(Bundle options) {
+        return options != null ? options.getBinder(EXTRA_HOST_TOKEN) : null;
+    }
+
+    /**
+     * Returns the options without the host token, or null if that was all there was to them.
+     */
+    /*package*/ static Bundle stripHostToken(Bundle options) {
+        if (options == null || !options.containsKey(EXTRA_HOST_TOKEN)) {
+            return options;
+        }
+        Bundle stripped = new Bundle(options);
+        stripped.remove(EXTRA_HOST_TOKEN);
+        return stripped.isEmpty() ? null : stripped;
+    }
+
+    /**
+     * Returns options for {@link IExternalViewProviderFactory#createExternalView(Bundle)}
+     * which carry the given host token.
+     */
+    /*package*/ static Bundle createHostOptions(IBinder hostToken) {
+        Bundle options = new Bundle();
+        options.putBinder(EXTRA_HOST_TOKEN, hostToken);
+        return options;
+    }
+
     protected abstract Provider createExternalView(Bundle options);
 
     protected abstract class Provider {
@@ -93,6 +144,36 @@ public abstract class ExternalViewProviderService extends Service {
 
             private boolean mShouldShow = true;
             private boolean mAskedShow = false;
+            private boolean mDetached = false;
+            private boolean mWindowAdded = false;
+
+            // Token the host passed when creating the provider, if any
+            private IBinder mHostToken;
+            private boolean mLinkedToHost = false;
+
+            private final Runnable mRemoveWindowRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    release();
+                }
+            };
+
+            private final IBinder.DeathRecipient mHostDeathRecipient =
+                    new IBinder.DeathRecipient() {
+                @Override
+                public void binderDied() {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!mDetached) {
+                                mDetached = true;
+                                Provider.this.onDetach();
+                            }
+                            release();
+                        }
+                    });
+                }
+            };
 
             public ProviderImpl(Provider provider) {
                 mWindow = new PhoneWindow(ExternalViewProviderService.this);
@@ -110,7 +191,16 @@ public abstract class ExternalViewProviderService extends Service {
                 mHandler.post(new Runnable() {
                     @Override
                     public void run() {
-                        mWindowManager.addView(mWindow.getDecorView(), mParams);
+                        mHandler.removeCallbacks(mRemoveWindowRunnable);
+                        if (!track(mHostToken)) {
+                            return;
+                        }
+                        mDetached = false;
+                        updateVisibility();
+                        if (!mWindowAdded) {
+                            mWindowManager.addView(mWindow.getDecorView(), mParams);
+                            mWindowAdded = true;
+                        }
                         Provider.this.onAttach();
                     }
                 });
@@ -165,7 +255,15 @@ public abstract class ExternalViewProviderService extends Service {
                 mHandler.post(new Runnable() {
                     @Override
                     public void run() {
-                        mWindowManager.removeView(mWindow.getDecorView());
+                        // Keep the window hidden for a while so attaching again is cheap
+                        mDetached = true;
+                        updateVisibility();
+                        final long timeout = Provider.this.getWindowIdleTimeout();
+                        if (timeout > 0) {
+                            mHandler.postDelayed(mRemoveWindowRunnable, timeout);
+                        } else {
+                            release();
+                        }
                         Provider.this.onDetach();
                     }
                 });
@@ -200,10 +298,49 @@ public abstract class ExternalViewProviderService extends Service {
             }
 
             private void updateVisibility() {
-                if (DEBUG) Log.d(TAG, "shouldShow = " + mShouldShow + " askedShow = " + mAskedShow);
-                mWindow.getDecorView().setVisibility(mShouldShow && mAskedShow ?
+                if (DEBUG) Log.d(TAG, "shouldShow = " + mShouldShow + " askedShow = " + mAskedShow
+                        + " detached = " + mDetached);
+                mWindow.getDecorView().setVisibility(mShouldShow && mAskedShow && !mDetached ?
                         View.VISIBLE : View.GONE);
             }
+
+            /**
+             * Keeps the provider in mProviders and, if the host passed a token, watches for
+             * the host to die.
+             * @return False if the host is already gone
+             */
+            private boolean track(IBinder hostToken) {
+                mHostToken = hostToken;
+                mProviders.add(Provider.this);
+                if (hostToken == null || mLinkedToHost) {
+                    return true;
+                }
+                try {
+                    hostToken.linkToDeath(mHostDeathRecipient, 0);
+                    mLinkedToHost = true;
+                    return true;
+                } catch (RemoteException e) {
+                    release();
+                    return false;
+                }
+            }
+
+            /**
+             * Removes the window and lets go of the provider. Once the host has detached and
+             * the window is gone, only the host can bring the provider back, by attaching it.
+             */
+            private void release() {
+                mHandler.removeCallbacks(mRemoveWindowRunnable);
+                if (mWindowAdded) {
+                    mWindowManager.removeView(mWindow.getDecorView());
+                    mWindowAdded = false;
+                }
+                mProviders.remove(Provider.this);
+                if (mLinkedToHost) {
+                    mHostToken.unlinkToDeath(mHostDeathRecipient, 0);
+                    mLinkedToHost = false;
+                }
+            }
         }
 
         private final ProviderImpl mImpl = new ProviderImpl(this);
@@ -225,6 +362,14 @@ public abstract class ExternalViewProviderService extends Service {
         protected void onStop() {}
         protected void onDetach() {}
 
+        /**
+         * How long, in milliseconds, the window is kept hidden after the host detaches so that
+         * attaching again only has to show it.  Return 0 to remove it right away.
+         */
+        protected long getWindowIdleTimeout() {
+            return DEFAULT_WINDOW_IDLE_TIMEOUT;
+        }
+
         /*package*/ int getWindowType() {
             return DEFAULT_WINDOW_TYPE;
         }
@@ -24,6 +24,7 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.graphics.Point;
 import android.graphics.Rect;
+import android.os.Binder;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
@@ -67,6 +68,11 @@ public class KeyguardExternalView extends View implements ViewTreeObserver.OnPre
     private Context mContext;
     private final ExternalViewProperties mExternalViewProperties;
     private volatile IKeyguardExternalViewProvider mExternalViewProvider;
+    // Lets the provider service release what it created for us once we are gone
+    private final IBinder mHostToken = new Binder();
+
+    // Geometry changes are sent from a background thread so frames never wait on the provider
+    private final WindowGeometrySender mWindowSender = new WindowGeometrySender();
     private IBinder mService;
     private final Point mDisplaySize;
     private boolean mIsInteractive;
@@ -113,14 +119,24 @@ public class KeyguardExternalView extends View implements ViewTreeObserver.OnPre
             try {
                 IExternalViewProviderFactory factory = IExternalViewProviderFactory.Stub.asInterface(service);
                 if (factory != null) {
-                    mExternalViewProvider = IKeyguardExternalViewProvider.Stub.asInterface(
-                            factory.createExternalView(null));
+                    final IKeyguardExternalViewProvider provider =
+                            IKeyguardExternalViewProvider.Stub.asInterface(
+                                    factory.createExternalView(ExternalViewProviderService
+                                            .createHostOptions(mHostToken)));
+                    mExternalViewProvider = provider;
                     if (mExternalViewProvider != null) {
                         mExternalViewProvider.registerCallback(
                                 KeyguardExternalView.this.mKeyguardExternalViewCallbacks);
                         mService = service;
                         mService.linkToDeath(KeyguardExternalView.this, 0);
                         executeQueue();
+                        mWindowSender.setTarget(new WindowGeometrySender.Target() {
+                            @Override
+                            public void alterWindow(int x, int y, int width, int height,
+                                    boolean visible, Rect clipRect) throws RemoteException {
+                                provider.alterWindow(x, y, width, height, visible, clipRect);
+                            }
+                        });
                     } else {
                         Log.e(TAG, "Unable to get external view provider");
                     }
@@ -138,6 +154,7 @@ public class KeyguardExternalView extends View implements ViewTreeObserver.OnPre
 
         @Override
         public void onServiceDisconnected(ComponentName name) {
+            mWindowSender.setTarget(null);
             if (mExternalViewProvider != null) {
                 try {
                     mExternalViewProvider.unregisterCallback(
@@ -234,16 +251,7 @@ public class KeyguardExternalView extends View implements ViewTreeObserver.OnPre
         final int height = mDisplaySize.y - y;
         final boolean visible = mExternalViewProperties.isVisible();
         final Rect clipRect = new Rect(x, y, width + x, height + y);
-        performAction(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    mExternalViewProvider.alterWindow(x, y, width, height, visible,
-                            clipRect);
-                } catch (RemoteException e) {
-                }
-            }
-        });
+        mWindowSender.update(x, y, width, height, visible, clipRect);
         return true;
     }
 
@@ -26,6 +26,8 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.ArraySet;
 import android.util.Log;
 import android.view.ActionMode;
 import android.view.Gravity;
@@ -36,11 +38,14 @@ import android.view.MotionEvent;
 import android.view.SearchEvent;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.view.Window;
 import android.view.WindowManager;
 import android.view.accessibility.AccessibilityEvent;
 import com.android.internal.policy.PhoneWindow;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
@@ -83,8 +88,12 @@ public abstract class KeyguardExternalViewProviderService extends Service {
      */
     public static final String META_DATA = "cyanogenmod.externalviews.keyguard";
 
+    private static final long DEFAULT_WINDOW_IDLE_TIMEOUT = 30 * 1000;
+
     private WindowManager mWindowManager;
     private final Handler mHandler = new Handler();
+    // Only accessed from mHandler
+    private final ArraySet<Provider> mProviders = new ArraySet<Provider>();
 
     @Override
     public void onCreate() {
@@ -93,6 +102,15 @@ public abstract class KeyguardExternalViewProviderService extends Service {
         mWindowManager = (WindowManager) getSystemService(Context.WINDOW_SERVICE);
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        for (Provider provider : new ArraySet<Provider>(mProviders)) {
+            provider.mImpl.release();
+        }
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         super.onStartCommand(intent, flags, startId);
@@ -106,8 +124,12 @@ public abstract class KeyguardExternalViewProviderService extends Service {
                 FutureTask<IBinder> c = new FutureTask<IBinder>(new Callable<IBinder>() {
                     @Override
                     public IBinder call() throws Exception {
-                        return KeyguardExternalViewProviderService.this
-                                .createExternalView(options).mImpl;
+                        final IBinder hostToken = ExternalViewProviderService.getHostToken(options);
+                        Provider provider = KeyguardExternalViewProviderService.this
+                                .createExternalView(
+                                        ExternalViewProviderService.stripHostToken(options));
+                        provider.mImpl.track(hostToken);
+                        return provider.mImpl;
                     }
                 });
                 mHandler.post(c);
@@ -121,6 +143,14 @@ public abstract class KeyguardExternalViewProviderService extends Service {
         };
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println(TAG + " state:");
+        for (Provider provider : mProviders) {
+            provider.mImpl.dump(pw);
+        }
+    }
+
     /**
      * Called when the host has bound to this service.
      * @param options Optional bundle.  This param is currently not used.
@@ -139,10 +169,60 @@ public abstract class KeyguardExternalViewProviderService extends Service {
 
             private boolean mShouldShow = true;
             private boolean mAskedShow = false;
+            private boolean mDetached = false;
+            private boolean mWindowAdded = false;
+
+            // Attach statistics, reported by dump
+            private long mAttachTime;
+            private long mLastTimeToFirstFrame = -1;
+            private int mColdAttaches;
+            private int mWarmAttaches;
 
             private final RemoteCallbackList<IKeyguardExternalViewCallbacks> mCallbacks =
                     new RemoteCallbackList<IKeyguardExternalViewCallbacks>();
 
+            // Token the host passed when creating the provider, if any
+            private IBinder mHostToken;
+            private boolean mLinkedToHost = false;
+
+            private final Runnable mRemoveWindowRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    release();
+                }
+            };
+
+            private final IBinder.DeathRecipient mHostDeathRecipient =
+                    new IBinder.DeathRecipient() {
+                @Override
+                public void binderDied() {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!mDetached) {
+                                mDetached = true;
+                                Provider.this.onDetach();
+                            }
+                            release();
+                        }
+                    });
+                }
+            };
+
+            private final ViewTreeObserver.OnDrawListener mFirstFrameListener =
+                    new ViewTreeObserver.OnDrawListener() {
+                @Override
+                public void onDraw() {
+                    if (mAttachTime != 0) {
+                        mLastTimeToFirstFrame = SystemClock.uptimeMillis() - mAttachTime;
+                        mAttachTime = 0;
+                        if (DEBUG) {
+                            Log.d(TAG, "time to first frame " + mLastTimeToFirstFrame + "ms");
+                        }
+                    }
+                }
+            };
+
             public ProviderImpl(Provider provider) {
                 mWindow = new PhoneWindow(KeyguardExternalViewProviderService.this);
                 mWindow.setCallback(this);
@@ -160,7 +240,24 @@ public abstract class KeyguardExternalViewProviderService extends Service {
                 mHandler.post(new Runnable() {
                     @Override
                     public void run() {
-                        mWindowManager.addView(mWindow.getDecorView(), mParams);
+                        mHandler.removeCallbacks(mRemoveWindowRunnable);
+                        if (!track(mHostToken)) {
+                            return;
+                        }
+                        mDetached = false;
+                        mAttachTime = SystemClock.uptimeMillis();
+                        updateVisibility();
+                        if (mWindowAdded) {
+                            // The window is still around from the last attach, showing it is
+                            // all there is to do
+                            mWarmAttaches++;
+                        } else {
+                            mColdAttaches++;
+                            View decorView = mWindow.getDecorView();
+                            mWindowManager.addView(decorView, mParams);
+                            mWindowAdded = true;
+                            decorView.getViewTreeObserver().addOnDrawListener(mFirstFrameListener);
+                        }
                         Provider.this.onAttach();
                     }
                 });
@@ -171,7 +268,16 @@ public abstract class KeyguardExternalViewProviderService extends Service {
                 mHandler.post(new Runnable() {
                     @Override
                     public void run() {
-                        mWindowManager.removeView(mWindow.getDecorView());
+                        // Keep the window hidden for a while so attaching again is cheap
+                        mDetached = true;
+                        mAttachTime = 0;
+                        updateVisibility();
+                        final long timeout = Provider.this.getWindowIdleTimeout();
+                        if (timeout > 0) {
+                            mHandler.postDelayed(mRemoveWindowRunnable, timeout);
+                        } else {
+                            release();
+                        }
                         Provider.this.onDetach();
                     }
                 });
@@ -277,11 +383,59 @@ public abstract class KeyguardExternalViewProviderService extends Service {
             }
 
             private void updateVisibility() {
-                if (DEBUG) Log.d(TAG, "shouldShow = " + mShouldShow + " askedShow = " + mAskedShow);
-                mWindow.getDecorView().setVisibility(mShouldShow && mAskedShow ?
+                if (DEBUG) Log.d(TAG, "shouldShow = " + mShouldShow + " askedShow = " + mAskedShow
+                        + " detached = " + mDetached);
+                mWindow.getDecorView().setVisibility(mShouldShow && mAskedShow && !mDetached ?
                         View.VISIBLE : View.GONE);
             }
 
+            /**
+             * Keeps the provider in mProviders and, if the host passed a token, watches for
+             * the host to die.
+             * @return False if the host is already gone
+             */
+            private boolean track(IBinder hostToken) {
+                mHostToken = hostToken;
+                mProviders.add(Provider.this);
+                if (hostToken == null || mLinkedToHost) {
+                    return true;
+                }
+                try {
+                    hostToken.linkToDeath(mHostDeathRecipient, 0);
+                    mLinkedToHost = true;
+                    return true;
+                } catch (RemoteException e) {
+                    release();
+                    return false;
+                }
+            }
+
+            /**
+             * Removes the window and lets go of the provider. Once the host has detached and
+             * the window is gone, only the host can bring the provider back, by attaching it.
+             */
+            private void release() {
+                mHandler.removeCallbacks(mRemoveWindowRunnable);
+                if (mWindowAdded) {
+                    mWindowManager.removeView(mWindow.getDecorView());
+                    mWindowAdded = false;
+                }
+                mProviders.remove(Provider.this);
+                if (mLinkedToHost) {
+                    mHostToken.unlinkToDeath(mHostDeathRecipient, 0);
+                    mLinkedToHost = false;
+                }
+            }
+
+            private void dump(PrintWriter pw) {
+                pw.println("  " + Provider.this.getClass().getName() + ":");
+                pw.println("    detached: " + mDetached + " window added: " + mWindowAdded);
+                pw.println("    cold attaches: " + mColdAttaches
+                        + " warm attaches: " + mWarmAttaches);
+                pw.println("    last time to first frame: " + (mLastTimeToFirstFrame >= 0
+                        ? mLastTimeToFirstFrame + "ms" : "n/a"));
+            }
+
             // callbacks from provider to host
             protected final boolean requestDismiss() {
                 boolean ret = true;
@@ -489,6 +643,16 @@ public abstract class KeyguardExternalViewProviderService extends Service {
          */
         protected void onDetach() {}
 
+        /**
+         * Returns how long, in milliseconds, the window of this provider is kept hidden after
+         * the host view is detached.  If the host view is attached again within that time the
+         * view is shown again instead of being added to a new window.  Defaults to 30 seconds,
+         * return 0 to remove the window as soon as the host view is detached.
+         */
+        protected long getWindowIdleTimeout() {
+            return DEFAULT_WINDOW_IDLE_TIMEOUT;
+        }
+
         /**
          * Callback used for getting the view to be displayed within the host's content.
          * @return The view to be displayed within the host's content.  If null is returned no
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cyanogenmod.externalviews;
+
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.RemoteException;
+
+/**
+ * Sends the window geometry of an external view to its provider off the UI thread. Only the
+ * latest geometry is kept, so if the provider can't keep up with the frames of the host the
+ * positions in between are dropped instead of queuing up.
+ */
+final class WindowGeometrySender {
+
+    interface Target {
+        void alterWindow(int x, int y, int width, int height, boolean visible, Rect clipRect)
+                throws RemoteException;
+    }
+
+    private static Handler sHandler;
+
+    private final Object mLock = new Object();
+    // Guarded by mLock
+    private Target mTarget;
+    private boolean mPending;
+    private boolean mPosted;
+    private int mX, mY, mWidth, mHeight;
+    private boolean mVisible;
+    private final Rect mClipRect = new Rect();
+    private boolean mHasClipRect;
+
+    private static Handler getHandler() {
+        synchronized (WindowGeometrySender.class) {
+            if (sHandler == null) {
+                HandlerThread thread = new HandlerThread("ExternalViewWindowSender",
+                        Process.THREAD_PRIORITY_DISPLAY);
+                thread.start();
+                sHandler = new Handler(thread.getLooper());
+            }
+            return sHandler;
+        }
+    }
+
+    /**
+     * Sets the provider to send to, any geometry which came in while there was none is sent
+     * right away.
+     */
+    void setTarget(Target target) {
+        synchronized (mLock) {
+            mTarget = target;
+            postLocked();
+        }
+    }
+
+    void update(int x, int y, int width, int height, boolean visible, Rect clipRect) {
+        synchronized (mLock) {
+            mX = x;
+            mY = y;
+            mWidth = width;
+            mHeight = height;
+            mVisible = visible;
+            mHasClipRect = clipRect != null;
+            if (mHasClipRect) {
+                mClipRect.set(clipRect);
+            }
+            mPending = true;
+            postLocked();
+        }
+    }
+
+    private void postLocked() {
+        if (mPending && mTarget != null && !mPosted) {
+            mPosted = true;
+            getHandler().post(mSend);
+        }
+    }
+
+    private final Runnable mSend = new Runnable() {
+        @Override
+        public void run() {
+            final Target target;
+            final int x, y, width, height;
+            final boolean visible;
+            final Rect clipRect;
+            synchronized (mLock) {
+                mPosted = false;
+                if (!mPending || mTarget == null) {
+                    return;
+                }
+                mPending = false;
+                target = mTarget;
+                x = mX;
+                y = mY;
+                width = mWidth;
+                height = mHeight;
+                visible = mVisible;
+                clipRect = mHasClipRect ? new Rect(mClipRect) : null;
+            }
+            try {
+                target.alterWindow(x, y, width, height, visible, clipRect);
+            } catch (RemoteException e) {
+            }
+        }
+    };
+}
@@ -133,11 +133,19 @@ public class LiveDisplayManager {
     private static final String TAG = "LiveDisplay";
 
     private final Context mContext;
-    private final LiveDisplayConfig mConfig;
 
     private static LiveDisplayManager sInstance;
     private static ILiveDisplayService sService;
 
+    // The configuration never changes after boot, so fetch it once per process
+    private static LiveDisplayConfig sConfig;
+
+    // Latest snapshot of the mutable state, pushed by the service
+    private final Object mStateLock = new Object();
+    private LiveDisplayState mState;
+    private int mStateVersion = -1;
+    private boolean mStateListenerRegistered;
+
     /**
      * @hide to prevent subclassing from outside of the framework
      */
@@ -157,13 +165,15 @@ public class LiveDisplayManager {
                     " SystemServer init");
         }
 
-        try {
-            mConfig = sService.getConfig();
-            if (mConfig == null) {
-                throw new RuntimeException("Unable to get LiveDisplay configuration!");
+        if (sConfig == null) {
+            try {
+                sConfig = sService.getConfig();
+                if (sConfig == null) {
+                    throw new RuntimeException("Unable to get LiveDisplay configuration!");
+                }
+            } catch (RemoteException e) {
+                throw new RuntimeException("Unable to fetch LiveDisplay configuration!", e);
             }
-        } catch (RemoteException e) {
-            throw new RuntimeException("Unable to fetch LiveDisplay configuration!", e);
         }
     }
 
@@ -209,7 +219,69 @@ public class LiveDisplayManager {
      * @return the configuration
      */
     public LiveDisplayConfig getConfig() {
-        return mConfig;
+        return sConfig;
+    }
+
+    private final ILiveDisplayStateListener mStateListener = new ILiveDisplayStateListener.Stub() {
+        @Override
+        public void onStateChanged(LiveDisplayState state) {
+            synchronized (mStateLock) {
+                // Only accept snapshots newer than what we have, pushes may race
+                // with a direct fetch after a setter
+                if (state != null && state.getVersion() > mStateVersion) {
+                    mState = state;
+                    mStateVersion = state.getVersion();
+                }
+            }
+        }
+    };
+
+    /**
+     * Returns the cached state snapshot, fetching it from the service
+     * and registering for updates if needed.
+     */
+    private LiveDisplayState getState() {
+        synchronized (mStateLock) {
+            if (mState != null) {
+                return mState;
+            }
+            if (!checkService()) {
+                return null;
+            }
+            try {
+                if (!mStateListenerRegistered) {
+                    mStateListenerRegistered = sService.registerStateListener(mStateListener);
+                }
+                final LiveDisplayState state = sService.getState();
+                if (state != null) {
+                    mStateVersion = Math.max(mStateVersion, state.getVersion());
+                    // Without a listener we can't know when to drop it
+                    if (mStateListenerRegistered) {
+                        mState = state;
+                    }
+                }
+                return state;
+            } catch (RemoteException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Drops the cached snapshot so the next getter reads back what a
+     * setter just wrote, without waiting for the pushed update.
+     */
+    private void invalidateState() {
+        synchronized (mStateLock) {
+            mState = null;
+        }
+    }
+
+    private boolean invalidateStateIf(boolean changed) {
+        if (changed) {
+            invalidateState();
+        }
+        return changed;
     }
 
     /**
@@ -218,11 +290,8 @@ public class LiveDisplayManager {
      * @return id of the selected mode
      */
     public int getMode() {
-        try {
-            return checkService() ? sService.getMode() : MODE_OFF;
-        } catch (RemoteException e) {
-            return MODE_OFF;
-        }
+        final LiveDisplayState state = getState();
+        return state != null ? state.getMode() : MODE_OFF;
     }
 
     /**
@@ -233,7 +302,7 @@ public class LiveDisplayManager {
      */
     public boolean setMode(int mode) {
         try {
-            return checkService() && sService.setMode(mode);
+            return invalidateStateIf(checkService() && sService.setMode(mode));
         } catch (RemoteException e) {
             return false;
         }
@@ -245,11 +314,8 @@ public class LiveDisplayManager {
      * @return true if enabled
      */
     public boolean isAutoContrastEnabled() {
-        try {
-            return checkService() && sService.isAutoContrastEnabled();
-        } catch (RemoteException e) {
-            return false;
-        }
+        final LiveDisplayState state = getState();
+        return state != null ? state.isAutoContrastEnabled() : false;
     }
 
     /**
@@ -260,7 +326,7 @@ public class LiveDisplayManager {
      */
     public boolean setAutoContrastEnabled(boolean enabled) {
         try {
-            return checkService() && sService.setAutoContrastEnabled(enabled);
+            return invalidateStateIf(checkService() && sService.setAutoContrastEnabled(enabled));
         } catch (RemoteException e) {
             return false;
         }
@@ -272,11 +338,8 @@ public class LiveDisplayManager {
      * @return true if enabled
      */
     public boolean isCABCEnabled() {
-        try {
-            return checkService() && sService.isCABCEnabled();
-        } catch (RemoteException e) {
-            return false;
-        }
+        final LiveDisplayState state = getState();
+        return state != null ? state.isCABCEnabled() : false;
     }
 
     /**
@@ -287,7 +350,7 @@ public class LiveDisplayManager {
      */
     public boolean setCABCEnabled(boolean enabled) {
         try {
-            return checkService() && sService.setCABCEnabled(enabled);
+            return invalidateStateIf(checkService() && sService.setCABCEnabled(enabled));
         } catch (RemoteException e) {
             return false;
         }
@@ -299,11 +362,8 @@ public class LiveDisplayManager {
      * @return true if enabled
      */
     public boolean isColorEnhancementEnabled() {
-        try {
-            return checkService() && sService.isColorEnhancementEnabled();
-        } catch (RemoteException e) {
-            return false;
-        }
+        final LiveDisplayState state = getState();
+        return state != null ? state.isColorEnhancementEnabled() : false;
     }
 
     /**
@@ -314,7 +374,7 @@ public class LiveDisplayManager {
      */
     public boolean setColorEnhancementEnabled(boolean enabled) {
         try {
-            return checkService() && sService.setColorEnhancementEnabled(enabled);
+            return invalidateStateIf(checkService() && sService.setColorEnhancementEnabled(enabled));
         } catch (RemoteException e) {
             return false;
         }
@@ -326,11 +386,8 @@ public class LiveDisplayManager {
      * @return the day color temperature
      */
     public int getDayColorTemperature() {
-        try {
-            return checkService() ? sService.getDayColorTemperature() : -1;
-        } catch (RemoteException e) {
-            return -1;
-        }
+        final LiveDisplayState state = getState();
+        return state != null ? state.getDayColorTemperature() : -1;
     }
 
     /**
@@ -341,7 +398,7 @@ public class LiveDisplayManager {
      */
     public boolean setDayColorTemperature(int temperature) {
         try {
-            return checkService() && sService.setDayColorTemperature(temperature);
+            return invalidateStateIf(checkService() && sService.setDayColorTemperature(temperature));
         } catch (RemoteException e) {
             return false;
         }
@@ -353,11 +410,8 @@ public class LiveDisplayManager {
      * @return the night color temperature
      */
     public int getNightColorTemperature() {
-        try {
-            return checkService() ? sService.getNightColorTemperature() : -1;
-        } catch (RemoteException e) {
-            return -1;
-        }
+        final LiveDisplayState state = getState();
+        return state != null ? state.getNightColorTemperature() : -1;
     }
 
     /**
@@ -368,7 +422,7 @@ public class LiveDisplayManager {
      */
     public boolean setNightColorTemperature(int temperature) {
         try {
-            return checkService() && sService.setNightColorTemperature(temperature);
+            return invalidateStateIf(checkService() && sService.setNightColorTemperature(temperature));
         } catch (RemoteException e) {
             return false;
         }
@@ -381,11 +435,8 @@ public class LiveDisplayManager {
      * @return if outdoor conditions should be detected
      */
     public boolean isAutomaticOutdoorModeEnabled() {
-        try {
-            return checkService() && sService.isAutomaticOutdoorModeEnabled();
-        } catch (RemoteException e) {
-            return false;
-        }
+        final LiveDisplayState state = getState();
+        return state != null ? state.isAutomaticOutdoorModeEnabled() : false;
     }
 
     /**
@@ -397,7 +448,7 @@ public class LiveDisplayManager {
      */
     public boolean setAutomaticOutdoorModeEnabled(boolean enabled) {
         try {
-            return checkService() && sService.setAutomaticOutdoorModeEnabled(enabled);
+            return invalidateStateIf(checkService() && sService.setAutomaticOutdoorModeEnabled(enabled));
         } catch (RemoteException e) {
             return false;
         }
@@ -411,11 +462,9 @@ public class LiveDisplayManager {
      * @return array of { R, G, B } offsets
      */
     public float[] getColorAdjustment() {
-        try {
-            if (checkService()) {
-                return sService.getColorAdjustment();
-            }
-        } catch (RemoteException e) {
+        final LiveDisplayState state = getState();
+        if (state != null) {
+            return state.getColorAdjustment();
         }
         return new float[] { 1.0f, 1.0f, 1.0f };
     }
@@ -433,7 +482,7 @@ public class LiveDisplayManager {
      */
     public boolean setColorAdjustment(float[] adj) {
         try {
-            return checkService() && sService.setColorAdjustment(adj);
+            return invalidateStateIf(checkService() && sService.setColorAdjustment(adj));
         } catch (RemoteException e) {
             return false;
         }
@@ -445,13 +494,8 @@ public class LiveDisplayManager {
      * @return HSIC object with current settings
      */
     public HSIC getPictureAdjustment() {
-        try {
-            if (checkService()) {
-                return sService.getPictureAdjustment();
-            }
-        } catch (RemoteException e) {
-        }
-        return null;
+        final LiveDisplayState state = getState();
+        return state != null ? state.getPictureAdjustment() : null;
     }
 
     /**
@@ -462,7 +506,7 @@ public class LiveDisplayManager {
      */
     public boolean setPictureAdjustment(final HSIC hsic) {
         try {
-            return checkService() && sService.setPictureAdjustment(hsic);
+            return invalidateStateIf(checkService() && sService.setPictureAdjustment(hsic));
         } catch (RemoteException e) {
         }
         return false;
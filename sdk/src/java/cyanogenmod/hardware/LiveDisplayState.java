@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cyanogenmod.hardware;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Arrays;
+
+import cyanogenmod.os.Build;
+import cyanogenmod.os.Concierge;
+import cyanogenmod.os.Concierge.ParcelInfo;
+
+/**
+ * Snapshot of the mutable LiveDisplay state.
+ *
+ * The service bumps the version every time any of these values may
+ * have changed, and pushes a new snapshot to registered clients so
+ * that {@link LiveDisplayManager} can answer getters locally.
+ *
+ * @hide
+ */
+public class LiveDisplayState implements Parcelable {
+
+    private final int mVersion;
+
+    private final int mMode;
+    private final int mColorTemperature;
+    private final int mDayColorTemperature;
+    private final int mNightColorTemperature;
+
+    private final boolean mAutoContrast;
+    private final boolean mAutoOutdoorMode;
+    private final boolean mCABC;
+    private final boolean mColorEnhancement;
+
+    private final float[] mColorAdjustment;
+    private final HSIC mPictureAdjustment;
+
+    public LiveDisplayState(int version, int mode, int colorTemperature,
+            int dayColorTemperature, int nightColorTemperature,
+            boolean autoContrast, boolean autoOutdoorMode, boolean cabc,
+            boolean colorEnhancement, float[] colorAdjustment, HSIC pictureAdjustment) {
+        mVersion = version;
+        mMode = mode;
+        mColorTemperature = colorTemperature;
+        mDayColorTemperature = dayColorTemperature;
+        mNightColorTemperature = nightColorTemperature;
+        mAutoContrast = autoContrast;
+        mAutoOutdoorMode = autoOutdoorMode;
+        mCABC = cabc;
+        mColorEnhancement = colorEnhancement;
+        mColorAdjustment = colorAdjustment != null
+                ? colorAdjustment.clone() : new float[] { 1.0f, 1.0f, 1.0f };
+        mPictureAdjustment = pictureAdjustment;
+    }
+
+    private LiveDisplayState(Parcel parcel) {
+        // Read parcelable version via the Concierge
+        ParcelInfo parcelInfo = Concierge.receiveParcel(parcel);
+        int parcelableVersion = parcelInfo.getParcelVersion();
+
+        // temp vars
+        int version = 0;
+        int mode = LiveDisplayManager.MODE_OFF;
+        int colorTemperature = -1;
+        int dayColorTemperature = -1;
+        int nightColorTemperature = -1;
+        boolean autoContrast = false;
+        boolean autoOutdoorMode = false;
+        boolean cabc = false;
+        boolean colorEnhancement = false;
+        float[] colorAdjustment = new float[] { 1.0f, 1.0f, 1.0f };
+        HSIC pictureAdjustment = null;
+
+        if (parcelableVersion >= Build.CM_VERSION_CODES.GUAVA) {
+            version = parcel.readInt();
+            mode = parcel.readInt();
+            colorTemperature = parcel.readInt();
+            dayColorTemperature = parcel.readInt();
+            nightColorTemperature = parcel.readInt();
+            autoContrast = parcel.readInt() == 1;
+            autoOutdoorMode = parcel.readInt() == 1;
+            cabc = parcel.readInt() == 1;
+            colorEnhancement = parcel.readInt() == 1;
+            colorAdjustment = parcel.createFloatArray();
+            if (parcel.readInt() != 0) {
+                pictureAdjustment = HSIC.CREATOR.createFromParcel(parcel);
+            }
+        }
+
+        // set temps
+        mVersion = version;
+        mMode = mode;
+        mColorTemperature = colorTemperature;
+        mDayColorTemperature = dayColorTemperature;
+        mNightColorTemperature = nightColorTemperature;
+        mAutoContrast = autoContrast;
+        mAutoOutdoorMode = autoOutdoorMode;
+        mCABC = cabc;
+        mColorEnhancement = colorEnhancement;
+        mColorAdjustment = colorAdjustment;
+        mPictureAdjustment = pictureAdjustment;
+
+        // Complete parcel info for the concierge
+        parcelInfo.complete();
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    public int getColorTemperature() {
+        return mColorTemperature;
+    }
+
+    public int getDayColorTemperature() {
+        return mDayColorTemperature;
+    }
+
+    public int getNightColorTemperature() {
+        return mNightColorTemperature;
+    }
+
+    public boolean isAutoContrastEnabled() {
+        return mAutoContrast;
+    }
+
+    public boolean isAutomaticOutdoorModeEnabled() {
+        return mAutoOutdoorMode;
+    }
+
+    public boolean isCABCEnabled() {
+        return mCABC;
+    }
+
+    public boolean isColorEnhancementEnabled() {
+        return mColorEnhancement;
+    }
+
+    public float[] getColorAdjustment() {
+        return mColorAdjustment.clone();
+    }
+
+    public HSIC getPictureAdjustment() {
+        return mPictureAdjustment;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("version=").append(mVersion);
+        sb.append(" mode=").append(mMode);
+        sb.append(" colorTemperature=").append(mColorTemperature);
+        sb.append(" dayColorTemperature=").append(mDayColorTemperature);
+        sb.append(" nightColorTemperature=").append(mNightColorTemperature);
+        sb.append(" autoContrast=").append(mAutoContrast);
+        sb.append(" autoOutdoorMode=").append(mAutoOutdoorMode);
+        sb.append(" cabc=").append(mCABC);
+        sb.append(" colorEnhancement=").append(mColorEnhancement);
+        sb.append(" colorAdjustment=").append(Arrays.toString(mColorAdjustment));
+        sb.append(" pictureAdjustment=").append(mPictureAdjustment);
+        return sb.toString();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        // Tell the concierge to prepare the parcel
+        ParcelInfo parcelInfo = Concierge.prepareParcel(out);
+
+        // ==== GUAVA =====
+        out.writeInt(mVersion);
+        out.writeInt(mMode);
+        out.writeInt(mColorTemperature);
+        out.writeInt(mDayColorTemperature);
+        out.writeInt(mNightColorTemperature);
+        out.writeInt(mAutoContrast ? 1 : 0);
+        out.writeInt(mAutoOutdoorMode ? 1 : 0);
+        out.writeInt(mCABC ? 1 : 0);
+        out.writeInt(mColorEnhancement ? 1 : 0);
+        out.writeFloatArray(mColorAdjustment);
+        if (mPictureAdjustment != null) {
+            out.writeInt(1);
+            mPictureAdjustment.writeToParcel(out, flags);
+        } else {
+            out.writeInt(0);
+        }
+
+        // Complete the parcel info for the concierge
+        parcelInfo.complete();
+    }
+
+    public static final Parcelable.Creator<LiveDisplayState> CREATOR =
+            new Parcelable.Creator<LiveDisplayState>() {
+        public LiveDisplayState createFromParcel(Parcel in) {
+            return new LiveDisplayState(in);
+        }
+
+        @Override
+        public LiveDisplayState[] newArray(int size) {
+            return new LiveDisplayState[size];
+        }
+    };
+}
@@ -90,6 +90,21 @@ public final class Concierge {
         return new ParcelInfo(parcel, PARCELABLE_VERSION);
     }
 
+    /**
+     * Prepare a parcel for the Concierge, laid out for a reader at an older parcelable version.
+     *
+     * MUST CALL {@link ParcelInfo#complete()} AFTER MARSHALLING.
+     *
+     * @param parcel Outgoing parcel to be marshalled
+     * @param parcelableVersion Version the parcel is written at, at most
+     *                          {@link #PARCELABLE_VERSION}
+     * @return {@link ParcelInfo} containing parcel information, specifically the version.
+     * @hide
+     */
+    public static ParcelInfo prepareParcel(Parcel parcel, int parcelableVersion) {
+        return new ParcelInfo(parcel, Math.min(parcelableVersion, PARCELABLE_VERSION));
+    }
+
     /**
      * Parcel header info specific to the Parcel object that is passed in via
      * {@link #prepareParcel(Parcel)} or {@link #receiveParcel(Parcel)}. The exposed method
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cyanogenmod.themes;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import cyanogenmod.os.Build;
+import cyanogenmod.os.Concierge;
+import cyanogenmod.os.Concierge.ParcelInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The work a {@link ThemeChangeRequest} would cause if it were applied now, as predicted by
+ * comparing it against the currently applied theme.
+ * See {@link ThemeManager#getThemeChangePlan(ThemeChangeRequest, boolean)}
+ */
+public final class ThemeChangePlan implements Parcelable {
+    private boolean mIncremental;
+    private List<String> mChangedComponents;
+    private Map<String, String> mChangedPerAppOverlays;
+    private boolean mRemovesPerAppThemes;
+    private boolean mRecompilesAllOverlays;
+    private List<String> mOverlayTargets;
+    private boolean mInvalidatesIconCache;
+
+    /** @hide */
+    public ThemeChangePlan(boolean incremental, List<String> changedComponents,
+            Map<String, String> changedPerAppOverlays, boolean removesPerAppThemes,
+            boolean recompilesAllOverlays, List<String> overlayTargets,
+            boolean invalidatesIconCache) {
+        mIncremental = incremental;
+        mChangedComponents = new ArrayList<>(changedComponents);
+        mChangedPerAppOverlays = new HashMap<>(changedPerAppOverlays);
+        mRemovesPerAppThemes = removesPerAppThemes;
+        mRecompilesAllOverlays = recompilesAllOverlays;
+        mOverlayTargets = new ArrayList<>(overlayTargets);
+        mInvalidatesIconCache = invalidatesIconCache;
+    }
+
+    private ThemeChangePlan(Parcel source) {
+        // Read parcelable version via the Concierge
+        ParcelInfo parcelInfo = Concierge.receiveParcel(source);
+        int parcelableVersion = parcelInfo.getParcelVersion();
+
+        mChangedComponents = new ArrayList<>();
+        mChangedPerAppOverlays = new HashMap<>();
+        mOverlayTargets = new ArrayList<>();
+        if (parcelableVersion >= Build.CM_VERSION_CODES.GUAVA) {
+            mIncremental = source.readInt() == 1;
+            source.readStringList(mChangedComponents);
+            int numOverlays = source.readInt();
+            for (int i = 0; i < numOverlays; i++) {
+                mChangedPerAppOverlays.put(source.readString(), source.readString());
+            }
+            mRemovesPerAppThemes = source.readInt() == 1;
+            mRecompilesAllOverlays = source.readInt() == 1;
+            source.readStringList(mOverlayTargets);
+            mInvalidatesIconCache = source.readInt() == 1;
+        }
+
+        // Complete parcel info for the concierge
+        parcelInfo.complete();
+    }
+
+    /**
+     * @return False if the request could not be compared against the current theme, in which
+     * case it will be applied in full and the rest of this plan lists everything it contains
+     */
+    public boolean isIncremental() {
+        return mIncremental;
+    }
+
+    /**
+     * @return True if applying the request would not change anything
+     */
+    public boolean isNoOp() {
+        return mIncremental && mChangedComponents.isEmpty() && mChangedPerAppOverlays.isEmpty()
+                && !mRemovesPerAppThemes;
+    }
+
+    /**
+     * @return The components, as in {@link ThemeChangeRequest#getThemeComponentsMap()}, which
+     * would change
+     */
+    public List<String> getChangedComponents() {
+        return Collections.unmodifiableList(mChangedComponents);
+    }
+
+    /**
+     * @return The per app overlays, as in {@link ThemeChangeRequest#getPerAppOverlays()}, which
+     * would change
+     */
+    public Map<String, String> getChangedPerAppOverlays() {
+        return Collections.unmodifiableMap(mChangedPerAppOverlays);
+    }
+
+    /**
+     * @return True if per app themes currently applied would be removed
+     */
+    public boolean removesPerAppThemes() {
+        return mRemovesPerAppThemes;
+    }
+
+    /**
+     * @return True if the overlays of every themed app would be recompiled
+     */
+    public boolean recompilesAllOverlays() {
+        return mRecompilesAllOverlays;
+    }
+
+    /**
+     * @return Packages whose overlays would be recompiled, in addition to all of them if
+     * {@link #recompilesAllOverlays()} is true
+     */
+    public List<String> getOverlayTargets() {
+        return Collections.unmodifiableList(mOverlayTargets);
+    }
+
+    /**
+     * @return True if the icon cache would be invalidated
+     */
+    public boolean invalidatesIconCache() {
+        return mInvalidatesIconCache;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        // Tell the concierge to prepare the parcel
+        ParcelInfo parcelInfo = Concierge.prepareParcel(dest);
+
+        // ==== GUAVA =====
+        dest.writeInt(mIncremental ? 1 : 0);
+        dest.writeStringList(mChangedComponents);
+        dest.writeInt(mChangedPerAppOverlays.size());
+        for (Map.Entry<String, String> entry : mChangedPerAppOverlays.entrySet()) {
+            dest.writeString(entry.getKey());
+            dest.writeString(entry.getValue());
+        }
+        dest.writeInt(mRemovesPerAppThemes ? 1 : 0);
+        dest.writeInt(mRecompilesAllOverlays ? 1 : 0);
+        dest.writeStringList(mOverlayTargets);
+        dest.writeInt(mInvalidatesIconCache ? 1 : 0);
+
+        // Complete the parcel info for the concierge
+        parcelInfo.complete();
+    }
+
+    public static final Parcelable.Creator<ThemeChangePlan> CREATOR =
+            new Parcelable.Creator<ThemeChangePlan>() {
+                @Override
+                public ThemeChangePlan createFromParcel(Parcel source) {
+                    return new ThemeChangePlan(source);
+                }
+
+                @Override
+                public ThemeChangePlan[] newArray(int size) {
+                    return new ThemeChangePlan[size];
+                }
+            };
+
+    @Override
+    public String toString() {
+        return "ThemeChangePlan{incremental=" + mIncremental
+                + " changedComponents=" + mChangedComponents
+                + " changedPerAppOverlays=" + mChangedPerAppOverlays
+                + " removesPerAppThemes=" + mRemovesPerAppThemes
+                + " recompilesAllOverlays=" + mRecompilesAllOverlays
+                + " overlayTargets=" + mOverlayTargets
+                + " invalidatesIconCache=" + mInvalidatesIconCache + "}";
+    }
+}
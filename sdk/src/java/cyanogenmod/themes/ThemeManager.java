@@ -22,17 +22,15 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.RemoteException;
 import android.os.ServiceManager;
-import android.util.ArraySet;
 import android.util.Log;
 
 import cyanogenmod.app.CMContextConstants;
 import cyanogenmod.themes.ThemeChangeRequest.RequestType;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Manages changing and applying of themes.
@@ -44,9 +42,33 @@ public class ThemeManager {
     private static ThemeManager sInstance;
     private static Handler mHandler;
 
-    private Set<ThemeChangeListener> mChangeListeners = new ArraySet<>();
+    /**
+     * The overlay cache of the target was rebuilt
+     * @hide
+     */
+    public static final int TARGET_RESULT_PROCESSED = 0;
+    /**
+     * The overlay cache of the target was already built from the current theme and target
+     * @hide
+     */
+    public static final int TARGET_RESULT_SKIPPED = 1;
+    /**
+     * The overlay cache of the target could not be built
+     * @hide
+     */
+    public static final int TARGET_RESULT_FAILED = 2;
+
+    // Listeners are called without holding a lock, registration synchronizes on the list
+    private final List<ThemeChangeListener> mChangeListeners = new CopyOnWriteArrayList<>();
 
-    private Set<ThemeProcessingListener> mProcessingListeners = new ArraySet<>();
+    private final List<ThemeProcessingListener> mProcessingListeners =
+            new CopyOnWriteArrayList<>();
+
+    // Progress which arrives faster than the main thread gets to it is coalesced, only the
+    // latest value is delivered
+    private final Object mProgressLock = new Object();
+    private int mPendingProgress;
+    private boolean mProgressPosted;
 
     private ThemeManager(Context context) {
         sService = getService();
@@ -80,30 +102,36 @@ public class ThemeManager {
         return null;
     }
 
+    private final Runnable mDeliverProgress = new Runnable() {
+        @Override
+        public void run() {
+            final int progress;
+            synchronized (mProgressLock) {
+                progress = mPendingProgress;
+                mProgressPosted = false;
+            }
+            for (ThemeChangeListener listener : mChangeListeners) {
+                try {
+                    listener.onProgress(progress);
+                } catch (Throwable e) {
+                    Log.w(TAG, "Unable to update theme change progress", e);
+                    mChangeListeners.remove(listener);
+                }
+            }
+        }
+    };
+
     private final IThemeChangeListener mThemeChangeListener = new IThemeChangeListener.Stub() {
         @Override
         public void onProgress(final int progress) throws RemoteException {
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    synchronized (mChangeListeners) {
-                        List<ThemeChangeListener> listenersToRemove = new ArrayList<>();
-                        for (ThemeChangeListener listener : mChangeListeners) {
-                            try {
-                                listener.onProgress(progress);
-                            } catch (Throwable e) {
-                                Log.w(TAG, "Unable to update theme change progress", e);
-                                listenersToRemove.add(listener);
-                            }
-                        }
-                        if (listenersToRemove.size() > 0) {
-                            for (ThemeChangeListener listener : listenersToRemove) {
-                                mChangeListeners.remove(listener);
-                            }
-                        }
-                    }
+            synchronized (mProgressLock) {
+                mPendingProgress = progress;
+                if (mProgressPosted) {
+                    return;
                 }
-            });
+                mProgressPosted = true;
+            }
+            mHandler.post(mDeliverProgress);
         }
 
         @Override
@@ -111,20 +139,12 @@ public class ThemeManager {
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    synchronized (mChangeListeners) {
-                        List<ThemeChangeListener> listenersToRemove = new ArrayList<>();
-                        for (ThemeChangeListener listener : mChangeListeners) {
-                            try {
-                                listener.onFinish(isSuccess);
-                            } catch (Throwable e) {
-                                Log.w(TAG, "Unable to update theme change listener", e);
-                                listenersToRemove.add(listener);
-                            }
-                        }
-                        if (listenersToRemove.size() > 0) {
-                            for (ThemeChangeListener listener : listenersToRemove) {
-                                mChangeListeners.remove(listener);
-                            }
+                    for (ThemeChangeListener listener : mChangeListeners) {
+                        try {
+                            listener.onFinish(isSuccess);
+                        } catch (Throwable e) {
+                            Log.w(TAG, "Unable to update theme change listener", e);
+                            mChangeListeners.remove(listener);
                         }
                     }
                 }
@@ -139,20 +159,12 @@ public class ThemeManager {
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    synchronized (mProcessingListeners) {
-                        List<ThemeProcessingListener> listenersToRemove = new ArrayList<>();
-                        for (ThemeProcessingListener listener : mProcessingListeners) {
-                            try {
-                                listener.onFinishedProcessing(pkgName);
-                            } catch (Throwable e) {
-                                Log.w(TAG, "Unable to update theme change progress", e);
-                                listenersToRemove.add(listener);
-                            }
-                        }
-                        if (listenersToRemove.size() > 0) {
-                            for (ThemeProcessingListener listener : listenersToRemove) {
-                                mProcessingListeners.remove(listener);
-                            }
+                    for (ThemeProcessingListener listener : mProcessingListeners) {
+                        try {
+                            listener.onFinishedProcessing(pkgName);
+                        } catch (Throwable e) {
+                            Log.w(TAG, "Unable to update theme change progress", e);
+                            mProcessingListeners.remove(listener);
                         }
                     }
                 }
@@ -308,6 +320,26 @@ public class ThemeManager {
         }
     }
 
+    /**
+     * Predicts the work applying the given request would cause, by comparing it against the
+     * currently applied theme, without applying anything. Components which are already
+     * applied are skipped when a request is applied, so a request whose plan is a
+     * {@link ThemeChangePlan#isNoOp() no-op} finishes right away. Wallpapers, lock screens
+     * and audibles can be changed outside of themes and are always applied.
+     * @param request The {@link ThemeChangeRequest} to plan
+     * @param removePerAppThemes Whether per app themes would be removed
+     * @return The {@link ThemeChangePlan} for the request, or null if it can't be computed
+     */
+    public ThemeChangePlan getThemeChangePlan(ThemeChangeRequest request,
+            boolean removePerAppThemes) {
+        try {
+            return sService.getThemeChangePlan(request, removePerAppThemes);
+        } catch (RemoteException e) {
+            logThemeServiceException(e);
+        }
+        return null;
+    }
+
     public void applyDefaultTheme() {
         try {
             sService.applyDefaultTheme();
@@ -353,6 +385,55 @@ public class ThemeManager {
         return false;
     }
 
+    /**
+     * Prepares the overlay cache of a theme for the given targets, skipping those whose cache
+     * is already current. Targets are only processed in parallel if the theme service can
+     * process a single target; otherwise the whole theme is processed once.
+     *
+     * @param themePkgName The theme to process
+     * @param targetPkgNames Packages to process the theme for, or null for all packages
+     * @param listener Notified on the main thread as each target is done, may be null
+     * @return A handle to the job, or null if it could not be started
+     * @hide
+     */
+    public ProcessingJob processThemeTargets(String themePkgName, List<String> targetPkgNames,
+            final TargetProcessingListener listener) {
+        IThemeTargetProcessingListener callback = null;
+        if (listener != null) {
+            callback = new IThemeTargetProcessingListener.Stub() {
+                @Override
+                public void onTargetProcessed(final String targetPkgName, final int result)
+                        throws RemoteException {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onTargetProcessed(targetPkgName, result);
+                        }
+                    });
+                }
+
+                @Override
+                public void onJobFinished(final int processed, final int skipped,
+                        final int failed, final boolean cancelled) throws RemoteException {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onJobFinished(processed, skipped, failed, cancelled);
+                        }
+                    });
+                }
+            };
+        }
+
+        try {
+            int jobId = sService.processThemeTargets(themePkgName, targetPkgNames, callback);
+            return jobId >= 0 ? new ProcessingJob(jobId) : null;
+        } catch (RemoteException e) {
+            logThemeServiceException(e);
+        }
+        return null;
+    }
+
     public long getLastThemeChangeTime() {
         try {
             return sService.getLastThemeChangeTime();
@@ -387,5 +468,45 @@ public class ThemeManager {
     public interface ThemeProcessingListener {
         void onFinishedProcessing(String pkgName);
     }
+
+    /** @hide */
+    public interface TargetProcessingListener {
+        /**
+         * @param result One of {@link #TARGET_RESULT_PROCESSED}, {@link #TARGET_RESULT_SKIPPED}
+         * or {@link #TARGET_RESULT_FAILED}
+         */
+        void onTargetProcessed(String targetPkgName, int result);
+        void onJobFinished(int processed, int skipped, int failed, boolean cancelled);
+    }
+
+    /**
+     * Handle to a job started by
+     * {@link ThemeManager#processThemeTargets(String, List, TargetProcessingListener)}
+     * @hide
+     */
+    public static final class ProcessingJob {
+        private final int mId;
+
+        private ProcessingJob(int id) {
+            mId = id;
+        }
+
+        public int getId() {
+            return mId;
+        }
+
+        /**
+         * Stops the job from processing targets it hasn't started on yet.
+         * @return False if the job already finished or was cancelled
+         */
+        public boolean cancel() {
+            try {
+                return sService.cancelThemeProcessing(mId);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Unable to access ThemeService", e);
+            }
+            return false;
+        }
+    }
 }
 
@@ -20,12 +20,18 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.LruCache;
 import android.util.MathUtils;
 
 import com.android.internal.util.cm.palette.Palette;
 
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Map;
 
 /**
  * Helper class for colorspace conversions, and color-related
@@ -38,6 +44,29 @@ public class ColorUtils {
         Color.BLUE, Color.MAGENTA, Color.WHITE, Color.BLACK
     };
 
+    // Palette only needs a coarse sample of the icon to find the dominant colors
+    private static final int ALERT_COLOR_SAMPLE_SIZE = 32;
+
+    private static final int ALERT_COLOR_CACHE_SIZE = 64;
+
+    private static final LruCache<String, Integer> sAlertColorCache =
+            new LruCache<String, Integer>(ALERT_COLOR_CACHE_SIZE);
+
+    private static Handler sAlertColorHandler;
+
+    /**
+     * Interface definition for a callback to be invoked when an alert color
+     * has been generated by {@link #generateAlertColorFromDrawableAsync}
+     */
+    public interface OnAlertColorGeneratedListener {
+        /**
+         * Called when the alert color is available
+         *
+         * @param alertColor the generated solid color
+         */
+        void onAlertColorGenerated(int alertColor);
+    }
+
     /**
      * Drop the alpha component from an RGBA packed int and return
      * a non sign-extended RGB int.
@@ -261,48 +290,189 @@ public class ColorUtils {
      * @return a suitable solid color which corresponds to the image
      */
     public static int generateAlertColorFromDrawable(Drawable drawable) {
-        int alertColor = Color.BLACK;
-        Bitmap bitmap = null;
-
         if (drawable == null) {
-            return alertColor;
+            return Color.BLACK;
         }
 
-        if (drawable instanceof BitmapDrawable) {
-            bitmap = ((BitmapDrawable) drawable).getBitmap();
-        } else {
-            int width = drawable.getIntrinsicWidth();
-            int height = drawable.getIntrinsicHeight();
-            bitmap = Bitmap.createBitmap(Math.max(1, width),
-                                         Math.max(1, height),
-                                         Bitmap.Config.ARGB_8888);
-            Canvas canvas = new Canvas(bitmap);
-            drawable.draw(canvas);
+        final Bitmap sample = createAlertColorSample(drawable);
+        final int alertColor = generateAlertColorFromSample(sample);
+        recycleAlertColorSample(drawable, sample);
+        return alertColor;
+    }
+
+    /**
+     * Same as {@link #generateAlertColorFromDrawable(Drawable)}, but the result
+     * is cached by package and icon so repeated notifications from the same
+     * app don't need to run Palette again.
+     *
+     * @param packageName The package which owns the drawable
+     * @param iconKey The resource id of the icon, or the generation id of its bitmap
+     * @param drawable The drawable to generate a color for
+     * @return a suitable solid color which corresponds to the image
+     */
+    public static int generateAlertColorFromDrawable(String packageName, int iconKey,
+            Drawable drawable) {
+        final String key = getAlertColorKey(packageName, iconKey);
+        final Integer cached = sAlertColorCache.get(key);
+        if (cached != null) {
+            return cached;
         }
 
-        if (bitmap != null) {
-            Palette p = Palette.from(bitmap).generate();
-            if (p == null) {
-                return alertColor;
-            }
+        final int alertColor = generateAlertColorFromDrawable(drawable);
+        if (drawable != null) {
+            sAlertColorCache.put(key, alertColor);
+        }
+        return alertColor;
+    }
+
+    /**
+     * Asynchronous version of {@link #generateAlertColorFromDrawable(String, int, Drawable)}.
+     * If the color is already cached, the listener is called immediately on the
+     * calling thread. Otherwise the drawable is sampled on the calling thread and
+     * the color is extracted in the background, and the listener is called on the
+     * looper of the calling thread (or the main looper if there is none).
+     *
+     * @param packageName The package which owns the drawable
+     * @param iconKey The resource id of the icon, or the generation id of its bitmap
+     * @param drawable The drawable to generate a color for
+     * @param listener The listener to deliver the color to
+     */
+    public static void generateAlertColorFromDrawableAsync(String packageName, int iconKey,
+            Drawable drawable, final OnAlertColorGeneratedListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener cannot be null");
+        }
+
+        final String key = getAlertColorKey(packageName, iconKey);
+        final Integer cached = sAlertColorCache.get(key);
+        if (cached != null) {
+            listener.onAlertColorGenerated(cached);
+            return;
+        }
+
+        if (drawable == null) {
+            listener.onAlertColorGenerated(Color.BLACK);
+            return;
+        }
+
+        // Drawables are not thread safe, so rasterize the (small) sample here
+        // and only hand the Palette work off to the background thread.
+        final Bitmap sample = createAlertColorSample(drawable);
+        final Bitmap ownedSample = sample == getDrawableBitmap(drawable)
+                ? sample.copy(sample.getConfig(), false) : sample;
 
-            // First try the dominant color
-            final Palette.Swatch dominantSwatch = getDominantSwatch(p);
-            int iconColor = alertColor;
-            if (dominantSwatch != null) {
-                iconColor = dominantSwatch.getRgb();
-                alertColor = findPerceptuallyNearestSolidColor(iconColor);
+        final Looper looper = Looper.myLooper();
+        final Handler resultHandler = new Handler(looper != null ? looper : Looper.getMainLooper());
+        getAlertColorHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                final int alertColor = generateAlertColorFromSample(ownedSample);
+                ownedSample.recycle();
+                sAlertColorCache.put(key, alertColor);
+                resultHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onAlertColorGenerated(alertColor);
+                    }
+                });
             }
+        });
+    }
 
-            // Try the most saturated color if we got white or black (boring)
-            if (alertColor == Color.BLACK || alertColor == Color.WHITE) {
-                iconColor = p.getVibrantColor(Color.WHITE);
-                alertColor = findPerceptuallyNearestSolidColor(iconColor);
+    /**
+     * Removes all cached alert colors for the given package. This should be
+     * called when the package is updated or removed, since resource ids may
+     * then refer to different icons.
+     *
+     * @param packageName The package to invalidate
+     */
+    public static void invalidateAlertColors(String packageName) {
+        final String prefix = packageName + ":";
+        for (Map.Entry<String, Integer> entry : sAlertColorCache.snapshot().entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                sAlertColorCache.remove(entry.getKey());
             }
+        }
+    }
 
-            if (!(drawable instanceof BitmapDrawable)) {
-                bitmap.recycle();
+    private static String getAlertColorKey(String packageName, int iconKey) {
+        return packageName + ":" + iconKey;
+    }
+
+    private static synchronized Handler getAlertColorHandler() {
+        if (sAlertColorHandler == null) {
+            HandlerThread thread = new HandlerThread("AlertColor",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sAlertColorHandler = new Handler(thread.getLooper());
+        }
+        return sAlertColorHandler;
+    }
+
+    private static Bitmap getDrawableBitmap(Drawable drawable) {
+        return drawable instanceof BitmapDrawable ? ((BitmapDrawable) drawable).getBitmap() : null;
+    }
+
+    /**
+     * Produces a bitmap no larger than ALERT_COLOR_SAMPLE_SIZE in either dimension.
+     * The bitmap of a small BitmapDrawable is returned as-is.
+     */
+    private static Bitmap createAlertColorSample(Drawable drawable) {
+        final Bitmap source = getDrawableBitmap(drawable);
+        final int width = Math.max(1,
+                source != null ? source.getWidth() : drawable.getIntrinsicWidth());
+        final int height = Math.max(1,
+                source != null ? source.getHeight() : drawable.getIntrinsicHeight());
+        final float scale = Math.min(1.0f,
+                (float) ALERT_COLOR_SAMPLE_SIZE / Math.max(width, height));
+        final int sampleWidth = Math.max(1, Math.round(width * scale));
+        final int sampleHeight = Math.max(1, Math.round(height * scale));
+
+        if (source != null) {
+            if (scale == 1.0f) {
+                return source;
             }
+            return Bitmap.createScaledBitmap(source, sampleWidth, sampleHeight, true);
+        }
+
+        final Bitmap sample = Bitmap.createBitmap(sampleWidth, sampleHeight,
+                Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(sample);
+        canvas.scale((float) sampleWidth / width, (float) sampleHeight / height);
+        drawable.draw(canvas);
+        return sample;
+    }
+
+    private static void recycleAlertColorSample(Drawable drawable, Bitmap sample) {
+        if (sample != null && sample != getDrawableBitmap(drawable)) {
+            sample.recycle();
+        }
+    }
+
+    private static int generateAlertColorFromSample(Bitmap bitmap) {
+        int alertColor = Color.BLACK;
+
+        if (bitmap == null) {
+            return alertColor;
+        }
+
+        Palette p = Palette.from(bitmap).generate();
+        if (p == null) {
+            return alertColor;
+        }
+
+        // First try the dominant color
+        final Palette.Swatch dominantSwatch = getDominantSwatch(p);
+        int iconColor = alertColor;
+        if (dominantSwatch != null) {
+            iconColor = dominantSwatch.getRgb();
+            alertColor = findPerceptuallyNearestSolidColor(iconColor);
+        }
+
+        // Try the most saturated color if we got white or black (boring)
+        if (alertColor == Color.BLACK || alertColor == Color.WHITE) {
+            iconColor = p.getVibrantColor(Color.WHITE);
+            alertColor = findPerceptuallyNearestSolidColor(iconColor);
         }
 
         return alertColor;
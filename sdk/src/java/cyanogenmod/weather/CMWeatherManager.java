@@ -24,6 +24,8 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
 import cyanogenmod.app.CMContextConstants;
@@ -45,8 +47,8 @@ public class CMWeatherManager {
     private static ICMWeatherManager sWeatherManagerService;
     private static CMWeatherManager sInstance;
     private Context mContext;
-    private Map<RequestInfo,WeatherUpdateRequestListener> mWeatherUpdateRequestListeners
-            = Collections.synchronizedMap(new HashMap<RequestInfo,WeatherUpdateRequestListener>());
+    private final ArrayMap<String, PendingWeatherRequest> mPendingWeatherRequests
+            = new ArrayMap<>();
     private Map<RequestInfo,LookupCityRequestListener> mLookupNameRequestListeners
             = Collections.synchronizedMap(new HashMap<RequestInfo,LookupCityRequestListener>());
     private Handler mHandler;
@@ -54,6 +56,24 @@ public class CMWeatherManager {
 
     private static final String TAG = CMWeatherManager.class.getSimpleName();
 
+    // A request the service never answered stops absorbing new ones after this long
+    private static final long PENDING_REQUEST_TIMEOUT_MS = 60 * 1000;
+
+    /**
+     * A request submitted to the weather service on behalf of every equivalent request
+     * made by this process while it was in flight
+     */
+    private static final class PendingWeatherRequest {
+        final RequestInfo requestInfo;
+        final long submitTime;
+        // Listeners by the request id returned to the caller
+        final ArrayMap<Integer, WeatherUpdateRequestListener> listeners = new ArrayMap<>();
+
+        PendingWeatherRequest(RequestInfo requestInfo) {
+            this.requestInfo = requestInfo;
+            this.submitTime = SystemClock.elapsedRealtime();
+        }
+    }
 
     /**
      * The different request statuses
@@ -149,9 +169,7 @@ public class CMWeatherManager {
                     .setLocation(location)
                     .setTemperatureUnit(tempUnit)
                     .build();
-            if (listener != null) mWeatherUpdateRequestListeners.put(info, listener);
-            sWeatherManagerService.updateWeather(info);
-            return info.hashCode();
+            return submitWeatherRequest(info, listener);
         } catch (RemoteException e) {
             return -1;
         }
@@ -187,14 +205,50 @@ public class CMWeatherManager {
                     .setWeatherLocation(weatherLocation)
                     .setTemperatureUnit(tempUnit)
                     .build();
-            if (listener != null) mWeatherUpdateRequestListeners.put(info, listener);
-            sWeatherManagerService.updateWeather(info);
-            return info.hashCode();
+            return submitWeatherRequest(info, listener);
         } catch (RemoteException e) {
             return -1;
         }
     }
 
+    /**
+     * Joins the request to an equivalent one already in flight from this process, or
+     * submits it to the weather service. Returns the id identifying the caller's request.
+     */
+    private int submitWeatherRequest(RequestInfo info, WeatherUpdateRequestListener listener)
+            throws RemoteException {
+        final int requestId = info.hashCode();
+        final String key = info.getDeduplicationKey();
+        final PendingWeatherRequest pending;
+        synchronized (mPendingWeatherRequests) {
+            PendingWeatherRequest inFlight = mPendingWeatherRequests.get(key);
+            if (inFlight != null && SystemClock.elapsedRealtime() - inFlight.submitTime
+                    < PENDING_REQUEST_TIMEOUT_MS) {
+                inFlight.listeners.put(requestId, listener);
+                return requestId;
+            }
+            pending = new PendingWeatherRequest(info);
+            if (inFlight != null) {
+                // Never answered, let the new request deliver to those still waiting
+                pending.listeners.putAll(inFlight.listeners);
+            }
+            pending.listeners.put(requestId, listener);
+            mPendingWeatherRequests.put(key, pending);
+        }
+
+        try {
+            sWeatherManagerService.updateWeather(info);
+        } catch (RemoteException e) {
+            synchronized (mPendingWeatherRequests) {
+                if (mPendingWeatherRequests.get(key) == pending) {
+                    mPendingWeatherRequests.remove(key);
+                }
+            }
+            throw e;
+        }
+        return requestId;
+    }
+
     /**
      * Request the active weather provider service to lookup the supplied city name.
      *
@@ -233,6 +287,23 @@ public class CMWeatherManager {
             return;
         }
 
+        synchronized (mPendingWeatherRequests) {
+            for (int i = 0; i < mPendingWeatherRequests.size(); i++) {
+                final PendingWeatherRequest pending = mPendingWeatherRequests.valueAt(i);
+                if (!pending.listeners.containsKey(requestId)) {
+                    continue;
+                }
+                pending.listeners.remove(requestId);
+                if (!pending.listeners.isEmpty()) {
+                    // Others in this process still want the result
+                    return;
+                }
+                mPendingWeatherRequests.removeAt(i);
+                requestId = pending.requestInfo.hashCode();
+                break;
+            }
+        }
+
         try {
             sWeatherManagerService.cancelRequest(requestId);
         }catch (RemoteException e){
@@ -334,16 +405,27 @@ public class CMWeatherManager {
         @Override
         public void onWeatherRequestCompleted(final RequestInfo requestInfo, final int status,
                 final WeatherInfo weatherInfo) {
-            final WeatherUpdateRequestListener listener
-                    = mWeatherUpdateRequestListeners.remove(requestInfo);
-            if (listener != null) {
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        listener.onWeatherRequestCompleted(status, weatherInfo);
-                    }
-                });
+            final PendingWeatherRequest pending;
+            synchronized (mPendingWeatherRequests) {
+                final String key = requestInfo.getDeduplicationKey();
+                pending = mPendingWeatherRequests.get(key);
+                if (pending == null || !pending.requestInfo.equals(requestInfo)) {
+                    return;
+                }
+                mPendingWeatherRequests.remove(key);
             }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < pending.listeners.size(); i++) {
+                        final WeatherUpdateRequestListener listener
+                                = pending.listeners.valueAt(i);
+                        if (listener != null) {
+                            listener.onWeatherRequestCompleted(status, weatherInfo);
+                        }
+                    }
+                }
+            });
         }
 
         @Override
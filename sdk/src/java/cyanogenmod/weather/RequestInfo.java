@@ -41,6 +41,8 @@ public final class RequestInfo implements Parcelable {
     private int mTempUnit;
     private String mKey;
     private boolean mIsQueryOnly;
+    // Parcelable version of the parcel this request was read from, 0 if it wasn't
+    private int mParcelVersion;
 
     /**
      * A request to update the weather data using a geographical {@link android.location.Location}
@@ -56,6 +58,12 @@ public final class RequestInfo implements Parcelable {
      */
     public static final int TYPE_LOOKUP_CITY_NAME_REQ = 3;
 
+    /**
+     * Size in degrees of the grid cells geographical requests are grouped into when
+     * looking for equivalent requests. Roughly 2km at the equator.
+     */
+    private static final double GEO_CELL_SIZE_DEGREES = 0.02;
+
     private RequestInfo() {}
 
     /* package */ static class Builder {
@@ -191,6 +199,7 @@ public final class RequestInfo implements Parcelable {
         // Read parcelable version via the Concierge
         ParcelInfo parcelInfo = Concierge.receiveParcel(parcel);
         int parcelableVersion = parcelInfo.getParcelVersion();
+        mParcelVersion = parcelableVersion;
 
         if (parcelableVersion >= Build.CM_VERSION_CODES.ELDERBERRY) {
             mKey = parcel.readString();
@@ -247,6 +256,65 @@ public final class RequestInfo implements Parcelable {
         return mListener;
     }
 
+    /**
+     * @return the parcelable version of the SDK that sent this request, or 0 if it was not
+     * read from a parcel. Results are parceled so that this version can read them.
+     * @hide
+     */
+    public int getParcelVersion() {
+        return mParcelVersion;
+    }
+
+    /**
+     * Returns a key shared by all the weather requests which would produce the same
+     * result, so they can be served by a single request to the weather provider.
+     * Geographical requests are grouped by grid cell. Returns null for lookup requests.
+     * @hide
+     */
+    public String getDeduplicationKey() {
+        StringBuilder builder = new StringBuilder();
+        switch (mRequestType) {
+            case TYPE_WEATHER_BY_GEO_LOCATION_REQ:
+                builder.append("geo:")
+                        .append(toGeoCell(mLocation.getLatitude()))
+                        .append(',')
+                        .append(toGeoCell(mLocation.getLongitude()));
+                break;
+            case TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+                builder.append("loc:").append(mWeatherLocation.getCityId())
+                        .append('|').append(mWeatherLocation.getCity())
+                        .append('|').append(mWeatherLocation.getPostalCode())
+                        .append('|').append(mWeatherLocation.getCountryId());
+                break;
+            default:
+                return null;
+        }
+        return builder.append(";unit=").append(mTempUnit)
+                .append(";query=").append(mIsQueryOnly).toString();
+    }
+
+    private static long toGeoCell(double degrees) {
+        return (long) Math.floor(degrees / GEO_CELL_SIZE_DEGREES);
+    }
+
+    /**
+     * Returns a copy of this request, with a key of its own, which reports its result to the
+     * supplied listener instead. Cancelling either request leaves the other one alone.
+     * @hide
+     */
+    public RequestInfo copyWithRequestListener(IRequestInfoListener listener) {
+        RequestInfo info = new RequestInfo();
+        info.mListener = listener;
+        info.mRequestType = mRequestType;
+        info.mCityName = mCityName;
+        info.mWeatherLocation = mWeatherLocation;
+        info.mLocation = mLocation != null ? new Location(mLocation) : null;
+        info.mTempUnit = mTempUnit;
+        info.mIsQueryOnly = mIsQueryOnly;
+        info.mKey = UUID.randomUUID().toString();
+        return info;
+    }
+
     /**
      * @return the city name if this is a lookup request, null otherwise
      */
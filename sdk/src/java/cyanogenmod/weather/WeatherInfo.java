@@ -28,6 +28,7 @@ import cyanogenmod.weatherservice.ServiceRequest;
 import cyanogenmod.weatherservice.ServiceRequestResult;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 
@@ -54,9 +55,16 @@ public final class WeatherInfo implements Parcelable {
     private double mWindDirection;
     private int mWindSpeedUnit;
     private long mTimestamp;
-    private List<DayForecast> mForecastList;
     private String mKey;
 
+    // At least one of these is set. Forecasts read from a parcel stay in columnar form
+    // until someone asks for them, and the columns are kept around for re-parceling.
+    private volatile List<DayForecast> mForecastList;
+    private volatile ForecastColumns mForecastColumns;
+
+    // Parcelable version of whoever reads this object's parcels, 0 if that's the platform
+    private int mReaderParcelVersion;
+
     private WeatherInfo() {}
 
     /**
@@ -222,7 +230,8 @@ public final class WeatherInfo implements Parcelable {
             info.mWindDirection = this.mWindDirection;
             info.mWindSpeedUnit = this.mWindSpeedUnit;
             info.mTimestamp = this.mTimestamp == -1 ? System.currentTimeMillis() : this.mTimestamp;
-            info.mForecastList = this.mForecastList;
+            info.mForecastList = Collections.unmodifiableList(
+                    new ArrayList<>(this.mForecastList));
             info.mTodaysHighTemp = this.mTodaysHighTemp;
             info.mTodaysLowTemp = this.mTodaysLowTemp;
             info.mKey = UUID.randomUUID().toString();
@@ -341,10 +350,53 @@ public final class WeatherInfo implements Parcelable {
     /**
      * @return List of {@link cyanogenmod.weather.WeatherInfo.DayForecast}. This list will contain
      * the forecast weather for the upcoming days. If you want to know today's high and low
-     * temperatures, use {@link WeatherInfo#getTodaysHigh()} and {@link WeatherInfo#getTodaysLow()}
+     * temperatures, use {@link WeatherInfo#getTodaysHigh()} and {@link WeatherInfo#getTodaysLow()}.
+     * The returned list can't be modified.
      */
     public List<DayForecast> getForecasts() {
-        return new ArrayList<>(mForecastList);
+        List<DayForecast> forecasts = mForecastList;
+        if (forecasts == null) {
+            forecasts = mForecastColumns.toList();
+            mForecastList = forecasts;
+        }
+        return forecasts;
+    }
+
+    private ForecastColumns getForecastColumns() {
+        ForecastColumns columns = mForecastColumns;
+        if (columns == null) {
+            columns = ForecastColumns.fromList(mForecastList);
+            mForecastColumns = columns;
+        }
+        return columns;
+    }
+
+    /**
+     * Returns a WeatherInfo sharing this object's data, whose parcels can be read by a reader
+     * built against the given parcelable version.
+     * @hide
+     */
+    public WeatherInfo forParcelVersion(int parcelVersion) {
+        if (parcelVersion == mReaderParcelVersion) {
+            return this;
+        }
+        WeatherInfo info = new WeatherInfo();
+        info.mKey = mKey;
+        info.mCity = mCity;
+        info.mConditionCode = mConditionCode;
+        info.mTemperature = mTemperature;
+        info.mTempUnit = mTempUnit;
+        info.mHumidity = mHumidity;
+        info.mWindSpeed = mWindSpeed;
+        info.mWindDirection = mWindDirection;
+        info.mWindSpeedUnit = mWindSpeedUnit;
+        info.mTodaysHighTemp = mTodaysHighTemp;
+        info.mTodaysLowTemp = mTodaysLowTemp;
+        info.mTimestamp = mTimestamp;
+        info.mForecastList = mForecastList;
+        info.mForecastColumns = mForecastColumns;
+        info.mReaderParcelVersion = parcelVersion;
+        return info;
     }
 
     private WeatherInfo(Parcel parcel) {
@@ -366,13 +418,23 @@ public final class WeatherInfo implements Parcelable {
             mTodaysLowTemp = parcel.readDouble();
             mTimestamp = parcel.readLong();
             int forecastListSize = parcel.readInt();
-            mForecastList = new ArrayList<>();
-            while (forecastListSize > 0) {
-                mForecastList.add(DayForecast.CREATOR.createFromParcel(parcel));
-                forecastListSize--;
+            if (parcelableVersion < Build.CM_VERSION_CODES.GUAVA) {
+                List<DayForecast> forecasts = new ArrayList<>(forecastListSize);
+                while (forecastListSize > 0) {
+                    forecasts.add(DayForecast.CREATOR.createFromParcel(parcel));
+                    forecastListSize--;
+                }
+                mForecastList = Collections.unmodifiableList(forecasts);
             }
         }
 
+        if (parcelableVersion >= Build.CM_VERSION_CODES.GUAVA) {
+            // The legacy forecast count is zero, the forecasts come in columnar form
+            mForecastColumns = ForecastColumns.readFromParcel(parcel);
+        } else if (mForecastList == null) {
+            mForecastList = Collections.emptyList();
+        }
+
         // Complete parcel info for the concierge
         parcelInfo.complete();
     }
@@ -384,8 +446,14 @@ public final class WeatherInfo implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
+        // Readers older than GUAVA only understand one DayForecast parcel per forecast
+        final int readerVersion = mReaderParcelVersion != 0
+                ? mReaderParcelVersion : Build.CM_VERSION.SDK_INT;
+        final boolean writeColumns = readerVersion >= Build.CM_VERSION_CODES.GUAVA;
+
         // Tell the concierge to prepare the parcel
-        ParcelInfo parcelInfo = Concierge.prepareParcel(dest);
+        ParcelInfo parcelInfo = writeColumns ? Concierge.prepareParcel(dest)
+                : Concierge.prepareParcel(dest, Build.CM_VERSION_CODES.FIG);
 
         // ==== ELDERBERRY =====
         dest.writeString(mKey);
@@ -400,9 +468,18 @@ public final class WeatherInfo implements Parcelable {
         dest.writeDouble(mTodaysHighTemp);
         dest.writeDouble(mTodaysLowTemp);
         dest.writeLong(mTimestamp);
-        dest.writeInt(mForecastList.size());
-        for (DayForecast dayForecast : mForecastList) {
-            dayForecast.writeToParcel(dest, 0);
+        if (writeColumns) {
+            // An older reader handed this parcel by mistake sees no forecasts
+            dest.writeInt(0);
+
+            // ==== GUAVA =====
+            getForecastColumns().writeToParcel(dest);
+        } else {
+            List<DayForecast> forecasts = getForecasts();
+            dest.writeInt(forecasts.size());
+            for (DayForecast forecast : forecasts) {
+                forecast.writeToParcel(dest, 0);
+            }
         }
 
         // Complete parcel info for the concierge
@@ -423,6 +500,113 @@ public final class WeatherInfo implements Parcelable {
                 }
             };
 
+    /**
+     * The forecasts as primitive arrays, which parcel without a header per forecast. Keys
+     * are stored as the two halves of their UUID unless one isn't a canonical UUID string.
+     */
+    private static final class ForecastColumns {
+        final double[] lows;
+        final double[] highs;
+        final int[] conditionCodes;
+        final long[] keysMostSigBits;
+        final long[] keysLeastSigBits;
+        final String[] keys;
+
+        private ForecastColumns(double[] lows, double[] highs, int[] conditionCodes,
+                long[] keysMostSigBits, long[] keysLeastSigBits, String[] keys) {
+            this.lows = lows;
+            this.highs = highs;
+            this.conditionCodes = conditionCodes;
+            this.keysMostSigBits = keysMostSigBits;
+            this.keysLeastSigBits = keysLeastSigBits;
+            this.keys = keys;
+        }
+
+        static ForecastColumns fromList(List<DayForecast> forecasts) {
+            final int size = forecasts.size();
+            final double[] lows = new double[size];
+            final double[] highs = new double[size];
+            final int[] conditionCodes = new int[size];
+            long[] mostSigBits = new long[size];
+            long[] leastSigBits = new long[size];
+            String[] keys = null;
+            for (int i = 0; i < size; i++) {
+                final DayForecast forecast = forecasts.get(i);
+                lows[i] = forecast.mLow;
+                highs[i] = forecast.mHigh;
+                conditionCodes[i] = forecast.mConditionCode;
+                final UUID uuid = keys == null ? parseKey(forecast.mKey) : null;
+                if (uuid != null) {
+                    mostSigBits[i] = uuid.getMostSignificantBits();
+                    leastSigBits[i] = uuid.getLeastSignificantBits();
+                } else if (keys == null) {
+                    keys = new String[size];
+                }
+            }
+            if (keys != null) {
+                for (int i = 0; i < size; i++) {
+                    keys[i] = forecasts.get(i).mKey;
+                }
+                mostSigBits = null;
+                leastSigBits = null;
+            }
+            return new ForecastColumns(lows, highs, conditionCodes, mostSigBits, leastSigBits,
+                    keys);
+        }
+
+        private static UUID parseKey(String key) {
+            if (key == null) {
+                return null;
+            }
+            try {
+                final UUID uuid = UUID.fromString(key);
+                return uuid.toString().equals(key) ? uuid : null;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        static ForecastColumns readFromParcel(Parcel in) {
+            final double[] lows = in.createDoubleArray();
+            final double[] highs = in.createDoubleArray();
+            final int[] conditionCodes = in.createIntArray();
+            if (in.readInt() != 0) {
+                return new ForecastColumns(lows, highs, conditionCodes,
+                        in.createLongArray(), in.createLongArray(), null);
+            }
+            return new ForecastColumns(lows, highs, conditionCodes, null, null,
+                    in.createStringArray());
+        }
+
+        void writeToParcel(Parcel dest) {
+            dest.writeDoubleArray(lows);
+            dest.writeDoubleArray(highs);
+            dest.writeIntArray(conditionCodes);
+            if (keys == null) {
+                dest.writeInt(1);
+                dest.writeLongArray(keysMostSigBits);
+                dest.writeLongArray(keysLeastSigBits);
+            } else {
+                dest.writeInt(0);
+                dest.writeStringArray(keys);
+            }
+        }
+
+        List<DayForecast> toList() {
+            final List<DayForecast> forecasts = new ArrayList<>(lows.length);
+            for (int i = 0; i < lows.length; i++) {
+                DayForecast forecast = new DayForecast();
+                forecast.mLow = lows[i];
+                forecast.mHigh = highs[i];
+                forecast.mConditionCode = conditionCodes[i];
+                forecast.mKey = keys != null ? keys[i]
+                        : new UUID(keysMostSigBits[i], keysLeastSigBits[i]).toString();
+                forecasts.add(forecast);
+            }
+            return Collections.unmodifiableList(forecasts);
+        }
+    }
+
     /**
      * This class represents the weather forecast for a given day. Do not add low and high
      * temperatures for the current day in this list. Use
@@ -613,7 +797,7 @@ public final class WeatherInfo implements Parcelable {
             .append(" Today's high temp: ").append(mTodaysHighTemp)
             .append(" Today's low temp: ").append(mTodaysLowTemp)
             .append(" Timestamp: ").append(mTimestamp).append(" Forecasts: [");
-        for (DayForecast dayForecast : mForecastList) {
+        for (DayForecast dayForecast : getForecasts()) {
             builder.append(dayForecast.toString());
         }
         return builder.append("]}").toString();
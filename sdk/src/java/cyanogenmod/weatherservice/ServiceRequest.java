@@ -18,6 +18,7 @@ package cyanogenmod.weatherservice;
 
 import android.annotation.NonNull;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import cyanogenmod.weather.CMWeatherManager;
 import cyanogenmod.weather.RequestInfo;
 
@@ -28,16 +29,64 @@ public final class ServiceRequest {
 
     private final RequestInfo mInfo;
     private final IWeatherProviderServiceClient mClient;
+    private final Callback mCallback;
+    private final long mSubmitTime;
 
-    private enum Status {
+    /* package */ enum Status {
         IN_PROGRESS, COMPLETED, CANCELLED, FAILED, REJECTED
     }
     private Status mStatus;
+    private boolean mDispatched;
 
-    /* package */ ServiceRequest(RequestInfo info, IWeatherProviderServiceClient client) {
+    /**
+     * Notified once the request leaves the in progress state through
+     * {@link #complete}, {@link #fail} or {@link #reject}
+     */
+    /* package */ interface Callback {
+        void onRequestFinished(ServiceRequest request, Status status);
+    }
+
+    /* package */ ServiceRequest(RequestInfo info, IWeatherProviderServiceClient client,
+            Callback callback) {
         mInfo = info;
         mClient = client;
+        mCallback = callback;
         mStatus = Status.IN_PROGRESS;
+        mSubmitTime = SystemClock.elapsedRealtime();
+    }
+
+    /* package */ int getRequestId() {
+        return mInfo.hashCode();
+    }
+
+    /* package */ long getSubmitTime() {
+        return mSubmitTime;
+    }
+
+    /**
+     * Marks the request as handed to the service. Returns false if it was cancelled
+     * before the service got to it.
+     */
+    /* package */ boolean dispatch() {
+        synchronized (this) {
+            if (!mStatus.equals(Status.IN_PROGRESS)) {
+                return false;
+            }
+            mDispatched = true;
+            return true;
+        }
+    }
+
+    /* package */ boolean isDispatched() {
+        synchronized (this) {
+            return mDispatched;
+        }
+    }
+
+    private void notifyFinished(Status status) {
+        if (mCallback != null) {
+            mCallback.onRequestFinished(this, status);
+        }
     }
 
     /**
@@ -82,8 +131,11 @@ public final class ServiceRequest {
                 } catch (RemoteException e) {
                 }
                 mStatus = Status.COMPLETED;
+            } else {
+                return;
             }
         }
+        notifyFinished(Status.COMPLETED);
     }
 
     /**
@@ -109,8 +161,11 @@ public final class ServiceRequest {
                 } catch (RemoteException e) {
                 }
                 mStatus = Status.FAILED;
+            } else {
+                return;
             }
         }
+        notifyFinished(Status.FAILED);
     }
 
     /**
@@ -139,8 +194,11 @@ public final class ServiceRequest {
                         throw new IllegalArgumentException("Can't reject with status " + status);
                 }
                 mStatus = Status.REJECTED;
+            } else {
+                return;
             }
         }
+        notifyFinished(Status.REJECTED);
     }
 
     /**
@@ -24,11 +24,18 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.SparseArray;
 import cyanogenmod.weather.RequestInfo;
 
-import java.util.Collections;
-import java.util.Set;
-import java.util.WeakHashMap;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This is the base class for implementing a weather provider service. A weather provider service
@@ -58,9 +65,19 @@ import java.util.WeakHashMap;
 public abstract class WeatherProviderService extends Service {
 
     private Handler mHandler;
-    private IWeatherProviderServiceClient mClient;
-    private Set<ServiceRequest> mWeakRequestsSet
-            = Collections.newSetFromMap(new WeakHashMap<ServiceRequest, Boolean>());
+    private volatile IWeatherProviderServiceClient mClient;
+
+    // Requests which have not completed, failed, been rejected or cancelled yet, by id
+    private final SparseArray<ServiceRequest> mActiveRequests = new SparseArray<>();
+
+    // Guarded by mActiveRequests
+    private final RequestStats mStats = new RequestStats();
+
+    private final Object mExecutorLock = new Object();
+    private ThreadPoolExecutor mRequestExecutor;
+
+    // Idle worker threads are released after this long
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
 
     /**
      * The {@link android.content.Intent} action that must be declared as handled by a service in
@@ -93,47 +110,182 @@ public abstract class WeatherProviderService extends Service {
 
         @Override
         public void processWeatherUpdateRequest(final RequestInfo info) {
-            mHandler.obtainMessage(ServiceHandler.MSG_ON_NEW_REQUEST, info).sendToTarget();
+            submitRequest(info);
         }
 
         @Override
         public void processCityNameLookupRequest(final RequestInfo info) {
-            mHandler.obtainMessage(ServiceHandler.MSG_ON_NEW_REQUEST, info).sendToTarget();
+            submitRequest(info);
         }
 
         @Override
         public void setServiceClient(IWeatherProviderServiceClient client) {
+            // Set right away so requests arriving after this call report to the new client
+            mClient = client;
             mHandler.obtainMessage(ServiceHandler.MSG_SET_CLIENT, client).sendToTarget();
         }
 
         @Override
         public void cancelOngoingRequests() {
-            synchronized (mWeakRequestsSet) {
-                for (final ServiceRequest request : mWeakRequestsSet) {
-                    request.cancel();
-                    mWeakRequestsSet.remove(request);
-                    mHandler.obtainMessage(ServiceHandler.MSG_CANCEL_REQUEST, request)
-                            .sendToTarget();
+            final ServiceRequest[] requests;
+            synchronized (mActiveRequests) {
+                requests = new ServiceRequest[mActiveRequests.size()];
+                for (int i = 0; i < requests.length; i++) {
+                    requests[i] = mActiveRequests.valueAt(i);
                 }
+                mActiveRequests.clear();
+                mStats.cancelled += requests.length;
+            }
+            for (ServiceRequest request : requests) {
+                cancelRequestInternal(request);
             }
         }
 
         @Override
         public void cancelRequest(int requestId) {
-            synchronized (mWeakRequestsSet) {
-                for (final ServiceRequest request : mWeakRequestsSet) {
-                    if (request.getRequestInfo().hashCode() == requestId) {
-                        mWeakRequestsSet.remove(request);
-                        request.cancel();
-                        mHandler.obtainMessage(ServiceHandler.MSG_CANCEL_REQUEST, request)
-                                .sendToTarget();
-                        break;
-                    }
+            final ServiceRequest request;
+            synchronized (mActiveRequests) {
+                request = mActiveRequests.get(requestId);
+                if (request == null) {
+                    return;
+                }
+                mActiveRequests.remove(requestId);
+                mStats.cancelled++;
+            }
+            cancelRequestInternal(request);
+        }
+    };
+
+    private void submitRequest(RequestInfo info) {
+        if (info == null) {
+            return;
+        }
+        final ServiceRequest request = new ServiceRequest(info, mClient, mRequestCallback);
+        synchronized (mActiveRequests) {
+            mActiveRequests.put(request.getRequestId(), request);
+            mStats.submitted++;
+        }
+
+        final ThreadPoolExecutor executor = getRequestExecutor();
+        if (executor == null) {
+            mHandler.obtainMessage(ServiceHandler.MSG_ON_NEW_REQUEST, request).sendToTarget();
+        } else {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    dispatchRequest(request);
                 }
+            });
+        }
+    }
+
+    private void dispatchRequest(ServiceRequest request) {
+        // Don't bother the service with requests cancelled while they were queued
+        if (request.dispatch()) {
+            onRequestSubmitted(request);
+        }
+    }
+
+    private void cancelRequestInternal(final ServiceRequest request) {
+        request.cancel();
+        if (!request.isDispatched()) {
+            // Still queued, the service never saw it
+            return;
+        }
+        final ThreadPoolExecutor executor = getRequestExecutor();
+        if (executor == null) {
+            mHandler.obtainMessage(ServiceHandler.MSG_CANCEL_REQUEST, request).sendToTarget();
+        } else {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onRequestCancelled(request);
+                }
+            });
+        }
+    }
+
+    private final ServiceRequest.Callback mRequestCallback = new ServiceRequest.Callback() {
+        @Override
+        public void onRequestFinished(ServiceRequest request, ServiceRequest.Status status) {
+            final long latency = SystemClock.elapsedRealtime() - request.getSubmitTime();
+            synchronized (mActiveRequests) {
+                final int requestId = request.getRequestId();
+                if (mActiveRequests.get(requestId) == request) {
+                    mActiveRequests.remove(requestId);
+                }
+                mStats.record(status, latency);
             }
         }
     };
 
+    private ThreadPoolExecutor getRequestExecutor() {
+        synchronized (mExecutorLock) {
+            if (mRequestExecutor == null) {
+                final int threads = getMaxConcurrentRequests();
+                if (threads <= 0) {
+                    return null;
+                }
+                mRequestExecutor = new ThreadPoolExecutor(threads, threads,
+                        WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+                mRequestExecutor.allowCoreThreadTimeOut(true);
+            }
+            return mRequestExecutor;
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "WeatherProviderService-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Per request outcome and latency, measured from the moment the system submitted the
+     * request until it was completed, failed, rejected or cancelled
+     */
+    private static final class RequestStats {
+        long submitted;
+        long completed;
+        long failed;
+        long rejected;
+        long cancelled;
+        long finished;
+        long totalLatencyMs;
+        long maxLatencyMs;
+
+        void record(ServiceRequest.Status status, long latencyMs) {
+            switch (status) {
+                case COMPLETED:
+                    completed++;
+                    break;
+                case FAILED:
+                    failed++;
+                    break;
+                case REJECTED:
+                    rejected++;
+                    break;
+                default:
+                    return;
+            }
+            finished++;
+            totalLatencyMs += latencyMs;
+            maxLatencyMs = Math.max(maxLatencyMs, latencyMs);
+        }
+    }
+
     private class ServiceHandler extends Handler {
 
         public ServiceHandler(Looper looper) {
@@ -147,8 +299,7 @@ public abstract class WeatherProviderService extends Service {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_SET_CLIENT: {
-                    mClient = (IWeatherProviderServiceClient) msg.obj;
-                    if (mClient != null) {
+                    if (msg.obj != null) {
                         onConnected();
                     } else {
                         onDisconnected();
@@ -156,14 +307,7 @@ public abstract class WeatherProviderService extends Service {
                     return;
                 }
                 case MSG_ON_NEW_REQUEST: {
-                    RequestInfo info = (RequestInfo) msg.obj;
-                    if (info != null) {
-                        ServiceRequest request = new ServiceRequest(info, mClient);
-                        synchronized (mWeakRequestsSet) {
-                            mWeakRequestsSet.add(request);
-                        }
-                        onRequestSubmitted(request);
-                    }
+                    dispatchRequest((ServiceRequest) msg.obj);
                     return;
                 }
                 case MSG_CANCEL_REQUEST: {
@@ -189,6 +333,42 @@ public abstract class WeatherProviderService extends Service {
         /* Do nothing */
     }
 
+    /**
+     * Override to have {@link #onRequestSubmitted(ServiceRequest)} and
+     * {@link #onRequestCancelled(ServiceRequest)} called on a pool of up to the returned
+     * number of worker threads instead of the main thread. Implementations opting in must
+     * be prepared to handle several requests, and the cancellation of a request, at the
+     * same time. The value is read once, when the first request arrives.
+     *
+     * @return The maximum number of requests processed concurrently, or 0 (the default)
+     * to process requests one at a time on the main thread
+     */
+    protected int getMaxConcurrentRequests() {
+        return 0;
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        synchronized (mActiveRequests) {
+            pw.println("WeatherProviderService requests:");
+            pw.println("  active=" + mActiveRequests.size()
+                    + " submitted=" + mStats.submitted
+                    + " completed=" + mStats.completed
+                    + " failed=" + mStats.failed
+                    + " rejected=" + mStats.rejected
+                    + " cancelled=" + mStats.cancelled);
+            pw.println("  averageLatency="
+                    + (mStats.finished > 0 ? mStats.totalLatencyMs / mStats.finished : 0) + "ms"
+                    + " maxLatency=" + mStats.maxLatencyMs + "ms");
+            final long now = SystemClock.elapsedRealtime();
+            for (int i = 0; i < mActiveRequests.size(); i++) {
+                ServiceRequest request = mActiveRequests.valueAt(i);
+                pw.println("  " + request.getRequestInfo() + " pending for "
+                        + (now - request.getSubmitTime()) + "ms");
+            }
+        }
+    }
+
     /**
      * A new request has been submitted to this service
      * @param request The service request to be processed by this service
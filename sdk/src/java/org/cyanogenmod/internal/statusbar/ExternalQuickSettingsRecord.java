@@ -29,6 +29,8 @@ public class ExternalQuickSettingsRecord {
     public final StatusBarPanelCustomTile sbTile;
     public boolean isUpdate;
     public boolean isCanceled;
+    /** Content hash of the tile's remote icon, 0 if it has none */
+    public int iconHash;
 
     @VisibleForTesting
     public ExternalQuickSettingsRecord(StatusBarPanelCustomTile tile) {
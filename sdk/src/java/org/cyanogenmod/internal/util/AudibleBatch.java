@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.internal.util;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.media.RingtoneManager;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+
+import libcore.io.IoUtils;
+import libcore.io.Streams;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Applies the ringtone, notification and alarm sounds of a theme change in one go. Audibles
+ * are copied straight out of the theme apk, all MediaStore changes are made in a single batch
+ * and a default is only written if it actually changes.
+ *
+ * <pre>
+ * new AudibleBatch(context)
+ *         .setAudible(RingtoneManager.TYPE_RINGTONE, themeApkPath)
+ *         .setDefaultAudible(RingtoneManager.TYPE_ALARM)
+ *         .apply();
+ * </pre>
+ */
+public final class AudibleBatch {
+    private static final String TAG = AudibleBatch.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    /* Path inside a theme APK to the audibles */
+    public static final String THEME_AUDIBLE_PATH = "assets/audible/";
+
+    private final Context mContext;
+    // Type to the theme apk providing it, or null for the system audible
+    private final SparseArray<String> mAudibles = new SparseArray<>();
+
+    private long mCopyTime;
+    private long mMediaStoreTime;
+    private long mDefaultsTime;
+    private int mDefaultsChanged;
+
+    public AudibleBatch(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Use the audible the theme apk provides for the given type.
+     * @param type One of the RingtoneManager types
+     */
+    public AudibleBatch setAudible(int type, String themeApkPath) {
+        mAudibles.put(type, themeApkPath);
+        return this;
+    }
+
+    /**
+     * Go back to the system audible for the given type.
+     * @param type One of the RingtoneManager types
+     */
+    public AudibleBatch setDefaultAudible(int type) {
+        mAudibles.put(type, null);
+        return this;
+    }
+
+    /**
+     * @return True if every audible was applied
+     */
+    public boolean apply() {
+        boolean success = true;
+
+        // Replace the files, remembering which MediaStore rows to drop and add
+        long startTime = SystemClock.elapsedRealtime();
+        final List<String> removedPaths = new ArrayList<>();
+        final SparseArray<File> copied = new SparseArray<>();
+        for (int i = 0; i < mAudibles.size(); i++) {
+            final int type = mAudibles.keyAt(i);
+            final String dir = getThemeAudibleDir(type);
+            if (dir == null) {
+                Log.w(TAG, "Unknown audible type " + type);
+                success = false;
+                continue;
+            }
+            clearDir(dir, removedPaths);
+
+            final String themeApkPath = mAudibles.valueAt(i);
+            if (themeApkPath != null) {
+                File file = copyThemeAudible(themeApkPath, type, dir);
+                if (file != null) {
+                    copied.put(type, file);
+                } else {
+                    success = false;
+                }
+            }
+        }
+        mCopyTime = SystemClock.elapsedRealtime() - startTime;
+
+        // A single MediaStore transaction for all of them
+        startTime = SystemClock.elapsedRealtime();
+        final SparseArray<Uri> uris = new SparseArray<>();
+        if (!applyMediaStoreChanges(removedPaths, copied, uris)) {
+            success = false;
+        }
+        queryDefaultAudibles(uris);
+        mMediaStoreTime = SystemClock.elapsedRealtime() - startTime;
+
+        startTime = SystemClock.elapsedRealtime();
+        mDefaultsChanged = 0;
+        for (int i = 0; i < mAudibles.size(); i++) {
+            final int type = mAudibles.keyAt(i);
+            final Uri uri = uris.get(type);
+            if (uri == null) {
+                continue;
+            }
+            if (uri.equals(RingtoneManager.getActualDefaultRingtoneUri(mContext, type))) {
+                continue;
+            }
+            try {
+                RingtoneManager.setActualDefaultRingtoneUri(mContext, type, uri);
+                mDefaultsChanged++;
+            } catch (Exception e) {
+                Log.w(TAG, "Unable to set default audible for type " + type, e);
+                success = false;
+            }
+        }
+        mDefaultsTime = SystemClock.elapsedRealtime() - startTime;
+
+        if (DEBUG) Log.d(TAG, "Applied " + mAudibles.size() + " audibles: " + getTimingReport());
+        return success;
+    }
+
+    /**
+     * @return Where the time of the last {@link #apply()} went
+     */
+    public String getTimingReport() {
+        return "copy=" + mCopyTime + "ms mediastore=" + mMediaStoreTime + "ms defaults="
+                + mDefaultsTime + "ms (" + mDefaultsChanged + " changed)";
+    }
+
+    public long getCopyTime() {
+        return mCopyTime;
+    }
+
+    public long getMediaStoreTime() {
+        return mMediaStoreTime;
+    }
+
+    public long getDefaultsTime() {
+        return mDefaultsTime;
+    }
+
+    private boolean applyMediaStoreChanges(List<String> removedPaths, SparseArray<File> copied,
+            SparseArray<Uri> uris) {
+        if (removedPaths.isEmpty() && copied.size() == 0) {
+            return true;
+        }
+        final Uri contentUri = MediaStore.Audio.Media.INTERNAL_CONTENT_URI;
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        if (!removedPaths.isEmpty()) {
+            ops.add(ContentProviderOperation.newDelete(contentUri)
+                    .withSelection(getDataInSelection(removedPaths.size()),
+                            removedPaths.toArray(new String[removedPaths.size()]))
+                    .build());
+        }
+        final int firstInsert = ops.size();
+        for (int i = 0; i < copied.size(); i++) {
+            ops.add(ContentProviderOperation.newInsert(contentUri)
+                    .withValues(getAudibleValues(copied.valueAt(i), copied.keyAt(i)))
+                    .build());
+        }
+
+        try {
+            ContentProviderResult[] results = mContext.getContentResolver()
+                    .applyBatch(MediaStore.AUTHORITY, ops);
+            for (int i = 0; i < copied.size(); i++) {
+                uris.put(copied.keyAt(i), results[firstInsert + i].uri);
+            }
+            return true;
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.w(TAG, "Unable to update MediaStore", e);
+            return false;
+        }
+    }
+
+    /**
+     * Looks up the system audibles of all types reset to their default with one query.
+     */
+    private void queryDefaultAudibles(SparseArray<Uri> uris) {
+        final SparseArray<String> paths = new SparseArray<>();
+        for (int i = 0; i < mAudibles.size(); i++) {
+            final int type = mAudibles.keyAt(i);
+            if (mAudibles.valueAt(i) != null) {
+                continue;
+            }
+            final String path = ThemeUtils.getDefaultAudiblePath(type);
+            if (path != null) {
+                paths.put(type, path);
+            }
+        }
+        if (paths.size() == 0) {
+            return;
+        }
+
+        String[] args = new String[paths.size()];
+        for (int i = 0; i < paths.size(); i++) {
+            args[i] = paths.valueAt(i);
+        }
+        final Uri contentUri = MediaStore.Audio.Media.INTERNAL_CONTENT_URI;
+        Cursor c = mContext.getContentResolver().query(contentUri,
+                new String[] { MediaStore.MediaColumns._ID, MediaStore.MediaColumns.DATA },
+                getDataInSelection(args.length), args, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                final Uri uri = Uri.withAppendedPath(contentUri, Long.toString(c.getLong(0)));
+                final String path = c.getString(1);
+                for (int i = 0; i < paths.size(); i++) {
+                    if (paths.valueAt(i).equals(path)) {
+                        uris.put(paths.keyAt(i), uri);
+                    }
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Copies the first audible of the type found in the theme apk into dir. Audio is stored
+     * uncompressed by aapt, so it is normally transferred without passing through user space.
+     */
+    private static File copyThemeAudible(String themeApkPath, int type, String dir) {
+        final String assetDir = THEME_AUDIBLE_PATH + new File(dir).getName() + "/";
+        RandomAccessFile apk = null;
+        FileOutputStream out = null;
+        try {
+            apk = new RandomAccessFile(themeApkPath, "r");
+            final FileChannel apkChannel = apk.getChannel();
+            RawZipArchive archive = new RawZipArchive(apkChannel, 0, apkChannel.size());
+            RawZipArchive.Entry audible = null;
+            for (RawZipArchive.Entry entry : archive.getEntries()) {
+                if (entry.name.startsWith(assetDir)
+                        && entry.name.indexOf('/', assetDir.length()) < 0
+                        && ThemeUtils.isValidAudible(entry.name)) {
+                    audible = entry;
+                    break;
+                }
+            }
+            if (audible == null) {
+                Log.w(TAG, "No audible in " + assetDir + " of " + themeApkPath);
+                return null;
+            }
+
+            createThemeAudibleDir(type);
+            final File file = new File(dir, audible.name.substring(assetDir.length()));
+            out = new FileOutputStream(file);
+            if (audible.method == ZipEntry.STORED) {
+                archive.transferEntryData(audible, out.getChannel());
+            } else {
+                copyCompressedEntry(themeApkPath, audible.name, out);
+            }
+            out.getFD().sync();
+            file.setReadable(true, false);
+            return file;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to copy audible of type " + type + " from " + themeApkPath, e);
+            return null;
+        } finally {
+            IoUtils.closeQuietly(out);
+            IoUtils.closeQuietly(apk);
+        }
+    }
+
+    private static void copyCompressedEntry(String zipPath, String name, FileOutputStream out)
+            throws IOException {
+        ZipFile zip = new ZipFile(zipPath);
+        InputStream in = null;
+        try {
+            in = zip.getInputStream(zip.getEntry(name));
+            Streams.copy(in, out);
+        } finally {
+            IoUtils.closeQuietly(in);
+            zip.close();
+        }
+    }
+
+    private static void clearDir(String dir, List<String> removedPaths) {
+        File[] files = new File(dir).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            removedPaths.add(file.getAbsolutePath());
+            file.delete();
+        }
+    }
+
+    private static ContentValues getAudibleValues(File file, int type) {
+        final String name = file.getName();
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.MediaColumns.DATA, file.getAbsolutePath());
+        values.put(MediaStore.MediaColumns.TITLE, name);
+        values.put(MediaStore.MediaColumns.MIME_TYPE,
+                name.endsWith(".ogg") ? "audio/ogg" : "audio/mp3");
+        values.put(MediaStore.MediaColumns.SIZE, file.length());
+        values.put(MediaStore.Audio.Media.IS_RINGTONE, type == RingtoneManager.TYPE_RINGTONE);
+        values.put(MediaStore.Audio.Media.IS_NOTIFICATION,
+                type == RingtoneManager.TYPE_NOTIFICATION);
+        values.put(MediaStore.Audio.Media.IS_ALARM, type == RingtoneManager.TYPE_ALARM);
+        values.put(MediaStore.Audio.Media.IS_MUSIC, false);
+        return values;
+    }
+
+    private static String getDataInSelection(int count) {
+        String[] placeholders = new String[count];
+        for (int i = 0; i < count; i++) {
+            placeholders[i] = "?";
+        }
+        return MediaStore.MediaColumns.DATA + " IN (" + TextUtils.join(",", placeholders) + ")";
+    }
+
+    private static void createThemeAudibleDir(int type) {
+        ThemeUtils.createThemeDirIfNotExists();
+        switch (type) {
+            case RingtoneManager.TYPE_RINGTONE:
+                ThemeUtils.createRingtoneDirIfNotExists();
+                break;
+            case RingtoneManager.TYPE_NOTIFICATION:
+                ThemeUtils.createNotificationDirIfNotExists();
+                break;
+            case RingtoneManager.TYPE_ALARM:
+                ThemeUtils.createAlarmDirIfNotExists();
+                break;
+        }
+    }
+
+    private static String getThemeAudibleDir(int type) {
+        switch (type) {
+            case RingtoneManager.TYPE_RINGTONE:
+                return ThemeUtils.SYSTEM_THEME_RINGTONE_PATH;
+            case RingtoneManager.TYPE_NOTIFICATION:
+                return ThemeUtils.SYSTEM_THEME_NOTIFICATION_PATH;
+            case RingtoneManager.TYPE_ALARM:
+                return ThemeUtils.SYSTEM_THEME_ALARM_PATH;
+            default:
+                return null;
+        }
+    }
+}
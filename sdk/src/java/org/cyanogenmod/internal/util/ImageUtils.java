@@ -22,14 +22,22 @@ import android.content.res.AssetManager;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.ParcelFileDescriptor;
 import android.text.TextUtils;
 import android.util.Log;
 import android.webkit.URLUtil;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
 
 import cyanogenmod.providers.ThemesContract.PreviewColumns;
 import cyanogenmod.providers.ThemesContract.ThemesColumns;
@@ -42,6 +50,14 @@ public class ImageUtils {
     private static final String ASSET_URI_PREFIX = "file:///android_asset/";
     private static final int DEFAULT_IMG_QUALITY = 100;
 
+    // Enough to tell JPEG, PNG and WEBP apart, see guessCompressFormat()
+    private static final int FORMAT_SNIFF_LENGTH = 12;
+
+    // A single bitmap kept around between crops so that applying a wallpaper followed by a
+    // lock screen wallpaper of similar size only allocates once. Soft so it never pins memory.
+    private static final Object sReusableBitmapLock = new Object();
+    private static SoftReference<Bitmap> sReusableBitmap;
+
     /**
      * Gets the Width and Height of the image
      *
@@ -66,8 +82,8 @@ public class ImageUtils {
      * @param inputStream The input stream of the image
      * @param imageWidth Width of the input image
      * @param imageHeight Height of the input image
-     * @param inputStream Desired Width
-     * @param inputStream Desired Width
+     * @param outWidth Desired Width
+     * @param outHeight Desired Height
      *
      * @return a new InputStream of the cropped area/*"
      */
@@ -83,48 +99,315 @@ public class ImageUtils {
                             " imageHeight=%d", imageWidth, imageHeight));
         }
 
+        return cropImageToStream(inputStream, outWidth, outHeight);
+    }
+
+    /**
+     * Crops the center of the input image to the aspect ratio of the desired size, scales it
+     * down to that size and writes the result to the given output stream. Only the cropped
+     * region of the image is decoded.
+     *
+     * @param inputStream The input stream of the image
+     * @param outWidth Desired Width
+     * @param outHeight Desired Height
+     * @param format Format of the output, or null to use the format of the input image
+     * @param quality Compression quality, see {@link Bitmap#compress}
+     * @param outputStream Where the cropped image is written to
+     *
+     * @return true if the cropped image was written to outputStream
+     */
+    public static boolean cropImage(InputStream inputStream, int outWidth, int outHeight,
+            Bitmap.CompressFormat format, int quality, OutputStream outputStream)
+            throws IllegalArgumentException {
+        if (inputStream == null) {
+            throw new IllegalArgumentException("inputStream cannot be null");
+        }
+        if (outputStream == null) {
+            throw new IllegalArgumentException("outputStream cannot be null");
+        }
+        checkOutputSize(outWidth, outHeight);
+
+        BufferedInputStream in = new BufferedInputStream(inputStream);
+        final Bitmap.CompressFormat sourceFormat = guessCompressFormat(in);
+        if (format == null) {
+            format = sourceFormat != null ? sourceFormat : Bitmap.CompressFormat.PNG;
+        }
+        Bitmap cropped = decodeCroppedBitmap(in, sourceFormat != null, outWidth, outHeight);
+        if (cropped == null) {
+            return false;
+        }
+        try {
+            return cropped.compress(format, quality, outputStream);
+        } finally {
+            releaseBitmap(cropped);
+        }
+    }
+
+    /**
+     * Decodes the cropped region of the input image right away and returns a stream which the
+     * cropped image gets encoded into in the background, in the same format as the input.
+     */
+    private static InputStream cropImageToStream(InputStream inputStream, int outWidth,
+            int outHeight) {
+        checkOutputSize(outWidth, outHeight);
+
+        BufferedInputStream in = new BufferedInputStream(inputStream);
+        final Bitmap.CompressFormat sourceFormat = guessCompressFormat(in);
+        final Bitmap.CompressFormat format = sourceFormat != null
+                ? sourceFormat : Bitmap.CompressFormat.PNG;
+        final Bitmap cropped = decodeCroppedBitmap(in, sourceFormat != null, outWidth, outHeight);
+        if (cropped == null) {
+            return null;
+        }
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to create pipe for cropped image", e);
+            releaseBitmap(cropped);
+            return null;
+        }
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+                try {
+                    if (!cropped.compress(format, DEFAULT_IMG_QUALITY, out)) {
+                        Log.e(TAG, "Unable to compress cropped image");
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Exception " + e);
+                } finally {
+                    IoUtils.closeQuietly(out);
+                    releaseBitmap(cropped);
+                }
+            }
+        });
+        return new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]);
+    }
+
+    private static void checkOutputSize(int outWidth, int outHeight) {
         if (outWidth <= 0 || outHeight <= 0) {
             throw new IllegalArgumentException(
                     String.format("outWidth and outHeight must be > 0: outWidth=%d" +
-                            " outHeight=%d", imageWidth, outHeight));
+                            " outHeight=%d", outWidth, outHeight));
         }
+    }
 
-        int scaleDownSampleSize = Math.min(imageWidth / outWidth, imageHeight / outHeight);
-        if (scaleDownSampleSize > 0) {
-            imageWidth /= scaleDownSampleSize;
-            imageHeight /= scaleDownSampleSize;
-        } else {
-            float ratio = (float) outWidth / outHeight;
-            if (imageWidth < imageHeight * ratio) {
-                outWidth = imageWidth;
-                outHeight = (int) (outWidth / ratio);
-            } else {
-                outHeight = imageHeight;
-                outWidth = (int) (outHeight * ratio);
-            }
+    /**
+     * Decodes the centered region of the image which has the aspect ratio of outWidth and
+     * outHeight, scaled down to exactly that size. Images smaller than the desired size are
+     * cropped to its aspect ratio but not scaled up.
+     */
+    private static Bitmap decodeCroppedBitmap(InputStream inputStream, boolean canDecodeRegion,
+            int outWidth, int outHeight) {
+        if (!canDecodeRegion) {
+            return decodeCroppedBitmapFully(inputStream, outWidth, outHeight);
         }
-        int left = (imageWidth - outWidth) / 2;
-        int top = (imageHeight - outHeight) / 2;
-        InputStream compressed = null;
+
+        BitmapRegionDecoder decoder = null;
+        Bitmap decoded = null;
         try {
+            decoder = BitmapRegionDecoder.newInstance(inputStream, false);
+            Point outSize = new Point(outWidth, outHeight);
+            Rect region = computeCropRegion(decoder.getWidth(), decoder.getHeight(), outSize);
+            if (region == null) {
+                return null;
+            }
+
+            // Let the decoder do as much of the scaling as it can, powers of two are the
+            // only sample sizes every decoder honors exactly
+            int sampleSize = 1;
+            while (region.width() / (sampleSize * 2) >= outSize.x
+                    && region.height() / (sampleSize * 2) >= outSize.y) {
+                sampleSize *= 2;
+            }
+
             BitmapFactory.Options options = new BitmapFactory.Options();
-            if (scaleDownSampleSize > 1) {
-                options.inSampleSize = scaleDownSampleSize;
+            options.inSampleSize = sampleSize;
+            options.inMutable = true;
+            options.inBitmap = obtainBitmap(
+                    divideRoundingUp(region.width(), sampleSize),
+                    divideRoundingUp(region.height(), sampleSize));
+            try {
+                decoded = decoder.decodeRegion(region, options);
+            } catch (IllegalArgumentException e) {
+                // The decoder didn't accept the bitmap we offered, go without
+                releaseBitmap(options.inBitmap);
+                options.inBitmap = null;
+                decoded = decoder.decodeRegion(region, options);
             }
-            Bitmap bitmap = BitmapFactory.decodeStream(inputStream, null, options);
-            if (bitmap == null) {
+            if (decoded == null) {
                 return null;
             }
-            Bitmap cropped = Bitmap.createBitmap(bitmap, left, top, outWidth, outHeight);
-            ByteArrayOutputStream tmpOut = new ByteArrayOutputStream(2048);
-            if (cropped.compress(Bitmap.CompressFormat.PNG, DEFAULT_IMG_QUALITY, tmpOut)) {
-                byte[] outByteArray = tmpOut.toByteArray();
-                compressed = new ByteArrayInputStream(outByteArray);
+            if (decoded.getWidth() == outSize.x && decoded.getHeight() == outSize.y) {
+                Bitmap result = decoded;
+                decoded = null;
+                return result;
             }
+            return scaleBitmap(decoded, null, outSize);
         } catch (Exception e) {
             Log.e(TAG, "Exception " + e);
+        } finally {
+            releaseBitmap(decoded);
+            if (decoder != null) {
+                decoder.recycle();
+            }
         }
-        return compressed;
+        return null;
+    }
+
+    /**
+     * Fallback for formats {@link BitmapRegionDecoder} can't handle, decodes the whole image.
+     */
+    private static Bitmap decodeCroppedBitmapFully(InputStream inputStream, int outWidth,
+            int outHeight) {
+        Bitmap decoded = null;
+        try {
+            decoded = BitmapFactory.decodeStream(inputStream);
+            if (decoded == null) {
+                return null;
+            }
+            Point outSize = new Point(outWidth, outHeight);
+            Rect region = computeCropRegion(decoded.getWidth(), decoded.getHeight(), outSize);
+            if (region == null) {
+                return null;
+            }
+            return scaleBitmap(decoded, region, outSize);
+        } catch (Exception e) {
+            Log.e(TAG, "Exception " + e);
+        } finally {
+            if (decoded != null) {
+                decoded.recycle();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Computes the centered region of the image to crop. outSize is updated to the size the
+     * region should end up as, which is smaller than requested if the image is.
+     */
+    private static Rect computeCropRegion(int imageWidth, int imageHeight, Point outSize) {
+        if (imageWidth <= 0 || imageHeight <= 0) {
+            return null;
+        }
+
+        final float scale = Math.max((float) outSize.x / imageWidth,
+                (float) outSize.y / imageHeight);
+        final int regionWidth;
+        final int regionHeight;
+        if (scale >= 1f) {
+            final float ratio = (float) outSize.x / outSize.y;
+            if (imageWidth < imageHeight * ratio) {
+                regionWidth = imageWidth;
+                regionHeight = Math.max(1, (int) (imageWidth / ratio));
+            } else {
+                regionHeight = imageHeight;
+                regionWidth = Math.max(1, (int) (imageHeight * ratio));
+            }
+            outSize.set(regionWidth, regionHeight);
+        } else {
+            regionWidth = Math.min(imageWidth, Math.round(outSize.x / scale));
+            regionHeight = Math.min(imageHeight, Math.round(outSize.y / scale));
+        }
+        final int left = (imageWidth - regionWidth) / 2;
+        final int top = (imageHeight - regionHeight) / 2;
+        return new Rect(left, top, left + regionWidth, top + regionHeight);
+    }
+
+    /**
+     * Draws the given region of the source, or all of it if region is null, filtered onto a
+     * bitmap of exactly outSize.
+     */
+    private static Bitmap scaleBitmap(Bitmap source, Rect region, Point outSize) {
+        Bitmap scaled = obtainBitmap(outSize.x, outSize.y);
+        if (scaled == null) {
+            scaled = Bitmap.createBitmap(outSize.x, outSize.y, Bitmap.Config.ARGB_8888);
+        }
+        Canvas canvas = new Canvas(scaled);
+        canvas.drawBitmap(source, region, new Rect(0, 0, outSize.x, outSize.y),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        canvas.setBitmap(null);
+        return scaled;
+    }
+
+    private static int divideRoundingUp(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    /**
+     * Returns the reusable bitmap reconfigured to the given size if it is large enough, or
+     * null if there is none that fits.
+     */
+    private static Bitmap obtainBitmap(int width, int height) {
+        synchronized (sReusableBitmapLock) {
+            Bitmap bitmap = sReusableBitmap != null ? sReusableBitmap.get() : null;
+            if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                    || bitmap.getAllocationByteCount() < width * height * 4) {
+                return null;
+            }
+            sReusableBitmap = null;
+            bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+            return bitmap;
+        }
+    }
+
+    /**
+     * Offers a bitmap which is no longer used for reuse, keeping the larger of it and the
+     * bitmap currently kept.
+     */
+    private static void releaseBitmap(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        synchronized (sReusableBitmapLock) {
+            Bitmap current = sReusableBitmap != null ? sReusableBitmap.get() : null;
+            if (current == null
+                    || current.getAllocationByteCount() < bitmap.getAllocationByteCount()) {
+                sReusableBitmap = new SoftReference<>(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Peeks at the header of the image to find its format, so that lossy sources are written
+     * back lossy. Returns null for formats other than JPEG, PNG and WEBP.
+     */
+    private static Bitmap.CompressFormat guessCompressFormat(BufferedInputStream in) {
+        byte[] header = new byte[FORMAT_SNIFF_LENGTH];
+        int read = 0;
+        try {
+            in.mark(FORMAT_SNIFF_LENGTH);
+            while (read < header.length) {
+                int count = in.read(header, read, header.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            in.reset();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read image header", e);
+            return null;
+        }
+
+        if (read >= 3 && (header[0] & 0xff) == 0xff && (header[1] & 0xff) == 0xd8
+                && (header[2] & 0xff) == 0xff) {
+            return Bitmap.CompressFormat.JPEG;
+        }
+        if (read >= 12 && header[0] == 'R' && header[1] == 'I' && header[2] == 'F'
+                && header[3] == 'F' && header[8] == 'W' && header[9] == 'E'
+                && header[10] == 'B' && header[11] == 'P') {
+            return Bitmap.CompressFormat.WEBP;
+        }
+        if (read >= 4 && (header[0] & 0xff) == 0x89 && header[1] == 'P' && header[2] == 'N'
+                && header[3] == 'G') {
+            return Bitmap.CompressFormat.PNG;
+        }
+        return null;
     }
 
     /**
@@ -151,19 +434,10 @@ public class ImageUtils {
             if (stream == null) {
                 return null;
             }
-            Point point = getImageDimension(stream);
-            IoUtils.closeQuietly(stream);
-            if (point == null || point.x == 0 || point.y == 0) {
-                return null;
-            }
             WallpaperManager wm = WallpaperManager.getInstance(context);
             int outWidth = wm.getDesiredMinimumWidth();
             int outHeight = wm.getDesiredMinimumHeight();
-            stream = getOriginalKeyguardStream(pkgName, context);
-            if (stream == null) {
-                return null;
-            }
-            cropped = cropImage(stream, point.x, point.y, outWidth, outHeight);
+            cropped = cropImageToStream(stream, outWidth, outHeight);
         } catch (Exception e) {
             Log.e(TAG, "Exception " + e);
         } finally {
@@ -196,19 +470,10 @@ public class ImageUtils {
             if (stream == null) {
                 return null;
             }
-            Point point = getImageDimension(stream);
-            IoUtils.closeQuietly(stream);
-            if (point == null || point.x == 0 || point.y == 0) {
-                return null;
-            }
             WallpaperManager wm = WallpaperManager.getInstance(context);
             int outWidth = wm.getDesiredMinimumWidth();
             int outHeight = wm.getDesiredMinimumHeight();
-            stream = getOriginalWallpaperStream(pkgName, wallpaperId, context);
-            if (stream == null) {
-                return null;
-            }
-            cropped = cropImage(stream, point.x, point.y, outWidth, outHeight);
+            cropped = cropImageToStream(stream, outWidth, outHeight);
         } catch (Exception e) {
             Log.e(TAG, "Exception " + e);
         } finally {
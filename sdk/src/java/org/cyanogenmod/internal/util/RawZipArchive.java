@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.internal.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a zip archive which lives in a range of a file, such as a
+ * stored entry of an APK, so that its entries can be copied to a new archive as raw bytes
+ * without being inflated and deflated again. Zip64 archives are not supported.
+ */
+final class RawZipArchive {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIR_SIGNATURE = 0x06054b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+
+    private static final int LOCAL_HEADER_LENGTH = 30;
+    private static final int CENTRAL_HEADER_LENGTH = 46;
+    private static final int END_OF_CENTRAL_DIR_LENGTH = 22;
+    private static final int MAX_COMMENT_LENGTH = 0xffff;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+
+    static final class Entry {
+        final String name;
+        final int method;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+        // The whole central directory record, re-emitted with a new local header offset
+        final byte[] centralRecord;
+
+        private Entry(String name, int method, long compressedSize, long size,
+                long localHeaderOffset, byte[] centralRecord) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+            this.centralRecord = centralRecord;
+        }
+    }
+
+    private final FileChannel mChannel;
+    private final long mStart;
+    private final long mLength;
+    private final List<Entry> mEntries;
+
+    /**
+     * @param channel Channel of the file containing the archive
+     * @param start Offset of the archive within the file
+     * @param length Length of the archive
+     */
+    RawZipArchive(FileChannel channel, long start, long length) throws IOException {
+        mChannel = channel;
+        mStart = start;
+        mLength = length;
+        mEntries = readCentralDirectory(length);
+    }
+
+    /**
+     * Returns the entries in the order their data appears in the archive.
+     */
+    List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    Entry getEntry(String name) {
+        for (Entry entry : mEntries) {
+            if (entry.name.equals(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether every entry of the archive is stored uncompressed.
+     */
+    boolean isAllStored() {
+        for (Entry entry : mEntries) {
+            if (entry.method != ZipEntry.STORED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the whole archive to out as is.
+     */
+    void copyTo(FileChannel out) throws IOException {
+        transfer(mStart, mLength, out);
+    }
+
+    /**
+     * Returns the offset within the file at which the data of the entry starts.
+     */
+    long getDataOffset(Entry entry) throws IOException {
+        ByteBuffer header = read(mStart + entry.localHeaderOffset, LOCAL_HEADER_LENGTH);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Bad local header for " + entry.name);
+        }
+        return mStart + entry.localHeaderOffset + LOCAL_HEADER_LENGTH
+                + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+    }
+
+    /**
+     * Writes the data of the entry to out as is, which for a stored entry is its contents.
+     */
+    void transferEntryData(Entry entry, FileChannel out) throws IOException {
+        transfer(getDataOffset(entry), entry.compressedSize, out);
+    }
+
+    /**
+     * Reads and if needed inflates the data of the entry. Meant for small entries only.
+     */
+    byte[] readEntry(Entry entry) throws IOException {
+        if (entry.compressedSize > Integer.MAX_VALUE || entry.size > Integer.MAX_VALUE) {
+            throw new ZipException("Entry too large to read: " + entry.name);
+        }
+        ByteBuffer data = read(getDataOffset(entry), (int) entry.compressedSize);
+        if (entry.method == ZipEntry.STORED) {
+            return data.array();
+        } else if (entry.method != ZipEntry.DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.method);
+        }
+
+        Inflater inflater = new Inflater(true);
+        InputStream in = new InflaterInputStream(new ByteArrayInputStream(data.array()),
+                inflater);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) entry.size);
+            byte[] buffer = new byte[4096];
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                out.write(buffer, 0, len);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+            inflater.end();
+        }
+    }
+
+    /**
+     * Writes a copy of this archive to out, in which the entry with the given name has the
+     * given contents and is stored uncompressed. All other entries are copied over as is,
+     * local header and data, with {@link FileChannel#transferTo}, so they keep their
+     * compression method. Check {@link #isAllStored()} first if the copy must be uncompressed.
+     */
+    void copyReplacingEntry(String name, byte[] contents, FileChannel out) throws IOException {
+        final List<byte[]> centralRecords = new ArrayList<>(mEntries.size());
+        long position = 0;
+        for (Entry entry : mEntries) {
+            final long newOffset = position;
+            byte[] centralRecord = entry.centralRecord.clone();
+            ByteBuffer record = ByteBuffer.wrap(centralRecord).order(ByteOrder.LITTLE_ENDIAN);
+
+            if (entry.name.equals(name)) {
+                CRC32 crc = new CRC32();
+                crc.update(contents);
+                final short flags = (short) (record.getShort(8) & ~FLAG_DATA_DESCRIPTOR);
+                record.putShort(8, flags);
+                record.putShort(10, (short) ZipEntry.STORED);
+                record.putInt(16, (int) crc.getValue());
+                record.putInt(20, contents.length);
+                record.putInt(24, contents.length);
+
+                final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_LENGTH + nameBytes.length)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(LOCAL_HEADER_SIGNATURE);
+                header.putShort(record.getShort(6));   // version needed
+                header.putShort(flags);
+                header.putShort((short) ZipEntry.STORED);
+                header.putShort(record.getShort(12));  // time
+                header.putShort(record.getShort(14));  // date
+                header.putInt((int) crc.getValue());
+                header.putInt(contents.length);
+                header.putInt(contents.length);
+                header.putShort((short) nameBytes.length);
+                header.putShort((short) 0);            // extra length
+                header.put(nameBytes);
+                header.flip();
+                position += write(out, header);
+                position += write(out, ByteBuffer.wrap(contents));
+            } else {
+                final long start = mStart + entry.localHeaderOffset;
+                final long length = getDataOffset(entry) - start + entry.compressedSize
+                        + getDataDescriptorLength(entry);
+                position += transfer(start, length, out);
+            }
+
+            record.putInt(42, (int) newOffset);
+            centralRecords.add(centralRecord);
+        }
+
+        final long centralDirOffset = position;
+        for (byte[] centralRecord : centralRecords) {
+            position += write(out, ByteBuffer.wrap(centralRecord));
+        }
+
+        ByteBuffer end = ByteBuffer.allocate(END_OF_CENTRAL_DIR_LENGTH)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(END_OF_CENTRAL_DIR_SIGNATURE);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) centralRecords.size());
+        end.putShort((short) centralRecords.size());
+        end.putInt((int) (position - centralDirOffset));
+        end.putInt((int) centralDirOffset);
+        end.putShort((short) 0);
+        end.flip();
+        write(out, end);
+    }
+
+    private long getDataDescriptorLength(Entry entry) throws IOException {
+        ByteBuffer record = ByteBuffer.wrap(entry.centralRecord).order(ByteOrder.LITTLE_ENDIAN);
+        if ((record.getShort(8) & FLAG_DATA_DESCRIPTOR) == 0) {
+            return 0;
+        }
+        // The descriptor signature is optional
+        ByteBuffer signature = read(getDataOffset(entry) + entry.compressedSize, 4);
+        return signature.getInt(0) == DATA_DESCRIPTOR_SIGNATURE ? 16 : 12;
+    }
+
+    private List<Entry> readCentralDirectory(long length) throws IOException {
+        // The end of central directory record is followed by a comment of up to 64k
+        final int tailLength = (int) Math.min(length,
+                END_OF_CENTRAL_DIR_LENGTH + MAX_COMMENT_LENGTH);
+        ByteBuffer tail = read(mStart + length - tailLength, tailLength);
+        int endOffset = -1;
+        for (int i = tailLength - END_OF_CENTRAL_DIR_LENGTH; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIR_SIGNATURE) {
+                endOffset = i;
+                break;
+            }
+        }
+        if (endOffset < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+
+        final int count = tail.getShort(endOffset + 10) & 0xffff;
+        final long centralDirSize = tail.getInt(endOffset + 12) & 0xffffffffL;
+        final long centralDirOffset = tail.getInt(endOffset + 16) & 0xffffffffL;
+        if (centralDirOffset + centralDirSize > length) {
+            throw new ZipException("Central directory out of bounds");
+        }
+
+        ByteBuffer dir = read(mStart + centralDirOffset, (int) centralDirSize);
+        List<Entry> entries = new ArrayList<>(count);
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            if (offset + CENTRAL_HEADER_LENGTH > dir.limit()
+                    || dir.getInt(offset) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Bad central directory record " + i);
+            }
+            final int nameLength = dir.getShort(offset + 28) & 0xffff;
+            final int recordLength = CENTRAL_HEADER_LENGTH + nameLength
+                    + (dir.getShort(offset + 30) & 0xffff) + (dir.getShort(offset + 32) & 0xffff);
+            if (offset + recordLength > dir.limit()) {
+                throw new ZipException("Bad central directory record " + i);
+            }
+            final long compressedSize = dir.getInt(offset + 20) & 0xffffffffL;
+            final long size = dir.getInt(offset + 24) & 0xffffffffL;
+            final long localHeaderOffset = dir.getInt(offset + 42) & 0xffffffffL;
+            if (compressedSize == 0xffffffffL || size == 0xffffffffL
+                    || localHeaderOffset == 0xffffffffL) {
+                throw new ZipException("Zip64 archives are not supported");
+            }
+
+            byte[] record = new byte[recordLength];
+            System.arraycopy(dir.array(), offset, record, 0, recordLength);
+            String name = new String(record, CENTRAL_HEADER_LENGTH, nameLength,
+                    StandardCharsets.UTF_8);
+            entries.add(new Entry(name, dir.getShort(offset + 10) & 0xffff, compressedSize,
+                    size, localHeaderOffset, record));
+            offset += recordLength;
+        }
+
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return Long.compare(lhs.localHeaderOffset, rhs.localHeaderOffset);
+            }
+        });
+        return entries;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new ZipException("Unexpected end of archive");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private long transfer(long position, long length, FileChannel out) throws IOException {
+        long transferred = 0;
+        while (transferred < length) {
+            long count = mChannel.transferTo(position + transferred, length - transferred, out);
+            if (count <= 0) {
+                throw new ZipException("Unexpected end of archive");
+            }
+            transferred += count;
+        }
+        return transferred;
+    }
+
+    private static int write(FileChannel out, ByteBuffer buffer) throws IOException {
+        final int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        return length;
+    }
+}
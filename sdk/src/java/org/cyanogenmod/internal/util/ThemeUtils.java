@@ -21,19 +21,23 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.ContextWrapper;
+import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageParser;
 import android.content.res.AssetManager;
 import android.content.res.ThemeConfig;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.FileUtils;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.provider.MediaStore;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.DisplayMetrics;
 import android.util.Log;
@@ -45,13 +49,17 @@ import cyanogenmod.providers.ThemesContract.ThemesColumns;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -59,9 +67,12 @@ import java.util.Map;
 import java.util.Set;
 import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
+import libcore.io.IoUtils;
+
 import static android.content.res.ThemeConfig.SYSTEM_DEFAULT;
 
 /**
@@ -73,21 +84,35 @@ public class ThemeUtils {
     // Package name for any app which does not have a specific theme applied
     private static final String DEFAULT_PKG = "default";
 
+    // The index of a component in this array is its bit in a component mask, see
+    // getSupportedComponentsMask()
+    private static final String[] COMPONENT_COLUMNS = {
+        ThemesColumns.MODIFIES_ALARMS,
+        ThemesColumns.MODIFIES_BOOT_ANIM,
+        ThemesColumns.MODIFIES_FONTS,
+        ThemesColumns.MODIFIES_ICONS,
+        ThemesColumns.MODIFIES_LAUNCHER,
+        ThemesColumns.MODIFIES_LIVE_LOCK_SCREEN,
+        ThemesColumns.MODIFIES_LOCKSCREEN,
+        ThemesColumns.MODIFIES_NAVIGATION_BAR,
+        ThemesColumns.MODIFIES_NOTIFICATIONS,
+        ThemesColumns.MODIFIES_OVERLAYS,
+        ThemesColumns.MODIFIES_RINGTONES,
+        ThemesColumns.MODIFIES_STATUS_BAR
+    };
+
+    private static final String[] COMPONENT_PROJECTION;
+
     private static final Set<String> SUPPORTED_THEME_COMPONENTS = new ArraySet<>();
 
     static {
-        SUPPORTED_THEME_COMPONENTS.add(ThemesColumns.MODIFIES_ALARMS);
-        SUPPORTED_THEME_COMPONENTS.add(ThemesColumns.MODIFIES_BOOT_ANIM);
-        SUPPORTED_THEME_COMPONENTS.add(ThemesColumns.MODIFIES_FONTS);
-        SUPPORTED_THEME_COMPONENTS.add(ThemesColumns.MODIFIES_ICONS);
-        SUPPORTED_THEME_COMPONENTS.add(ThemesColumns.MODIFIES_LAUNCHER);
-        SUPPORTED_THEME_COMPONENTS.add(ThemesColumns.MODIFIES_LIVE_LOCK_SCREEN);
-        SUPPORTED_THEME_COMPONENTS.add(ThemesColumns.MODIFIES_LOCKSCREEN);
-        SUPPORTED_THEME_COMPONENTS.add(ThemesColumns.MODIFIES_NAVIGATION_BAR);
-        SUPPORTED_THEME_COMPONENTS.add(ThemesColumns.MODIFIES_NOTIFICATIONS);
-        SUPPORTED_THEME_COMPONENTS.add(ThemesColumns.MODIFIES_OVERLAYS);
-        SUPPORTED_THEME_COMPONENTS.add(ThemesColumns.MODIFIES_RINGTONES);
-        SUPPORTED_THEME_COMPONENTS.add(ThemesColumns.MODIFIES_STATUS_BAR);
+        COMPONENT_PROJECTION = new String[COMPONENT_COLUMNS.length + 1];
+        COMPONENT_PROJECTION[0] = ThemesColumns.PKG_NAME;
+        System.arraycopy(COMPONENT_COLUMNS, 0, COMPONENT_PROJECTION, 1,
+                COMPONENT_COLUMNS.length);
+        for (String component : COMPONENT_COLUMNS) {
+            SUPPORTED_THEME_COMPONENTS.add(component);
+        }
     }
 
     // Constants for theme change broadcast
@@ -111,8 +136,12 @@ public class ThemeUtils {
             + File.separator + "alarms";
     public static final String SYSTEM_THEME_ICON_CACHE_DIR = SYSTEM_THEME_PATH
             + File.separator + "icons";
+    // content addressed store of composed icons, survives clearIconCache()
+    public static final String SYSTEM_THEME_COMPOSED_ICON_DIR = SYSTEM_THEME_PATH
+            + File.separator + "composed_icons";
     // internal path to bootanimation.zip inside theme apk
     public static final String THEME_BOOTANIMATION_PATH = "assets/bootanimation/bootanimation.zip";
+    private static final String BOOTANIMATION_DESC = "desc.txt";
 
     public static final String SYSTEM_MEDIA_PATH = "/system/media/audio";
     public static final String SYSTEM_ALARMS_PATH = SYSTEM_MEDIA_PATH + File.separator
@@ -138,6 +167,7 @@ public class ThemeUtils {
     public static final String COMMON_RES_TARGET = "common";
 
     public static final String ICON_HASH_FILENAME = "hash";
+    public static final String TARGET_HASH_FILENAME = "hash";
 
     public static final String FONT_XML  = "fonts.xml";
 
@@ -175,26 +205,196 @@ public class ThemeUtils {
      *  or if it is too early in the boot process this method will not work.
      */
     public static List<String> getSupportedComponents(Context context, String pkgName) {
-        List<String> supportedComponents = new ArrayList<>();
+        return getComponentsFromMask(getSupportedComponentsMask(context, pkgName));
+    }
+
+    /**
+     * Returns a mask of the theme components supported by a given package, to be turned into
+     * components with {@link #getComponentsFromMask(int)}. Masks are cached until the themes
+     * content provider or the package changes.
+     * NOTE: This queries the themes content provider. If there isn't a provider installed
+     * or if it is too early in the boot process this method will return 0.
+     */
+    public static int getSupportedComponentsMask(Context context, String pkgName) {
+        final ComponentMaskCache cache = ComponentMaskCache.get(context);
+        final int generation = cache.getGeneration();
+        Integer mask = cache.getMask(pkgName);
+        if (mask != null) {
+            return mask;
+        }
 
         String selection = ThemesColumns.PKG_NAME + "= ?";
         String[] selectionArgs = new String[]{ pkgName };
         Cursor c = context.getContentResolver().query(ThemesColumns.CONTENT_URI,
-                null, selection, selectionArgs, null);
-
-        if (c != null) {
-            if (c.moveToFirst()) {
-                List<String> allComponents = getAllComponents();
-                for (String component : allComponents) {
-                    int index = c.getColumnIndex(component);
-                    if (c.getInt(index) == 1) {
-                        supportedComponents.add(component);
-                    }
-                }
+                COMPONENT_PROJECTION, selection, selectionArgs, null);
+        if (c == null) {
+            return 0;
+        }
+        try {
+            mask = c.moveToFirst() ? readComponentsMask(c) : 0;
+        } finally {
+            c.close();
+        }
+        cache.putMask(pkgName, mask, generation);
+        return mask;
+    }
+
+    /**
+     * Returns the masks of the theme components supported by every theme known to the
+     * themes content provider, keyed by package name, using a single query.
+     */
+    public static Map<String, Integer> getAllSupportedComponentsMasks(Context context) {
+        final ComponentMaskCache cache = ComponentMaskCache.get(context);
+        final int generation = cache.getGeneration();
+        Map<String, Integer> masks = cache.getAllMasks();
+        if (masks != null) {
+            return masks;
+        }
+
+        masks = new ArrayMap<>();
+        Cursor c = context.getContentResolver().query(ThemesColumns.CONTENT_URI,
+                COMPONENT_PROJECTION, null, null, null);
+        if (c == null) {
+            return masks;
+        }
+        try {
+            while (c.moveToNext()) {
+                masks.put(c.getString(0), readComponentsMask(c));
             }
+        } finally {
             c.close();
         }
-        return supportedComponents;
+        cache.putAllMasks(masks, generation);
+        return masks;
+    }
+
+    /**
+     * Returns a mutable list of the theme components in the given mask
+     */
+    public static List<String> getComponentsFromMask(int mask) {
+        List<String> components = new ArrayList<>(Integer.bitCount(mask));
+        for (int i = 0; i < COMPONENT_COLUMNS.length; i++) {
+            if ((mask & (1 << i)) != 0) {
+                components.add(COMPONENT_COLUMNS[i]);
+            }
+        }
+        return components;
+    }
+
+    private static int readComponentsMask(Cursor c) {
+        int mask = 0;
+        for (int i = 0; i < COMPONENT_COLUMNS.length; i++) {
+            // Offset by one for the package name which comes first in the projection
+            if (c.getInt(i + 1) == 1) {
+                mask |= 1 << i;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Process wide cache of theme component masks, dropped whenever the themes provider
+     * notifies a change and per package when a package changes.
+     */
+    private static final class ComponentMaskCache {
+        private static ComponentMaskCache sInstance;
+
+        private final Object mLock = new Object();
+        private final ArrayMap<String, Integer> mMasks = new ArrayMap<>();
+        // Whether mMasks holds every theme, as loaded by getAllSupportedComponentsMasks()
+        private boolean mComplete;
+        // Bumped on every invalidation so that queries racing with one don't get cached
+        private int mGeneration;
+
+        static ComponentMaskCache get(Context context) {
+            synchronized (ComponentMaskCache.class) {
+                if (sInstance == null) {
+                    Context appContext = context.getApplicationContext();
+                    sInstance = new ComponentMaskCache(appContext != null ? appContext : context);
+                }
+                return sInstance;
+            }
+        }
+
+        private ComponentMaskCache(Context context) {
+            context.getContentResolver().registerContentObserver(ThemesColumns.CONTENT_URI,
+                    true, new ContentObserver(null) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            invalidate(null);
+                        }
+                    });
+
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+            filter.addDataScheme("package");
+            context.registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    Uri data = intent.getData();
+                    invalidate(data != null ? data.getSchemeSpecificPart() : null);
+                }
+            }, filter);
+        }
+
+        int getGeneration() {
+            synchronized (mLock) {
+                return mGeneration;
+            }
+        }
+
+        Integer getMask(String pkgName) {
+            synchronized (mLock) {
+                Integer mask = mMasks.get(pkgName);
+                if (mask == null && mComplete) {
+                    // Not a theme
+                    mask = 0;
+                }
+                return mask;
+            }
+        }
+
+        Map<String, Integer> getAllMasks() {
+            synchronized (mLock) {
+                return mComplete ? new ArrayMap<>(mMasks) : null;
+            }
+        }
+
+        void putMask(String pkgName, int mask, int generation) {
+            synchronized (mLock) {
+                if (generation == mGeneration) {
+                    mMasks.put(pkgName, mask);
+                }
+            }
+        }
+
+        void putAllMasks(Map<String, Integer> masks, int generation) {
+            synchronized (mLock) {
+                if (generation == mGeneration) {
+                    mMasks.clear();
+                    mMasks.putAll(masks);
+                    mComplete = true;
+                }
+            }
+        }
+
+        /**
+         * @param pkgName Package to drop, or null to drop everything
+         */
+        void invalidate(String pkgName) {
+            synchronized (mLock) {
+                mGeneration++;
+                mComplete = false;
+                if (pkgName != null) {
+                    mMasks.remove(pkgName);
+                } else {
+                    mMasks.clear();
+                }
+            }
+        }
     }
 
     /**
@@ -252,6 +452,15 @@ public class ThemeUtils {
         return getTargetCacheDir(targetPkgName, overlayPkgName) + File.separator + "idmap";
     }
 
+    /**
+     * Path of the file recording which versions of the target and overlay the cached idmap and
+     * resources were built from
+     */
+    public static String getTargetHashPath(String targetPkgName, String overlayPkgName) {
+        return getTargetCacheDir(targetPkgName, overlayPkgName) + File.separator
+                + TARGET_HASH_FILENAME;
+    }
+
     public static String getOverlayPathToTarget(String targetPkgName) {
         StringBuilder sb = new StringBuilder();
         sb.append(OVERLAY_PATH);
@@ -418,6 +627,64 @@ public class ThemeUtils {
         return null;
     }
 
+    /**
+     * Scale the boot animation to better fit the device by editing the desc.txt found
+     * in the bootanimation.zip of the given theme. All other entries are copied over without
+     * being read into memory.
+     * @param context Context to use for getting an instance of the WindowManager
+     * @param themeApkPath Path to the theme apk containing the bootanimation.zip
+     * @param dst Path to store the newly created bootanimation.zip
+     * @throws IOException
+     */
+    public static void copyAndScaleBootAnimation(Context context, String themeApkPath,
+            String dst) throws IOException {
+        final long startTime = SystemClock.elapsedRealtime();
+        final RandomAccessFile apk = new RandomAccessFile(themeApkPath, "r");
+        FileOutputStream out = null;
+        try {
+            final FileChannel apkChannel = apk.getChannel();
+            RawZipArchive apkArchive = new RawZipArchive(apkChannel, 0, apkChannel.size());
+            RawZipArchive.Entry bootAniEntry = apkArchive.getEntry(THEME_BOOTANIMATION_PATH);
+            if (bootAniEntry == null) {
+                throw new FileNotFoundException(THEME_BOOTANIMATION_PATH + " not found in "
+                        + themeApkPath);
+            }
+            RawZipArchive bootAni = null;
+            if (bootAniEntry.method == ZipEntry.STORED) {
+                bootAni = new RawZipArchive(apkChannel, apkArchive.getDataOffset(bootAniEntry),
+                        bootAniEntry.size);
+            }
+            if (bootAni == null || !bootAni.isAllStored()) {
+                // The boot animation needs stored entries, which only the stream path writes
+                ZipFile zip = new ZipFile(themeApkPath);
+                try {
+                    copyAndScaleBootAnimation(context,
+                            zip.getInputStream(zip.getEntry(THEME_BOOTANIMATION_PATH)), dst);
+                } finally {
+                    zip.close();
+                }
+                return;
+            }
+
+            RawZipArchive.Entry descEntry = bootAni.getEntry(BOOTANIMATION_DESC);
+            out = new FileOutputStream(dst);
+            if (descEntry == null) {
+                Log.w(TAG, "No " + BOOTANIMATION_DESC + " in boot animation of " + themeApkPath);
+                bootAni.copyTo(out.getChannel());
+            } else {
+                byte[] desc = scaleBootAnimationDesc(context,
+                        new ByteArrayInputStream(bootAni.readEntry(descEntry)));
+                bootAni.copyReplacingEntry(BOOTANIMATION_DESC, desc, out.getChannel());
+            }
+            out.getFD().sync();
+        } finally {
+            IoUtils.closeQuietly(out);
+            IoUtils.closeQuietly(apk);
+        }
+        Log.d(TAG, "Copied boot animation of " + themeApkPath + " in "
+                + (SystemClock.elapsedRealtime() - startTime) + "ms");
+    }
+
     /**
      * Scale the boot animation to better fit the device by editing the desc.txt found
      * in the bootanimation.zip
@@ -442,69 +709,75 @@ public class ThemeUtils {
             entry.setCrc(ze.getCrc());
             entry.setSize(ze.getSize());
             entry.setCompressedSize(ze.getSize());
-            if (!ze.getName().equals("desc.txt")) {
+            if (!ze.getName().equals(BOOTANIMATION_DESC)) {
                 // just copy this entry straight over into the output zip
                 zos.putNextEntry(entry);
                 while ((len = bootAni.read(bytes)) > 0) {
                     zos.write(bytes, 0, len);
                 }
             } else {
-                String line;
-                BufferedReader reader = new BufferedReader(new InputStreamReader(bootAni));
-                final String[] info = reader.readLine().split(" ");
-
-                int scaledWidth;
-                int scaledHeight;
-                WindowManager wm = (WindowManager)context.getSystemService(Context.WINDOW_SERVICE);
-                DisplayMetrics dm = new DisplayMetrics();
-                wm.getDefaultDisplay().getRealMetrics(dm);
-                // just in case the device is in landscape orientation we will
-                // swap the values since most (if not all) animations are portrait
-                if (dm.widthPixels > dm.heightPixels) {
-                    scaledWidth = dm.heightPixels;
-                    scaledHeight = dm.widthPixels;
-                } else {
-                    scaledWidth = dm.widthPixels;
-                    scaledHeight = dm.heightPixels;
-                }
-
-                int width = Integer.parseInt(info[0]);
-                int height = Integer.parseInt(info[1]);
-
-                if (width == height)
-                    scaledHeight = scaledWidth;
-                else {
-                    // adjust scaledHeight to retain original aspect ratio
-                    float scale = (float)scaledWidth / (float)width;
-                    int newHeight = (int)((float)height * scale);
-                    if (newHeight < scaledHeight)
-                        scaledHeight = newHeight;
-                }
-
+                byte[] desc = scaleBootAnimationDesc(context, bootAni);
                 CRC32 crc32 = new CRC32();
-                int size = 0;
-                ByteBuffer buffer = ByteBuffer.wrap(bytes);
-                line = String.format("%d %d %s\n", scaledWidth, scaledHeight, info[2]);
-                buffer.put(line.getBytes());
-                size += line.getBytes().length;
-                crc32.update(line.getBytes());
-                while ((line = reader.readLine()) != null) {
-                    line = String.format("%s\n", line);
-                    buffer.put(line.getBytes());
-                    size += line.getBytes().length;
-                    crc32.update(line.getBytes());
-                }
+                crc32.update(desc);
                 entry.setCrc(crc32.getValue());
-                entry.setSize(size);
-                entry.setCompressedSize(size);
+                entry.setSize(desc.length);
+                entry.setCompressedSize(desc.length);
                 zos.putNextEntry(entry);
-                zos.write(buffer.array(), 0, size);
+                zos.write(desc);
             }
             zos.closeEntry();
         }
         zos.close();
     }
 
+    /**
+     * Rewrites the first line of a boot animation's desc.txt so the animation fills the
+     * display while keeping its aspect ratio.
+     */
+    private static byte[] scaleBootAnimationDesc(Context context, InputStream desc)
+            throws IOException {
+        String line;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(desc));
+        final String[] info = reader.readLine().split(" ");
+
+        int scaledWidth;
+        int scaledHeight;
+        WindowManager wm = (WindowManager)context.getSystemService(Context.WINDOW_SERVICE);
+        DisplayMetrics dm = new DisplayMetrics();
+        wm.getDefaultDisplay().getRealMetrics(dm);
+        // just in case the device is in landscape orientation we will
+        // swap the values since most (if not all) animations are portrait
+        if (dm.widthPixels > dm.heightPixels) {
+            scaledWidth = dm.heightPixels;
+            scaledHeight = dm.widthPixels;
+        } else {
+            scaledWidth = dm.widthPixels;
+            scaledHeight = dm.heightPixels;
+        }
+
+        int width = Integer.parseInt(info[0]);
+        int height = Integer.parseInt(info[1]);
+
+        if (width == height)
+            scaledHeight = scaledWidth;
+        else {
+            // adjust scaledHeight to retain original aspect ratio
+            float scale = (float)scaledWidth / (float)width;
+            int newHeight = (int)((float)height * scale);
+            if (newHeight < scaledHeight)
+                scaledHeight = newHeight;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        line = String.format("%d %d %s\n", scaledWidth, scaledHeight, info[2]);
+        out.write(line.getBytes());
+        while ((line = reader.readLine()) != null) {
+            line = String.format("%s\n", line);
+            out.write(line.getBytes());
+        }
+        return out.toByteArray();
+    }
+
     public static boolean isValidAudible(String fileName) {
         return (fileName != null &&
                 (fileName.endsWith(".mp3") || fileName.endsWith(".ogg")));
@@ -594,19 +867,27 @@ public class ThemeUtils {
         return path;
     }
 
+    /**
+     * Deletes all audibles in the given directory along with their MediaStore entries. Use
+     * {@link AudibleBatch} to replace audibles as part of a theme change.
+     */
     public static void clearAudibles(Context context, String audiblePath) {
         final File audibleDir = new File(audiblePath);
-        if (audibleDir.exists()) {
-            String[] files = audibleDir.list();
-            final ContentResolver resolver = context.getContentResolver();
-            for (String s : files) {
-                final String filePath = audiblePath + File.separator + s;
-                Uri uri = MediaStore.Audio.Media.getContentUriForPath(filePath);
-                resolver.delete(uri, MediaStore.MediaColumns.DATA + "=\""
-                        + filePath + "\"", null);
-                (new File(filePath)).delete();
-            }
+        String[] files = audibleDir.list();
+        if (files == null || files.length == 0) {
+            return;
+        }
+
+        final String[] filePaths = new String[files.length];
+        final String[] placeholders = new String[files.length];
+        for (int i = 0; i < files.length; i++) {
+            filePaths[i] = audiblePath + File.separator + files[i];
+            placeholders[i] = "?";
+            (new File(filePaths[i])).delete();
         }
+        Uri uri = MediaStore.Audio.Media.getContentUriForPath(audiblePath);
+        context.getContentResolver().delete(uri, MediaStore.MediaColumns.DATA + " IN ("
+                + TextUtils.join(",", placeholders) + ")", filePaths);
     }
 
     public static InputStream getInputStreamFromAsset(Context ctx, String path) throws IOException {
@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.tests.customtiles.unit;
+
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Binder;
+import android.os.Parcel;
+import android.os.UserHandle;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import cyanogenmod.app.CMContextConstants;
+import cyanogenmod.app.CustomTile;
+import cyanogenmod.app.CustomTileDelta;
+import cyanogenmod.app.StatusBarPanelCustomTile;
+
+import org.cyanogenmod.tests.R;
+
+public class CustomTileDeltaTest extends AndroidTestCase {
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Only run this if we support cm status bar service
+        org.junit.Assume.assumeTrue(mContext.getPackageManager().hasSystemFeature(
+                CMContextConstants.Features.STATUSBAR));
+    }
+
+    @SmallTest
+    public void testLabelChangeIsCompact() {
+        StatusBarPanelCustomTile oldSbc = createPanelTile(createTile("00:01", null));
+        StatusBarPanelCustomTile newSbc = createPanelTile(createTile("00:02", null));
+
+        CustomTileDelta delta = CustomTileDelta.compute(oldSbc, newSbc);
+        assertNotNull(delta);
+        assertEquals(CustomTileDelta.FIELD_LABEL, delta.getChangedFields());
+        assertTrue(delta.isCompact());
+
+        StatusBarPanelCustomTile applied = delta.applyTo(oldSbc);
+        assertEquals(newSbc.getKey(), applied.getKey());
+        assertEquals("00:02", applied.getCustomTile().label);
+        assertEquals(oldSbc.getCustomTile().onClick, applied.getCustomTile().onClick);
+    }
+
+    @SmallTest
+    public void testDeltaUnravelFromParcel() {
+        StatusBarPanelCustomTile oldSbc = createPanelTile(createTile("old", null));
+        CustomTile newTile = createTile("new", null);
+        newTile.contentDescription = "description";
+        StatusBarPanelCustomTile newSbc = createPanelTile(newTile);
+
+        CustomTileDelta delta = CustomTileDelta.compute(oldSbc, newSbc);
+
+        // Write to parcel
+        Parcel parcel = Parcel.obtain();
+        delta.writeToParcel(parcel, 0);
+
+        // Rewind
+        parcel.setDataPosition(0);
+
+        // Verify data when unraveling
+        CustomTileDelta fromParcel = CustomTileDelta.CREATOR.createFromParcel(parcel);
+        assertEquals(delta.getKey(), fromParcel.getKey());
+        assertEquals(delta.getChangedFields(), fromParcel.getChangedFields());
+
+        CustomTile applied = fromParcel.applyTo(oldSbc).getCustomTile();
+        assertEquals("new", applied.label);
+        assertEquals("description", applied.contentDescription);
+    }
+
+    @SmallTest
+    public void testIdenticalIconIsNotAChange() {
+        Bitmap a = createIcon(Color.RED);
+        Bitmap b = createIcon(Color.RED);
+        assertEquals(CustomTileDelta.computeIconHash(a), CustomTileDelta.computeIconHash(b));
+
+        CustomTileDelta delta = CustomTileDelta.compute(
+                createPanelTile(createTile("label", a)), createPanelTile(createTile("label", b)));
+        assertTrue(delta.isEmpty());
+    }
+
+    @SmallTest
+    public void testChangedIconIsHeavy() {
+        CustomTileDelta delta = CustomTileDelta.compute(
+                createPanelTile(createTile("label", createIcon(Color.RED))),
+                createPanelTile(createTile("label", createIcon(Color.BLUE))));
+        assertEquals(CustomTileDelta.FIELD_REMOTE_ICON, delta.getChangedFields());
+        assertFalse(delta.isCompact());
+    }
+
+    private CustomTile createTile(String label, Bitmap icon) {
+        Intent intent = new Intent(Intent.ACTION_DIAL);
+        PendingIntent pendingIntent = PendingIntent.getActivity(mContext, 0, intent, 0);
+        CustomTile.Builder builder = new CustomTile.Builder(mContext)
+                .setOnClickIntent(pendingIntent)
+                .setLabel(label);
+        if (icon != null) {
+            builder.setIcon(icon);
+        } else {
+            builder.setIcon(R.drawable.ic_launcher);
+        }
+        return builder.build();
+    }
+
+    private StatusBarPanelCustomTile createPanelTile(CustomTile customTile) {
+        return new StatusBarPanelCustomTile("pkg", "pkg", "pkg", 1337, "TAG",
+                mContext.getUserId(), Binder.getCallingPid(), customTile,
+                new UserHandle(mContext.getUserId()));
+    }
+
+    private static Bitmap createIcon(int color) {
+        Bitmap bitmap = Bitmap.createBitmap(8, 8, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        return bitmap;
+    }
+}
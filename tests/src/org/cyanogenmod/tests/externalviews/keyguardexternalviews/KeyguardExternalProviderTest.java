@@ -221,16 +221,60 @@ public class KeyguardExternalProviderTest extends ThreadServiceTestCase<ViewProv
                 Mockito.verify(getService().getProvider().getTracker(), Mockito.times(1)).onDetach();
                 Mockito.verifyNoMoreInteractions(getService().getProvider().getTracker());
 
-                ArgumentCaptor<ViewGroup> viewGroup = ArgumentCaptor
-                        .forClass(ViewGroup.class);
-                Mockito.verify(mWindowManagerMock, Mockito.times(1))
-                        .removeView(viewGroup.capture());
+                // The window is kept hidden until the idle timeout expires
+                Mockito.verify(mWindowManagerMock, Mockito.never())
+                        .removeView(Mockito.any(View.class));
+                assertEquals (getDecorView().getVisibility(), View.GONE);
+            }
+        });
+    }
 
-                ViewGroup decorView = viewGroup.getAllValues().get(0);
-                assertEquals (decorView.getChildCount(), 2);
-                assertEquals (decorView.getChildAt(1), getService().getProvider().getView());
+    public void testReattachWithinIdleTimeout() throws Exception {
+        mView.onAttach(null);
+        mView.alterWindow(0, 0, 100, 100, true, null);
+        mView.onDetach();
+        runOnServiceThread(new Runnable() {
+            @Override
+            public void run() {
+                assertEquals (getDecorView().getVisibility(), View.GONE);
             }
         });
+
+        Mockito.reset(mWindowManagerMock);
+        mView.onAttach(null);
+        runOnServiceThread(new Runnable() {
+            @Override
+            public void run() {
+                Mockito.verify(getService().getProvider().getTracker(), Mockito.times(2))
+                        .onAttach();
+                // Attaching again only shows the window that is still there
+                Mockito.verifyNoMoreInteractions(mWindowManagerMock);
+                assertEquals (getDecorView().getVisibility(), View.VISIBLE);
+            }
+        });
+    }
+
+    public void testWindowRemovedAfterIdleTimeout() throws Exception {
+        getService().setWindowIdleTimeout(100);
+        mView.onAttach(null);
+        mView.onDetach();
+
+        Mockito.verify(mWindowManagerMock, Mockito.timeout(WAIT_TIME).times(1))
+                .removeView(Mockito.eq(getDecorView()));
+
+        mView.onAttach(null);
+        runOnServiceThread(new Runnable() {
+            @Override
+            public void run() {
+                Mockito.verify(mWindowManagerMock, Mockito.times(2))
+                        .addView(Mockito.eq(getDecorView()),
+                                Mockito.any(ViewGroup.LayoutParams.class));
+            }
+        });
+    }
+
+    private View getDecorView() {
+        return (View) getService().getProvider().getView().getParent();
     }
 
     public void testCallbackRegistration() throws Exception {
@@ -25,6 +25,7 @@ import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.test.AndroidTestCase;
+import android.util.Log;
 import android.view.WindowManager;
 import cyanogenmod.externalviews.IExternalViewProviderFactory;
 import cyanogenmod.externalviews.IKeyguardExternalViewCallbacks;
@@ -36,6 +37,12 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 public class KeyguardExternalViewTest extends AndroidTestCase {
+    private static final String TAG = KeyguardExternalViewTest.class.getSimpleName();
+
+    private static final long ALTER_WINDOW_TIMEOUT_MS = 1000;
+    private static final long SLOW_ALTER_WINDOW_MS = 20;
+    private static final int FRAMES = 30;
+
     private IKeyguardExternalViewProvider.Stub mIKeyguardExternalViewProvider;
     private IExternalViewProviderFactory.Stub mExternalViewProviderFactory;
     private WindowManager mWindowManagerMock;
@@ -200,12 +207,60 @@ public class KeyguardExternalViewTest extends AndroidTestCase {
         mExternalView.setBottom(100);
 
         mExternalView.onPreDraw();
-        Mockito.verify(mIKeyguardExternalViewProvider, Mockito.times(1))
+        // Window changes are sent to the provider in the background
+        Mockito.verify(mIKeyguardExternalViewProvider, Mockito.timeout(ALTER_WINDOW_TIMEOUT_MS)
+                .times(1))
                 .alterWindow(Mockito.eq(0), Mockito.eq(0), Mockito.anyInt(),
                         Mockito.anyInt(), Mockito.eq(true), Mockito.any(Rect.class));
         Mockito.verifyNoMoreInteractions(mIKeyguardExternalViewProvider);
     }
 
+    public void testWindowMovementDoesNotBlockFrames() throws RemoteException {
+        testServiceAndCallbacksRegistered();
+        Mockito.reset(mIKeyguardExternalViewProvider);
+
+        // Simulate a provider which is slow to move its window
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(SLOW_ALTER_WINDOW_MS);
+                return null;
+            }
+        }).when(mIKeyguardExternalViewProvider).alterWindow(Mockito.anyInt(), Mockito.anyInt(),
+                Mockito.anyInt(), Mockito.anyInt(), Mockito.anyBoolean(),
+                Mockito.any(Rect.class));
+
+        // Move the view on every frame, as while swiping the lockscreen
+        long worstFrameNanos = 0;
+        final long start = System.nanoTime();
+        for (int frame = 0; frame < FRAMES; frame++) {
+            mExternalView.setLeft(frame);
+            mExternalView.setTop(frame);
+            mExternalView.setRight(frame + 100);
+            mExternalView.setBottom(frame + 100);
+
+            final long frameStart = System.nanoTime();
+            mExternalView.onPreDraw();
+            worstFrameNanos = Math.max(worstFrameNanos, System.nanoTime() - frameStart);
+        }
+        final long totalMs = (System.nanoTime() - start) / 1000000;
+        Log.d(TAG, "onPreDraw over " + FRAMES + " frames took " + totalMs + "ms, worst frame "
+                + (worstFrameNanos / 1000) + "us");
+
+        // Frames must not wait on the provider
+        assertTrue(totalMs < FRAMES * SLOW_ALTER_WINDOW_MS / 2);
+
+        // The last position always gets through, positions the provider couldn't keep up
+        // with are dropped
+        final int last = FRAMES - 1;
+        Mockito.verify(mIKeyguardExternalViewProvider, Mockito.timeout(ALTER_WINDOW_TIMEOUT_MS))
+                .alterWindow(Mockito.eq(last), Mockito.eq(last), Mockito.anyInt(),
+                        Mockito.anyInt(), Mockito.anyBoolean(), Mockito.any(Rect.class));
+        Mockito.verify(mIKeyguardExternalViewProvider, Mockito.atMost(FRAMES - 1))
+                .alterWindow(Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt(),
+                        Mockito.anyInt(), Mockito.anyBoolean(), Mockito.any(Rect.class));
+    }
+
     public void testWindowAttachmentCallbacks() throws RemoteException {
         testServiceAndCallbacksRegistered();
 
@@ -26,6 +26,7 @@ import org.mockito.Mockito;
 
 public class ViewProviderService extends KeyguardExternalViewProviderService {
     private ViewProvider mProvider;
+    private long mWindowIdleTimeout = -1;
 
     public ViewProviderService() {}
 
@@ -41,6 +42,10 @@ public class ViewProviderService extends KeyguardExternalViewProviderService {
         return mProvider;
     }
 
+    public void setWindowIdleTimeout(long timeout) {
+        mWindowIdleTimeout = timeout;
+    }
+
     public class ViewProvider extends KeyguardExternalViewProviderService.Provider {
         private ViewProvider mTracker;
         private View mView;
@@ -99,6 +104,11 @@ public class ViewProviderService extends KeyguardExternalViewProviderService {
             mTracker.onDetach();
         }
 
+        @Override
+        protected long getWindowIdleTimeout() {
+            return mWindowIdleTimeout >= 0 ? mWindowIdleTimeout : super.getWindowIdleTimeout();
+        }
+
         @Override
         protected void onLockscreenSlideOffsetChanged(float swipeProgress) {
             mTracker.onLockscreenSlideOffsetChanged(swipeProgress);
@@ -73,6 +73,23 @@ public class LiveDisplayManagerTest extends AndroidTestCase {
         assertTrue(mConfig.isAvailable());
     }
 
+    @SmallTest
+    public void testCachedStateMatchesService() throws Exception {
+        ILiveDisplayService service = LiveDisplayManager.getService();
+        assertNotNull(service);
+
+        assertEquals(service.getMode(), mLiveDisplay.getMode());
+        assertEquals(service.getDayColorTemperature(), mLiveDisplay.getDayColorTemperature());
+        assertEquals(service.getNightColorTemperature(),
+                mLiveDisplay.getNightColorTemperature());
+        assertEquals(service.isAutoContrastEnabled(), mLiveDisplay.isAutoContrastEnabled());
+        assertEquals(service.isCABCEnabled(), mLiveDisplay.isCABCEnabled());
+        assertEquals(service.isColorEnhancementEnabled(),
+                mLiveDisplay.isColorEnhancementEnabled());
+        assertEquals(service.isAutomaticOutdoorModeEnabled(),
+                mLiveDisplay.isAutomaticOutdoorModeEnabled());
+    }
+
     @SmallTest
     public void testNightMode() throws Exception {
         Assume.assumeTrue(mConfig.hasModeSupport());
@@ -29,6 +29,7 @@ import android.util.Log;
 import cyanogenmod.providers.CMSettings;
 import cyanogenmod.providers.ThemesContract;
 import cyanogenmod.themes.IThemeService;
+import cyanogenmod.themes.ThemeChangePlan;
 import cyanogenmod.themes.ThemeChangeRequest;
 import cyanogenmod.themes.ThemeManager;
 import cyanogenmod.themes.ThemeManager.ThemeChangeListener;
@@ -412,6 +413,9 @@ public class ThemeManagerTest extends AndroidTestCase {
 
         ThemeChangeRequest request = new ThemeChangeRequest.Builder()
                 .setStatusBar(defaultThemePkg)
+                // Audibles are always applied, so the request does work even if the status
+                // bar is already themed
+                .setAlarm(defaultThemePkg)
                 .setRequestType(ThemeChangeRequest.RequestType.USER_REQUEST_MIXNMATCH)
                 .build();
 
@@ -448,6 +452,9 @@ public class ThemeManagerTest extends AndroidTestCase {
 
         ThemeChangeRequest request = new ThemeChangeRequest.Builder()
                 .setStatusBar(defaultThemePkg)
+                // Audibles are always applied, so the request does work even if the status
+                // bar is already themed
+                .setAlarm(defaultThemePkg)
                 .setRequestType(ThemeChangeRequest.RequestType.USER_REQUEST_MIXNMATCH)
                 .build();
 
@@ -489,6 +496,9 @@ public class ThemeManagerTest extends AndroidTestCase {
 
         ThemeChangeRequest request = new ThemeChangeRequest.Builder()
                 .setStatusBar(defaultThemePkg)
+                // Audibles are always applied, so the request does work even if the status
+                // bar is already themed
+                .setAlarm(defaultThemePkg)
                 .setRequestType(ThemeChangeRequest.RequestType.USER_REQUEST_MIXNMATCH)
                 .build();
 
@@ -527,6 +537,9 @@ public class ThemeManagerTest extends AndroidTestCase {
 
         ThemeChangeRequest request = new ThemeChangeRequest.Builder()
                 .setStatusBar(defaultThemePkg)
+                // Audibles are always applied, so the request does work even if the status
+                // bar is already themed
+                .setAlarm(defaultThemePkg)
                 .setRequestType(ThemeChangeRequest.RequestType.USER_REQUEST_MIXNMATCH)
                 .build();
 
@@ -559,6 +572,30 @@ public class ThemeManagerTest extends AndroidTestCase {
         assertEquals(0, mThemeManager.getProgress());
     }
 
+    boolean actualRepeatedThemeChangeResponse = false;
+    @SmallTest
+    public void testRepeatedThemeChangeIsNoOp() {
+        // Get the default theme package
+        final String defaultThemePkg = getDefaultThemePackageName(mContext);
+
+        ThemeChangeRequest request = new ThemeChangeRequest.Builder()
+                .setStatusBar(defaultThemePkg)
+                .setRequestType(ThemeChangeRequest.RequestType.USER_REQUEST_MIXNMATCH)
+                .build();
+
+        // Make sure the request is applied, then ask for it again
+        requestThemeChangeAndWait(request);
+
+        ThemeChangePlan plan = mThemeManager.getThemeChangePlan(request, false);
+        assertNotNull(plan);
+        assertTrue(plan.isIncremental());
+        assertTrue(plan.isNoOp());
+        assertTrue(plan.getChangedComponents().isEmpty());
+        assertTrue(plan.getOverlayTargets().isEmpty());
+
+        assertTrue(requestThemeChangeAndWait(request));
+    }
+
     @SmallTest
     public void testThemeProcessing() {
         // Get the default theme package
@@ -578,6 +615,85 @@ public class ThemeManagerTest extends AndroidTestCase {
         assertTrue(mockedThemeManager.isThemeBeingProcessed(defaultThemePkg));
     }
 
+    @SmallTest
+    public void testProcessThemeTargets() {
+        // Get the default theme package
+        final String defaultThemePkg = getDefaultThemePackageName(mContext);
+        final List<String> targets = new ArrayList<>();
+        targets.add(mContext.getPackageName());
+        targets.add("com.android.settings");
+
+        // Callbacks only record what they get, everything is checked on the test thread
+        final List<String> reportedTargets = new ArrayList<>();
+        final int[] finishedCounts = new int[3];
+        final CountDownLatch signal = new CountDownLatch(COUNTDOWN);
+        ThemeManager.ProcessingJob job = mThemeManager.processThemeTargets(defaultThemePkg,
+                targets, new ThemeManager.TargetProcessingListener() {
+                    @Override
+                    public void onTargetProcessed(String targetPkgName, int result) {
+                        synchronized (reportedTargets) {
+                            reportedTargets.add(targetPkgName);
+                        }
+                    }
+
+                    @Override
+                    public void onJobFinished(int processed, int skipped, int failed,
+                            boolean cancelled) {
+                        synchronized (reportedTargets) {
+                            finishedCounts[0] = processed;
+                            finishedCounts[1] = skipped;
+                            finishedCounts[2] = failed;
+                        }
+                        signal.countDown();
+                    }
+                });
+        assertNotNull(job);
+
+        // Lock
+        try {
+            signal.await();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+
+        synchronized (reportedTargets) {
+            assertEquals(targets.size(), reportedTargets.size());
+            assertTrue(reportedTargets.containsAll(targets));
+            assertEquals(targets.size(), finishedCounts[0] + finishedCounts[1]
+                    + finishedCounts[2]);
+            // Targets must not all fail, as they would if nothing handled them
+            assertTrue(finishedCounts[2] < targets.size());
+        }
+        // Finished jobs can't be cancelled anymore
+        assertFalse(job.cancel());
+    }
+
+    private boolean requestThemeChangeAndWait(ThemeChangeRequest request) {
+        final CountDownLatch signal = new CountDownLatch(COUNTDOWN);
+        actualRepeatedThemeChangeResponse = false;
+        mThemeManager.registerThemeChangeListener(new ThemeChangeListener() {
+            @Override
+            public void onProgress(int progress) {}
+
+            @Override
+            public void onFinish(boolean isSuccess) {
+                actualRepeatedThemeChangeResponse = isSuccess;
+                mThemeManager.unregisterThemeChangeListener(this);
+                signal.countDown();
+            }
+        });
+
+        mThemeManager.requestThemeChange(request, false);
+
+        // Lock
+        try {
+            signal.await();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+        return actualRepeatedThemeChangeResponse;
+    }
+
     private boolean verifyThemeAppliedFromPackageForRow(String packageName, String expectedPackage,
             boolean systemTheme) {
         boolean verified = TextUtils.isEmpty(expectedPackage) ||
@@ -108,6 +108,33 @@ public class ColorUtilTest extends AndroidTestCase {
         bitmap.recycle();
     }
 
+    public void testGenerateAlertColorFromDrawableCached() {
+        final String pkg = "org.cyanogenmod.tests";
+        Bitmap bitmap = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        BitmapDrawable bitmapDrawable = new BitmapDrawable(bitmap);
+        bitmapDrawable.setBounds(0, 0, 100, 100);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.drawColor(Color.RED);
+
+        // Large bitmaps are downsampled, but must give the same result
+        int color = mColorUtils.generateAlertColorFromDrawable(pkg, 1, bitmapDrawable);
+        assertEquals(color, Color.RED);
+
+        // Same package and icon key must be served from the cache
+        canvas.drawColor(Color.BLUE);
+        color = mColorUtils.generateAlertColorFromDrawable(pkg, 1, bitmapDrawable);
+        assertEquals(color, Color.RED);
+
+        // Invalidating the package must force a new extraction
+        mColorUtils.invalidateAlertColors(pkg);
+        color = mColorUtils.generateAlertColorFromDrawable(pkg, 1, bitmapDrawable);
+        assertEquals(color, Color.BLUE);
+
+        assertEquals(bitmap.isRecycled(), false);
+        bitmap.recycle();
+        mColorUtils.invalidateAlertColors(pkg);
+    }
+
     private ColorDrawable getColorDrawableFromBitmapDrawable(final BitmapDrawable bitmapDrawable) {
         ColorDrawable colorDrawable = Mockito.mock(ColorDrawable.class);
         Mockito.doAnswer(new Answer() {
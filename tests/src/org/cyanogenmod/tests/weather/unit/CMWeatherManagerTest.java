@@ -239,4 +239,39 @@ public class CMWeatherManagerTest extends AndroidTestCase {
     public void testCancelRequest() {
         mWeatherManager.cancelRequest(REQUEST_ID);
     }
+
+    @MediumTest
+    public void testConcurrentRequestsAreDeduplicated() throws Exception {
+        final RequestInfo[] submitted = new RequestInfo[1];
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                // Hold on to the request, it completes once both callers are waiting
+                submitted[0] = (RequestInfo) invocation.getArguments()[0];
+                return null;
+            }
+        }).when(mICMWeatherManagerSpy).updateWeather(Mockito.any(RequestInfo.class));
+
+        final CountDownLatch signal = new CountDownLatch(2);
+        final WeatherUpdateRequestListener listener = new WeatherUpdateRequestListener() {
+            @Override
+            public void onWeatherRequestCompleted(int status, WeatherInfo weatherInfo) {
+                if (status == CMWeatherManager.RequestStatus.COMPLETED) {
+                    signal.countDown();
+                }
+            }
+        };
+        final Location location = new Location("test_location_provider");
+        final int firstId = mWeatherManager.requestWeatherUpdate(location, listener);
+        final int secondId = mWeatherManager.requestWeatherUpdate(location, listener);
+        assertTrue(firstId != secondId);
+        Mockito.verify(mICMWeatherManagerSpy, Mockito.times(1))
+                .updateWeather(Mockito.any(RequestInfo.class));
+
+        final WeatherInfo weatherInfo = new WeatherInfo.Builder(CITY_NAME,
+                30d, submitted[0].getTemperatureUnit()).build();
+        submitted[0].getRequestListener().onWeatherRequestCompleted(submitted[0],
+                CMWeatherManager.RequestStatus.COMPLETED, weatherInfo);
+        signal.await();
+    }
 }
@@ -19,8 +19,14 @@ package org.cyanogenmod.tests.weather.unit;
 import android.os.Parcel;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
+import cyanogenmod.os.Build;
+import cyanogenmod.os.Concierge;
 import cyanogenmod.providers.WeatherContract;
 import cyanogenmod.weather.WeatherInfo;
+import cyanogenmod.weather.WeatherInfo.DayForecast;
+
+import java.util.ArrayList;
+import java.util.List;
 
 public class WeatherInfoBuilderTest extends AndroidTestCase {
 
@@ -249,4 +255,175 @@ public class WeatherInfoBuilderTest extends AndroidTestCase {
             /* EXPECTED */
         }
     }
+
+    @SmallTest
+    public void testUnravelFromParcelWithForecasts() {
+        WeatherInfo info = new WeatherInfo.Builder(mCityName, mTemperature, mTemperatureUnit)
+                .setForecast(createForecasts(7)).build();
+
+        Parcel parcel = Parcel.obtain();
+        info.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+
+        WeatherInfo infoFromParcel = WeatherInfo.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+
+        List<DayForecast> expected = info.getForecasts();
+        List<DayForecast> actual = infoFromParcel.getForecasts();
+        assertEquals(expected, actual);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getHigh(), actual.get(i).getHigh());
+            assertEquals(expected.get(i).getLow(), actual.get(i).getLow());
+            assertEquals(expected.get(i).getConditionCode(), actual.get(i).getConditionCode());
+        }
+        // Forecasts are materialized once and shared afterwards
+        assertSame(actual, infoFromParcel.getForecasts());
+    }
+
+    @SmallTest
+    public void testUnravelFromLegacyParcel() {
+        List<DayForecast> forecasts = createForecasts(3);
+
+        // Lay out the parcel as an ELDERBERRY writer would
+        Parcel parcel = Parcel.obtain();
+        parcel.writeInt(Build.CM_VERSION_CODES.ELDERBERRY);
+        int sizePosition = parcel.dataPosition();
+        parcel.writeInt(0);
+        int startPosition = parcel.dataPosition();
+        parcel.writeString("legacy-key");
+        parcel.writeString(mCityName);
+        parcel.writeInt(mWeatherConditionCode);
+        parcel.writeDouble(mTemperature);
+        parcel.writeInt(mTemperatureUnit);
+        parcel.writeDouble(mHumidity);
+        parcel.writeDouble(mWindSpeed);
+        parcel.writeDouble(mWindDirection);
+        parcel.writeInt(mWindSpeedUnit);
+        parcel.writeDouble(mTodaysHigh);
+        parcel.writeDouble(mTodaysLow);
+        parcel.writeLong(mTimestamp);
+        parcel.writeInt(forecasts.size());
+        for (DayForecast forecast : forecasts) {
+            forecast.writeToParcel(parcel, 0);
+        }
+        int endPosition = parcel.dataPosition();
+        parcel.setDataPosition(sizePosition);
+        parcel.writeInt(endPosition - startPosition);
+        parcel.setDataPosition(0);
+
+        WeatherInfo infoFromParcel = WeatherInfo.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+
+        assertEquals(mCityName, infoFromParcel.getCity());
+        assertEquals(mTimestamp, infoFromParcel.getTimestamp());
+        assertEquals(forecasts, infoFromParcel.getForecasts());
+    }
+
+    @SmallTest
+    public void testForecastsAreNotModifiable() {
+        WeatherInfo info = new WeatherInfo.Builder(mCityName, mTemperature, mTemperatureUnit)
+                .setForecast(createForecasts(2)).build();
+        try {
+            info.getForecasts().clear();
+            throw new AssertionError("Forecast list of WeatherInfo could be modified!");
+        } catch (UnsupportedOperationException e) {
+            /* EXPECTED */
+        }
+    }
+
+    @SmallTest
+    public void testParcelReadableByLegacyReader() {
+        List<DayForecast> forecasts = createForecasts(5);
+        WeatherInfo info = new WeatherInfo.Builder(mCityName, mTemperature, mTemperatureUnit)
+                .setTimestamp(mTimestamp).setForecast(forecasts).build();
+
+        Parcel parcel = Parcel.obtain();
+        info.forParcelVersion(Build.CM_VERSION_CODES.FIG).writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+
+        // Read the parcel as an ELDERBERRY reader would
+        parcel.readInt();
+        int size = parcel.readInt();
+        int startPosition = parcel.dataPosition();
+        parcel.readString();
+        assertEquals(mCityName, parcel.readString());
+        parcel.readInt();
+        assertEquals(mTemperature, parcel.readDouble());
+        assertEquals(mTemperatureUnit, parcel.readInt());
+        parcel.readDouble();
+        parcel.readDouble();
+        parcel.readDouble();
+        parcel.readInt();
+        parcel.readDouble();
+        parcel.readDouble();
+        assertEquals(mTimestamp, parcel.readLong());
+        int forecastListSize = parcel.readInt();
+        List<DayForecast> legacyForecasts = new ArrayList<>(forecastListSize);
+        for (int i = 0; i < forecastListSize; i++) {
+            legacyForecasts.add(DayForecast.CREATOR.createFromParcel(parcel));
+        }
+        assertTrue(parcel.dataPosition() <= startPosition + size);
+        parcel.recycle();
+
+        assertEquals(forecasts, legacyForecasts);
+        for (int i = 0; i < forecasts.size(); i++) {
+            assertEquals(forecasts.get(i).getHigh(), legacyForecasts.get(i).getHigh());
+            assertEquals(forecasts.get(i).getLow(), legacyForecasts.get(i).getLow());
+        }
+    }
+
+    @SmallTest
+    public void testCompactParcelIsSmaller() {
+        List<DayForecast> forecasts = createForecasts(10);
+        WeatherInfo info = new WeatherInfo.Builder(mCityName, mTemperature, mTemperatureUnit)
+                .setForecast(forecasts).build();
+
+        Parcel compact = Parcel.obtain();
+        info.forParcelVersion(Concierge.PARCELABLE_VERSION).writeToParcel(compact, 0);
+
+        Parcel legacy = Parcel.obtain();
+        legacy.writeInt(forecasts.size());
+        for (DayForecast forecast : forecasts) {
+            forecast.writeToParcel(legacy, 0);
+        }
+
+        // The whole compact parcel, header included, beats the legacy forecasts alone
+        assertTrue(compact.dataSize() < legacy.dataSize());
+        compact.recycle();
+        legacy.recycle();
+    }
+
+    @SmallTest
+    public void testParcelFromParcelKeepsForecasts() {
+        WeatherInfo info = new WeatherInfo.Builder(mCityName, mTemperature, mTemperatureUnit)
+                .setForecast(createForecasts(4)).build()
+                .forParcelVersion(Concierge.PARCELABLE_VERSION);
+
+        Parcel first = Parcel.obtain();
+        info.writeToParcel(first, 0);
+        final int firstSize = first.dataSize();
+        first.setDataPosition(0);
+        WeatherInfo once = WeatherInfo.CREATOR.createFromParcel(first);
+        first.recycle();
+
+        // Parcel again without touching the forecasts in between
+        Parcel second = Parcel.obtain();
+        once.forParcelVersion(Concierge.PARCELABLE_VERSION).writeToParcel(second, 0);
+        // The columns are written again as they were read, nothing is added
+        assertEquals(firstSize, second.dataSize());
+        second.setDataPosition(0);
+        WeatherInfo twice = WeatherInfo.CREATOR.createFromParcel(second);
+        second.recycle();
+
+        assertEquals(info.getForecasts(), twice.getForecasts());
+    }
+
+    private static List<DayForecast> createForecasts(int count) {
+        List<DayForecast> forecasts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            forecasts.add(new DayForecast.Builder(mWeatherConditionCode)
+                    .setHigh(mTodaysHigh + i).setLow(mTodaysLow - i).build());
+        }
+        return forecasts;
+    }
 }
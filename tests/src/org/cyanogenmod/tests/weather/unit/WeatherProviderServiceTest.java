@@ -131,6 +131,41 @@ public class WeatherProviderServiceTest extends ThreadServiceTestCase<MockWeathe
         });
     }
 
+    public void testCancelRequest() throws Exception {
+        IBinder binder = bindService((ServiceRunnable) null);
+        assertNotNull(binder);
+
+        final IWeatherProviderService provider = IWeatherProviderService.Stub.asInterface(binder);
+        assertNotNull(provider);
+
+        final RequestInfo info
+                = buildMockdRequestInfo(RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ);
+        provider.processWeatherUpdateRequest(info);
+        runOnServiceThread(new Runnable() {
+            @Override
+            public void run() {
+                Mockito.verify(getService().getCallTracker(), Mockito.timeout(TIMEOUT).times(1))
+                        .onRequestSubmitted(Mockito.any(ServiceRequest.class));
+            }
+        });
+
+        provider.cancelRequest(info.hashCode());
+        // A second cancellation of the same request is a no-op
+        provider.cancelRequest(info.hashCode());
+        runOnServiceThread(new Runnable() {
+            @Override
+            public void run() {
+                ArgumentCaptor<ServiceRequest> params
+                        = ArgumentCaptor.forClass(ServiceRequest.class);
+
+                Mockito.verify(getService().getCallTracker(), Mockito.timeout(TIMEOUT).times(1))
+                        .onRequestCancelled(params.capture());
+
+                assertEquals(info, params.getValue().getRequestInfo());
+            }
+        });
+    }
+
     public void testServiceRequestResult() throws Exception {
         final CountDownLatch latch = new CountDownLatch(3);
         IBinder binder = bindService((ServiceRunnable) null);